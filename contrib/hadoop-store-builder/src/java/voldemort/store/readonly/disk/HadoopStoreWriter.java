@@ -16,7 +16,9 @@
 
 package voldemort.store.readonly.disk;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
@@ -36,6 +38,8 @@ import org.apache.log4j.Logger;
 import voldemort.VoldemortException;
 import voldemort.cluster.Cluster;
 import voldemort.store.StoreDefinition;
+import voldemort.store.readonly.BlockedIndexWriter;
+import voldemort.store.readonly.BloomFilter;
 import voldemort.store.readonly.ReadOnlyUtils;
 import voldemort.store.readonly.checksum.CheckSum;
 import voldemort.store.readonly.checksum.CheckSum.CheckSumType;
@@ -51,8 +55,11 @@ public class HadoopStoreWriter implements KeyValueWriter<BytesWritable, BytesWri
     private static final Logger logger = Logger.getLogger(HadoopStoreWriter.class);
 
     private DataOutputStream indexFileStream = null;
+    private BlockedIndexWriter blockedIndexWriter = null;
     private DataOutputStream valueFileStream = null;
     private int position;
+    private int numIndexEntries = 0;
+    private int keyHashSize = -1;
     private String taskId = null;
 
     private int nodeId = -1;
@@ -77,6 +84,7 @@ public class HadoopStoreWriter implements KeyValueWriter<BytesWritable, BytesWri
     private StoreDefinition storeDef;
     private boolean saveKeys;
     private boolean reducerPerBucket;
+    private int bloomFilterBitsPerKey;
 
     public Cluster getCluster() {
         checkNotNull(cluster);
@@ -127,6 +135,7 @@ public class HadoopStoreWriter implements KeyValueWriter<BytesWritable, BytesWri
                 throw new VoldemortException("num.chunks not specified in the job conf.");
             this.saveKeys = conf.getBoolean("save.keys", false);
             this.reducerPerBucket = conf.getBoolean("reducer.per.bucket", false);
+            this.bloomFilterBitsPerKey = conf.getInt("bloom.filter.bits.per.key", 0);
             this.conf = job;
             this.position = 0;
             this.outputDir = job.get("final.output.dir");
@@ -152,6 +161,13 @@ public class HadoopStoreWriter implements KeyValueWriter<BytesWritable, BytesWri
                              new FsPermission(HadoopStoreBuilder.HADOOP_FILE_PERMISSION));
             logger.info("Setting permission to 755 for " + this.taskIndexFileName);
 
+            if(conf.getBoolean("blocked.index", false)) {
+                if(!getSaveKeys())
+                    throw new VoldemortException("A blocked index requires save.keys to be set");
+                this.blockedIndexWriter = new BlockedIndexWriter(this.indexFileStream,
+                                                                 this.checkSumDigestIndex);
+            }
+
             this.valueFileStream = fs.create(this.taskValueFileName);
             fs.setPermission(this.taskValueFileName,
                              new FsPermission(HadoopStoreBuilder.HADOOP_FILE_PERMISSION));
@@ -170,14 +186,23 @@ public class HadoopStoreWriter implements KeyValueWriter<BytesWritable, BytesWri
     public void write(BytesWritable key, Iterator<BytesWritable> iterator, Reporter reporter)
             throws IOException {
 
+        this.numIndexEntries++;
+        this.keyHashSize = key.getSize();
+
         // Write key and position
-        this.indexFileStream.write(key.get(), 0, key.getSize());
-        this.indexFileStream.writeInt(this.position);
+        if(this.blockedIndexWriter != null) {
+            // Also runs the key through the checksum digest
+            this.blockedIndexWriter.write(ByteUtils.copy(key.get(), 0, key.getSize()),
+                                          this.position);
+        } else {
+            this.indexFileStream.write(key.get(), 0, key.getSize());
+            this.indexFileStream.writeInt(this.position);
 
-        // Run key through checksum digest
-        if(this.checkSumDigestIndex != null) {
-            this.checkSumDigestIndex.update(key.get(), 0, key.getSize());
-            this.checkSumDigestIndex.update(this.position);
+            // Run key through checksum digest
+            if(this.checkSumDigestIndex != null) {
+                this.checkSumDigestIndex.update(key.get(), 0, key.getSize());
+                this.checkSumDigestIndex.update(this.position);
+            }
         }
 
         short numTuples = 0;
@@ -282,6 +307,8 @@ public class HadoopStoreWriter implements KeyValueWriter<BytesWritable, BytesWri
     @Override
     public void close() throws IOException {
 
+        if(this.blockedIndexWriter != null)
+            this.blockedIndexWriter.finish();
         this.indexFileStream.close();
         this.valueFileStream.close();
 
@@ -347,6 +374,18 @@ public class HadoopStoreWriter implements KeyValueWriter<BytesWritable, BytesWri
             }
         }
 
+        if(this.bloomFilterBitsPerKey > 0)
+            writeBloomFilter(this.fs,
+                             this.taskIndexFileName,
+                             this.numIndexEntries,
+                             this.keyHashSize,
+                             this.blockedIndexWriter != null,
+                             this.bloomFilterBitsPerKey,
+                             outputFs,
+                             nodeDir,
+                             fileNamePrefix,
+                             this.checkSumType);
+
         // Generate the final chunk files
         Path indexFile = new Path(nodeDir, fileNamePrefix + ".index");
         Path valueFile = new Path(nodeDir, fileNamePrefix + ".data");
@@ -364,4 +403,56 @@ public class HadoopStoreWriter implements KeyValueWriter<BytesWritable, BytesWri
         outputFs.rename(this.taskValueFileName, valueFile);
     }
 
+    /**
+     * Builds the Bloom filter of a chunk by reading back its index file, and
+     * writes it, along with its checksum, to the node directory
+     */
+    static void writeBloomFilter(FileSystem fs,
+                                 Path taskIndexFileName,
+                                 int numEntries,
+                                 int keyHashSize,
+                                 boolean blockedIndex,
+                                 int bitsPerKey,
+                                 FileSystem outputFs,
+                                 Path nodeDir,
+                                 String chunkFileName,
+                                 CheckSumType checkSumType) throws IOException {
+        DataInputStream index = new DataInputStream(new BufferedInputStream(fs.open(taskIndexFileName)));
+        BloomFilter bloomFilter;
+        try {
+            bloomFilter = BloomFilter.fromIndex(index,
+                                                numEntries,
+                                                keyHashSize,
+                                                blockedIndex,
+                                                bitsPerKey);
+        } finally {
+            index.close();
+        }
+
+        CheckSum checkSumDigestBloom = CheckSum.getInstance(checkSumType);
+        Path bloomFile = new Path(nodeDir, chunkFileName + BloomFilter.FILE_EXTENSION);
+        if(outputFs.exists(bloomFile)) {
+            outputFs.delete(bloomFile);
+        }
+        FSDataOutputStream output = outputFs.create(bloomFile);
+        outputFs.setPermission(bloomFile,
+                               new FsPermission(HadoopStoreBuilder.HADOOP_FILE_PERMISSION));
+        bloomFilter.writeTo(output, checkSumDigestBloom);
+        output.close();
+        logger.info("Wrote Bloom filter " + bloomFile + " for " + numEntries + " keys");
+
+        if(checkSumType != CheckSumType.NONE && checkSumDigestBloom != null) {
+            Path checkSumBloomFile = new Path(nodeDir, chunkFileName + BloomFilter.FILE_EXTENSION
+                                                       + ".checksum");
+            if(outputFs.exists(checkSumBloomFile)) {
+                outputFs.delete(checkSumBloomFile);
+            }
+            output = outputFs.create(checkSumBloomFile);
+            outputFs.setPermission(checkSumBloomFile,
+                                   new FsPermission(HadoopStoreBuilder.HADOOP_FILE_PERMISSION));
+            output.write(checkSumDigestBloom.getCheckSum());
+            output.close();
+        }
+    }
+
 }
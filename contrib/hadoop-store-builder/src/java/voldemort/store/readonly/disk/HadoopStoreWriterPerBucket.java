@@ -36,6 +36,7 @@ import org.apache.log4j.Logger;
 import voldemort.VoldemortException;
 import voldemort.cluster.Cluster;
 import voldemort.store.StoreDefinition;
+import voldemort.store.readonly.BlockedIndexWriter;
 import voldemort.store.readonly.ReadOnlyUtils;
 import voldemort.store.readonly.checksum.CheckSum;
 import voldemort.store.readonly.checksum.CheckSum.CheckSumType;
@@ -49,8 +50,11 @@ public class HadoopStoreWriterPerBucket implements KeyValueWriter<BytesWritable,
     private static final Logger logger = Logger.getLogger(HadoopStoreWriterPerBucket.class);
 
     private DataOutputStream[] indexFileStream = null;
+    private BlockedIndexWriter[] blockedIndexWriter = null;
     private DataOutputStream[] valueFileStream = null;
     private int[] position;
+    private int[] numIndexEntries;
+    private int keyHashSize = -1;
     private String taskId = null;
 
     private int nodeId = -1;
@@ -87,6 +91,7 @@ public class HadoopStoreWriterPerBucket implements KeyValueWriter<BytesWritable,
 
             this.saveKeys = conf.getBoolean("save.keys", false);
             this.reducerPerBucket = conf.getBoolean("reducer.per.bucket", false);
+            this.bloomFilterBitsPerKey = conf.getInt("bloom.filter.bits.per.key", 0);
             this.conf = job;
             this.outputDir = job.get("final.output.dir");
             this.taskId = job.get("mapred.task.id");
@@ -95,9 +100,15 @@ public class HadoopStoreWriterPerBucket implements KeyValueWriter<BytesWritable,
             this.checkSumDigestIndex = new CheckSum[getNumChunks()];
             this.checkSumDigestValue = new CheckSum[getNumChunks()];
             this.position = new int[getNumChunks()];
+            this.numIndexEntries = new int[getNumChunks()];
             this.taskIndexFileName = new Path[getNumChunks()];
             this.taskValueFileName = new Path[getNumChunks()];
             this.indexFileStream = new DataOutputStream[getNumChunks()];
+            if(conf.getBoolean("blocked.index", false)) {
+                if(!getSaveKeys())
+                    throw new VoldemortException("A blocked index requires save.keys to be set");
+                this.blockedIndexWriter = new BlockedIndexWriter[getNumChunks()];
+            }
             this.valueFileStream = new DataOutputStream[getNumChunks()];
 
             for(int chunkId = 0; chunkId < getNumChunks(); chunkId++) {
@@ -122,6 +133,9 @@ public class HadoopStoreWriterPerBucket implements KeyValueWriter<BytesWritable,
                 fs.setPermission(this.taskIndexFileName[chunkId],
                                  new FsPermission(HadoopStoreBuilder.HADOOP_FILE_PERMISSION));
                 logger.info("Setting permission to 755 for " + this.taskIndexFileName[chunkId]);
+                if(this.blockedIndexWriter != null)
+                    this.blockedIndexWriter[chunkId] = new BlockedIndexWriter(this.indexFileStream[chunkId],
+                                                                              this.checkSumDigestIndex[chunkId]);
 
                 this.valueFileStream[chunkId] = fs.create(this.taskValueFileName[chunkId]);
                 fs.setPermission(this.taskValueFileName[chunkId],
@@ -147,14 +161,23 @@ public class HadoopStoreWriterPerBucket implements KeyValueWriter<BytesWritable,
         // Read chunk id
         int chunkId = ReadOnlyUtils.chunk(key.get(), getNumChunks());
 
+        this.numIndexEntries[chunkId]++;
+        this.keyHashSize = key.getSize();
+
         // Write key and position
-        this.indexFileStream[chunkId].write(key.get(), 0, key.getSize());
-        this.indexFileStream[chunkId].writeInt(this.position[chunkId]);
+        if(this.blockedIndexWriter != null) {
+            // Also runs the key through the checksum digest
+            this.blockedIndexWriter[chunkId].write(ByteUtils.copy(key.get(), 0, key.getSize()),
+                                                   this.position[chunkId]);
+        } else {
+            this.indexFileStream[chunkId].write(key.get(), 0, key.getSize());
+            this.indexFileStream[chunkId].writeInt(this.position[chunkId]);
 
-        // Run key through checksum digest
-        if(this.checkSumDigestIndex[chunkId] != null) {
-            this.checkSumDigestIndex[chunkId].update(key.get(), 0, key.getSize());
-            this.checkSumDigestIndex[chunkId].update(this.position[chunkId]);
+            // Run key through checksum digest
+            if(this.checkSumDigestIndex[chunkId] != null) {
+                this.checkSumDigestIndex[chunkId].update(key.get(), 0, key.getSize());
+                this.checkSumDigestIndex[chunkId].update(this.position[chunkId]);
+            }
         }
 
         short numTuples = 0;
@@ -257,6 +280,8 @@ public class HadoopStoreWriterPerBucket implements KeyValueWriter<BytesWritable,
     public void close() throws IOException {
 
         for(int chunkId = 0; chunkId < getNumChunks(); chunkId++) {
+            if(this.blockedIndexWriter != null)
+                this.blockedIndexWriter[chunkId].finish();
             this.indexFileStream[chunkId].close();
             this.valueFileStream[chunkId].close();
         }
@@ -325,6 +350,18 @@ public class HadoopStoreWriterPerBucket implements KeyValueWriter<BytesWritable,
                 }
             }
 
+            if(this.bloomFilterBitsPerKey > 0 && this.numIndexEntries[chunkId] > 0)
+                HadoopStoreWriter.writeBloomFilter(this.fs,
+                                                   this.taskIndexFileName[chunkId],
+                                                   this.numIndexEntries[chunkId],
+                                                   this.keyHashSize,
+                                                   this.blockedIndexWriter != null,
+                                                   this.bloomFilterBitsPerKey,
+                                                   outputFs,
+                                                   nodeDir,
+                                                   chunkFileName,
+                                                   this.checkSumType);
+
             // Generate the final chunk files
             Path indexFile = new Path(nodeDir, chunkFileName + ".index");
             Path valueFile = new Path(nodeDir, chunkFileName + ".data");
@@ -350,6 +387,7 @@ public class HadoopStoreWriterPerBucket implements KeyValueWriter<BytesWritable,
     private StoreDefinition storeDef;
     private boolean saveKeys;
     private boolean reducerPerBucket;
+    private int bloomFilterBitsPerKey;
 
     public Cluster getCluster() {
         checkNotNull(cluster);
@@ -87,6 +87,8 @@ public class HadoopStoreBuilder {
     private CheckSumType checkSumType = CheckSumType.NONE;
     private boolean saveKeys = false;
     private boolean reducerPerBucket = false;
+    private boolean blockedIndex = false;
+    private int bloomFilterBitsPerKey = 0;
     private int numChunks = -1;
 
     private boolean isAvro;
@@ -307,10 +309,36 @@ public class HadoopStoreBuilder {
             throw new VoldemortException("Number of chunks should be greater than zero");
     }
 
+    /**
+     * Write the index files as blocked indexes, producing a
+     * {@link ReadOnlyStorageFormat#READONLY_V3} store. Requires keys to be
+     * saved.
+     * 
+     * @param blockedIndex Boolean to signify whether we want a blocked index
+     */
+    public void setBlockedIndex(boolean blockedIndex) {
+        this.blockedIndex = blockedIndex;
+    }
+
+    /**
+     * Write a Bloom filter next to the index of every chunk, which lets the
+     * servers answer lookups of missing keys without searching the index.
+     * Servers running a fetcher which does not know about the filter files
+     * fail the checksum of such stores, so this is off by default.
+     * 
+     * @param bloomFilterBitsPerKey The number of bits per key of the filters,
+     *        or 0 to not write any
+     */
+    public void setBloomFilterBitsPerKey(int bloomFilterBitsPerKey) {
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    }
+
     /**
      * Run the job
      */
     public void build() {
+        if(blockedIndex && !saveKeys)
+            throw new VoldemortException("A blocked index can only be built when saving keys");
         try {
             JobConf conf = new JobConf(config);
             conf.setInt("io.file.buffer.size", DEFAULT_BUFFER_SIZE);
@@ -319,6 +347,8 @@ public class HadoopStoreBuilder {
                      new StoreDefinitionsMapper().writeStoreList(Collections.singletonList(storeDef)));
             conf.setBoolean("save.keys", saveKeys);
             conf.setBoolean("reducer.per.bucket", reducerPerBucket);
+            conf.setBoolean("blocked.index", blockedIndex);
+            conf.setInt("bloom.filter.bits.per.key", bloomFilterBitsPerKey);
             if(!isAvro) {
                 conf.setPartitionerClass(HadoopStoreBuilderPartitioner.class);
                 conf.setMapperClass(mapperClass);
@@ -458,7 +488,10 @@ public class HadoopStoreBuilder {
 
                 ReadOnlyStorageMetadata metadata = new ReadOnlyStorageMetadata();
 
-                if(saveKeys) {
+                if(blockedIndex) {
+                    metadata.add(ReadOnlyStorageMetadata.FORMAT,
+                                 ReadOnlyStorageFormat.READONLY_V3.getCode());
+                } else if(saveKeys) {
                     metadata.add(ReadOnlyStorageMetadata.FORMAT,
                                  ReadOnlyStorageFormat.READONLY_V2.getCode());
                 } else {
@@ -566,17 +599,13 @@ public class HadoopStoreBuilder {
 
             String f1 = fs1.getPath().getName(), f2 = fs2.getPath().getName();
 
-            // if both same, lexicographically
-            if((f1.contains(".index") && f2.contains(".index"))
-               || (f1.contains(".data") && f2.contains(".data"))) {
-                return f1.compareToIgnoreCase(f2);
-            }
-
-            if(f1.contains(".index")) {
-                return 1;
-            } else {
-                return -1;
-            }
+            // index files last, everything else (data, bloom filters)
+            // lexicographically, so that the builder and the fetchers agree
+            // on the order of the checksums
+            boolean isIndex1 = f1.contains(".index"), isIndex2 = f2.contains(".index");
+            if(isIndex1 != isIndex2)
+                return isIndex1 ? 1 : -1;
+            return f1.compareToIgnoreCase(f2);
         }
     }
 
@@ -92,6 +92,11 @@ public class HadoopStoreJobRunner extends Configured implements Tool {
         parser.accepts("force-overwrite", "deletes final output directory if present.");
         parser.accepts("save-keys", "save the keys in the data file");
         parser.accepts("reducer-per-bucket", "run single reducer per bucket");
+        parser.accepts("blocked-index",
+                       "write blocked index files (read-only format ro3), requires save-keys");
+        parser.accepts("bloom-bits-per-key",
+                       "write a Bloom filter with the given bits per key for every chunk")
+              .withRequiredArg();
         parser.accepts("help", "print usage information");
         return parser;
     }
@@ -142,6 +147,10 @@ public class HadoopStoreJobRunner extends Configured implements Tool {
         Path outputDir = new Path((String) options.valueOf("output"));
         boolean saveKeys = options.has("save-keys");
         boolean reducerPerBucket = options.has("reducer-per-bucket");
+        boolean blockedIndex = options.has("blocked-index");
+        int bloomFilterBitsPerKey = 0;
+        if(options.has("bloom-bits-per-key"))
+            bloomFilterBitsPerKey = Integer.parseInt((String) options.valueOf("bloom-bits-per-key"));
 
         List<String> addJars = new ArrayList<String>();
 
@@ -197,6 +206,8 @@ public class HadoopStoreJobRunner extends Configured implements Tool {
                                                             checkSumType,
                                                             saveKeys,
                                                             reducerPerBucket);
+        builder.setBlockedIndex(blockedIndex);
+        builder.setBloomFilterBitsPerKey(bloomFilterBitsPerKey);
 
         builder.build();
         return 0;
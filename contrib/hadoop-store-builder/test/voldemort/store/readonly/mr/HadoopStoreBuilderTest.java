@@ -335,4 +335,96 @@ public class HadoopStoreBuilderTest {
             }
         }
     }
+
+    /**
+     * A store built with blocked indexes should be readable through any
+     * search strategy
+     */
+    @Test
+    public void testHadoopBuildWithBlockedIndex() throws Exception {
+        // Blocked indexes are only built when saving keys
+        if(!saveKeys)
+            return;
+
+        Map<String, String> values = new HashMap<String, String>();
+        File testDir = TestUtils.createTempDir();
+        File tempDir = new File(testDir, "temp");
+        File outputDir = new File(testDir, "output");
+        File storeDir = TestUtils.createTempDir(testDir);
+        for(int i = 0; i < 1000; i++)
+            values.put(Integer.toString(i), Integer.toBinaryString(i));
+
+        File inputFile = File.createTempFile("input", ".txt", testDir);
+        inputFile.deleteOnExit();
+        StringBuilder contents = new StringBuilder();
+        for(Map.Entry<String, String> entry: values.entrySet())
+            contents.append(entry.getKey() + "\t" + entry.getValue() + "\n");
+        FileUtils.writeStringToFile(inputFile, contents.toString());
+
+        String storeName = "test";
+        SerializerDefinition serDef = new SerializerDefinition("string");
+        Cluster cluster = ServerTestUtils.getLocalCluster(1);
+        StoreDefinition def = new StoreDefinitionBuilder().setName(storeName)
+                                                          .setType(ReadOnlyStorageConfiguration.TYPE_NAME)
+                                                          .setKeySerializer(serDef)
+                                                          .setValueSerializer(serDef)
+                                                          .setRoutingPolicy(RoutingTier.CLIENT)
+                                                          .setRoutingStrategyType(RoutingStrategyType.CONSISTENT_STRATEGY)
+                                                          .setReplicationFactor(1)
+                                                          .setPreferredReads(1)
+                                                          .setRequiredReads(1)
+                                                          .setPreferredWrites(1)
+                                                          .setRequiredWrites(1)
+                                                          .build();
+        HadoopStoreBuilder builder = new HadoopStoreBuilder(new Configuration(),
+                                                            TextStoreMapper.class,
+                                                            TextInputFormat.class,
+                                                            cluster,
+                                                            def,
+                                                            64 * 1024,
+                                                            new Path(tempDir.getAbsolutePath()),
+                                                            new Path(outputDir.getAbsolutePath()),
+                                                            new Path(inputFile.getAbsolutePath()),
+                                                            CheckSumType.MD5,
+                                                            saveKeys,
+                                                            false);
+        builder.setBlockedIndex(true);
+        builder.build();
+
+        File nodeFile = new File(outputDir, "node-0");
+        ReadOnlyStorageMetadata metadata = new ReadOnlyStorageMetadata(new File(nodeFile,
+                                                                                ".metadata"));
+        Assert.assertEquals(ReadOnlyStorageFormat.READONLY_V3.getCode(),
+                            metadata.get(ReadOnlyStorageMetadata.FORMAT));
+
+        // The checksum should cover the blocked index files
+        byte[] md5 = Hex.decodeHex(((String) metadata.get(ReadOnlyStorageMetadata.CHECKSUM)).toCharArray());
+        byte[] checkSumBytes = CheckSumTests.calculateCheckSum(nodeFile.listFiles(),
+                                                               CheckSumType.MD5);
+        Assert.assertEquals(0, ByteUtils.compare(checkSumBytes, md5));
+
+        File versionDir = new File(storeDir, "version-0");
+        new HdfsFetcher().fetch(nodeFile.getAbsolutePath(), versionDir.getAbsolutePath());
+
+        @SuppressWarnings("unchecked")
+        Serializer<Object> serializer = (Serializer<Object>) new DefaultSerializerFactory().getSerializer(serDef);
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine(storeName,
+                                                                 searchStrategy,
+                                                                 new RoutingStrategyFactory().updateRoutingStrategy(def,
+                                                                                                                    cluster),
+                                                                 0,
+                                                                 storeDir,
+                                                                 1);
+        Store<Object, Object, Object> store = SerializingStore.wrap(engine,
+                                                                    serializer,
+                                                                    serializer,
+                                                                    serializer);
+        for(Map.Entry<String, String> entry: values.entrySet()) {
+            List<Versioned<Object>> found = store.get(entry.getKey(), null);
+            Assert.assertEquals("Incorrect number of results", 1, found.size());
+            Assert.assertEquals(entry.getValue(), found.get(0).getValue());
+        }
+        Assert.assertEquals(0, store.get("not-a-key", null).size());
+        engine.close();
+    }
 }
@@ -22,6 +22,7 @@ import java.util.Map.Entry;
 
 import org.apache.log4j.Logger;
 
+import voldemort.VoldemortException;
 import voldemort.client.StoreClient;
 import voldemort.client.UpdateAction;
 import voldemort.cluster.Node;
@@ -136,6 +137,14 @@ public class RESTClient<K, V> implements StoreClient<K, V> {
         return versioned.getVersion();
     }
 
+    @Override
+    public Map<K, VoldemortException> putAll(Map<K, V> entries) {
+        Map<K, Versioned<V>> versioned = Maps.newHashMapWithExpectedSize(entries.size());
+        for(Entry<K, V> entry: entries.entrySet())
+            versioned.put(entry.getKey(), new Versioned<V>(entry.getValue()));
+        return clientStore.putAll(versioned, null);
+    }
+
     @Override
     public boolean putIfNotObsolete(K key, Versioned<V> versioned) {
         try {
@@ -29,6 +29,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+import voldemort.VoldemortException;
 import voldemort.client.protocol.RequestFormatType;
 import voldemort.cluster.Cluster;
 import voldemort.cluster.Node;
@@ -47,9 +48,11 @@ import voldemort.store.StoreDefinition;
 import voldemort.store.compress.CompressingStore;
 import voldemort.store.compress.CompressionStrategy;
 import voldemort.store.compress.CompressionStrategyFactory;
+import voldemort.store.compress.NoopCompressionStrategy;
 import voldemort.store.logging.LoggingStore;
 import voldemort.store.metadata.MetadataStore;
 import voldemort.store.nonblockingstore.NonblockingStore;
+import voldemort.store.routed.NonblockingRoutedStore;
 import voldemort.store.routed.RoutedStoreConfig;
 import voldemort.store.routed.RoutedStoreFactory;
 import voldemort.store.serialized.SerializingStore;
@@ -194,6 +197,82 @@ public abstract class AbstractStoreClientFactory implements StoreClientFactory {
         return client;
     }
 
+    /**
+     * Returns a client of the given store whose operations return futures
+     * instead of blocking, see {@link AsyncStoreClient}.
+     */
+    public <K, V> AsyncStoreClient<K, V> getAsyncStoreClient(String storeName) {
+        return getAsyncStoreClient(storeName, null);
+    }
+
+    /**
+     * Returns a client of the given store whose operations return futures
+     * instead of blocking, see {@link AsyncStoreClient}.
+     * 
+     * @param storeName The name of the store
+     * @param resolver The resolver of concurrent versions, applied after the
+     *        vector clock resolution, or null for the time based one
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> AsyncStoreClient<K, V> getAsyncStoreClient(String storeName,
+                                                             InconsistencyResolver<Versioned<V>> resolver) {
+        StoreDefinition storeDef = bootstrapStoreDefinition(storeName, null, null);
+        NonblockingStore routedStore = getNonblockingRoutedStore(storeDef);
+
+        CompressionStrategy keyCompression = new NoopCompressionStrategy();
+        CompressionStrategy valueCompression = new NoopCompressionStrategy();
+        if(this.config.isEnableCompressionLayer()) {
+            keyCompression = getCompressionStrategy(storeDef.getKeySerializer());
+            valueCompression = getCompressionStrategy(storeDef.getValueSerializer());
+        }
+
+        InconsistencyResolver<Versioned<V>> secondaryResolver = resolver == null ? new TimeBasedInconsistencyResolver()
+                                                                                : resolver;
+        return new DefaultAsyncStoreClient<K, V>(storeName,
+                                                 routedStore,
+                                                 this,
+                                                 3,
+                                                 (Serializer<K>) serializerFactory.getSerializer(storeDef.getKeySerializer()),
+                                                 (Serializer<V>) serializerFactory.getSerializer(storeDef.getValueSerializer()),
+                                                 keyCompression,
+                                                 valueCompression,
+                                                 new ChainedResolver<Versioned<V>>(new VectorClockInconsistencyResolver(),
+                                                                                   secondaryResolver),
+                                                 this.routedStoreConfig.getTimeoutConfig(),
+                                                 threadPool);
+    }
+
+    /**
+     * Fetches the cluster and store metadata again and returns a new routed
+     * store for the asynchronous client of the given store, routing by the
+     * fetched cluster.
+     */
+    public NonblockingStore getNonblockingRoutedStore(String storeName) {
+        return getNonblockingRoutedStore(bootstrapStoreDefinition(storeName, null, null));
+    }
+
+    private NonblockingStore getNonblockingRoutedStore(StoreDefinition storeDef) {
+        if(storeDef.isView())
+            throw new VoldemortException("Views are not supported by the asynchronous client.");
+
+        Map<Integer, NonblockingStore> nonblockingStores = Maps.newHashMap();
+        for(Node node: this.cluster.getNodes()) {
+            Store<ByteArray, byte[], byte[]> store = getStore(storeDef.getName(),
+                                                              node.getHost(),
+                                                              getPort(node),
+                                                              this.requestFormatType);
+            nonblockingStores.put(node.getId(), routedStoreFactory.toNonblockingStore(store));
+        }
+
+        return new NonblockingRoutedStore(storeDef.getName(),
+                                          nonblockingStores,
+                                          this.cluster,
+                                          storeDef,
+                                          getFailureDetector(),
+                                          threadPool,
+                                          SystemTime.INSTANCE);
+    }
+
     @Override
     public <K, V, T> Store<K, V, T> getRawStore(String storeName,
                                                 InconsistencyResolver<Versioned<V>> resolver) {
@@ -207,47 +286,9 @@ public abstract class AbstractStoreClientFactory implements StoreClientFactory {
                                                 String clusterXmlString,
                                                 FailureDetector fd) {
 
-        logger.info("Client zone-id [" + this.routedStoreConfig.getClientZoneId()
-                    + "] Attempting to obtain metadata for store [" + storeName + "] ");
-
-        if(logger.isDebugEnabled()) {
-            for(URI uri: bootstrapUrls) {
-                logger.debug("Client Bootstrap url [" + uri + "]");
-            }
-        }
-        // Get cluster and store metadata
-        String clusterXml = clusterXmlString;
-        if(clusterXml == null) {
-            logger.debug("Fetching cluster.xml ...");
-            clusterXml = bootstrapMetadataWithRetries(MetadataStore.CLUSTER_KEY, bootstrapUrls);
-        }
-
-        this.cluster = clusterMapper.readCluster(new StringReader(clusterXml), false);
-        String storesXml = customStoresXml;
-        if(storesXml == null) {
-            logger.debug("Fetching stores.xml ...");
-            storesXml = bootstrapMetadataWithRetries(MetadataStore.STORES_KEY, bootstrapUrls);
-        }
-
-        if(logger.isDebugEnabled()) {
-            logger.debug("Obtained cluster metadata xml" + clusterXml);
-            logger.debug("Obtained stores  metadata xml" + storesXml);
-        }
-
-        storeDefs = storeMapper.readStoreList(new StringReader(storesXml), false);
-        StoreDefinition storeDef = null;
-        for(StoreDefinition d: storeDefs)
-            if(d.getName().equals(storeName))
-                storeDef = d;
-        if(storeDef == null) {
-            logger.error("Bootstrap - unknown store: " + storeName);
-            throw new BootstrapFailureException("Unknown store '" + storeName + "'.");
-        }
-
-        if(logger.isDebugEnabled()) {
-            logger.debug(this.cluster.toString(true));
-            logger.debug(storeDef.toString());
-        }
+        StoreDefinition storeDef = bootstrapStoreDefinition(storeName,
+                                                            customStoresXml,
+                                                            clusterXmlString);
         boolean repairReads = !storeDef.isView();
 
         // construct mapping
@@ -361,6 +402,57 @@ public abstract class AbstractStoreClientFactory implements StoreClientFactory {
         return finalStore;
     }
 
+    /**
+     * Fetches the cluster and store metadata, unless given, and returns the
+     * definition of the given store.
+     */
+    private StoreDefinition bootstrapStoreDefinition(String storeName,
+                                                     String customStoresXml,
+                                                     String clusterXmlString) {
+        logger.info("Client zone-id [" + this.routedStoreConfig.getClientZoneId()
+                    + "] Attempting to obtain metadata for store [" + storeName + "] ");
+
+        if(logger.isDebugEnabled()) {
+            for(URI uri: bootstrapUrls) {
+                logger.debug("Client Bootstrap url [" + uri + "]");
+            }
+        }
+        // Get cluster and store metadata
+        String clusterXml = clusterXmlString;
+        if(clusterXml == null) {
+            logger.debug("Fetching cluster.xml ...");
+            clusterXml = bootstrapMetadataWithRetries(MetadataStore.CLUSTER_KEY, bootstrapUrls);
+        }
+
+        this.cluster = clusterMapper.readCluster(new StringReader(clusterXml), false);
+        String storesXml = customStoresXml;
+        if(storesXml == null) {
+            logger.debug("Fetching stores.xml ...");
+            storesXml = bootstrapMetadataWithRetries(MetadataStore.STORES_KEY, bootstrapUrls);
+        }
+
+        if(logger.isDebugEnabled()) {
+            logger.debug("Obtained cluster metadata xml" + clusterXml);
+            logger.debug("Obtained stores  metadata xml" + storesXml);
+        }
+
+        storeDefs = storeMapper.readStoreList(new StringReader(storesXml), false);
+        StoreDefinition storeDef = null;
+        for(StoreDefinition d: storeDefs)
+            if(d.getName().equals(storeName))
+                storeDef = d;
+        if(storeDef == null) {
+            logger.error("Bootstrap - unknown store: " + storeName);
+            throw new BootstrapFailureException("Unknown store '" + storeName + "'.");
+        }
+
+        if(logger.isDebugEnabled()) {
+            logger.debug(this.cluster.toString(true));
+            logger.debug(storeDef.toString());
+        }
+        return storeDef;
+    }
+
     protected ClientConfig getConfig() {
         return config;
     }
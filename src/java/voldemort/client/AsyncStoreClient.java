@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client;
+
+import java.util.Map;
+
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A user-facing interface to a Voldemort store whose operations return at once
+ * with a future of their result, instead of blocking until the servers
+ * responded.
+ * <p/>
+ * The futures complete on the client's I/O threads. Listeners added with a
+ * same-thread executor must therefore not block; anything slow belongs on an
+ * executor of its own. A failed operation fails its future with the exception
+ * the matching {@link StoreClient} operation would throw.
+ * 
+ * @param <K> The type of the key being stored
+ * @param <V> The type of the value being stored
+ */
+@Threadsafe
+public interface AsyncStoreClient<K, V> {
+
+    /**
+     * Gets the versioned value associated with the given key, or null if no
+     * value is associated with the key.
+     * 
+     * @param key The key for which to fetch the value.
+     */
+    public ListenableFuture<Versioned<V>> get(K key);
+
+    /**
+     * Gets the versioned values associated with the given keys. The map only
+     * contains entries for the keys which have a value associated with them.
+     * 
+     * @param keys The keys for which to fetch the values.
+     */
+    public ListenableFuture<Map<K, Versioned<V>>> getAll(Iterable<K> keys);
+
+    /**
+     * Associates the given value to the key, clobbering any existing values
+     * stored for the key.
+     * 
+     * @param key The key
+     * @param value The value
+     * @return A future of the version of the value written
+     */
+    public ListenableFuture<Version> put(K key, V value);
+
+    /**
+     * Puts the given value with its version. The future fails with an
+     * {@link voldemort.versioning.ObsoleteVersionException} if a newer version
+     * of the value is stored.
+     * 
+     * @param key The key
+     * @param versioned The value and its version
+     * @return A future of the version of the value written
+     */
+    public ListenableFuture<Version> put(K key, Versioned<V> versioned);
+
+    /**
+     * Deletes any version of the given key which is equal to or less than the
+     * current versions.
+     * 
+     * @param key The key
+     * @return A future of true if anything was deleted
+     */
+    public ListenableFuture<Boolean> delete(K key);
+
+    /**
+     * Deletes the specified version and any prior versions of the given key.
+     * 
+     * @param key The key to delete
+     * @param version The version of the key
+     * @return A future of true if anything was deleted
+     */
+    public ListenableFuture<Boolean> delete(K key, Version version);
+}
@@ -29,6 +29,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.IOUtils;
 
 import voldemort.client.protocol.RequestFormatType;
+import voldemort.client.protocol.vold.FrameCompression;
 import voldemort.cluster.Zone;
 import voldemort.cluster.failuredetector.BannagePeriodFailureDetector;
 import voldemort.cluster.failuredetector.FailureDetectorConfig;
@@ -49,6 +50,7 @@ import voldemort.utils.Utils;
 public class ClientConfig {
 
     private volatile int maxConnectionsPerNode = 50;
+    private volatile int multiplexedConnectionsPerNode = 1;
     private volatile long connectionTimeoutMs = 500;
     private volatile long socketTimeoutMs = 5000;
     private volatile boolean socketKeepAlive = false;
@@ -56,6 +58,9 @@ public class ClientConfig {
     private volatile long routingTimeoutMs = 5000;
     private volatile TimeoutConfig timeoutConfig = new TimeoutConfig(routingTimeoutMs, false);
     private volatile int socketBufferSize = 64 * 1024;
+    private volatile long socketBufferPoolSize = 16 * 1024 * 1024;
+    private volatile List<String> socketCompressionCodecs = null;
+    private volatile int socketCompressionThreshold = FrameCompression.DEFAULT_THRESHOLD;
     private volatile SerializerFactory serializerFactory = new DefaultSerializerFactory();
     private volatile List<String> bootstrapUrls = null;
     private volatile RequestFormatType requestFormatType = RequestFormatType.VOLDEMORT_V1;
@@ -118,12 +123,15 @@ public class ClientConfig {
     private volatile boolean enableSerializationLayer = true;
     private volatile boolean enableInconsistencyResolvingLayer = true;
     private volatile ZoneAffinity zoneAffinity = new ZoneAffinity();
+    private volatile HedgedReads hedgedReads = new HedgedReads();
+    private volatile boolean enableReplicaRanking = false;
 
     public ClientConfig() {}
 
     /* Propery names for propery-based configuration */
 
     public static final String MAX_CONNECTIONS_PER_NODE_PROPERTY = "max_connections";
+    public static final String MULTIPLEXED_CONNECTIONS_PER_NODE_PROPERTY = "multiplexed_connections";
     public static final String MAX_TOTAL_CONNECTIONS_PROPERTY = "max_total_connections";
     public static final String MAX_THREADS_PROPERTY = "max_threads";
     public static final String MAX_QUEUED_REQUESTS_PROPERTY = "max_queued_requests";
@@ -141,6 +149,9 @@ public class ClientConfig {
     public static final String ALLOW_PARTIAL_GETALLS_PROPERTY = "allow_partial_getalls";
     public static final String NODE_BANNAGE_MS_PROPERTY = "node_bannage_ms";
     public static final String SOCKET_BUFFER_SIZE_PROPERTY = "socket_buffer_size";
+    public static final String SOCKET_BUFFER_POOL_SIZE_PROPERTY = "socket_buffer_pool_size";
+    public static final String SOCKET_COMPRESSION_CODECS_PROPERTY = "socket_compression_codecs";
+    public static final String SOCKET_COMPRESSION_THRESHOLD_PROPERTY = "socket_compression_threshold";
     public static final String SERIALIZER_FACTORY_CLASS_PROPERTY = "serializer_factory_class";
     public static final String BOOTSTRAP_URLS_PROPERTY = "bootstrap_urls";
     public static final String REQUEST_FORMAT_PROPERTY = "request_format";
@@ -177,6 +188,11 @@ public class ClientConfig {
     public static final String GET_OP_ZONE_AFFINITY = "get_op_zone_affinity";
     public static final String GETALL_OP_ZONE_AFFINITY = "getall_op_zone_affinity";
     public static final String GETVERSIONS_OP_ZONE_AFFINITY = "getversions_op_zone_affinity";
+    public static final String HEDGED_READS_ENABLED = "hedged_reads_enabled";
+    public static final String ENABLE_REPLICA_RANKING_PROPERTY = "enable_replica_ranking";
+    public static final String HEDGED_READS_DELAY_PERCENTILE = "hedged_reads_delay_percentile";
+    public static final String HEDGED_READS_MIN_DELAY_MS = "hedged_reads_min_delay_ms";
+    public static final String HEDGED_READS_MAX_PERCENT = "hedged_reads_max_percent";
 
     /**
      * Instantiate the client config using a properties file
@@ -213,6 +229,9 @@ public class ClientConfig {
         if(props.containsKey(MAX_CONNECTIONS_PER_NODE_PROPERTY))
             this.setMaxConnectionsPerNode(props.getInt(MAX_CONNECTIONS_PER_NODE_PROPERTY));
 
+        if(props.containsKey(MULTIPLEXED_CONNECTIONS_PER_NODE_PROPERTY))
+            this.setMultiplexedConnectionsPerNode(props.getInt(MULTIPLEXED_CONNECTIONS_PER_NODE_PROPERTY));
+
         if(props.containsKey(MAX_TOTAL_CONNECTIONS_PROPERTY))
             this.setMaxTotalConnections(props.getInt(MAX_TOTAL_CONNECTIONS_PROPERTY));
 
@@ -274,6 +293,15 @@ public class ClientConfig {
         if(props.containsKey(SOCKET_BUFFER_SIZE_PROPERTY))
             this.setSocketBufferSize(props.getInt(SOCKET_BUFFER_SIZE_PROPERTY));
 
+        if(props.containsKey(SOCKET_BUFFER_POOL_SIZE_PROPERTY))
+            this.setSocketBufferPoolSize(props.getBytes(SOCKET_BUFFER_POOL_SIZE_PROPERTY));
+
+        if(props.containsKey(SOCKET_COMPRESSION_CODECS_PROPERTY))
+            this.setSocketCompressionCodecs(props.getList(SOCKET_COMPRESSION_CODECS_PROPERTY));
+
+        if(props.containsKey(SOCKET_COMPRESSION_THRESHOLD_PROPERTY))
+            this.setSocketCompressionThreshold((int) props.getBytes(SOCKET_COMPRESSION_THRESHOLD_PROPERTY));
+
         if(props.containsKey(SERIALIZER_FACTORY_CLASS_PROPERTY)) {
             Class<?> factoryClass = ReflectUtils.loadClass(props.getString(SERIALIZER_FACTORY_CLASS_PROPERTY));
             SerializerFactory factory = (SerializerFactory) ReflectUtils.callConstructor(factoryClass,
@@ -290,6 +318,9 @@ public class ClientConfig {
         if(props.containsKey(ENABLE_JMX_PROPERTY))
             this.setEnableJmx(props.getBoolean(ENABLE_JMX_PROPERTY));
 
+        if(props.containsKey(ENABLE_REPLICA_RANKING_PROPERTY))
+            this.setEnableReplicaRanking(props.getBoolean(ENABLE_REPLICA_RANKING_PROPERTY));
+
         if(props.containsKey(ENABLE_LAZY_PROPERTY))
             this.setEnableLazy(props.getBoolean(ENABLE_LAZY_PROPERTY));
 
@@ -418,6 +449,23 @@ public class ClientConfig {
                 .setEnableGetVersionsOpZoneAffinity(props.getBoolean(GETVERSIONS_OP_ZONE_AFFINITY));
         }
 
+        if(props.containsKey(HEDGED_READS_ENABLED)) {
+            this.getHedgedReads().setEnabled(props.getBoolean(HEDGED_READS_ENABLED));
+        }
+
+        if(props.containsKey(HEDGED_READS_DELAY_PERCENTILE)) {
+            this.getHedgedReads()
+                .setDelayPercentile(props.getDouble(HEDGED_READS_DELAY_PERCENTILE));
+        }
+
+        if(props.containsKey(HEDGED_READS_MIN_DELAY_MS)) {
+            this.getHedgedReads().setMinDelayMs(props.getLong(HEDGED_READS_MIN_DELAY_MS));
+        }
+
+        if(props.containsKey(HEDGED_READS_MAX_PERCENT)) {
+            this.getHedgedReads().setMaxHedgePercent(props.getInt(HEDGED_READS_MAX_PERCENT));
+        }
+
     }
 
     /**
@@ -525,6 +573,25 @@ public class ClientConfig {
         return this;
     }
 
+    public int getMultiplexedConnectionsPerNode() {
+        return multiplexedConnectionsPerNode;
+    }
+
+    /**
+     * Set the number of connections to each voldemort node when a multiplexed
+     * request format (voldemort-native-v4) is used. All requests to the node
+     * share these connections, so a few are enough; maxConnectionsPerNode does
+     * not apply to them.
+     * 
+     * @param multiplexedConnectionsPerNode The number of shared connections
+     */
+    public ClientConfig setMultiplexedConnectionsPerNode(int multiplexedConnectionsPerNode) {
+        if(multiplexedConnectionsPerNode <= 0)
+            throw new IllegalArgumentException("Value must be greater than zero.");
+        this.multiplexedConnectionsPerNode = multiplexedConnectionsPerNode;
+        return this;
+    }
+
     public int getSocketTimeout(TimeUnit unit) {
         return toInt(unit.convert(socketTimeoutMs, TimeUnit.MILLISECONDS));
     }
@@ -671,6 +738,65 @@ public class ClientConfig {
         return this;
     }
 
+    public long getSocketBufferPoolSize() {
+        return socketBufferPoolSize;
+    }
+
+    /**
+     * Set the most bytes of idle direct buffers kept by the pool the
+     * connections take their socket buffers from. Zero disables the pool, in
+     * which case every connection allocates its own heap buffers.
+     * 
+     * @param socketBufferPoolSize The size of the buffer pool in bytes
+     */
+    public ClientConfig setSocketBufferPoolSize(long socketBufferPoolSize) {
+        if(socketBufferPoolSize < 0)
+            throw new IllegalArgumentException("Value must not be negative.");
+        this.socketBufferPoolSize = socketBufferPoolSize;
+        return this;
+    }
+
+    public List<String> getSocketCompressionCodecs() {
+        return socketCompressionCodecs;
+    }
+
+    /**
+     * Set the codecs to propose, in order of preference, for compressing the
+     * frames of multiplexed connections. The server picks the first one it
+     * supports, or none at all. Only takes effect with the
+     * {@link RequestFormatType#VOLDEMORT_V4} request format, and needs servers
+     * that know the compressed variant of it.
+     * 
+     * @param socketCompressionCodecs Codecs out of "snappy" and "lzf", or null
+     *        to not compress
+     */
+    public ClientConfig setSocketCompressionCodecs(List<String> socketCompressionCodecs) {
+        if(socketCompressionCodecs != null)
+            for(String codec: socketCompressionCodecs)
+                if(!FrameCompression.isSupported(codec))
+                    throw new IllegalArgumentException("Unsupported socket compression codec: "
+                                                       + codec);
+        this.socketCompressionCodecs = socketCompressionCodecs;
+        return this;
+    }
+
+    public int getSocketCompressionThreshold() {
+        return socketCompressionThreshold;
+    }
+
+    /**
+     * Set the smallest request or response in bytes that is compressed on a
+     * connection that negotiated compression
+     * 
+     * @param socketCompressionThreshold The threshold in bytes
+     */
+    public ClientConfig setSocketCompressionThreshold(int socketCompressionThreshold) {
+        if(socketCompressionThreshold < 0)
+            throw new IllegalArgumentException("Value must not be negative.");
+        this.socketCompressionThreshold = socketCompressionThreshold;
+        return this;
+    }
+
     public SerializerFactory getSerializerFactory() {
         return serializerFactory;
     }
@@ -828,6 +954,23 @@ public class ClientConfig {
         return this;
     }
 
+    public boolean isReplicaRankingEnabled() {
+        return this.enableReplicaRanking;
+    }
+
+    /**
+     * Order the replicas for GET and GET_VERSIONS operations by how fast they
+     * have been answering lately and how busy they are, instead of purely by
+     * the routing strategy?
+     * 
+     * @param enableReplicaRanking If true the fastest available replicas are
+     *        tried first
+     */
+    public ClientConfig setEnableReplicaRanking(boolean enableReplicaRanking) {
+        this.enableReplicaRanking = enableReplicaRanking;
+        return this;
+    }
+
     public boolean isLazyEnabled() {
         return this.enableLazy;
     }
@@ -1133,6 +1276,19 @@ public class ClientConfig {
         return this.zoneAffinity;
     }
 
+    public HedgedReads getHedgedReads() {
+        return this.hedgedReads;
+    }
+
+    /**
+     * @param hedgedReads Defines if and when GET operations send a request to
+     *        an additional replica, see {@link HedgedReads}
+     */
+    public ClientConfig setHedgedReads(HedgedReads hedgedReads) {
+        this.hedgedReads = hedgedReads;
+        return this;
+    }
+
     public int getFatClientWrapperMaxPoolSize() {
         return fatClientWrapperMaxPoolSize;
     }
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.common.VoldemortOpCode;
+import voldemort.serialization.Serializer;
+import voldemort.store.InvalidMetadataException;
+import voldemort.store.compress.CompressionStrategy;
+import voldemort.store.nonblockingstore.NonblockingStore;
+import voldemort.store.nonblockingstore.NonblockingStoreCallback;
+import voldemort.utils.ByteArray;
+import voldemort.utils.Utils;
+import voldemort.versioning.InconsistencyResolver;
+import voldemort.versioning.InconsistentDataException;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * The default {@link AsyncStoreClient}, on top of a routed
+ * {@link NonblockingStore}. It does the serialization, compression and
+ * inconsistency resolution the layers of a blocking client's store do.
+ * <p/>
+ * The put and delete without a version first fetch the current version. The
+ * write then starts on the given executor rather than on the I/O thread that
+ * completed the fetch, since it may have to open a connection.
+ * <p/>
+ * As the {@link DefaultStoreClient}, the client bootstraps again when a node
+ * answers that its metadata is out of date, and then submits the request
+ * again, routed by the new cluster. The bootstrap also runs on the executor.
+ * 
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+@Threadsafe
+public class DefaultAsyncStoreClient<K, V> implements AsyncStoreClient<K, V> {
+
+    private static final Logger logger = Logger.getLogger(DefaultAsyncStoreClient.class);
+
+    private final String storeName;
+    private final AbstractStoreClientFactory storeFactory;
+    private final int metadataRefreshAttempts;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final CompressionStrategy keyCompression;
+    private final CompressionStrategy valueCompression;
+    private final InconsistencyResolver<Versioned<V>> resolver;
+    private final TimeoutConfig timeoutConfig;
+    private final Executor executor;
+    private volatile NonblockingStore store;
+
+    /**
+     * @param storeName The name of the store
+     * @param store The routed store
+     * @param storeFactory The factory giving a new routed store on bootstrap
+     * @param maxMetadataRefreshAttempts The number of times a request is
+     *        submitted while the metadata is out of date
+     * @param keySerializer The key serializer
+     * @param valueSerializer The value serializer
+     * @param keyCompression The compression of the serialized keys
+     * @param valueCompression The compression of the serialized values
+     * @param resolver The resolver of concurrent versions
+     * @param timeoutConfig The timeouts of the operations
+     * @param executor The executor starting the writes that follow a fetch
+     */
+    public DefaultAsyncStoreClient(String storeName,
+                                   NonblockingStore store,
+                                   AbstractStoreClientFactory storeFactory,
+                                   int maxMetadataRefreshAttempts,
+                                   Serializer<K> keySerializer,
+                                   Serializer<V> valueSerializer,
+                                   CompressionStrategy keyCompression,
+                                   CompressionStrategy valueCompression,
+                                   InconsistencyResolver<Versioned<V>> resolver,
+                                   TimeoutConfig timeoutConfig,
+                                   Executor executor) {
+        this.storeName = Utils.notNull(storeName);
+        this.store = Utils.notNull(store);
+        this.storeFactory = Utils.notNull(storeFactory);
+        this.metadataRefreshAttempts = maxMetadataRefreshAttempts;
+        this.keySerializer = Utils.notNull(keySerializer);
+        this.valueSerializer = Utils.notNull(valueSerializer);
+        this.keyCompression = Utils.notNull(keyCompression);
+        this.valueCompression = Utils.notNull(valueCompression);
+        this.resolver = Utils.notNull(resolver);
+        this.timeoutConfig = Utils.notNull(timeoutConfig);
+        this.executor = Utils.notNull(executor);
+    }
+
+    public String getStoreName() {
+        return storeName;
+    }
+
+    /**
+     * Fetches the metadata again; the requests submitted from now on are
+     * routed by it.
+     */
+    public synchronized void bootStrap() {
+        logger.info("Bootstrapping metadata for store " + this.storeName);
+        this.store = storeFactory.getNonblockingRoutedStore(storeName);
+    }
+
+    /*
+     * Bootstraps unless another request already did since the given store was
+     * in use
+     */
+    private synchronized void bootStrap(NonblockingStore outdated) {
+        if(this.store == outdated)
+            bootStrap();
+    }
+
+    public ListenableFuture<Versioned<V>> get(final K key) {
+        final SettableFuture<Versioned<V>> future = SettableFuture.create();
+        try {
+            final ByteArray keyBytes = toBytes(key);
+            new Request(future) {
+
+                @Override
+                protected void submit(NonblockingStore store) {
+                    store.submitGetRequest(keyBytes,
+                                           null,
+                                           this,
+                                           timeoutConfig.getOperationTimeout(VoldemortOpCode.GET_OP_CODE));
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                protected Object convert(Object result) throws IOException {
+                    return getItemOrThrow(key, toObjects((List<Versioned<byte[]>>) result));
+                }
+            }.start();
+        } catch(VoldemortException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
+    public ListenableFuture<Map<K, Versioned<V>>> getAll(Iterable<K> keys) {
+        final SettableFuture<Map<K, Versioned<V>>> future = SettableFuture.create();
+        try {
+            final Map<ByteArray, K> byteKeys = Maps.newHashMap();
+            for(K key: keys)
+                byteKeys.put(toBytes(key), key);
+
+            new Request(future) {
+
+                @Override
+                protected void submit(NonblockingStore store) {
+                    store.submitGetAllRequest(byteKeys.keySet(),
+                                              null,
+                                              this,
+                                              timeoutConfig.getOperationTimeout(VoldemortOpCode.GET_ALL_OP_CODE));
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                protected Object convert(Object result) throws IOException {
+                    Map<ByteArray, List<Versioned<byte[]>>> values = (Map<ByteArray, List<Versioned<byte[]>>>) result;
+                    Map<K, Versioned<V>> items = Maps.newHashMapWithExpectedSize(values.size());
+                    for(Map.Entry<ByteArray, List<Versioned<byte[]>>> entry: values.entrySet()) {
+                        K key = byteKeys.get(entry.getKey());
+                        Versioned<V> item = getItemOrThrow(key, toObjects(entry.getValue()));
+                        if(item != null)
+                            items.put(key, item);
+                    }
+                    return items;
+                }
+            }.start();
+        } catch(VoldemortException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
+    public ListenableFuture<Version> put(final K key, final V value) {
+        return Futures.transform(get(key), new AsyncFunction<Versioned<V>, Version>() {
+
+            public ListenableFuture<Version> apply(Versioned<V> versioned) {
+                if(versioned == null)
+                    versioned = Versioned.value(value, new VectorClock());
+                else
+                    versioned.setObject(value);
+                return put(key, versioned);
+            }
+        }, executor);
+    }
+
+    public ListenableFuture<Version> put(K key, final Versioned<V> versioned) {
+        final SettableFuture<Version> future = SettableFuture.create();
+        try {
+            final ByteArray keyBytes = toBytes(key);
+            final byte[] value = valueCompression.deflate(valueSerializer.toBytes(versioned.getValue()));
+            new Request(future) {
+
+                @Override
+                protected void submit(NonblockingStore store) {
+                    store.submitPutRequest(keyBytes,
+                                           new Versioned<byte[]>(value, versioned.getVersion()),
+                                           null,
+                                           this,
+                                           timeoutConfig.getOperationTimeout(VoldemortOpCode.PUT_OP_CODE));
+                }
+            }.start();
+        } catch(IOException e) {
+            future.setException(new VoldemortException(e));
+        } catch(VoldemortException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
+    public ListenableFuture<Boolean> delete(final K key) {
+        return Futures.transform(get(key), new AsyncFunction<Versioned<V>, Boolean>() {
+
+            public ListenableFuture<Boolean> apply(Versioned<V> versioned) {
+                if(versioned == null)
+                    return Futures.immediateFuture(false);
+                return delete(key, versioned.getVersion());
+            }
+        }, executor);
+    }
+
+    public ListenableFuture<Boolean> delete(K key, final Version version) {
+        SettableFuture<Boolean> future = SettableFuture.create();
+        try {
+            final ByteArray keyBytes = toBytes(key);
+            new Request(future) {
+
+                @Override
+                protected void submit(NonblockingStore store) {
+                    store.submitDeleteRequest(keyBytes,
+                                              version,
+                                              this,
+                                              timeoutConfig.getOperationTimeout(VoldemortOpCode.DELETE_OP_CODE));
+                }
+            }.start();
+        } catch(VoldemortException e) {
+            future.setException(e);
+        }
+        return future;
+    }
+
+    private ByteArray toBytes(K key) {
+        try {
+            return new ByteArray(keyCompression.deflate(keySerializer.toBytes(key)));
+        } catch(IOException e) {
+            throw new VoldemortException(e);
+        }
+    }
+
+    private List<Versioned<V>> toObjects(List<Versioned<byte[]>> values) throws IOException {
+        List<Versioned<V>> items = new ArrayList<Versioned<V>>(values.size());
+        for(Versioned<byte[]> value: values)
+            items.add(new Versioned<V>(valueSerializer.toObject(valueCompression.inflate(value.getValue())),
+                                       value.getVersion()));
+        return resolver.resolveConflicts(items);
+    }
+
+    private Versioned<V> getItemOrThrow(K key, List<Versioned<V>> items) {
+        if(items.size() == 0)
+            return null;
+        else if(items.size() == 1)
+            return items.get(0);
+        else
+            throw new InconsistentDataException("Unresolved versions returned from get(" + key
+                                                + ") = " + items, items);
+    }
+
+    /**
+     * Completes a future with the converted result of a request. A request
+     * failing on out of date metadata is submitted again after a bootstrap,
+     * until it was submitted the number of metadata refresh attempts.
+     */
+    private abstract class Request implements NonblockingStoreCallback {
+
+        private final SettableFuture<?> future;
+
+        private NonblockingStore submittedTo;
+
+        private int attempts = 0;
+
+        private Request(SettableFuture<?> future) {
+            this.future = future;
+        }
+
+        /**
+         * Submits the request to the given store, with this as the callback
+         */
+        protected abstract void submit(NonblockingStore store);
+
+        protected Object convert(Object result) throws IOException {
+            return result;
+        }
+
+        void start() {
+            submittedTo = store;
+            try {
+                submit(submittedTo);
+            } catch(VoldemortException e) {
+                future.setException(e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public void requestComplete(Object result, long requestTime) {
+            if(result instanceof InvalidMetadataException) {
+                retryAfterBootstrap((InvalidMetadataException) result);
+                return;
+            }
+
+            if(result instanceof Exception) {
+                future.setException((Exception) result);
+                return;
+            }
+
+            try {
+                ((SettableFuture<Object>) future).set(convert(result));
+            } catch(IOException e) {
+                future.setException(new VoldemortException(e));
+            } catch(RuntimeException e) {
+                future.setException(e);
+            }
+        }
+
+        private void retryAfterBootstrap(InvalidMetadataException e) {
+            if(++attempts >= metadataRefreshAttempts) {
+                future.setException(new VoldemortException(metadataRefreshAttempts
+                                                           + " metadata refresh attempts failed.",
+                                                           e));
+                return;
+            }
+
+            logger.info("Received invalid metadata exception [ " + e.getMessage()
+                        + " ] on store '" + storeName + "'. Rebootstrapping");
+            try {
+                executor.execute(new Runnable() {
+
+                    public void run() {
+                        try {
+                            bootStrap(submittedTo);
+                        } catch(VoldemortException e) {
+                            future.setException(e);
+                            return;
+                        }
+                        start();
+                    }
+                });
+            } catch(RuntimeException re) {
+                future.setException(e);
+            }
+        }
+    }
+}
@@ -226,6 +226,55 @@ public class DefaultStoreClient<K, V> implements StoreClient<K, V> {
         return put(key, versioned);
     }
 
+    public Map<K, VoldemortException> putAll(Map<K, V> entries) {
+        Map<K, List<Versioned<V>>> current = null;
+        for(int attempts = 0;; attempts++) {
+            if(attempts >= this.metadataRefreshAttempts)
+                throw new VoldemortException(this.metadataRefreshAttempts
+                                             + " metadata refresh attempts failed.");
+            try {
+                current = store.getAll(entries.keySet(), null);
+                break;
+            } catch(InvalidMetadataException e) {
+                logger.info("Received invalid metadata exception during putAll [  "
+                            + e.getMessage() + " ] on store '" + storeName + "'. Rebootstrapping");
+                bootStrap();
+            }
+        }
+
+        Map<K, VoldemortException> failures = Maps.newHashMap();
+        Map<K, Versioned<V>> versioned = Maps.newHashMapWithExpectedSize(entries.size());
+        for(Entry<K, V> entry: entries.entrySet()) {
+            List<Versioned<V>> items = current.get(entry.getKey());
+            if(items == null || items.isEmpty()) {
+                versioned.put(entry.getKey(), Versioned.value(entry.getValue(), new VectorClock()));
+            } else if(items.size() == 1) {
+                versioned.put(entry.getKey(), Versioned.value(entry.getValue(), items.get(0)
+                                                                                     .getVersion()));
+            } else {
+                // let the single put resolve the concurrent versions
+                try {
+                    put(entry.getKey(), entry.getValue());
+                } catch(VoldemortException e) {
+                    failures.put(entry.getKey(), e);
+                }
+            }
+        }
+
+        for(int attempts = 0; attempts < this.metadataRefreshAttempts; attempts++) {
+            try {
+                failures.putAll(store.putAll(versioned, null));
+                return failures;
+            } catch(InvalidMetadataException e) {
+                logger.info("Received invalid metadata exception during putAll [  "
+                            + e.getMessage() + " ] on store '" + storeName + "'. Rebootstrapping");
+                bootStrap();
+            }
+        }
+        throw new VoldemortException(this.metadataRefreshAttempts
+                                     + " metadata refresh attempts failed.");
+    }
+
     public Version put(K key, Versioned<V> versioned, Object transform)
             throws ObsoleteVersionException {
         for(int attempts = 0; attempts < this.metadataRefreshAttempts; attempts++) {
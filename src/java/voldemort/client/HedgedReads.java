@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client;
+
+/**
+ * Encapsulates the hedged read configuration for GET operations.
+ * <p/>
+ * With hedging enabled, a GET that has not heard from all the replicas it
+ * asked within the hedge delay stops waiting for the stragglers once it has
+ * the required number of successful reads. If it does not have them yet, it
+ * also asks the next replica in the preference list. The hedge delay is the
+ * given percentile of recent response times, but at least the minimum delay,
+ * and at most the given percentage of GETs send a hedge request.
+ * 
+ */
+public class HedgedReads {
+
+    private boolean enabled;
+    private double delayPercentile;
+    private long minDelayMs;
+    private int maxHedgePercent;
+
+    public HedgedReads() {
+        this(false);
+    }
+
+    public HedgedReads(boolean enabled) {
+        this(enabled, 95.0, 5, 10);
+    }
+
+    public HedgedReads(boolean enabled,
+                       double delayPercentile,
+                       long minDelayMs,
+                       int maxHedgePercent) {
+        this.enabled = enabled;
+        setDelayPercentile(delayPercentile);
+        setMinDelayMs(minDelayMs);
+        setMaxHedgePercent(maxHedgePercent);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param enabled Defines if GET operations are hedged
+     */
+    public HedgedReads setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        return this;
+    }
+
+    public double getDelayPercentile() {
+        return delayPercentile;
+    }
+
+    /**
+     * @param delayPercentile The percentile of recent GET response times after
+     *        which a GET is hedged, between 0 and 100
+     */
+    public HedgedReads setDelayPercentile(double delayPercentile) {
+        if(delayPercentile <= 0 || delayPercentile > 100)
+            throw new IllegalArgumentException("Hedge delay percentile must be in (0, 100].");
+        this.delayPercentile = delayPercentile;
+        return this;
+    }
+
+    public long getMinDelayMs() {
+        return minDelayMs;
+    }
+
+    /**
+     * @param minDelayMs The least time a GET waits before it is hedged
+     */
+    public HedgedReads setMinDelayMs(long minDelayMs) {
+        if(minDelayMs < 0)
+            throw new IllegalArgumentException("Minimum hedge delay cannot be negative.");
+        this.minDelayMs = minDelayMs;
+        return this;
+    }
+
+    public int getMaxHedgePercent() {
+        return maxHedgePercent;
+    }
+
+    /**
+     * @param maxHedgePercent The largest share of GET operations, in percent,
+     *        that send a hedge request
+     */
+    public HedgedReads setMaxHedgePercent(int maxHedgePercent) {
+        if(maxHedgePercent < 0 || maxHedgePercent > 100)
+            throw new IllegalArgumentException("Maximum hedge percentage must be in [0, 100].");
+        this.maxHedgePercent = maxHedgePercent;
+        return this;
+    }
+}
@@ -125,6 +125,10 @@ public class LazyStoreClient<K, V> implements StoreClient<K, V> {
         return getStoreClient().put(key, versioned);
     }
 
+    public Map<K, VoldemortException> putAll(Map<K, V> entries) {
+        return getStoreClient().putAll(entries);
+    }
+
     public boolean putIfNotObsolete(K key, Versioned<V> versioned) {
         return getStoreClient().putIfNotObsolete(key, versioned);
     }
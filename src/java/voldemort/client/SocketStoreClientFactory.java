@@ -69,7 +69,11 @@ public class SocketStoreClientFactory extends AbstractStoreClientFactory {
                                                           config.getSocketBufferSize(),
                                                           config.getSocketKeepAlive(),
                                                           config.isJmxEnabled(),
-                                                          jmxId);
+                                                          jmxId,
+                                                          config.getMultiplexedConnectionsPerNode(),
+                                                          config.getSocketBufferPoolSize(),
+                                                          config.getSocketCompressionCodecs(),
+                                                          config.getSocketCompressionThreshold());
     }
 
     @Override
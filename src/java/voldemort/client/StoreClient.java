@@ -19,6 +19,7 @@ package voldemort.client;
 import java.util.List;
 import java.util.Map;
 
+import voldemort.VoldemortException;
 import voldemort.annotations.concurrency.Threadsafe;
 import voldemort.cluster.Node;
 import voldemort.versioning.ObsoleteVersionException;
@@ -136,6 +137,18 @@ public interface StoreClient<K, V> {
      */
     public Version put(K key, V value, Object transforms);
 
+    /**
+     * Like {@link voldemort.client.StoreClient #put(Object, Object)}, for many
+     * keys at once. The current versions are fetched with one getAll and the
+     * values are written with batched requests where the store supports them.
+     * Each entry is put independently, so some may fail while others succeed.
+     * 
+     * @param entries The values to put, keyed by key
+     * @return The keys that could not be written, mapped to the reason; empty
+     *         if all entries were written
+     */
+    public Map<K, VoldemortException> putAll(Map<K, V> entries);
+
     /**
      * Put the given Versioned value into the store for the given key if the
      * version is greater to or concurrent with existing values. Throw an
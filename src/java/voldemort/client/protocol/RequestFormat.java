@@ -23,6 +23,7 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
+import voldemort.VoldemortException;
 import voldemort.server.RequestRoutingType;
 import voldemort.utils.ByteArray;
 import voldemort.versioning.VectorClock;
@@ -80,6 +81,17 @@ public interface RequestFormat {
 
     public void readPutResponse(DataInputStream stream) throws IOException;
 
+    public void writePutAllRequest(DataOutputStream output,
+                                   String storeName,
+                                   Map<ByteArray, Versioned<byte[]>> entries,
+                                   Map<ByteArray, byte[]> transforms,
+                                   RequestRoutingType routingType) throws IOException;
+
+    public boolean isCompletePutAllResponse(ByteBuffer buffer);
+
+    public Map<ByteArray, VoldemortException> readPutAllResponse(DataInputStream stream)
+            throws IOException;
+
     public void writeDeleteRequest(DataOutputStream output,
                                    String storeName,
                                    ByteArray key,
@@ -27,6 +27,8 @@ public enum RequestFormatType {
     VOLDEMORT_V2("vp2", "voldemort-native-v2"),
     VOLDEMORT_V3("vp3", "voldemort-native-v3"), // has the transforms
     // information
+    VOLDEMORT_V4("vp4", "voldemort-native-v4"), // v3 with request ids, many
+    // requests in flight per connection
     PROTOCOL_BUFFERS("pb0", "protocol-buffers-v0"),
     ADMIN_PROTOCOL_BUFFERS("ad1", "admin-v1");
 
@@ -46,6 +48,24 @@ public enum RequestFormatType {
         return this.displayName;
     }
 
+    /**
+     * Returns true if several requests may be in flight on one connection with
+     * this format
+     */
+    public boolean isMultiplexed() {
+        return this == VOLDEMORT_V4;
+    }
+
+    /**
+     * Returns true if the format has a batched put request. Servers older than
+     * the batched put still speak version 3 and would fail it as an unknown
+     * op, so it is only sent on version 4 connections, which these servers
+     * refuse to negotiate.
+     */
+    public boolean supportsPutAll() {
+        return this == VOLDEMORT_V4;
+    }
+
     public static RequestFormatType fromCode(String code) {
         for(RequestFormatType type: RequestFormatType.values())
             if(type.getCode().equals(code))
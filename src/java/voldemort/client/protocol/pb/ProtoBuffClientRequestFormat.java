@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import voldemort.VoldemortException;
 import voldemort.client.protocol.RequestFormat;
 import voldemort.client.protocol.pb.VProto.DeleteResponse;
 import voldemort.client.protocol.pb.VProto.GetAllResponse;
@@ -202,6 +203,27 @@ public class ProtoBuffClientRequestFormat implements RequestFormat {
             throwException(response.getError());
     }
 
+    /*
+     * The protocol buffers format has no batched put message, callers check
+     * RequestFormatType.supportsPutAll() and fall back to single puts.
+     */
+    public void writePutAllRequest(DataOutputStream output,
+                                   String storeName,
+                                   Map<ByteArray, Versioned<byte[]>> entries,
+                                   Map<ByteArray, byte[]> transforms,
+                                   RequestRoutingType routingType) throws IOException {
+        throw new UnsupportedOperationException("putAll is not supported by the protocol buffers format");
+    }
+
+    public boolean isCompletePutAllResponse(ByteBuffer buffer) {
+        throw new UnsupportedOperationException("putAll is not supported by the protocol buffers format");
+    }
+
+    public Map<ByteArray, VoldemortException> readPutAllResponse(DataInputStream input)
+            throws IOException {
+        throw new UnsupportedOperationException("putAll is not supported by the protocol buffers format");
+    }
+
     public void throwException(VProto.Error error) {
         throw mapper.getError((short) error.getErrorCode(), error.getErrorMessage());
     }
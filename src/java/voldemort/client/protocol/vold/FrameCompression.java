@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client.protocol.vold;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import voldemort.VoldemortException;
+import voldemort.serialization.Compression;
+import voldemort.store.compress.CompressionStrategy;
+import voldemort.store.compress.CompressionStrategyFactory;
+
+/**
+ * Compression of the frames of the multiplexed native protocol, negotiated per
+ * connection.
+ * <p/>
+ * A client that wants compressed frames proposes {@link #NEGOTIATION_CODE}
+ * instead of the plain version 4 code, followed by the codecs it accepts in
+ * order of preference and the smallest frame worth compressing. The server
+ * answers "ok" followed by the codec it picked, or an empty string if it
+ * supports none of them, in which case the connection carries plain version 4
+ * frames.
+ * <p/>
+ * Either side may then compress any frame it sends whose payload is at least
+ * the threshold, provided the compressed payload is smaller. A compressed frame
+ * has the {@link #COMPRESSED_FLAG} bit set in its length.
+ */
+public class FrameCompression {
+
+    /**
+     * The protocol code proposing version 4 with compressed frames
+     */
+    public static final String NEGOTIATION_CODE = "vz4";
+
+    /**
+     * The bit of the frame length marking a compressed payload
+     */
+    public static final int COMPRESSED_FLAG = 0x80000000;
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final String[] SUPPORTED_CODECS = { "snappy", "lzf" };
+
+    private final String codec;
+
+    private final int threshold;
+
+    private final CompressionStrategy strategy;
+
+    /**
+     * @param codec The codec, one of "snappy" or "lzf"
+     * @param threshold The smallest payload in bytes that is compressed
+     */
+    public FrameCompression(String codec, int threshold) {
+        if(!isSupported(codec))
+            throw new IllegalArgumentException("Unsupported frame compression codec: " + codec);
+        if(threshold < 0)
+            throw new IllegalArgumentException("Threshold must not be negative.");
+
+        this.codec = codec;
+        this.threshold = threshold;
+        this.strategy = new CompressionStrategyFactory().get(new Compression(codec, null));
+    }
+
+    public static boolean isSupported(String codec) {
+        for(String supported: SUPPORTED_CODECS)
+            if(supported.equals(codec))
+                return true;
+        return false;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Returns true if a payload of the given size should be compressed
+     */
+    public boolean shouldCompress(int length) {
+        return length >= threshold && length > 0;
+    }
+
+    /**
+     * Returns the compressed payload, or null if compressing does not make it
+     * smaller
+     */
+    public byte[] compress(byte[] payload) {
+        try {
+            byte[] compressed = strategy.deflate(payload);
+            return compressed.length < payload.length ? compressed : null;
+        } catch(IOException e) {
+            throw new VoldemortException("Error compressing frame with " + codec, e);
+        }
+    }
+
+    public byte[] decompress(byte[] payload) {
+        try {
+            return strategy.inflate(payload);
+        } catch(IOException e) {
+            throw new VoldemortException("Error decompressing frame with " + codec, e);
+        }
+    }
+
+    /**
+     * Returns true if the given frame length has the compressed bit set
+     */
+    public static boolean isCompressed(int frameLength) {
+        return (frameLength & COMPRESSED_FLAG) != 0;
+    }
+
+    /**
+     * Returns the payload length of the given frame length
+     */
+    public static int getPayloadLength(int frameLength) {
+        return frameLength & ~COMPRESSED_FLAG;
+    }
+
+    /**
+     * Writes the proposal following {@link #NEGOTIATION_CODE}
+     */
+    public static void writeProposal(DataOutputStream outputStream,
+                                     List<String> codecs,
+                                     int threshold) throws IOException {
+        StringBuilder proposal = new StringBuilder();
+        for(String codec: codecs) {
+            if(proposal.length() > 0)
+                proposal.append(',');
+            proposal.append(codec);
+        }
+        outputStream.writeUTF(proposal.toString());
+        outputStream.writeInt(threshold);
+    }
+
+    /**
+     * Returns the size of the proposal at the start of the given bytes, or -1
+     * if it is not complete yet.
+     */
+    public static int getProposalSize(byte[] bytes, int offset, int length) {
+        if(length < 2)
+            return -1;
+
+        int size = 2 + (((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff)) + 4;
+        return length >= size ? size : -1;
+    }
+
+    /**
+     * Reads a proposal and picks the first proposed codec this side supports.
+     * 
+     * @return The negotiated compression, or null if none of the proposed
+     *         codecs is supported
+     */
+    public static FrameCompression readProposal(DataInputStream inputStream) throws IOException {
+        String proposal = inputStream.readUTF();
+        int threshold = inputStream.readInt();
+
+        for(String codec: proposal.split(",")) {
+            codec = codec.trim();
+            if(isSupported(codec))
+                return new FrameCompression(codec, Math.max(0, threshold));
+        }
+
+        return null;
+    }
+
+    /**
+     * Writes the codec picked by the server, following "ok"
+     */
+    public static void writeAcceptance(DataOutputStream outputStream, FrameCompression compression)
+            throws IOException {
+        outputStream.writeUTF(compression == null ? "" : compression.getCodec());
+    }
+
+    @Override
+    public String toString() {
+        return "FrameCompression(codec = " + codec + ", threshold = " + threshold + ")";
+    }
+}
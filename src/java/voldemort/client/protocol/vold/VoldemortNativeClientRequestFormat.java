@@ -43,11 +43,24 @@ import voldemort.versioning.Versioned;
 /**
  * The {@link voldemort.client.protocol.RequestFormat} for a low-overhead custom
  * binary protocol
+ * <p/>
+ * Version 4 formats requests exactly like version 3, but on the wire every
+ * request and every response is wrapped in a frame that starts with a request
+ * id and the length of the request or response (see
+ * {@link #writeFrameHeader(ByteBuffer, int, int, int)}). The frames are written and
+ * read by the multiplexing connection, not by this class. The frames may be
+ * compressed if the connection negotiated it, see {@link FrameCompression}.
  * 
  * 
  */
 public class VoldemortNativeClientRequestFormat implements RequestFormat {
 
+    /**
+     * Size of the request id and length that start every frame of the
+     * multiplexed protocol
+     */
+    public static final int FRAME_HEADER_SIZE = 8;
+
     private final ErrorCodeMapper mapper;
     private final int protocolVersion;
 
@@ -228,6 +241,57 @@ public class VoldemortNativeClientRequestFormat implements RequestFormat {
         checkException(inputStream);
     }
 
+    public void writePutAllRequest(DataOutputStream outputStream,
+                                   String storeName,
+                                   Map<ByteArray, Versioned<byte[]>> entries,
+                                   Map<ByteArray, byte[]> transforms,
+                                   RequestRoutingType routingType) throws IOException {
+        if(protocolVersion < 3)
+            throw new VoldemortException("Put all is not supported by protocol version "
+                                         + protocolVersion);
+        StoreUtils.assertValidKeys(entries.keySet());
+        outputStream.writeByte(VoldemortOpCode.PUT_ALL_OP_CODE);
+        outputStream.writeUTF(storeName);
+        outputStream.writeBoolean(routingType.equals(RequestRoutingType.ROUTED));
+        outputStream.writeByte(routingType.getRoutingTypeCode());
+        outputStream.writeInt(entries.size());
+        for(Map.Entry<ByteArray, Versioned<byte[]>> entry: entries.entrySet()) {
+            ByteArray key = entry.getKey();
+            byte[] value = entry.getValue().getValue();
+            VectorClock version = (VectorClock) entry.getValue().getVersion();
+            outputStream.writeInt(key.length());
+            outputStream.write(key.get());
+            outputStream.writeInt(value.length + version.sizeInBytes());
+            outputStream.write(version.toBytes());
+            outputStream.write(value);
+            byte[] transform = transforms != null ? transforms.get(key) : null;
+            if(transform != null) {
+                outputStream.writeBoolean(true);
+                outputStream.writeInt(transform.length);
+                outputStream.write(transform);
+            } else
+                outputStream.writeBoolean(false);
+        }
+    }
+
+    public boolean isCompletePutAllResponse(ByteBuffer buffer) {
+        return isCompleteResponse(buffer, VoldemortOpCode.PUT_ALL_OP_CODE);
+    }
+
+    public Map<ByteArray, VoldemortException> readPutAllResponse(DataInputStream stream)
+            throws IOException {
+        checkException(stream);
+        int numFailures = stream.readInt();
+        Map<ByteArray, VoldemortException> failures = new HashMap<ByteArray, VoldemortException>(numFailures);
+        for(int i = 0; i < numFailures; i++) {
+            byte[] key = new byte[stream.readInt()];
+            stream.readFully(key);
+            short retCode = stream.readShort();
+            failures.put(new ByteArray(key), mapper.getError(retCode, stream.readUTF()));
+        }
+        return failures;
+    }
+
     /*
      * If there is an exception, throw it
      */
@@ -297,6 +361,10 @@ public class VoldemortNativeClientRequestFormat implements RequestFormat {
                     case VoldemortOpCode.PUT_OP_CODE:
                         readPutResponse(inputStream);
                         break;
+
+                    case VoldemortOpCode.PUT_ALL_OP_CODE:
+                        readPutAllResponse(inputStream);
+                        break;
                 }
             } catch(VoldemortException e) {
                 // Ignore application-level exceptions
@@ -316,4 +384,46 @@ public class VoldemortNativeClientRequestFormat implements RequestFormat {
             return false;
         }
     }
+
+    /**
+     * Writes a multiplexed frame header at the given absolute index.
+     * 
+     * @param buffer Buffer to write to
+     * @param index Position of the frame
+     * @param requestId Request id of the frame
+     * @param length Length of the frame, not counting the header
+     */
+    public static void writeFrameHeader(ByteBuffer buffer, int index, int requestId, int length) {
+        buffer.putInt(index, requestId);
+        buffer.putInt(index + 4, length);
+    }
+
+    /**
+     * Returns the request id of the frame at the buffer's position.
+     */
+    public static int getFrameRequestId(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position());
+    }
+
+    /**
+     * Returns the length field of the frame at the buffer's position, which
+     * carries the {@link FrameCompression#COMPRESSED_FLAG} for a compressed
+     * frame.
+     */
+    public static int getFrameLength(ByteBuffer buffer) {
+        return buffer.getInt(buffer.position() + 4);
+    }
+
+    /**
+     * Returns the length of the frame at the buffer's position, including the
+     * header, or -1 if the buffer does not hold the complete frame yet.
+     */
+    public static int getCompleteFrameSize(ByteBuffer buffer) {
+        if(buffer.remaining() < FRAME_HEADER_SIZE)
+            return -1;
+
+        int length = FrameCompression.getPayloadLength(getFrameLength(buffer));
+
+        return buffer.remaining() - FRAME_HEADER_SIZE >= length ? FRAME_HEADER_SIZE + length : -1;
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.common.nio;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import voldemort.annotations.concurrency.NotThreadsafe;
+
+/**
+ * A DataOutputStream over a {@link ByteBufferBackedOutputStream} that lets
+ * request handlers hand over large values without copying them, see
+ * {@link ByteBufferBackedOutputStream#writeShared(byte[], int, int)}.
+ */
+@NotThreadsafe
+public class ByteBufferBackedDataOutputStream extends DataOutputStream {
+
+    private final ByteBufferBackedOutputStream outputStream;
+
+    public ByteBufferBackedDataOutputStream(ByteBufferBackedOutputStream outputStream) {
+        super(outputStream);
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Writes bytes that will not be modified until the response has been
+     * written out, so they can be sent straight from the given array.
+     */
+    public void writeShared(byte[] bytes) throws IOException {
+        outputStream.writeShared(bytes, 0, bytes.length);
+        written += bytes.length;
+        if(written < 0)
+            written = Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return The buffer position the next byte not written shared goes to
+     */
+    public int getBufferPosition() {
+        return outputStream.getBuffer().position();
+    }
+
+    /**
+     * Overwrites an int written earlier at the given buffer position, such as
+     * a length only known once what follows it has been written.
+     */
+    public void writeIntAt(int position, int value) {
+        outputStream.getBuffer().putInt(position, value);
+    }
+}
@@ -32,6 +32,9 @@ import voldemort.annotations.concurrency.NotThreadsafe;
  * For code that manages the ByteBufferBackedInputStream, there are accessor
  * methods for the underlying buffer should it need to expand and contract on
  * reuse.
+ * <p/>
+ * If a {@link ByteBufferPool} is given, the stream owns its buffer: a buffer
+ * that is replaced, and the last one on close, is released to the pool.
  * 
  */
 
@@ -46,14 +49,23 @@ public class ByteBufferBackedInputStream extends InputStream {
      */
     private MutableLong sizeTracker;
 
+    private ByteBufferPool bufferPool;
+
     public ByteBufferBackedInputStream(ByteBuffer buffer) {
         this.buffer = buffer;
         this.sizeTracker = null;
     }
 
     public ByteBufferBackedInputStream(ByteBuffer buffer, MutableLong sizeTracker) {
+        this(buffer, sizeTracker, null);
+    }
+
+    public ByteBufferBackedInputStream(ByteBuffer buffer,
+                                       MutableLong sizeTracker,
+                                       ByteBufferPool bufferPool) {
         this.buffer = buffer;
         this.sizeTracker = sizeTracker;
+        this.bufferPool = bufferPool;
         if(buffer != null)
             this.sizeTracker.add(buffer.capacity());
     }
@@ -68,6 +80,8 @@ public class ByteBufferBackedInputStream extends InputStream {
             sizeTracker.add(newBuffer.capacity());
             sizeTracker.subtract(this.buffer.capacity());
         }
+        if(bufferPool != null && this.buffer != newBuffer)
+            bufferPool.release(this.buffer);
         this.buffer = newBuffer;
     }
 
@@ -93,5 +107,13 @@ public class ByteBufferBackedInputStream extends InputStream {
         if(sizeTracker != null && this.buffer != null) {
             sizeTracker.subtract(this.buffer.capacity());
         }
+        if(bufferPool != null) {
+            // Hand the buffer back and detach from the pool and the tracker, a
+            // late caller only ever sees an empty heap buffer
+            bufferPool.release(this.buffer);
+            this.buffer = ByteBuffer.allocate(0);
+            this.bufferPool = null;
+            this.sizeTracker = null;
+        }
     }
 }
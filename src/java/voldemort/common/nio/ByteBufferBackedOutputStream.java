@@ -19,6 +19,8 @@ package voldemort.common.nio;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.lang.mutable.MutableLong;
 
@@ -39,6 +41,17 @@ import voldemort.utils.ByteUtils;
  * buffer as the object reference passed into the constructor is changed upon
  * expansion. Additionally, some callers might wish to "un-expand" the buffer
  * back to a more reasonable size after use.
+ * <p/>
+ * If a {@link ByteBufferPool} is given, expanded buffers come from the pool and
+ * the stream owns its buffer: a buffer that is replaced, and the last one on
+ * close, is released to the pool.
+ * <p/>
+ * If a gather threshold is set, {@link #writeShared(byte[], int, int)} does
+ * not copy runs of at least that many bytes into the buffer but keeps a
+ * reference to them. Once the buffer is flipped,
+ * {@link #getGatheringBuffers()} returns the buffer contents interleaved with
+ * the referenced bytes, ready for a gathering write. The references are kept
+ * until {@link #clearReferences()} is called.
  * 
  */
 
@@ -55,6 +68,16 @@ public class ByteBufferBackedOutputStream extends OutputStream {
      */
     private MutableLong sizeTracker;
 
+    private ByteBufferPool bufferPool;
+
+    private int gatherThreshold = -1;
+
+    private final List<ByteBuffer> references = new ArrayList<ByteBuffer>();
+
+    private final List<Integer> referenceOffsets = new ArrayList<Integer>();
+
+    private ByteBuffer[] gatheringBuffers;
+
     public ByteBufferBackedOutputStream(ByteBuffer buffer) {
         this.buffer = buffer;
         wasExpanded = false;
@@ -62,9 +85,16 @@ public class ByteBufferBackedOutputStream extends OutputStream {
     }
 
     public ByteBufferBackedOutputStream(ByteBuffer buffer, MutableLong sizeTracker) {
+        this(buffer, sizeTracker, null);
+    }
+
+    public ByteBufferBackedOutputStream(ByteBuffer buffer,
+                                        MutableLong sizeTracker,
+                                        ByteBufferPool bufferPool) {
         this.buffer = buffer;
         wasExpanded = false;
         this.sizeTracker = sizeTracker;
+        this.bufferPool = bufferPool;
         if(buffer != null)
             this.sizeTracker.add(buffer.capacity());
     }
@@ -79,6 +109,8 @@ public class ByteBufferBackedOutputStream extends OutputStream {
             sizeTracker.add(newBuffer.capacity());
             sizeTracker.subtract(this.buffer.capacity());
         }
+        if(bufferPool != null && this.buffer != newBuffer)
+            bufferPool.release(this.buffer);
         this.buffer = newBuffer;
         wasExpanded = false;
     }
@@ -95,6 +127,89 @@ public class ByteBufferBackedOutputStream extends OutputStream {
         buffer.put(bytes, off, len);
     }
 
+    /**
+     * Writes bytes the caller will not modify until they have been written
+     * out. If gathering is enabled and there are at least as many bytes as the
+     * gather threshold, they are referenced rather than copied.
+     */
+    public void writeShared(byte[] bytes, int off, int len) throws IOException {
+        if(gatherThreshold < 0 || len < gatherThreshold) {
+            write(bytes, off, len);
+            return;
+        }
+
+        referenceOffsets.add(buffer.position());
+        references.add(ByteBuffer.wrap(bytes, off, len));
+        gatheringBuffers = null;
+    }
+
+    /**
+     * Sets the smallest run of bytes {@link #writeShared(byte[], int, int)}
+     * references instead of copying, or disables gathering if negative.
+     */
+    public void setGatherThreshold(int gatherThreshold) {
+        this.gatherThreshold = gatherThreshold;
+    }
+
+    public boolean hasReferences() {
+        return !references.isEmpty();
+    }
+
+    /**
+     * Returns the flipped buffer split around the referenced bytes, in the
+     * order they were written. The same array is returned until the
+     * references change, so the positions track a write across several calls.
+     */
+    public ByteBuffer[] getGatheringBuffers() {
+        if(gatheringBuffers != null)
+            return gatheringBuffers;
+
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(references.size() * 2 + 1);
+        int start = buffer.position();
+
+        for(int i = 0; i < references.size(); i++) {
+            int offset = referenceOffsets.get(i);
+            if(offset > start)
+                buffers.add(slice(start, offset));
+            buffers.add(references.get(i).duplicate());
+            start = offset;
+        }
+
+        if(buffer.limit() > start)
+            buffers.add(slice(start, buffer.limit()));
+
+        gatheringBuffers = buffers.toArray(new ByteBuffer[buffers.size()]);
+        return gatheringBuffers;
+    }
+
+    /**
+     * Returns true if any of the buffer contents or referenced bytes have not
+     * been written out.
+     */
+    public boolean hasRemaining() {
+        if(!hasReferences())
+            return buffer.hasRemaining();
+
+        ByteBuffer[] buffers = getGatheringBuffers();
+        return buffers.length > 0 && buffers[buffers.length - 1].hasRemaining();
+    }
+
+    /**
+     * Drops the references to shared bytes once they have been written out.
+     */
+    public void clearReferences() {
+        references.clear();
+        referenceOffsets.clear();
+        gatheringBuffers = null;
+    }
+
+    private ByteBuffer slice(int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice;
+    }
+
     private void expandIfNeeded(int len) {
         int need = len - buffer.remaining();
 
@@ -102,12 +217,19 @@ public class ByteBufferBackedOutputStream extends OutputStream {
             return;
 
         int newCapacity = (buffer.capacity() + need) * 2;
+        ByteBuffer newBuffer;
+        if(bufferPool != null) {
+            newBuffer = bufferPool.expand(buffer, newCapacity);
+            bufferPool.release(buffer);
+        } else {
+            newBuffer = ByteUtils.expand(buffer, newCapacity);
+        }
         // update the size tracker with the new buffer size
         if(sizeTracker != null) {
-            sizeTracker.add(newCapacity);
+            sizeTracker.add(newBuffer.capacity());
             sizeTracker.subtract(this.buffer.capacity());
         }
-        buffer = ByteUtils.expand(buffer, newCapacity);
+        buffer = newBuffer;
         wasExpanded = true;
     }
 
@@ -116,8 +238,17 @@ public class ByteBufferBackedOutputStream extends OutputStream {
     }
 
     public void close() {
+        clearReferences();
         if(sizeTracker != null && this.buffer != null) {
             sizeTracker.subtract(this.buffer.capacity());
         }
+        if(bufferPool != null) {
+            // Hand the buffer back and detach from the pool and the tracker, a
+            // late caller only ever sees an empty heap buffer
+            bufferPool.release(this.buffer);
+            this.buffer = ByteBuffer.allocate(0);
+            this.bufferPool = null;
+            this.sizeTracker = null;
+        }
     }
 }
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.common.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxManaged;
+
+/**
+ * A pool of direct {@link ByteBuffer}s shared by the connections of a socket
+ * server or client.
+ * <p/>
+ * Buffers come in size classes, powers of two from the minimum to the maximum
+ * buffer size. A request is served from the smallest class that fits, so a
+ * buffer may have more capacity than asked for. Requests above the maximum
+ * buffer size get a heap buffer that is never pooled.
+ * <p/>
+ * Direct buffers spare the copy into a temporary direct buffer the JDK makes
+ * for every read and write on a channel with a heap buffer, and pooling them
+ * spares the allocation when a connection grows or shrinks its buffers. At
+ * most <code>maxPooledBytes</code> of idle buffers are kept; buffers released
+ * beyond that are left to the garbage collector.
+ * <p/>
+ * A buffer must not be used after it is released, and must be released at
+ * most once.
+ */
+@Threadsafe
+@JmxManaged(description = "A pool of direct byte buffers for socket I/O")
+public class ByteBufferPool {
+
+    /**
+     * The largest buffer handed out from the pool unless configured otherwise
+     */
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 1024 * 1024;
+
+    private final int minBufferSize;
+
+    private final int maxBufferSize;
+
+    private final long maxPooledBytes;
+
+    private final Queue<ByteBuffer>[] sizeClasses;
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    private final AtomicLong outstandingBytes = new AtomicLong();
+
+    private final AtomicLong numHits = new AtomicLong();
+
+    private final AtomicLong numMisses = new AtomicLong();
+
+    private final AtomicLong numUnpooled = new AtomicLong();
+
+    private final AtomicLong numDiscarded = new AtomicLong();
+
+    /**
+     * Creates a pool handing out buffers of up to
+     * {@link #DEFAULT_MAX_BUFFER_SIZE}, or of the minimum buffer size if that
+     * is larger.
+     * 
+     * @param minBufferSize The smallest buffer handed out, rounded up to a
+     *        power of two
+     * @param maxPooledBytes The most bytes kept in idle buffers
+     */
+    public ByteBufferPool(int minBufferSize, long maxPooledBytes) {
+        this(minBufferSize, Math.max(minBufferSize, DEFAULT_MAX_BUFFER_SIZE), maxPooledBytes);
+    }
+
+    /**
+     * @param minBufferSize The smallest buffer handed out, rounded up to a
+     *        power of two
+     * @param maxBufferSize The largest buffer handed out from the pool,
+     *        rounded up to a power of two
+     * @param maxPooledBytes The most bytes kept in idle buffers
+     */
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(int minBufferSize, int maxBufferSize, long maxPooledBytes) {
+        if(minBufferSize <= 0)
+            throw new IllegalArgumentException("Minimum buffer size must be positive.");
+        if(maxBufferSize < minBufferSize)
+            throw new IllegalArgumentException("Maximum buffer size must not be smaller than the minimum buffer size.");
+
+        this.minBufferSize = roundUp(minBufferSize);
+        this.maxBufferSize = roundUp(maxBufferSize);
+        this.maxPooledBytes = maxPooledBytes;
+
+        int numClasses = Integer.numberOfTrailingZeros(this.maxBufferSize)
+                         - Integer.numberOfTrailingZeros(this.minBufferSize) + 1;
+        this.sizeClasses = new Queue[numClasses];
+        for(int i = 0; i < numClasses; i++)
+            sizeClasses[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity.
+     */
+    public ByteBuffer acquire(int capacity) {
+        if(capacity > maxBufferSize) {
+            numUnpooled.incrementAndGet();
+            return ByteBuffer.allocate(capacity);
+        }
+
+        int sizeClass = getSizeClass(capacity);
+        ByteBuffer buffer = sizeClasses[sizeClass].poll();
+
+        if(buffer != null) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            numHits.incrementAndGet();
+            buffer.clear();
+        } else {
+            numMisses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(minBufferSize << sizeClass);
+        }
+
+        outstandingBytes.addAndGet(buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer with at least the given capacity holding the contents
+     * of the given buffer up to its position, positioned after them. The given
+     * buffer is left as it is; it is up to the caller to release it.
+     */
+    public ByteBuffer expand(ByteBuffer buffer, int newCapacity) {
+        if(newCapacity < buffer.capacity())
+            throw new IllegalArgumentException("newCapacity (" + newCapacity
+                                               + ") must be larger than existing capacity ("
+                                               + buffer.capacity() + ")");
+
+        ByteBuffer newBuffer = acquire(newCapacity);
+        int position = buffer.position();
+        buffer.rewind();
+        newBuffer.put(buffer);
+        newBuffer.position(position);
+        return newBuffer;
+    }
+
+    /**
+     * Gives a buffer obtained from {@link #acquire(int)} back to the pool.
+     * Other buffers are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || !buffer.isDirect())
+            return;
+
+        int capacity = buffer.capacity();
+        if(capacity < minBufferSize || capacity > maxBufferSize || Integer.bitCount(capacity) != 1)
+            return;
+
+        outstandingBytes.addAndGet(-capacity);
+
+        if(pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            numDiscarded.incrementAndGet();
+            return;
+        }
+
+        sizeClasses[getSizeClass(capacity)].offer(buffer);
+    }
+
+    private int getSizeClass(int capacity) {
+        if(capacity <= minBufferSize)
+            return 0;
+
+        return Integer.numberOfTrailingZeros(roundUp(capacity))
+               - Integer.numberOfTrailingZeros(minBufferSize);
+    }
+
+    private static int roundUp(int size) {
+        int highestOneBit = Integer.highestOneBit(size);
+        return highestOneBit == size ? size : highestOneBit << 1;
+    }
+
+    public int getMinBufferSize() {
+        return minBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    @JmxGetter(name = "maxPooledBytes", description = "the most bytes kept in idle buffers")
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    @JmxGetter(name = "pooledBytes", description = "bytes in idle buffers held by the pool")
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    @JmxGetter(name = "outstandingBytes", description = "bytes in pooled buffers currently in use")
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    @JmxGetter(name = "numHits", description = "number of buffers handed out from the pool")
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    @JmxGetter(name = "numMisses", description = "number of direct buffers allocated because none was pooled")
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+    @JmxGetter(name = "numUnpooled", description = "number of heap buffers allocated for requests above the maximum buffer size")
+    public long getNumUnpooled() {
+        return numUnpooled.get();
+    }
+
+    @JmxGetter(name = "numDiscarded", description = "number of released buffers dropped because the pool was full")
+    public long getNumDiscarded() {
+        return numDiscarded.get();
+    }
+}
@@ -40,6 +40,9 @@ import voldemort.utils.ByteUtils;
  * The bulk of the complexity in this class surrounds partial reads and writes,
  * as well as determining when all the data needed for the request has been
  * read.
+ * <p/>
+ * If a {@link ByteBufferPool} is given, the IO streams use direct buffers from
+ * the pool and return them when they are replaced or the worker is closed.
  */
 
 public abstract class SelectorManagerWorker implements Runnable {
@@ -56,6 +59,8 @@ public abstract class SelectorManagerWorker implements Runnable {
 
     protected final ByteBufferBackedOutputStream outputStream;
 
+    protected final ByteBufferPool bufferPool;
+
     protected final long createTimestamp;
 
     protected final AtomicBoolean isClosed;
@@ -66,14 +71,25 @@ public abstract class SelectorManagerWorker implements Runnable {
                                  SocketChannel socketChannel,
                                  int socketBufferSize,
                                  CommBufferSizeStats commBufferStats) {
+        this(selector, socketChannel, socketBufferSize, commBufferStats, null);
+    }
+
+    public SelectorManagerWorker(Selector selector,
+                                 SocketChannel socketChannel,
+                                 int socketBufferSize,
+                                 CommBufferSizeStats commBufferStats,
+                                 ByteBufferPool bufferPool) {
         this.selector = selector;
         this.socketChannel = socketChannel;
         this.socketBufferSize = socketBufferSize;
         this.resizeThreshold = socketBufferSize * 2; // This is arbitrary...
-        this.inputStream = new ByteBufferBackedInputStream(ByteBuffer.allocate(socketBufferSize),
-                                                           commBufferStats.getCommReadBufferSizeTracker());
-        this.outputStream = new ByteBufferBackedOutputStream(ByteBuffer.allocate(socketBufferSize),
-                                                             commBufferStats.getCommWriteBufferSizeTracker());
+        this.bufferPool = bufferPool;
+        this.inputStream = new ByteBufferBackedInputStream(allocateBuffer(socketBufferSize),
+                                                           commBufferStats.getCommReadBufferSizeTracker(),
+                                                           bufferPool);
+        this.outputStream = new ByteBufferBackedOutputStream(allocateBuffer(socketBufferSize),
+                                                             commBufferStats.getCommWriteBufferSizeTracker(),
+                                                             bufferPool);
         this.createTimestamp = System.nanoTime();
         this.isClosed = new AtomicBoolean(false);
 
@@ -168,9 +184,13 @@ public abstract class SelectorManagerWorker implements Runnable {
             }
         }
 
-        // close the streams, so we account for comm buffer frees
-        inputStream.close();
-        outputStream.close();
+        // close the streams, so we account for comm buffer frees. This also
+        // returns pooled buffers, so do it while holding the lock subclasses
+        // use for writing the streams from other threads.
+        synchronized(this) {
+            inputStream.close();
+            outputStream.close();
+        }
     }
 
     public boolean isClosed() {
@@ -188,7 +208,7 @@ public abstract class SelectorManagerWorker implements Runnable {
             traceInputBufferState("About to clear read buffer");
 
         if(inputStream.getBuffer().capacity() >= resizeThreshold)
-            inputStream.setBuffer(ByteBuffer.allocate(socketBufferSize));
+            inputStream.setBuffer(allocateBuffer(socketBufferSize));
         else
             inputStream.getBuffer().clear();
 
@@ -213,14 +233,24 @@ public abstract class SelectorManagerWorker implements Runnable {
             // We haven't read all the data needed for the request AND we
             // don't have enough data in our buffer. So expand it. Note:
             // doubling the current buffer size is arbitrary.
-            inputStream.setBuffer(ByteUtils.expand(inputStream.getBuffer(),
-                                                   inputStream.getBuffer().capacity() * 2));
+            int newCapacity = inputStream.getBuffer().capacity() * 2;
+            inputStream.setBuffer(bufferPool != null ? bufferPool.expand(inputStream.getBuffer(),
+                                                                         newCapacity)
+                                                    : ByteUtils.expand(inputStream.getBuffer(),
+                                                                       newCapacity));
 
             if(logger.isTraceEnabled())
                 traceInputBufferState("Expanded input buffer");
         }
     }
 
+    /**
+     * Returns a buffer for the IO streams, from the pool if there is one.
+     */
+    protected ByteBuffer allocateBuffer(int capacity) {
+        return bufferPool != null ? bufferPool.acquire(capacity) : ByteBuffer.allocate(capacity);
+    }
+
     protected void traceInputBufferState(String preamble) {
         logger.trace(preamble + " - position: " + inputStream.getBuffer().position() + ", limit: "
                      + inputStream.getBuffer().limit() + ", remaining: "
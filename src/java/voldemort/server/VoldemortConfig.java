@@ -45,10 +45,14 @@ import voldemort.server.storage.repairjob.RepairJob;
 import voldemort.store.InvalidMetadataException;
 import voldemort.store.StorageEngine;
 import voldemort.store.bdb.BdbStorageConfiguration;
+import voldemort.store.bitcask.BitcaskStorageConfiguration;
 import voldemort.store.invalidmetadata.InvalidMetadataCheckingStore;
 import voldemort.store.logging.LoggingStore;
+import voldemort.store.lsm.LsmStorageConfiguration;
+import voldemort.store.memory.BoundedCacheStorageConfiguration;
 import voldemort.store.memory.CacheStorageConfiguration;
 import voldemort.store.memory.InMemoryStorageConfiguration;
+import voldemort.store.memory.OffHeapStorageConfiguration;
 import voldemort.store.mysql.MysqlStorageConfiguration;
 import voldemort.store.readonly.BinarySearchStrategy;
 import voldemort.store.readonly.InterpolationSearchStrategy;
@@ -125,6 +129,7 @@ public class VoldemortConfig implements Serializable {
     private boolean bdbPrefixKeysWithPartitionId;
     private boolean bdbLevelBasedEviction;
     private boolean bdbCheckpointerOffForBatchWrites;
+    private boolean bdbGroupCommit;
     private boolean bdbCleanerFetchObsoleteSize;
     private boolean bdbCleanerAdjustUtilization;
     private String bdbRawPropertyString;
@@ -156,6 +161,41 @@ public class VoldemortConfig implements Serializable {
     // flag to indicate if we will mlock and pin index pages in memory
     private boolean useMlock;
 
+    // read-only stores whose data files are memory mapped along with the index
+    private List<String> readOnlyMmapDataStores;
+    private int readOnlyGetAllIoThreads;
+
+    private long offHeapStoreMaxBytes;
+    private int offHeapStoreSegments;
+    private long offHeapStorePageSize;
+
+    private long boundedCacheMaxBytes;
+    private int boundedCacheSegments;
+
+    private List<String> rowCacheStores;
+    private long rowCacheMaxBytes;
+    private int rowCacheSegments;
+
+    private String bitcaskDataDirectory;
+    private long bitcaskMaxSegmentSize;
+    private boolean bitcaskFsyncWrites;
+    private double bitcaskCompactionMinGarbageRatio;
+    private long bitcaskCompactionBytesPerSec;
+    private long bitcaskCompactionIntervalMs;
+
+    private String lsmDataDirectory;
+    private long lsmMemtableSize;
+    private long lsmTableSize;
+    private int lsmBlockSize;
+    private String lsmBlockCompression;
+    private int lsmBloomBitsPerKey;
+    private int lsmLevel0MaxTables;
+    private long lsmLevelBaseSize;
+    private int lsmLevelSizeMultiplier;
+    private int lsmCompactionThreads;
+    private boolean lsmFsyncWrites;
+    private int lsmMaxOpenTables;
+
     private OpTimeMap testingSlowQueueingDelays;
     private OpTimeMap testingSlowConcurrentDelays;
 
@@ -169,6 +209,11 @@ public class VoldemortConfig implements Serializable {
     private int nioConnectorSelectors;
     private int nioAdminConnectorSelectors;
     private int nioAcceptorBacklog;
+    private int nioWorkerThreads;
+    private int nioWorkerQueueSize;
+    private int nioWorkerMaxActivePerStore;
+    private int nioAdminWorkerThreads;
+    private long nioBufferPoolSize;
 
     private int clientSelectors;
     private TimeoutConfig clientTimeoutConfig;
@@ -311,6 +356,7 @@ public class VoldemortConfig implements Serializable {
         this.bdbLevelBasedEviction = props.getBoolean("bdb.evict.by.level", false);
         this.bdbCheckpointerOffForBatchWrites = props.getBoolean("bdb.checkpointer.off.batch.writes",
                                                                  false);
+        this.bdbGroupCommit = props.getBoolean("bdb.group.commit", false);
         this.bdbCleanerFetchObsoleteSize = props.getBoolean("bdb.cleaner.fetch.obsolete.size", true);
         this.bdbCleanerAdjustUtilization = props.getBoolean("bdb.cleaner.adjust.utilization", false);
         this.bdbRawPropertyString = props.getString("bdb.raw.property.string", null);
@@ -347,6 +393,46 @@ public class VoldemortConfig implements Serializable {
                                                 VoldemortConfig.DEFAULT_FILE_FETCHER_CLASS);
 
         this.setUseMlock(props.getBoolean("readonly.mlock.index", true));
+        this.readOnlyMmapDataStores = props.getList("readonly.mmap.data.stores",
+                                                    ImmutableList.<String> of());
+        this.readOnlyGetAllIoThreads = props.getInt("readonly.getall.io.threads", 0);
+
+        this.offHeapStoreMaxBytes = props.getBytes("offheap.max.bytes", 256 * 1024 * 1024);
+        this.offHeapStoreSegments = props.getInt("offheap.segments", 16);
+        this.offHeapStorePageSize = props.getBytes("offheap.page.size", 1024 * 1024);
+
+        this.boundedCacheMaxBytes = props.getBytes("bounded.cache.max.bytes", 64 * 1024 * 1024);
+        this.boundedCacheSegments = props.getInt("bounded.cache.segments", 16);
+
+        this.rowCacheStores = props.getList("row.cache.stores", ImmutableList.<String> of());
+        this.rowCacheMaxBytes = props.getBytes("row.cache.max.bytes", 32 * 1024 * 1024);
+        this.rowCacheSegments = props.getInt("row.cache.segments", 16);
+
+        this.bitcaskDataDirectory = props.getString("bitcask.data.directory", this.dataDirectory
+                                                                              + File.separator
+                                                                              + "bitcask");
+        this.bitcaskMaxSegmentSize = props.getBytes("bitcask.segment.size", 256 * 1024 * 1024);
+        this.bitcaskFsyncWrites = props.getBoolean("bitcask.fsync.writes", false);
+        this.bitcaskCompactionMinGarbageRatio = props.getDouble("bitcask.compaction.min.garbage.ratio",
+                                                                0.5);
+        this.bitcaskCompactionBytesPerSec = props.getBytes("bitcask.compaction.bytes.per.sec",
+                                                           20 * 1024 * 1024);
+        this.bitcaskCompactionIntervalMs = props.getLong("bitcask.compaction.interval.ms",
+                                                         10 * 60 * 1000);
+
+        this.lsmDataDirectory = props.getString("lsm.data.directory", this.dataDirectory
+                                                                      + File.separator + "lsm");
+        this.lsmMemtableSize = props.getBytes("lsm.memtable.size", 64 * 1024 * 1024);
+        this.lsmTableSize = props.getBytes("lsm.table.size", 8 * 1024 * 1024);
+        this.lsmBlockSize = (int) props.getBytes("lsm.block.size", 16 * 1024);
+        this.lsmBlockCompression = props.getString("lsm.block.compression", "lzf");
+        this.lsmBloomBitsPerKey = props.getInt("lsm.bloom.bits.per.key", 10);
+        this.lsmLevel0MaxTables = props.getInt("lsm.level0.max.tables", 4);
+        this.lsmLevelBaseSize = props.getBytes("lsm.level.base.size", 32 * 1024 * 1024);
+        this.lsmLevelSizeMultiplier = props.getInt("lsm.level.size.multiplier", 10);
+        this.lsmCompactionThreads = props.getInt("lsm.compaction.threads", 1);
+        this.lsmFsyncWrites = props.getBoolean("lsm.fsync.writes", false);
+        this.lsmMaxOpenTables = props.getInt("lsm.max.open.tables", 1000);
 
         this.mysqlUsername = props.getString("mysql.user", "root");
         this.mysqlPassword = props.getString("mysql.password", "");
@@ -412,6 +498,11 @@ public class VoldemortConfig implements Serializable {
                                                                           .availableProcessors()));
         // a value <= 0 forces the default to be used
         this.nioAcceptorBacklog = props.getInt("nio.acceptor.backlog", 256);
+        this.nioWorkerThreads = props.getInt("nio.worker.threads", 0);
+        this.nioWorkerQueueSize = props.getInt("nio.worker.queue.size", 1024);
+        this.nioWorkerMaxActivePerStore = props.getInt("nio.worker.max.active.per.store", 0);
+        this.nioAdminWorkerThreads = props.getInt("nio.admin.worker.threads", 0);
+        this.nioBufferPoolSize = props.getBytes("nio.buffer.pool.size", 64 * 1024 * 1024);
 
         this.clientSelectors = props.getInt("client.selectors", 4);
         this.clientMaxConnectionsPerNode = props.getInt("client.max.connections.per.node", 50);
@@ -476,6 +567,10 @@ public class VoldemortConfig implements Serializable {
                                                                     MysqlStorageConfiguration.class.getName(),
                                                                     InMemoryStorageConfiguration.class.getName(),
                                                                     CacheStorageConfiguration.class.getName(),
+                                                                    OffHeapStorageConfiguration.class.getName(),
+                                                                    BoundedCacheStorageConfiguration.class.getName(),
+                                                                    BitcaskStorageConfiguration.class.getName(),
+                                                                    LsmStorageConfiguration.class.getName(),
                                                                     ReadOnlyStorageConfiguration.class.getName()));
 
         // start at midnight (0-23)
@@ -1331,6 +1426,27 @@ public class VoldemortConfig implements Serializable {
         this.bdbCheckpointerOffForBatchWrites = bdbCheckpointerOffForBulkWrites;
     }
 
+    public boolean isBdbGroupCommitEnabled() {
+        return this.bdbGroupCommit;
+    }
+
+    /**
+     * Commits the writes to a BDB store without syncing and then has the
+     * concurrent writers share one log flush, instead of paying an fsync each.
+     * A write is still acknowledged only once it is on disk, whatever
+     * bdb.flush.transactions says; the setting pays off for write heavy stores
+     * that would otherwise flush every transaction.
+     * 
+     * <ul>
+     * <li>Property : "bdb.group.commit"</li>
+     * <li>Default : false</li>
+     * </ul>
+     * 
+     */
+    public void setBdbGroupCommit(boolean bdbGroupCommit) {
+        this.bdbGroupCommit = bdbGroupCommit;
+    }
+
     public long getBdbCheckpointMs() {
         return this.bdbCheckpointMs;
     }
@@ -2298,6 +2414,98 @@ public class VoldemortConfig implements Serializable {
         this.nioAcceptorBacklog = nioAcceptorBacklog;
     }
 
+    public int getNioWorkerThreads() {
+        return nioWorkerThreads;
+    }
+
+    /**
+     * Number of worker threads the {@link NioSocketService} executes client
+     * requests on. With 0, requests are executed on the selector threads
+     * themselves; a positive value lets the selector threads only do the IO, so
+     * a slow store does not hold up the other connections on a selector.
+     * 
+     * <ul>
+     * <li>Property :"nio.worker.threads"</li>
+     * <li>Default : 0</li>
+     * </ul>
+     */
+    public void setNioWorkerThreads(int nioWorkerThreads) {
+        this.nioWorkerThreads = nioWorkerThreads;
+    }
+
+    public int getNioWorkerQueueSize() {
+        return nioWorkerQueueSize;
+    }
+
+    /**
+     * Maximum number of requests queued per store for the NIO worker threads.
+     * Once a store queue is full, connections with requests for that store are
+     * not read from until there is room again.
+     * 
+     * <ul>
+     * <li>Property :"nio.worker.queue.size"</li>
+     * <li>Default : 1024</li>
+     * </ul>
+     */
+    public void setNioWorkerQueueSize(int nioWorkerQueueSize) {
+        this.nioWorkerQueueSize = nioWorkerQueueSize;
+    }
+
+    public int getNioWorkerMaxActivePerStore() {
+        return nioWorkerMaxActivePerStore;
+    }
+
+    /**
+     * Maximum number of NIO worker threads a single store may occupy at once.
+     * A value <= 0 lets a store use all of them.
+     * 
+     * <ul>
+     * <li>Property :"nio.worker.max.active.per.store"</li>
+     * <li>Default : 0</li>
+     * </ul>
+     */
+    public void setNioWorkerMaxActivePerStore(int nioWorkerMaxActivePerStore) {
+        this.nioWorkerMaxActivePerStore = nioWorkerMaxActivePerStore;
+    }
+
+    public int getNioAdminWorkerThreads() {
+        return nioAdminWorkerThreads;
+    }
+
+    /**
+     * Number of worker threads the admin {@link NioSocketService} executes
+     * admin requests and streaming segments on. With 0 they run on the admin
+     * selector threads, where a long fetch or update stream holds up the other
+     * admin connections of its selector. Requests are queued up to
+     * "nio.worker.queue.size" deep.
+     * 
+     * <ul>
+     * <li>Property :"nio.admin.worker.threads"</li>
+     * <li>Default : 0</li>
+     * </ul>
+     */
+    public void setNioAdminWorkerThreads(int nioAdminWorkerThreads) {
+        this.nioAdminWorkerThreads = nioAdminWorkerThreads;
+    }
+
+    public long getNioBufferPoolSize() {
+        return nioBufferPoolSize;
+    }
+
+    /**
+     * Most bytes of idle direct buffers kept by the pool the NIO connector
+     * takes its connection buffers from. A value <= 0 disables the pool, in
+     * which case every connection allocates its own heap buffers.
+     * 
+     * <ul>
+     * <li>Property :"nio.buffer.pool.size"</li>
+     * <li>Default : 64MB</li>
+     * </ul>
+     */
+    public void setNioBufferPoolSize(long nioBufferPoolSize) {
+        this.nioBufferPoolSize = nioBufferPoolSize;
+    }
+
     public int getAdminSocketBufferSize() {
         return adminStreamBufferSize;
     }
@@ -2326,7 +2534,9 @@ public class VoldemortConfig implements Serializable {
      * <li>Property :"storage.configs"</li>
      * <li>Default : {@link BdbStorageConfiguration}
      * {@link MysqlStorageConfiguration} {@link InMemoryStorageConfiguration}
-     * {@link CacheStorageConfiguration} {@link ReadOnlyStorageConfiguration}</li>
+     * {@link CacheStorageConfiguration} {@link OffHeapStorageConfiguration}
+     * {@link BoundedCacheStorageConfiguration} {@link BitcaskStorageConfiguration}
+     * {@link LsmStorageConfiguration} {@link ReadOnlyStorageConfiguration}</li>
      * <ul>
      */
     public void setStorageConfigurations(List<String> storageConfigurations) {
@@ -2937,6 +3147,544 @@ public class VoldemortConfig implements Serializable {
         this.useMlock = useMlock;
     }
 
+    public List<String> getReadOnlyMmapDataStores() {
+        return readOnlyMmapDataStores;
+    }
+
+    /**
+     * Names of the read-only stores whose data files should be memory mapped,
+     * in addition to the index files. Value lookups on these stores become
+     * memory reads instead of positional read syscalls, which pays off when
+     * the hot set of the store fits in the page cache.
+     * 
+     * <ul>
+     * <li>Property : "readonly.mmap.data.stores"</li>
+     * <li>Default : empty</li>
+     * </ul>
+     * 
+     * @param readOnlyMmapDataStores
+     */
+    public void setReadOnlyMmapDataStores(List<String> readOnlyMmapDataStores) {
+        this.readOnlyMmapDataStores = readOnlyMmapDataStores;
+    }
+
+    public int getReadOnlyGetAllIoThreads() {
+        return readOnlyGetAllIoThreads;
+    }
+
+    /**
+     * Number of threads shared by the read-only stores of the server to read
+     * the values of large getAll requests in parallel. Reads are sorted by
+     * chunk and file offset before being split between the threads. If 0,
+     * values are read on the request thread.
+     * 
+     * <ul>
+     * <li>Property : "readonly.getall.io.threads"</li>
+     * <li>Default : 0</li>
+     * </ul>
+     * 
+     * @param readOnlyGetAllIoThreads
+     */
+    public void setReadOnlyGetAllIoThreads(int readOnlyGetAllIoThreads) {
+        this.readOnlyGetAllIoThreads = readOnlyGetAllIoThreads;
+    }
+
+    public long getOffHeapStoreMaxBytes() {
+        return offHeapStoreMaxBytes;
+    }
+
+    /**
+     * Maximum number of bytes of records kept by each store of the "offheap"
+     * type, outside of the java heap. Once full, a store evicts the keys
+     * written the longest time ago.
+     * 
+     * <ul>
+     * <li>Property : "offheap.max.bytes"</li>
+     * <li>Default : 256MB</li>
+     * </ul>
+     * 
+     * @param offHeapStoreMaxBytes
+     */
+    public void setOffHeapStoreMaxBytes(long offHeapStoreMaxBytes) {
+        this.offHeapStoreMaxBytes = offHeapStoreMaxBytes;
+    }
+
+    public int getOffHeapStoreSegments() {
+        return offHeapStoreSegments;
+    }
+
+    /**
+     * Number of independently locked segments of each "offheap" store
+     * 
+     * <ul>
+     * <li>Property : "offheap.segments"</li>
+     * <li>Default : 16</li>
+     * </ul>
+     * 
+     * @param offHeapStoreSegments
+     */
+    public void setOffHeapStoreSegments(int offHeapStoreSegments) {
+        this.offHeapStoreSegments = offHeapStoreSegments;
+    }
+
+    public long getOffHeapStorePageSize() {
+        return offHeapStorePageSize;
+    }
+
+    /**
+     * Size of the pages memory is allocated and evicted by in the "offheap"
+     * stores. A single key and its values must fit in a page.
+     * 
+     * <ul>
+     * <li>Property : "offheap.page.size"</li>
+     * <li>Default : 1MB</li>
+     * </ul>
+     * 
+     * @param offHeapStorePageSize
+     */
+    public void setOffHeapStorePageSize(long offHeapStorePageSize) {
+        this.offHeapStorePageSize = offHeapStorePageSize;
+    }
+
+    public long getBoundedCacheMaxBytes() {
+        return boundedCacheMaxBytes;
+    }
+
+    /**
+     * Maximum size in bytes of the entries of each store of the
+     * "bounded-cache" type, accounted as the size of the keys and values plus
+     * a fixed overhead per entry. These stores live on the java heap, which
+     * must be sized accordingly.
+     * 
+     * <ul>
+     * <li>Property : "bounded.cache.max.bytes"</li>
+     * <li>Default : 64MB</li>
+     * </ul>
+     * 
+     * @param boundedCacheMaxBytes
+     */
+    public void setBoundedCacheMaxBytes(long boundedCacheMaxBytes) {
+        this.boundedCacheMaxBytes = boundedCacheMaxBytes;
+    }
+
+    public int getBoundedCacheSegments() {
+        return boundedCacheSegments;
+    }
+
+    /**
+     * Number of independently locked segments of each "bounded-cache" store.
+     * Each segment evicts on its own, holding an equal share of the bytes.
+     * 
+     * <ul>
+     * <li>Property : "bounded.cache.segments"</li>
+     * <li>Default : 16</li>
+     * </ul>
+     * 
+     * @param boundedCacheSegments
+     */
+    public void setBoundedCacheSegments(int boundedCacheSegments) {
+        this.boundedCacheSegments = boundedCacheSegments;
+    }
+
+    public List<String> getRowCacheStores() {
+        return rowCacheStores;
+    }
+
+    /**
+     * Names of the read-write stores whose decoded rows are cached on the java
+     * heap in front of their storage engine, so lookups of their hot keys skip
+     * the engine, such as the BDB cache and the decoding of the record. Every
+     * write drops the key from the cache.
+     * 
+     * <ul>
+     * <li>Property : "row.cache.stores"</li>
+     * <li>Default : empty</li>
+     * </ul>
+     * 
+     * @param rowCacheStores
+     */
+    public void setRowCacheStores(List<String> rowCacheStores) {
+        this.rowCacheStores = rowCacheStores;
+    }
+
+    public long getRowCacheMaxBytes() {
+        return rowCacheMaxBytes;
+    }
+
+    /**
+     * Maximum size in bytes of the rows cached for each of the
+     * "row.cache.stores", accounted like the entries of the "bounded-cache"
+     * stores
+     * 
+     * <ul>
+     * <li>Property : "row.cache.max.bytes"</li>
+     * <li>Default : 32MB</li>
+     * </ul>
+     * 
+     * @param rowCacheMaxBytes
+     */
+    public void setRowCacheMaxBytes(long rowCacheMaxBytes) {
+        this.rowCacheMaxBytes = rowCacheMaxBytes;
+    }
+
+    public int getRowCacheSegments() {
+        return rowCacheSegments;
+    }
+
+    /**
+     * Number of independently locked segments of each row cache
+     * 
+     * <ul>
+     * <li>Property : "row.cache.segments"</li>
+     * <li>Default : 16</li>
+     * </ul>
+     * 
+     * @param rowCacheSegments
+     */
+    public void setRowCacheSegments(int rowCacheSegments) {
+        this.rowCacheSegments = rowCacheSegments;
+    }
+
+    public String getBitcaskDataDirectory() {
+        return bitcaskDataDirectory;
+    }
+
+    /**
+     * The directory in which the "bitcask" stores keep their segment files,
+     * each store in a directory of its own.
+     * 
+     * <ul>
+     * <li>Property : "bitcask.data.directory"</li>
+     * <li>Default : data.directory/bitcask</li>
+     * </ul>
+     * 
+     * @param bitcaskDataDirectory
+     */
+    public void setBitcaskDataDirectory(String bitcaskDataDirectory) {
+        this.bitcaskDataDirectory = bitcaskDataDirectory;
+    }
+
+    public long getBitcaskMaxSegmentSize() {
+        return bitcaskMaxSegmentSize;
+    }
+
+    /**
+     * Size past which a "bitcask" store closes the segment it appends to and
+     * starts a new one. Only closed segments are compacted.
+     * 
+     * <ul>
+     * <li>Property : "bitcask.segment.size"</li>
+     * <li>Default : 256MB</li>
+     * </ul>
+     * 
+     * @param bitcaskMaxSegmentSize
+     */
+    public void setBitcaskMaxSegmentSize(long bitcaskMaxSegmentSize) {
+        this.bitcaskMaxSegmentSize = bitcaskMaxSegmentSize;
+    }
+
+    public boolean isBitcaskFsyncWrites() {
+        return bitcaskFsyncWrites;
+    }
+
+    /**
+     * If true, every write to a "bitcask" store is synced to disk before it
+     * returns. Otherwise segments are synced when they are closed.
+     * 
+     * <ul>
+     * <li>Property : "bitcask.fsync.writes"</li>
+     * <li>Default : false</li>
+     * </ul>
+     * 
+     * @param bitcaskFsyncWrites
+     */
+    public void setBitcaskFsyncWrites(boolean bitcaskFsyncWrites) {
+        this.bitcaskFsyncWrites = bitcaskFsyncWrites;
+    }
+
+    public double getBitcaskCompactionMinGarbageRatio() {
+        return bitcaskCompactionMinGarbageRatio;
+    }
+
+    /**
+     * Part of a closed "bitcask" segment made of overwritten or deleted
+     * records past which compaction rewrites the segment.
+     * 
+     * <ul>
+     * <li>Property : "bitcask.compaction.min.garbage.ratio"</li>
+     * <li>Default : 0.5</li>
+     * </ul>
+     * 
+     * @param bitcaskCompactionMinGarbageRatio
+     */
+    public void setBitcaskCompactionMinGarbageRatio(double bitcaskCompactionMinGarbageRatio) {
+        this.bitcaskCompactionMinGarbageRatio = bitcaskCompactionMinGarbageRatio;
+    }
+
+    public long getBitcaskCompactionBytesPerSec() {
+        return bitcaskCompactionBytesPerSec;
+    }
+
+    /**
+     * Rate at which the compaction of a "bitcask" store reads its segments,
+     * or 0 for no limit.
+     * 
+     * <ul>
+     * <li>Property : "bitcask.compaction.bytes.per.sec"</li>
+     * <li>Default : 20MB</li>
+     * </ul>
+     * 
+     * @param bitcaskCompactionBytesPerSec
+     */
+    public void setBitcaskCompactionBytesPerSec(long bitcaskCompactionBytesPerSec) {
+        this.bitcaskCompactionBytesPerSec = bitcaskCompactionBytesPerSec;
+    }
+
+    public long getBitcaskCompactionIntervalMs() {
+        return bitcaskCompactionIntervalMs;
+    }
+
+    /**
+     * Interval between the compactions of the "bitcask" stores, or 0 to only
+     * compact them through JMX.
+     * 
+     * <ul>
+     * <li>Property : "bitcask.compaction.interval.ms"</li>
+     * <li>Default : 10 minutes</li>
+     * </ul>
+     * 
+     * @param bitcaskCompactionIntervalMs
+     */
+    public void setBitcaskCompactionIntervalMs(long bitcaskCompactionIntervalMs) {
+        this.bitcaskCompactionIntervalMs = bitcaskCompactionIntervalMs;
+    }
+
+    public String getLsmDataDirectory() {
+        return lsmDataDirectory;
+    }
+
+    /**
+     * The directory in which the "lsm" stores keep their tables and logs, one
+     * directory per store.
+     * 
+     * <ul>
+     * <li>Property : "lsm.data.directory"</li>
+     * <li>Default : data.directory/lsm</li>
+     * </ul>
+     * 
+     * @param lsmDataDirectory
+     */
+    public void setLsmDataDirectory(String lsmDataDirectory) {
+        this.lsmDataDirectory = lsmDataDirectory;
+    }
+
+    public long getLsmMemtableSize() {
+        return lsmMemtableSize;
+    }
+
+    /**
+     * Size of the writes an "lsm" store buffers in memory before flushing
+     * them to new tables. Each store may hold up to twice as much while a
+     * flush runs.
+     * 
+     * <ul>
+     * <li>Property : "lsm.memtable.size"</li>
+     * <li>Default : 64MB</li>
+     * </ul>
+     * 
+     * @param lsmMemtableSize
+     */
+    public void setLsmMemtableSize(long lsmMemtableSize) {
+        this.lsmMemtableSize = lsmMemtableSize;
+    }
+
+    public long getLsmTableSize() {
+        return lsmTableSize;
+    }
+
+    /**
+     * Size of the tables written by the compactions of an "lsm" store
+     * 
+     * <ul>
+     * <li>Property : "lsm.table.size"</li>
+     * <li>Default : 8MB</li>
+     * </ul>
+     * 
+     * @param lsmTableSize
+     */
+    public void setLsmTableSize(long lsmTableSize) {
+        this.lsmTableSize = lsmTableSize;
+    }
+
+    public int getLsmBlockSize() {
+        return lsmBlockSize;
+    }
+
+    /**
+     * Uncompressed size of the blocks of the tables of an "lsm" store, the
+     * unit read from disk by a lookup
+     * 
+     * <ul>
+     * <li>Property : "lsm.block.size"</li>
+     * <li>Default : 16KB</li>
+     * </ul>
+     * 
+     * @param lsmBlockSize
+     */
+    public void setLsmBlockSize(int lsmBlockSize) {
+        this.lsmBlockSize = lsmBlockSize;
+    }
+
+    public String getLsmBlockCompression() {
+        return lsmBlockCompression;
+    }
+
+    /**
+     * Codec compressing the blocks of the tables of an "lsm" store: none,
+     * gzip, lzf or snappy
+     * 
+     * <ul>
+     * <li>Property : "lsm.block.compression"</li>
+     * <li>Default : lzf</li>
+     * </ul>
+     * 
+     * @param lsmBlockCompression
+     */
+    public void setLsmBlockCompression(String lsmBlockCompression) {
+        this.lsmBlockCompression = lsmBlockCompression;
+    }
+
+    public int getLsmBloomBitsPerKey() {
+        return lsmBloomBitsPerKey;
+    }
+
+    /**
+     * Bits per key of the Bloom filters of the tables of an "lsm" store
+     * 
+     * <ul>
+     * <li>Property : "lsm.bloom.bits.per.key"</li>
+     * <li>Default : 10</li>
+     * </ul>
+     * 
+     * @param lsmBloomBitsPerKey
+     */
+    public void setLsmBloomBitsPerKey(int lsmBloomBitsPerKey) {
+        this.lsmBloomBitsPerKey = lsmBloomBitsPerKey;
+    }
+
+    public int getLsmLevel0MaxTables() {
+        return lsmLevel0MaxTables;
+    }
+
+    /**
+     * Number of flushed tables of a partition of an "lsm" store which
+     * triggers their compaction into level 1
+     * 
+     * <ul>
+     * <li>Property : "lsm.level0.max.tables"</li>
+     * <li>Default : 4</li>
+     * </ul>
+     * 
+     * @param lsmLevel0MaxTables
+     */
+    public void setLsmLevel0MaxTables(int lsmLevel0MaxTables) {
+        this.lsmLevel0MaxTables = lsmLevel0MaxTables;
+    }
+
+    public long getLsmLevelBaseSize() {
+        return lsmLevelBaseSize;
+    }
+
+    /**
+     * Size of level 1 of a partition of an "lsm" store past which its tables
+     * are compacted into level 2
+     * 
+     * <ul>
+     * <li>Property : "lsm.level.base.size"</li>
+     * <li>Default : 32MB</li>
+     * </ul>
+     * 
+     * @param lsmLevelBaseSize
+     */
+    public void setLsmLevelBaseSize(long lsmLevelBaseSize) {
+        this.lsmLevelBaseSize = lsmLevelBaseSize;
+    }
+
+    public int getLsmLevelSizeMultiplier() {
+        return lsmLevelSizeMultiplier;
+    }
+
+    /**
+     * How many times larger than the previous level each level of an "lsm"
+     * store may grow
+     * 
+     * <ul>
+     * <li>Property : "lsm.level.size.multiplier"</li>
+     * <li>Default : 10</li>
+     * </ul>
+     * 
+     * @param lsmLevelSizeMultiplier
+     */
+    public void setLsmLevelSizeMultiplier(int lsmLevelSizeMultiplier) {
+        this.lsmLevelSizeMultiplier = lsmLevelSizeMultiplier;
+    }
+
+    public int getLsmCompactionThreads() {
+        return lsmCompactionThreads;
+    }
+
+    /**
+     * Number of threads compacting the tables of each "lsm" store
+     * 
+     * <ul>
+     * <li>Property : "lsm.compaction.threads"</li>
+     * <li>Default : 1</li>
+     * </ul>
+     * 
+     * @param lsmCompactionThreads
+     */
+    public void setLsmCompactionThreads(int lsmCompactionThreads) {
+        this.lsmCompactionThreads = lsmCompactionThreads;
+    }
+
+    public boolean isLsmFsyncWrites() {
+        return lsmFsyncWrites;
+    }
+
+    /**
+     * If true, every write to an "lsm" store is synced to its write ahead
+     * log before it returns
+     * 
+     * <ul>
+     * <li>Property : "lsm.fsync.writes"</li>
+     * <li>Default : false</li>
+     * </ul>
+     * 
+     * @param lsmFsyncWrites
+     */
+    public void setLsmFsyncWrites(boolean lsmFsyncWrites) {
+        this.lsmFsyncWrites = lsmFsyncWrites;
+    }
+
+    public int getLsmMaxOpenTables() {
+        return lsmMaxOpenTables;
+    }
+
+    /**
+     * Number of table files each "lsm" store keeps open. The least recently
+     * read tables are closed past it and reopened when read again.
+     * 
+     * <ul>
+     * <li>Property : "lsm.max.open.tables"</li>
+     * <li>Default : 1000</li>
+     * </ul>
+     * 
+     * @param lsmMaxOpenTables
+     */
+    public void setLsmMaxOpenTables(int lsmMaxOpenTables) {
+        this.lsmMaxOpenTables = lsmMaxOpenTables;
+    }
+
     public int getGossipInterval() {
         return gossipIntervalMs;
     }
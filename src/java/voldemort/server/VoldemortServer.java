@@ -251,7 +251,12 @@ public class VoldemortServer extends AbstractService {
                                                   voldemortConfig.getNioConnectorSelectors(),
                                                   "nio-socket-server",
                                                   voldemortConfig.isJmxEnabled(),
-                                                  voldemortConfig.getNioAcceptorBacklog()));
+                                                  voldemortConfig.getNioAcceptorBacklog(),
+                                                  voldemortConfig.getNioWorkerThreads(),
+                                                  voldemortConfig.getNioWorkerQueueSize(),
+                                                  voldemortConfig.getNioWorkerMaxActivePerStore(),
+                                                  voldemortConfig.getNioBufferPoolSize(),
+                                                  storeRepository));
             } else {
                 logger.info("Using BIO Connector.");
                 services.add(new SocketService(socketRequestHandlerFactory,
@@ -292,7 +297,10 @@ public class VoldemortServer extends AbstractService {
                                                   voldemortConfig.getNioAdminConnectorSelectors(),
                                                   "admin-server",
                                                   voldemortConfig.isJmxEnabled(),
-                                                  voldemortConfig.getNioAcceptorBacklog()));
+                                                  voldemortConfig.getNioAcceptorBacklog(),
+                                                  voldemortConfig.getNioAdminWorkerThreads(),
+                                                  voldemortConfig.getNioWorkerQueueSize(),
+                                                  0));
             } else {
                 logger.info("Using BIO Connector for Admin Service.");
                 services.add(new SocketService(adminRequestHandlerFactory,
@@ -16,11 +16,13 @@
 
 package voldemort.server.niosocket;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
@@ -29,12 +31,17 @@ import org.apache.log4j.Level;
 
 import voldemort.VoldemortException;
 import voldemort.client.protocol.RequestFormatType;
+import voldemort.client.protocol.vold.FrameCompression;
+import voldemort.common.nio.ByteBufferBackedDataOutputStream;
+import voldemort.common.nio.ByteBufferBackedInputStream;
+import voldemort.common.nio.ByteBufferPool;
 import voldemort.common.nio.SelectorManagerWorker;
 import voldemort.server.protocol.RequestHandler;
 import voldemort.server.protocol.RequestHandlerFactory;
 import voldemort.server.protocol.StreamRequestHandler;
 import voldemort.server.protocol.StreamRequestHandler.StreamRequestDirection;
 import voldemort.server.protocol.StreamRequestHandler.StreamRequestHandlerState;
+import voldemort.server.protocol.vold.VoldemortNativeRequestHandler;
 import voldemort.utils.ByteUtils;
 
 /**
@@ -46,6 +53,20 @@ import voldemort.utils.ByteUtils;
  * The bulk of the complexity in this class surrounds partial reads and writes,
  * as well as determining when all the data needed for the request has been
  * read.
+ * <p/>
+ * When a {@link StagedRequestExecutor} is given, complete requests are not
+ * executed on the selector thread. Instead the channel stops being selected,
+ * the request is queued on the executor under its store name and, once a
+ * worker has run it, the selector thread picks the response up again via
+ * {@link NioSelectorManager#completeRequest(AsyncRequestHandler)}. The same
+ * goes for each batch of segments of a streaming request, so a long fetch or
+ * update stream never occupies the selector thread. Only the selector thread
+ * touches the selection key, so interest ops never change from a worker
+ * thread.
+ * <p/>
+ * Values of at least the socket buffer size are not copied into the output
+ * buffer by request handlers that support it; the response is sent with a
+ * gathering write over the buffer and the values instead.
  * 
  * 
  * @see voldemort.server.protocol.RequestHandler
@@ -61,14 +82,70 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
 
     private NioSelectorManagerStats nioStats;
 
+    private final NioSelectorManager selectorManager;
+
+    private final StagedRequestExecutor workerPool;
+
+    private final Runnable stagedRequest;
+
+    private RequestFormatType requestFormatType;
+
+    private String stagedQueueName;
+
+    private Throwable stagedError;
+
+    // whether the staged task executed segments of a streaming request
+    private boolean stagedStream;
+
+    private StreamRequestHandlerState stagedStreamState;
+
+    // the input position before the last segment of a streaming request
+    private int streamPreRequestPosition;
+
     public AsyncRequestHandler(Selector selector,
                                SocketChannel socketChannel,
                                RequestHandlerFactory requestHandlerFactory,
                                int socketBufferSize,
                                NioSelectorManagerStats nioStats) {
-        super(selector, socketChannel, socketBufferSize, nioStats.getServerCommBufferStats());
+        this(selector, socketChannel, requestHandlerFactory, socketBufferSize, nioStats, null, null);
+    }
+
+    public AsyncRequestHandler(Selector selector,
+                               SocketChannel socketChannel,
+                               RequestHandlerFactory requestHandlerFactory,
+                               int socketBufferSize,
+                               NioSelectorManagerStats nioStats,
+                               NioSelectorManager selectorManager,
+                               StagedRequestExecutor workerPool) {
+        this(selector,
+             socketChannel,
+             requestHandlerFactory,
+             socketBufferSize,
+             nioStats,
+             selectorManager,
+             workerPool,
+             null);
+    }
+
+    public AsyncRequestHandler(Selector selector,
+                               SocketChannel socketChannel,
+                               RequestHandlerFactory requestHandlerFactory,
+                               int socketBufferSize,
+                               NioSelectorManagerStats nioStats,
+                               NioSelectorManager selectorManager,
+                               StagedRequestExecutor workerPool,
+                               ByteBufferPool bufferPool) {
+        super(selector,
+              socketChannel,
+              socketBufferSize,
+              nioStats.getServerCommBufferStats(),
+              bufferPool);
         this.requestHandlerFactory = requestHandlerFactory;
         this.nioStats = nioStats;
+        this.selectorManager = selectorManager;
+        this.workerPool = selectorManager == null ? null : workerPool;
+        this.stagedRequest = new StagedRequest();
+        this.outputStream.setGatherThreshold(socketBufferSize);
     }
 
     @Override
@@ -123,13 +200,22 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
         // rewind the buffer for reading and execute the request.
         inputStream.getBuffer().rewind();
 
+        if(workerPool != null) {
+            // Hand the request off to the worker pool and stop selecting this
+            // channel until the response is ready.
+            selectionKey.interestOps(0);
+            stagedQueueName = getQueueName(inputStream.getBuffer());
+            submitRequest();
+            return;
+        }
+
         if(logger.isTraceEnabled())
             logger.trace("Starting execution for " + socketChannel.socket());
 
         DataInputStream dataInputStream = new DataInputStream(inputStream);
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        DataOutputStream dataOutputStream = new ByteBufferBackedDataOutputStream(outputStream);
 
-        streamRequestHandler = requestHandler.handleRequest(dataInputStream, dataOutputStream);
+        streamRequestHandler = handleRequests(dataInputStream, dataOutputStream);
 
         if(logger.isDebugEnabled()) {
             logger.debug("AsyncRequestHandler:read finished request from "
@@ -151,19 +237,196 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
         if(logger.isTraceEnabled())
             logger.trace("Finished execution for " + socketChannel.socket());
 
-        prepForWrite(selectionKey);
+        prepForWriteRetainingInput(selectionKey);
+    }
+
+    /**
+     * Queues the pending request on the worker pool. If the store queue is full
+     * the request is parked with the selector manager, which retries it on its
+     * next pass. The channel is not read from in the meantime, so a client
+     * that keeps sending is eventually held back by TCP flow control.
+     * 
+     * @return true if the request was queued
+     */
+    boolean submitRequest() {
+        return selectorManager.submitRequest(this, stagedQueueName, stagedRequest);
+    }
+
+    /**
+     * Called on the selector thread once a worker has executed the request or
+     * the segments of a streaming request; prepares the response for writing
+     * or for reading the rest of the stream just like the inline path does.
+     */
+    void finishRequest() {
+        try {
+            if(stagedError != null) {
+                Throwable t = stagedError;
+                stagedError = null;
+
+                if(t instanceof IOException) {
+                    logger.info("Connection reset from " + socketChannel.socket()
+                                + " with message - " + t.getMessage());
+                } else if(logger.isEnabledFor(Level.ERROR)) {
+                    logger.error(t.getMessage(), t);
+                }
+
+                close();
+                return;
+            }
+
+            SelectionKey selectionKey = socketChannel.keyFor(selector);
+
+            if(isClosed() || selectionKey == null || !selectionKey.isValid()) {
+                close();
+                return;
+            }
+
+            if(stagedStream) {
+                stagedStream = false;
+                finishStreamRequest(selectionKey, stagedStreamState);
+            } else {
+                prepForWriteRetainingInput(selectionKey);
+            }
+        } catch(CancelledKeyException e) {
+            close();
+        } catch(Throwable t) {
+            if(logger.isEnabledFor(Level.ERROR))
+                logger.error(t.getMessage(), t);
+
+            close();
+        }
+    }
+
+    /**
+     * Executes the complete request at the start of the input buffer. With a
+     * multiplexed protocol the client may have sent more requests behind it,
+     * so keep executing as long as there are complete requests left; their
+     * responses simply queue up in the output buffer. A trailing partial
+     * request is left in the input buffer.
+     */
+    private StreamRequestHandler handleRequests(DataInputStream dataInputStream,
+                                                DataOutputStream dataOutputStream)
+            throws IOException {
+        StreamRequestHandler handler = requestHandler.handleRequest(dataInputStream,
+                                                                    dataOutputStream);
+
+        if(!requestFormatType.isMultiplexed())
+            return handler;
+
+        while(handler == null && inputStream.getBuffer().hasRemaining()) {
+            ByteBuffer buffer = inputStream.getBuffer();
+            int position = buffer.position();
+            boolean isComplete = requestHandler.isCompleteRequest(buffer);
+            buffer.position(position);
+
+            if(!isComplete)
+                break;
+
+            handler = requestHandler.handleRequest(dataInputStream, dataOutputStream);
+        }
+
+        return handler;
+    }
+
+    /**
+     * Like {@link #prepForWrite(SelectionKey)}, but keeps a partial request
+     * that was pipelined behind the executed ones at the start of the input
+     * buffer so the next read appends to it.
+     */
+    private void prepForWriteRetainingInput(SelectionKey selectionKey) {
+        ByteBuffer buffer = inputStream.getBuffer();
+
+        if(!requestFormatType.isMultiplexed() || !buffer.hasRemaining()) {
+            prepForWrite(selectionKey);
+            return;
+        }
+
+        buffer.compact();
+        handleIncompleteRequest(buffer.position());
+
+        outputStream.getBuffer().flip();
+        selectionKey.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Requests are queued by store name, which the native protocol puts right
+     * after the op code. Other protocols share one queue per format, and so
+     * do compressed multiplexed frames, whose store name is only readable
+     * once the frame is decompressed on a worker.
+     */
+    private String getQueueName(ByteBuffer buffer) {
+        switch(requestFormatType) {
+            case VOLDEMORT_V0:
+            case VOLDEMORT_V1:
+            case VOLDEMORT_V2:
+            case VOLDEMORT_V3:
+            case VOLDEMORT_V4:
+                int offset = 1;
+                if(requestFormatType.isMultiplexed()) {
+                    // request id, frame length, then the op code
+                    if(buffer.remaining() < 8
+                       || FrameCompression.isCompressed(buffer.getInt(buffer.position() + 4)))
+                        return requestFormatType.getCode();
+                    offset = 9;
+                }
+                if(buffer.remaining() > offset + 2) {
+                    ByteBuffer duplicate = buffer.duplicate();
+                    duplicate.position(duplicate.position() + offset);
+                    try {
+                        return new DataInputStream(new ByteBufferBackedInputStream(duplicate)).readUTF();
+                    } catch(IOException e) {
+                        // fall through to the shared queue
+                    }
+                }
+            default:
+                return requestFormatType.getCode();
+        }
+    }
+
+    private class StagedRequest implements Runnable {
+
+        public void run() {
+            try {
+                if(logger.isTraceEnabled())
+                    logger.trace("Starting staged execution for " + socketChannel.socket());
+
+                // holding the lock keeps close from returning the buffers to
+                // the pool while they are in use here
+                synchronized(AsyncRequestHandler.this) {
+                    // A streaming request goes on with its segments right
+                    // away, and comes back here for every further batch
+                    if(streamRequestHandler == null)
+                        streamRequestHandler = handleRequests(new DataInputStream(inputStream),
+                                                              new ByteBufferBackedDataOutputStream(outputStream));
+
+                    if(streamRequestHandler != null) {
+                        stagedStreamState = executeStreamRequest();
+                        stagedStream = true;
+                    }
+                }
+            } catch(Throwable t) {
+                stagedError = t;
+            } finally {
+                selectorManager.completeRequest(AsyncRequestHandler.this);
+            }
+        }
     }
 
     @Override
     protected void write(SelectionKey selectionKey) throws IOException {
-        if(outputStream.getBuffer().hasRemaining()) {
+        if(outputStream.hasRemaining()) {
             // If we have data, write what we can now...
             try {
-                int count = socketChannel.write(outputStream.getBuffer());
+                long count;
+
+                if(outputStream.hasReferences())
+                    count = socketChannel.write(outputStream.getGatheringBuffers());
+                else
+                    count = socketChannel.write(outputStream.getBuffer());
 
                 if(logger.isTraceEnabled())
-                    logger.trace("Wrote " + count + " bytes, remaining: "
-                                 + outputStream.getBuffer().remaining() + " for "
+                    logger.trace("Wrote " + count + " bytes, has remaining: "
+                                 + outputStream.hasRemaining() + " for "
                                  + socketChannel.socket());
             } catch(IOException e) {
                 if(streamRequestHandler != null) {
@@ -182,13 +445,15 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
         // If there's more to write but we didn't write it, we'll take that to
         // mean that we're done here. We don't clear or reset anything. We leave
         // our buffer state where it is and try our luck next time.
-        if(outputStream.getBuffer().hasRemaining())
+        if(outputStream.hasRemaining())
             return;
 
+        outputStream.clearReferences();
+
         // If we don't have anything else to write, that means we're done with
         // the request! So clear the buffers (resizing if necessary).
         if(outputStream.getBuffer().capacity() >= resizeThreshold)
-            outputStream.setBuffer(ByteBuffer.allocate(socketBufferSize));
+            outputStream.setBuffer(allocateBuffer(socketBufferSize));
         else
             outputStream.getBuffer().clear();
 
@@ -210,6 +475,24 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
     }
 
     private void handleStreamRequest(SelectionKey selectionKey) throws IOException {
+        if(workerPool != null) {
+            // Run the next segments on the worker pool and stop selecting this
+            // channel until they are done.
+            selectionKey.interestOps(0);
+            submitRequest();
+            return;
+        }
+
+        finishStreamRequest(selectionKey, executeStreamRequest());
+    }
+
+    /**
+     * Executes as many segments of the streaming request as the buffers allow.
+     * Does not touch the selection key, so it may run on a worker thread.
+     * 
+     * @return The state after the last segment, or null if the request failed
+     */
+    private StreamRequestHandlerState executeStreamRequest() throws IOException {
         // You are not expected to understand this.
         DataInputStream dataInputStream = new DataInputStream(inputStream);
         DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
@@ -217,10 +500,9 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
         // We need to keep track of the last known starting index *before* we
         // attempt to service the next segment. This is needed in case of
         // partial reads so that we can revert back to this point.
-        int preRequestPosition = inputStream.getBuffer().position();
+        streamPreRequestPosition = inputStream.getBuffer().position();
 
-        StreamRequestHandlerState state = handleStreamRequestInternal(selectionKey,
-                                                                      dataInputStream,
+        StreamRequestHandlerState state = handleStreamRequestInternal(dataInputStream,
                                                                       dataOutputStream);
 
         if(state == StreamRequestHandlerState.READING) {
@@ -229,8 +511,8 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
             // the client. So let's keep executing segments as much as we can
             // until we're no longer reading anything.
             do {
-                preRequestPosition = inputStream.getBuffer().position();
-                state = handleStreamRequestInternal(selectionKey, dataInputStream, dataOutputStream);
+                streamPreRequestPosition = inputStream.getBuffer().position();
+                state = handleStreamRequestInternal(dataInputStream, dataOutputStream);
             } while(state == StreamRequestHandlerState.READING);
         } else if(state == StreamRequestHandlerState.WRITING) {
             // We've read our request and written one segment, but we're still
@@ -238,22 +520,35 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
             // segments as much as we can until we're there's nothing more to do
             // or until we blow past our buffer.
             do {
-                state = handleStreamRequestInternal(selectionKey, dataInputStream, dataOutputStream);
+                state = handleStreamRequestInternal(dataInputStream, dataOutputStream);
             } while(state == StreamRequestHandlerState.WRITING && !outputStream.wasExpanded());
+        }
 
-            if(state != StreamRequestHandlerState.COMPLETE) {
-                // We've read our request and are ready to start streaming
-                // writes to the client.
-                prepForWrite(selectionKey);
-            }
+        if(state == StreamRequestHandlerState.COMPLETE) {
+            streamRequestHandler.close(dataOutputStream);
+            streamRequestHandler = null;
         }
 
+        return state;
+    }
+
+    /**
+     * Updates the buffers and the selection key after segments of a streaming
+     * request have been executed. Runs on the selector thread only.
+     */
+    private void finishStreamRequest(SelectionKey selectionKey, StreamRequestHandlerState state) {
         if(state == null) {
-            // We got an error...
+            // We got an error, which has been written out for the client...
+            prepForWrite(selectionKey);
+            close();
             return;
         }
 
-        if(state == StreamRequestHandlerState.INCOMPLETE_READ) {
+        if(state == StreamRequestHandlerState.WRITING) {
+            // We've read our request and are ready to start streaming writes
+            // to the client.
+            prepForWrite(selectionKey);
+        } else if(state == StreamRequestHandlerState.INCOMPLETE_READ) {
             // We need the data that's in there so far and aren't ready to write
             // anything out yet, so don't clear the input buffer or signal that
             // we're ready to write. But we do want to compact the buffer as we
@@ -267,7 +562,7 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
 
             // b) ...position ourselves at the start of the incomplete
             // "segment"...
-            inputStream.getBuffer().position(preRequestPosition);
+            inputStream.getBuffer().position(streamPreRequestPosition);
 
             // c) ...then copy the data starting from preRequestPosition's data
             // is at index 0...
@@ -275,19 +570,19 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
 
             // d) ...and reset the position to be ready for the rest of the
             // reads and the limit to allow more data.
-            handleIncompleteRequest(currentPosition - preRequestPosition);
-        } else if(state == StreamRequestHandlerState.COMPLETE) {
-            streamRequestHandler.close(dataOutputStream);
-            streamRequestHandler = null;
+            handleIncompleteRequest(currentPosition - streamPreRequestPosition);
 
+            // e) ...and make sure the channel is selected for the rest, as a
+            // staged request stopped selecting it.
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        } else if(state == StreamRequestHandlerState.COMPLETE) {
             // Treat this as a normal request. Assume that all completed
             // requests want to write something back to the client.
             prepForWrite(selectionKey);
         }
     }
 
-    private StreamRequestHandlerState handleStreamRequestInternal(SelectionKey selectionKey,
-                                                                  DataInputStream dataInputStream,
+    private StreamRequestHandlerState handleStreamRequestInternal(DataInputStream dataInputStream,
                                                                   DataOutputStream dataOutputStream)
             throws IOException {
         StreamRequestHandlerState state = null;
@@ -324,10 +619,6 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
             streamRequestHandler.handleError(dataOutputStream, error);
             streamRequestHandler.close(dataOutputStream);
             streamRequestHandler = null;
-
-            prepForWrite(selectionKey);
-
-            close();
         }
 
         return state;
@@ -339,19 +630,25 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
      * @return
      */
 
-    private boolean initRequestHandler(SelectionKey selectionKey) {
+    private boolean initRequestHandler(SelectionKey selectionKey) throws IOException {
         ByteBuffer inputBuffer = inputStream.getBuffer();
         int remaining = inputBuffer.remaining();
 
         // Don't have enough bytes to determine the protocol yet...
-        if(remaining < 3)
-            return true;
+        if(remaining < 3) {
+            handleIncompleteRequest(inputBuffer.limit());
+            return false;
+        }
 
         byte[] protoBytes = { inputBuffer.get(0), inputBuffer.get(1), inputBuffer.get(2) };
 
         try {
             String proto = ByteUtils.getString(protoBytes, "UTF-8");
-            RequestFormatType requestFormatType = RequestFormatType.fromCode(proto);
+
+            if(proto.equals(FrameCompression.NEGOTIATION_CODE))
+                return negotiateFrameCompression(selectionKey);
+
+            requestFormatType = RequestFormatType.fromCode(proto);
             requestHandler = requestHandlerFactory.getRequestHandler(requestFormatType);
 
             if(logger.isInfoEnabled())
@@ -368,7 +665,7 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
         } catch(IllegalArgumentException e) {
             // okay we got some nonsense. For backwards compatibility,
             // assume this is an old client who does not know how to negotiate
-            RequestFormatType requestFormatType = RequestFormatType.VOLDEMORT_V0;
+            requestFormatType = RequestFormatType.VOLDEMORT_V0;
             requestHandler = requestHandlerFactory.getRequestHandler(requestFormatType);
 
             if(logger.isInfoEnabled())
@@ -379,6 +676,42 @@ public class AsyncRequestHandler extends SelectorManagerWorker {
         }
     }
 
+    /**
+     * Handles a proposal of the multiplexed protocol with compressed frames,
+     * answering "ok" and the codec picked from the proposal.
+     */
+    private boolean negotiateFrameCompression(SelectionKey selectionKey) throws IOException {
+        ByteBuffer inputBuffer = inputStream.getBuffer();
+        byte[] proposal = new byte[inputBuffer.remaining() - 3];
+        inputBuffer.position(3);
+        inputBuffer.get(proposal);
+
+        if(FrameCompression.getProposalSize(proposal, 0, proposal.length) == -1) {
+            handleIncompleteRequest(inputBuffer.limit());
+            return false;
+        }
+
+        FrameCompression frameCompression = FrameCompression.readProposal(new DataInputStream(new ByteArrayInputStream(proposal)));
+
+        requestFormatType = RequestFormatType.VOLDEMORT_V4;
+        requestHandler = requestHandlerFactory.getRequestHandler(requestFormatType);
+        if(requestHandler instanceof VoldemortNativeRequestHandler)
+            ((VoldemortNativeRequestHandler) requestHandler).setFrameCompression(frameCompression);
+        else
+            frameCompression = null;
+
+        if(logger.isInfoEnabled())
+            logger.info("Protocol negotiated for " + socketChannel.socket() + ": "
+                        + requestFormatType.getDisplayName() + " with "
+                        + (frameCompression == null ? "uncompressed frames" : frameCompression));
+
+        outputStream.getBuffer().put(ByteUtils.getBytes("ok", "UTF-8"));
+        FrameCompression.writeAcceptance(new DataOutputStream(outputStream), frameCompression);
+        prepForWrite(selectionKey);
+
+        return false;
+    }
+
     @Override
     public void close() {
         if(!isClosed.compareAndSet(false, true))
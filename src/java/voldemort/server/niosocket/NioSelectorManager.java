@@ -20,11 +20,14 @@ import java.net.InetSocketAddress;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Level;
 
+import voldemort.common.nio.ByteBufferPool;
 import voldemort.common.nio.CommBufferSizeStats;
 import voldemort.common.nio.SelectorManager;
 import voldemort.server.protocol.RequestHandlerFactory;
@@ -88,6 +91,13 @@ import voldemort.store.stats.Histogram;
  * connections 1 and 3 disconnect. This leaves SelectorManager B with two
  * connections and SelectorManager A with none. There's no provision to
  * re-balance the remaining requests evenly.
+ * <p/>
+ * When a {@link StagedRequestExecutor} is configured, the serial approach is
+ * kept for the IO but not for the store operations: requests are handed to the
+ * executor, and finished requests come back through a completion queue that is
+ * drained here, on the selector thread, before select-ing again. That costs one
+ * wakeup() per request, which is cheaper than letting a slow store stall every
+ * other connection on this selector.
  * 
  */
 
@@ -103,14 +113,59 @@ public class NioSelectorManager extends SelectorManager {
 
     private final NioSelectorManagerStats stats;
 
+    private final StagedRequestExecutor workerPool;
+
+    private final ByteBufferPool bufferPool;
+
+    private final Queue<AsyncRequestHandler> completedRequestQueue;
+
+    // only touched by the selector thread
+    private final LinkedList<AsyncRequestHandler> deferredRequests;
+
+    // the size of deferredRequests, also read by the workers of the pool
+    private final AtomicInteger numDeferredRequests;
+
+    // wakes the selector up to retry the deferred requests once a worker
+    // makes room in a full queue, instead of waiting for the select timeout
+    private final Runnable deferredRequestWaker;
+
     public NioSelectorManager(InetSocketAddress endpoint,
                               RequestHandlerFactory requestHandlerFactory,
                               int socketBufferSize) {
+        this(endpoint, requestHandlerFactory, socketBufferSize, null);
+    }
+
+    public NioSelectorManager(InetSocketAddress endpoint,
+                              RequestHandlerFactory requestHandlerFactory,
+                              int socketBufferSize,
+                              StagedRequestExecutor workerPool) {
+        this(endpoint, requestHandlerFactory, socketBufferSize, workerPool, null);
+    }
+
+    public NioSelectorManager(InetSocketAddress endpoint,
+                              RequestHandlerFactory requestHandlerFactory,
+                              int socketBufferSize,
+                              StagedRequestExecutor workerPool,
+                              ByteBufferPool bufferPool) {
         this.endpoint = endpoint;
         this.socketChannelQueue = new ConcurrentLinkedQueue<SocketChannel>();
         this.requestHandlerFactory = requestHandlerFactory;
         this.socketBufferSize = socketBufferSize;
         this.stats = new NioSelectorManagerStats();
+        this.workerPool = workerPool;
+        this.bufferPool = bufferPool;
+        this.completedRequestQueue = new ConcurrentLinkedQueue<AsyncRequestHandler>();
+        this.deferredRequests = new LinkedList<AsyncRequestHandler>();
+        this.numDeferredRequests = new AtomicInteger(0);
+        this.deferredRequestWaker = new Runnable() {
+
+            public void run() {
+                if(numDeferredRequests.get() > 0)
+                    selector.wakeup();
+            }
+        };
+        if(workerPool != null)
+            workerPool.addCapacityListener(deferredRequestWaker);
     }
 
     public void accept(SocketChannel socketChannel) {
@@ -121,12 +176,62 @@ public class NioSelectorManager extends SelectorManager {
         selector.wakeup();
     }
 
+    /**
+     * Called by a worker thread once it has executed the request of the given
+     * handler. The response is written out by the selector thread.
+     * 
+     * @param handler Handler whose request has been executed
+     */
+    void completeRequest(AsyncRequestHandler handler) {
+        completedRequestQueue.add(handler);
+        selector.wakeup();
+    }
+
+    /**
+     * Queues a request on the worker pool. A request whose store queue is full
+     * is parked and resubmitted on the next pass through
+     * {@link #processEvents()}, which the worker pool triggers once the queue
+     * has room. Called on the selector thread only.
+     * 
+     * @param handler Handler whose request is submitted
+     * @param queueName The name of the queue of the request
+     * @param task The task executing the request
+     * @return true if the request was queued
+     */
+    boolean submitRequest(AsyncRequestHandler handler, String queueName, Runnable task) {
+        // counted as deferred while it is submitted, so a worker making room
+        // right after the rejection already sees it and wakes the selector up
+        numDeferredRequests.incrementAndGet();
+        if(workerPool.submit(queueName, task)) {
+            numDeferredRequests.decrementAndGet();
+            return true;
+        }
+        deferredRequests.add(handler);
+        stats.addDeferredRequest();
+        return false;
+    }
+
     @Override
     protected void processEvents() {
         try {
             // update stats
             stats.updateSelectStats(selectCount, selectTimeMs, processingTimeMs);
 
+            AsyncRequestHandler handler = null;
+
+            while((handler = completedRequestQueue.poll()) != null)
+                handler.finishRequest();
+
+            // Each deferred request gets one retry per pass; the ones rejected
+            // again are added back to the end of the list.
+            for(int i = deferredRequests.size(); i > 0; i--) {
+                handler = deferredRequests.removeFirst();
+                numDeferredRequests.decrementAndGet();
+
+                if(!handler.isClosed())
+                    handler.submitRequest();
+            }
+
             SocketChannel socketChannel = null;
 
             while((socketChannel = socketChannelQueue.poll()) != null) {
@@ -164,7 +269,10 @@ public class NioSelectorManager extends SelectorManager {
                                                                              socketChannel,
                                                                              requestHandlerFactory,
                                                                              socketBufferSize,
-                                                                             stats);
+                                                                             stats,
+                                                                             this,
+                                                                             workerPool,
+                                                                             bufferPool);
 
                     if(!isClosed.get()) {
                         socketChannel.register(selector, SelectionKey.OP_READ, attachment);
@@ -206,6 +314,19 @@ public class NioSelectorManager extends SelectorManager {
         return socketChannelQueue.size();
     }
 
+    /**
+     * Returns the number of requests waiting for room in their store queue
+     * 
+     * @return number of deferred requests
+     */
+    public Integer getNumDeferredRequests() {
+        return numDeferredRequests.get();
+    }
+
+    public long getNumDeferrals() {
+        return stats.getNumDeferrals();
+    }
+
     public Histogram getSelectTimeMsHistogram() {
         return stats.getSelectTimeMsHistogram();
     }
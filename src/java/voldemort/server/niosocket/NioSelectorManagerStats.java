@@ -1,6 +1,7 @@
 package voldemort.server.niosocket;
 
 import org.apache.commons.lang.mutable.MutableInt;
+import org.apache.commons.lang.mutable.MutableLong;
 
 import voldemort.common.nio.CommBufferSizeStats;
 import voldemort.common.nio.SelectorManager;
@@ -25,9 +26,12 @@ public class NioSelectorManagerStats {
 
     private CommBufferSizeStats serverCommBufferStats;
 
+    private MutableLong numDeferrals;
+
     public NioSelectorManagerStats() {
         this.numActiveConnections = new MutableInt(0);
         this.serverCommBufferStats = new CommBufferSizeStats();
+        this.numDeferrals = new MutableLong(0);
 
         // Theoretically, the delay can be only upto SELECTOR_POLL_MS.
         // But sometimes wallclock time can be higher
@@ -50,6 +54,10 @@ public class NioSelectorManagerStats {
         numActiveConnections.decrement();
     }
 
+    public void addDeferredRequest() {
+        numDeferrals.increment();
+    }
+
     public void updateSelectStats(int selectCount, long selectTimeMs, long processingTimeMs) {
         // update selection statistics
         if(selectCount > -1) {
@@ -71,6 +79,16 @@ public class NioSelectorManagerStats {
         return numActiveConnections.toInteger();
     }
 
+    /**
+     * Returns the number of times a request could not be queued on the worker
+     * pool because its store queue was full
+     * 
+     * @return number of deferred requests
+     */
+    public long getNumDeferrals() {
+        return numDeferrals.longValue();
+    }
+
     public Histogram getSelectTimeMsHistogram() {
         return selectTimeMsHistogram;
     }
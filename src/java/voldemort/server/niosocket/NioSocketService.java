@@ -32,9 +32,11 @@ import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
 import voldemort.annotations.jmx.JmxGetter;
+import voldemort.common.nio.ByteBufferPool;
 import voldemort.common.service.ServiceType;
 import voldemort.server.AbstractSocketService;
 import voldemort.server.StatusManager;
+import voldemort.server.StoreRepository;
 import voldemort.server.protocol.RequestHandlerFactory;
 import voldemort.utils.DaemonThreadFactory;
 
@@ -48,6 +50,18 @@ import voldemort.utils.DaemonThreadFactory;
  * to a positive integer value. Otherwise, the number of selectors will be equal
  * to the number of CPUs visible to the JVM.
  * <p/>
+ * By default requests are executed on the selector threads. Setting
+ * "nio.worker.threads" to a positive value enables the staged mode, in which
+ * the selector threads only frame requests and write responses while the store
+ * operations run on a {@link StagedRequestExecutor} with per-store queues. This
+ * includes the segments of streaming requests, so with
+ * "nio.admin.worker.threads" the admin service serves any number of streaming
+ * connections with a fixed number of threads.
+ * <p/>
+ * Setting "nio.buffer.pool.size" to a positive number of bytes makes the
+ * connections use direct buffers from a {@link ByteBufferPool} shared by all
+ * selectors, which keeps at most that many bytes of idle buffers.
+ * <p/>
  * This code uses the NIO APIs directly. It would be a good idea to consider
  * some of the NIO frameworks to handle this more cleanly, efficiently, and to
  * handle corner cases.
@@ -78,6 +92,10 @@ public class NioSocketService extends AbstractSocketService {
 
     private final Thread acceptorThread;
 
+    private final StagedRequestExecutor workerPool;
+
+    private final ByteBufferPool bufferPool;
+
     private final Logger logger = Logger.getLogger(getClass());
 
     public NioSocketService(RequestHandlerFactory requestHandlerFactory,
@@ -87,6 +105,79 @@ public class NioSocketService extends AbstractSocketService {
                             String serviceName,
                             boolean enableJmx,
                             int acceptorBacklog) {
+        this(requestHandlerFactory,
+             port,
+             socketBufferSize,
+             selectors,
+             serviceName,
+             enableJmx,
+             acceptorBacklog,
+             0,
+             0,
+             0,
+             0);
+    }
+
+    public NioSocketService(RequestHandlerFactory requestHandlerFactory,
+                            int port,
+                            int socketBufferSize,
+                            int selectors,
+                            String serviceName,
+                            boolean enableJmx,
+                            int acceptorBacklog,
+                            int workerThreads,
+                            int workerQueueSize,
+                            int workerMaxActivePerStore) {
+        this(requestHandlerFactory,
+             port,
+             socketBufferSize,
+             selectors,
+             serviceName,
+             enableJmx,
+             acceptorBacklog,
+             workerThreads,
+             workerQueueSize,
+             workerMaxActivePerStore,
+             0);
+    }
+
+    public NioSocketService(RequestHandlerFactory requestHandlerFactory,
+                            int port,
+                            int socketBufferSize,
+                            int selectors,
+                            String serviceName,
+                            boolean enableJmx,
+                            int acceptorBacklog,
+                            int workerThreads,
+                            int workerQueueSize,
+                            int workerMaxActivePerStore,
+                            long bufferPoolSize) {
+        this(requestHandlerFactory,
+             port,
+             socketBufferSize,
+             selectors,
+             serviceName,
+             enableJmx,
+             acceptorBacklog,
+             workerThreads,
+             workerQueueSize,
+             workerMaxActivePerStore,
+             bufferPoolSize,
+             null);
+    }
+
+    public NioSocketService(RequestHandlerFactory requestHandlerFactory,
+                            int port,
+                            int socketBufferSize,
+                            int selectors,
+                            String serviceName,
+                            boolean enableJmx,
+                            int acceptorBacklog,
+                            int workerThreads,
+                            int workerQueueSize,
+                            int workerMaxActivePerStore,
+                            long bufferPoolSize,
+                            StoreRepository storeRepository) {
         super(ServiceType.SOCKET, port, serviceName, enableJmx);
         this.requestHandlerFactory = requestHandlerFactory;
         this.socketBufferSize = socketBufferSize;
@@ -105,6 +196,20 @@ public class NioSocketService extends AbstractSocketService {
                                                                       new DaemonThreadFactory("voldemort-niosocket-server"));
         this.statusManager = new StatusManager((ThreadPoolExecutor) this.selectorManagerThreadPool);
         this.acceptorThread = new Thread(new Acceptor(), "NioSocketService.Acceptor");
+
+        if(workerThreads > 0)
+            this.workerPool = new StagedRequestExecutor(workerThreads,
+                                                        workerQueueSize,
+                                                        workerMaxActivePerStore,
+                                                        "voldemort-niosocket-worker",
+                                                        storeRepository);
+        else
+            this.workerPool = null;
+
+        if(bufferPoolSize > 0)
+            this.bufferPool = new ByteBufferPool(socketBufferSize, bufferPoolSize);
+        else
+            this.bufferPool = null;
     }
 
     @Override
@@ -122,7 +227,9 @@ public class NioSocketService extends AbstractSocketService {
             for(int i = 0; i < selectorManagers.length; i++) {
                 selectorManagers[i] = new NioSelectorManager(endpoint,
                                                              requestHandlerFactory,
-                                                             socketBufferSize);
+                                                             socketBufferSize,
+                                                             workerPool,
+                                                             bufferPool);
                 selectorManagerThreadPool.execute(selectorManagers[i]);
             }
 
@@ -201,6 +308,15 @@ public class NioSocketService extends AbstractSocketService {
                 logger.warn(e.getMessage(), e);
         }
 
+        if(workerPool != null) {
+            try {
+                workerPool.close();
+            } catch(Exception e) {
+                if(logger.isEnabledFor(Level.WARN))
+                    logger.warn(e.getMessage(), e);
+            }
+        }
+
         try {
             serverSocketChannel.socket().close();
         } catch(Exception e) {
@@ -352,4 +468,87 @@ public class NioSocketService extends AbstractSocketService {
         }
         return sum;
     }
+
+    @JmxGetter(name = "numDeferredRequests", description = "total number of requests waiting for room in their worker queue")
+    public final int getNumDeferredRequests() {
+        int sum = 0;
+        for(NioSelectorManager manager: selectorManagers) {
+            sum += manager.getNumDeferredRequests();
+        }
+        return sum;
+    }
+
+    @JmxGetter(name = "numDeferrals", description = "number of times a request was held back because its worker queue was full")
+    public final long getNumDeferrals() {
+        long sum = 0;
+        for(NioSelectorManager manager: selectorManagers) {
+            sum += manager.getNumDeferrals();
+        }
+        return sum;
+    }
+
+    @JmxGetter(name = "workerThreads", description = "number of worker threads executing requests, 0 if requests run on the selector threads")
+    public final int getWorkerThreads() {
+        return workerPool == null ? 0 : workerPool.getNumThreads();
+    }
+
+    @JmxGetter(name = "workerQueuedRequests", description = "total number of requests queued for the worker threads")
+    public final int getWorkerQueuedRequests() {
+        return workerPool == null ? 0 : workerPool.getNumQueued();
+    }
+
+    @JmxGetter(name = "workerActiveRequests", description = "number of requests being executed by the worker threads")
+    public final int getWorkerActiveRequests() {
+        return workerPool == null ? 0 : workerPool.getNumActive();
+    }
+
+    @JmxGetter(name = "workerMaxQueueDepth", description = "depth of the longest per-store worker queue")
+    public final int getWorkerMaxQueueDepth() {
+        return workerPool == null ? 0 : workerPool.getMaxQueueDepth();
+    }
+
+    @JmxGetter(name = "workerCompletedRequests", description = "number of requests executed by the worker threads")
+    public final long getWorkerCompletedRequests() {
+        return workerPool == null ? 0 : workerPool.getNumCompleted();
+    }
+
+    @JmxGetter(name = "workerRejectedRequests", description = "number of times a request was rejected because its store queue was full")
+    public final long getWorkerRejectedRequests() {
+        return workerPool == null ? 0 : workerPool.getNumRejected();
+    }
+
+    @JmxGetter(name = "workerQueueStats", description = "queue depth, active and rejected requests per store")
+    public final String getWorkerQueueStats() {
+        return workerPool == null ? "" : workerPool.getQueueStats().toString();
+    }
+
+    @JmxGetter(name = "bufferPoolPooledBytes", description = "bytes in idle buffers held by the buffer pool, 0 if there is no pool")
+    public final long getBufferPoolPooledBytes() {
+        return bufferPool == null ? 0 : bufferPool.getPooledBytes();
+    }
+
+    @JmxGetter(name = "bufferPoolOutstandingBytes", description = "bytes in pooled buffers used by connections")
+    public final long getBufferPoolOutstandingBytes() {
+        return bufferPool == null ? 0 : bufferPool.getOutstandingBytes();
+    }
+
+    @JmxGetter(name = "bufferPoolHits", description = "number of buffers handed out from the buffer pool")
+    public final long getBufferPoolHits() {
+        return bufferPool == null ? 0 : bufferPool.getNumHits();
+    }
+
+    @JmxGetter(name = "bufferPoolMisses", description = "number of direct buffers allocated because none was pooled")
+    public final long getBufferPoolMisses() {
+        return bufferPool == null ? 0 : bufferPool.getNumMisses();
+    }
+
+    @JmxGetter(name = "bufferPoolUnpooled", description = "number of heap buffers allocated because they were too large to pool")
+    public final long getBufferPoolUnpooled() {
+        return bufferPool == null ? 0 : bufferPool.getNumUnpooled();
+    }
+
+    @JmxGetter(name = "bufferPoolDiscarded", description = "number of released buffers dropped because the buffer pool was full")
+    public final long getBufferPoolDiscarded() {
+        return bufferPool == null ? 0 : bufferPool.getNumDiscarded();
+    }
 }
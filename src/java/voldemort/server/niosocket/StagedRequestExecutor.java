@@ -0,0 +1,330 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.server.niosocket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import voldemort.server.StoreRepository;
+import voldemort.utils.DaemonThreadFactory;
+
+/**
+ * A bounded pool of worker threads that executes requests on behalf of the NIO
+ * selector threads.
+ * <p/>
+ * Tasks are queued per store. Each store queue holds at most
+ * <code>maxQueuedPerStore</code> tasks and may occupy at most
+ * <code>maxActivePerStore</code> workers at a time; the workers serve the
+ * eligible queues in round-robin order. This way a store that is slow (cache
+ * misses, cleaner contention, fsyncs) can only back up its own queue, and
+ * requests for the other stores keep being served by the remaining workers.
+ * Only the local stores of the {@link StoreRepository} get a queue of their
+ * own, the tasks for any other name share a single queue, so the number of
+ * queues is bounded by the number of stores whatever the clients send.
+ * <p/>
+ * {@link #submit(String, Runnable)} never blocks: when a store queue is full
+ * the task is rejected and it is up to the caller to apply backpressure. The
+ * callers holding rejected tasks register a listener with
+ * {@link #addCapacityListener(Runnable)} to hear when a full queue has room
+ * again.
+ */
+public class StagedRequestExecutor {
+
+    private static final Logger logger = Logger.getLogger(StagedRequestExecutor.class);
+
+    /**
+     * The name the shared queue is reported under
+     */
+    public static final String SHARED_QUEUE_NAME = "<shared>";
+
+    private final int maxQueuedPerStore;
+
+    private final int maxActivePerStore;
+
+    private final StoreRepository storeRepository;
+
+    private final Map<String, StoreQueue> storeQueues;
+
+    private final StoreQueue sharedQueue;
+
+    private final LinkedList<StoreQueue> readyQueues;
+
+    private final List<Thread> workers;
+
+    private final List<Runnable> capacityListeners;
+
+    private boolean closed;
+
+    private long numCompleted;
+
+    private long numRejected;
+
+    /**
+     * @param numThreads The number of worker threads
+     * @param maxQueuedPerStore The maximum number of tasks in a queue
+     * @param maxActivePerStore The maximum number of workers serving a queue,
+     *        or 0 for all of them
+     * @param threadNamePrefix The name prefix of the worker threads
+     * @param storeRepository The stores which get a queue of their own, or
+     *        null to put all the tasks on the shared queue
+     */
+    public StagedRequestExecutor(int numThreads,
+                                 int maxQueuedPerStore,
+                                 int maxActivePerStore,
+                                 String threadNamePrefix,
+                                 StoreRepository storeRepository) {
+        if(numThreads <= 0)
+            throw new IllegalArgumentException("Number of worker threads must be positive.");
+        if(maxQueuedPerStore <= 0)
+            throw new IllegalArgumentException("Store queue size must be positive.");
+
+        this.maxQueuedPerStore = maxQueuedPerStore;
+        this.maxActivePerStore = maxActivePerStore <= 0 ? numThreads : Math.min(maxActivePerStore,
+                                                                                  numThreads);
+        this.storeRepository = storeRepository;
+        this.storeQueues = new HashMap<String, StoreQueue>();
+        this.sharedQueue = new StoreQueue();
+        this.storeQueues.put(SHARED_QUEUE_NAME, sharedQueue);
+        this.readyQueues = new LinkedList<StoreQueue>();
+        this.workers = new ArrayList<Thread>(numThreads);
+        this.capacityListeners = new CopyOnWriteArrayList<Runnable>();
+
+        ThreadFactory threadFactory = new DaemonThreadFactory(threadNamePrefix);
+        for(int i = 0; i < numThreads; i++) {
+            Thread worker = threadFactory.newThread(new Worker());
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues the given task for execution on behalf of the given store.
+     * 
+     * @param storeName The store the task is for, which names its queue
+     * @param task The task to run
+     * @return true if the task was queued, false if the store queue is full or
+     *         the executor is closed
+     */
+    public synchronized boolean submit(String storeName, Runnable task) {
+        if(closed)
+            return false;
+
+        StoreQueue queue = getQueue(storeName);
+        if(queue.tasks.size() >= maxQueuedPerStore) {
+            queue.numRejected++;
+            numRejected++;
+            return false;
+        }
+
+        queue.tasks.add(task);
+        if(schedule(queue))
+            notify();
+        return true;
+    }
+
+    /**
+     * Registers a listener run whenever a worker takes a task off a full
+     * queue. It runs on the worker thread, outside the lock of the executor,
+     * so it must be quick.
+     * 
+     * @param listener The listener to run
+     */
+    public void addCapacityListener(Runnable listener) {
+        capacityListeners.add(listener);
+    }
+
+    public void removeCapacityListener(Runnable listener) {
+        capacityListeners.remove(listener);
+    }
+
+    /**
+     * Stops the workers. Tasks that are still queued are discarded, tasks that
+     * are running are allowed to finish.
+     */
+    public void close() {
+        synchronized(this) {
+            if(closed)
+                return;
+            closed = true;
+            for(StoreQueue queue: storeQueues.values())
+                queue.tasks.clear();
+            readyQueues.clear();
+            notifyAll();
+        }
+
+        for(Thread worker: workers) {
+            try {
+                worker.join(1000);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    public synchronized int getNumQueued() {
+        int total = 0;
+        for(StoreQueue queue: storeQueues.values())
+            total += queue.tasks.size();
+        return total;
+    }
+
+    public synchronized int getNumActive() {
+        int total = 0;
+        for(StoreQueue queue: storeQueues.values())
+            total += queue.numActive;
+        return total;
+    }
+
+    public synchronized int getQueueDepth(String storeName) {
+        StoreQueue queue = storeQueues.get(storeName);
+        return queue == null ? 0 : queue.tasks.size();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        int max = 0;
+        for(StoreQueue queue: storeQueues.values())
+            max = Math.max(max, queue.tasks.size());
+        return max;
+    }
+
+    /**
+     * Returns the queue depth, number of running and number of rejected tasks
+     * for every store seen so far and for the shared queue, keyed by store
+     * name
+     */
+    public synchronized Map<String, String> getQueueStats() {
+        Map<String, String> stats = new TreeMap<String, String>();
+        for(Map.Entry<String, StoreQueue> entry: storeQueues.entrySet()) {
+            StoreQueue queue = entry.getValue();
+            stats.put(entry.getKey(), "queued=" + queue.tasks.size() + ",active="
+                                      + queue.numActive + ",rejected=" + queue.numRejected);
+        }
+        return stats;
+    }
+
+    public synchronized long getNumCompleted() {
+        return numCompleted;
+    }
+
+    public synchronized long getNumRejected() {
+        return numRejected;
+    }
+
+    public int getNumThreads() {
+        return workers.size();
+    }
+
+    /*
+     * Returns the queue of the given store, creating it for a local store seen
+     * for the first time. Must hold the lock.
+     */
+    private StoreQueue getQueue(String storeName) {
+        StoreQueue queue = storeQueues.get(storeName);
+        if(queue != null)
+            return queue;
+        if(storeRepository == null || !storeRepository.hasLocalStore(storeName))
+            return sharedQueue;
+
+        queue = new StoreQueue();
+        storeQueues.put(storeName, queue);
+        return queue;
+    }
+
+    /*
+     * Puts the queue on the ready list if it has work and may use another
+     * worker. Returns true if the queue was added. Must hold the lock.
+     */
+    private boolean schedule(StoreQueue queue) {
+        if(queue.scheduled || queue.tasks.isEmpty() || queue.numActive >= maxActivePerStore)
+            return false;
+        queue.scheduled = true;
+        readyQueues.addLast(queue);
+        return true;
+    }
+
+    private static class StoreQueue {
+
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        private int numActive;
+
+        private long numRejected;
+
+        private boolean scheduled;
+    }
+
+    private class Worker implements Runnable {
+
+        public void run() {
+            while(true) {
+                StoreQueue queue;
+                Runnable task;
+                boolean freedCapacity;
+                synchronized(StagedRequestExecutor.this) {
+                    while(readyQueues.isEmpty() && !closed) {
+                        try {
+                            StagedRequestExecutor.this.wait();
+                        } catch(InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if(closed)
+                        return;
+
+                    queue = readyQueues.removeFirst();
+                    queue.scheduled = false;
+                    freedCapacity = queue.tasks.size() >= maxQueuedPerStore;
+                    task = queue.tasks.removeFirst();
+                    queue.numActive++;
+                    // go to the back of the line so other stores get a turn
+                    if(schedule(queue))
+                        StagedRequestExecutor.this.notify();
+                }
+
+                // the submitters rejected by the full queue may retry now
+                if(freedCapacity) {
+                    for(Runnable listener: capacityListeners)
+                        listener.run();
+                }
+
+                try {
+                    task.run();
+                } catch(Throwable t) {
+                    if(logger.isEnabledFor(Level.ERROR))
+                        logger.error(t.getMessage(), t);
+                } finally {
+                    synchronized(StagedRequestExecutor.this) {
+                        queue.numActive--;
+                        numCompleted++;
+                        if(schedule(queue))
+                            StagedRequestExecutor.this.notify();
+                    }
+                }
+            }
+        }
+    }
+}
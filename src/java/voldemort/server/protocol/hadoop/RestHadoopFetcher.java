@@ -494,17 +494,13 @@ public class RestHadoopFetcher implements FileFetcher {
             if(f2.endsWith("metadata"))
                 return 1;
 
-            // if both same, lexicographically
-            if((f1.endsWith(".index") && f2.endsWith(".index"))
-               || (f1.endsWith(".data") && f2.endsWith(".data"))) {
-                return f1.compareToIgnoreCase(f2);
-            }
-
-            if(f1.endsWith(".index")) {
-                return 1;
-            } else {
-                return -1;
-            }
+            // index files last, everything else (data, bloom filters)
+            // lexicographically, so that the builder and the fetchers agree
+            // on the order of the checksums
+            boolean isIndex1 = f1.endsWith(".index"), isIndex2 = f2.endsWith(".index");
+            if(isIndex1 != isIndex2)
+                return isIndex1 ? 1 : -1;
+            return f1.compareToIgnoreCase(f2);
         }
     }
 
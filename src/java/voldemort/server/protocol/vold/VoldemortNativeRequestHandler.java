@@ -1,5 +1,7 @@
 package voldemort.server.protocol.vold;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -12,7 +14,9 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
+import voldemort.client.protocol.vold.FrameCompression;
 import voldemort.common.VoldemortOpCode;
+import voldemort.common.nio.ByteBufferBackedDataOutputStream;
 import voldemort.common.nio.ByteBufferBackedInputStream;
 import voldemort.server.RequestRoutingType;
 import voldemort.server.StoreRepository;
@@ -29,26 +33,124 @@ import voldemort.versioning.Versioned;
 
 /**
  * Server-side request handler for voldemort native client protocol
+ * <p/>
+ * Version 4 is version 3 with multiplexing: every request is prefixed with a
+ * client chosen request id and the length of the request, and the response is
+ * prefixed with the same id and its own length. Several requests can be in
+ * flight on one connection and the client matches responses by id, so they
+ * may complete in any order. A buffer may hold several requests, the last of
+ * which may be partial; {@link #isCompleteRequest(ByteBuffer)} accepts the
+ * buffer as soon as the first one is complete.
+ * <p/>
+ * A version 4 connection may have negotiated {@link FrameCompression}, in
+ * which case requests may arrive compressed and large responses are sent
+ * compressed. A connection sending a frame larger than
+ * {@link #MAX_FRAME_SIZE} is closed.
  * 
  * 
  */
 public class VoldemortNativeRequestHandler extends AbstractRequestHandler implements RequestHandler {
 
+    /**
+     * The largest version 4 request payload accepted, in bytes
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
     private final Logger logger = Logger.getLogger(VoldemortNativeRequestHandler.class);
 
     private final int protocolVersion;
 
+    private FrameCompression frameCompression;
+
     public VoldemortNativeRequestHandler(ErrorCodeMapper errorMapper,
                                          StoreRepository repository,
                                          int protocolVersion) {
         super(errorMapper, repository);
-        if(protocolVersion < 0 || protocolVersion > 3)
+        if(protocolVersion < 0 || protocolVersion > 4)
             throw new IllegalArgumentException("Unknown protocol version: " + protocolVersion);
         this.protocolVersion = protocolVersion;
     }
 
+    /**
+     * Sets the frame compression negotiated for the connection of this
+     * handler.
+     */
+    public void setFrameCompression(FrameCompression frameCompression) {
+        if(protocolVersion < 4)
+            throw new IllegalArgumentException("Frame compression needs protocol version 4.");
+        this.frameCompression = frameCompression;
+    }
+
+    public FrameCompression getFrameCompression() {
+        return frameCompression;
+    }
+
     public StreamRequestHandler handleRequest(DataInputStream inputStream,
                                               DataOutputStream outputStream) throws IOException {
+        if(protocolVersion > 3)
+            return handleMultiplexedRequest(inputStream, outputStream);
+
+        return handleRequestInternal(inputStream, outputStream);
+    }
+
+    private StreamRequestHandler handleMultiplexedRequest(DataInputStream inputStream,
+                                                          DataOutputStream outputStream)
+            throws IOException {
+        int requestId = inputStream.readInt();
+        int length = inputStream.readInt();
+        int payloadLength = FrameCompression.getPayloadLength(length);
+        if(payloadLength > MAX_FRAME_SIZE)
+            throw new IOException("Request of " + payloadLength
+                                  + " bytes is larger than the maximum frame size of "
+                                  + MAX_FRAME_SIZE + " bytes.");
+        byte[] request = new byte[payloadLength];
+        inputStream.readFully(request);
+
+        if(FrameCompression.isCompressed(length)) {
+            if(frameCompression == null)
+                throw new IOException("Compressed request on a connection without compression.");
+            request = frameCompression.decompress(request);
+        }
+        DataInputStream requestStream = new DataInputStream(new ByteArrayInputStream(request));
+
+        if(frameCompression == null && outputStream instanceof ByteBufferBackedDataOutputStream) {
+            // Reserve the response length and fill it in once the response is
+            // written, so large values are still sent from their own arrays
+            ByteBufferBackedDataOutputStream bufferStream = (ByteBufferBackedDataOutputStream) outputStream;
+            bufferStream.writeInt(requestId);
+            int lengthPosition = bufferStream.getBufferPosition();
+            bufferStream.writeInt(0);
+            int start = bufferStream.size();
+            handleRequestInternal(requestStream, bufferStream);
+            bufferStream.writeIntAt(lengthPosition, bufferStream.size() - start);
+            bufferStream.flush();
+            return null;
+        }
+
+        // Compressing needs the whole response, and plain streams cannot go
+        // back to the length, so buffer it
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        handleRequestInternal(requestStream, new DataOutputStream(response));
+
+        byte[] compressed = null;
+        if(frameCompression != null && frameCompression.shouldCompress(response.size()))
+            compressed = frameCompression.compress(response.toByteArray());
+
+        outputStream.writeInt(requestId);
+        if(compressed != null) {
+            outputStream.writeInt(compressed.length | FrameCompression.COMPRESSED_FLAG);
+            outputStream.write(compressed);
+        } else {
+            outputStream.writeInt(response.size());
+            response.writeTo(outputStream);
+        }
+        outputStream.flush();
+        return null;
+    }
+
+    private StreamRequestHandler handleRequestInternal(DataInputStream inputStream,
+                                                       DataOutputStream outputStream)
+            throws IOException {
         byte opCode = inputStream.readByte();
         String storeName = inputStream.readUTF();
         RequestRoutingType routingType = getRoutingType(inputStream);
@@ -68,6 +170,9 @@ public class VoldemortNativeRequestHandler extends AbstractRequestHandler implem
                 case VoldemortOpCode.PUT_OP_CODE:
                     handlePut(inputStream, outputStream, store);
                     break;
+                case VoldemortOpCode.PUT_ALL_OP_CODE:
+                    handlePutAll(inputStream, outputStream, store);
+                    break;
                 case VoldemortOpCode.DELETE_OP_CODE:
                     handleDelete(inputStream, outputStream, store);
                     break;
@@ -148,6 +253,20 @@ public class VoldemortNativeRequestHandler extends AbstractRequestHandler implem
      */
 
     public boolean isCompleteRequest(final ByteBuffer buffer) {
+        if(protocolVersion > 3) {
+            // The request length is framed, so there is nothing to mimic
+            if(buffer.remaining() < 8)
+                return false;
+
+            int requestSize = FrameCompression.getPayloadLength(buffer.getInt(buffer.position() + 4));
+            if(requestSize > MAX_FRAME_SIZE)
+                // the connection is closed rather than buffering the frame
+                throw new VoldemortException("Request of " + requestSize
+                                             + " bytes is larger than the maximum frame size of "
+                                             + MAX_FRAME_SIZE + " bytes.");
+            return buffer.remaining() - 8 >= requestSize;
+        }
+
         DataInputStream inputStream = new DataInputStream(new ByteBufferBackedInputStream(buffer));
 
         try {
@@ -226,6 +345,26 @@ public class VoldemortNativeRequestHandler extends AbstractRequestHandler implem
                     }
                     break;
                 }
+                case VoldemortOpCode.PUT_ALL_OP_CODE: {
+                    int numEntries = inputStream.readInt();
+
+                    for(int i = 0; i < numEntries; i++) {
+                        readKey(inputStream);
+
+                        int dataSize = inputStream.readInt();
+                        int newPosition = buffer.position() + dataSize;
+
+                        if(newPosition > buffer.limit() || newPosition < 0)
+                            throw new Exception("Data inconsistency on put all - dataSize: "
+                                                + dataSize + ", position: " + buffer.position()
+                                                + ", limit: " + buffer.limit());
+
+                        buffer.position(newPosition);
+                        if(inputStream.readBoolean())
+                            readTransforms(inputStream);
+                    }
+                    break;
+                }
                 case VoldemortOpCode.DELETE_OP_CODE: {
                     readKey(inputStream);
 
@@ -285,7 +424,12 @@ public class VoldemortNativeRequestHandler extends AbstractRequestHandler implem
             byte[] value = v.getValue();
             outputStream.writeInt(clock.length + value.length);
             outputStream.write(clock);
-            outputStream.write(value);
+            // stored values are never modified in place, so large ones can be
+            // sent without copying them into the response buffer
+            if(outputStream instanceof ByteBufferBackedDataOutputStream)
+                ((ByteBufferBackedDataOutputStream) outputStream).writeShared(value);
+            else
+                outputStream.write(value);
         }
     }
 
@@ -460,6 +604,60 @@ public class VoldemortNativeRequestHandler extends AbstractRequestHandler implem
         }
     }
 
+    private void handlePutAll(DataInputStream inputStream,
+                              DataOutputStream outputStream,
+                              Store<ByteArray, byte[], byte[]> store) throws IOException {
+        long startTimeMs = -1;
+        long startTimeNs = -1;
+
+        if(logger.isDebugEnabled()) {
+            startTimeMs = System.currentTimeMillis();
+            startTimeNs = System.nanoTime();
+        }
+
+        int numEntries = inputStream.readInt();
+        Map<ByteArray, Versioned<byte[]>> entries = new HashMap<ByteArray, Versioned<byte[]>>(numEntries);
+        Map<ByteArray, byte[]> transforms = null;
+        for(int i = 0; i < numEntries; i++) {
+            ByteArray key = readKey(inputStream);
+            byte[] bytes = new byte[inputStream.readInt()];
+            ByteUtils.read(inputStream, bytes);
+            VectorClock clock = new VectorClock(bytes);
+            byte[] value = ByteUtils.copy(bytes, clock.sizeInBytes(), bytes.length);
+            entries.put(key, new Versioned<byte[]>(value, clock));
+
+            if(inputStream.readBoolean()) {
+                if(transforms == null)
+                    transforms = new HashMap<ByteArray, byte[]>();
+                transforms.put(key, readTransforms(inputStream));
+            }
+        }
+
+        Map<ByteArray, VoldemortException> failures = null;
+        try {
+            failures = store.putAll(entries, transforms);
+            outputStream.writeShort(0);
+        } catch(VoldemortException e) {
+            writeException(outputStream, e);
+            return;
+        }
+
+        outputStream.writeInt(failures.size());
+        for(Map.Entry<ByteArray, VoldemortException> failure: failures.entrySet()) {
+            outputStream.writeInt(failure.getKey().length());
+            outputStream.write(failure.getKey().get());
+            writeException(outputStream, failure.getValue());
+        }
+
+        if(logger.isDebugEnabled()) {
+            logger.debug("PUTALL started at: " + startTimeMs + " handlerRef: "
+                         + System.identityHashCode(inputStream) + " numKeys: " + numEntries
+                         + " numFailures: " + failures.size() + " "
+                         + (System.nanoTime() - startTimeNs) + " ns, time: "
+                         + System.currentTimeMillis());
+        }
+    }
+
     private void handleDelete(DataInputStream inputStream,
                               DataOutputStream outputStream,
                               Store<ByteArray, byte[], byte[]> store) throws IOException {
@@ -6,8 +6,6 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
 import java.util.Map;
 
@@ -15,10 +13,12 @@ import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
 import voldemort.client.protocol.RequestFormatType;
+import voldemort.client.protocol.vold.FrameCompression;
 import voldemort.server.protocol.RequestHandler;
 import voldemort.server.protocol.RequestHandlerFactory;
 import voldemort.server.protocol.StreamRequestHandler;
 import voldemort.server.protocol.StreamRequestHandler.StreamRequestHandlerState;
+import voldemort.server.protocol.vold.VoldemortNativeRequestHandler;
 import voldemort.utils.ByteUtils;
 
 /**
@@ -39,6 +39,7 @@ public class SocketServerSession implements Runnable {
     private final Socket socket;
     private final RequestHandlerFactory handlerFactory;
     private volatile boolean isClosed = false;
+    private FrameCompression frameCompression;
 
     public SocketServerSession(Map<Long, SocketServerSession> activeSessions,
                                Socket socket,
@@ -68,6 +69,8 @@ public class SocketServerSession implements Runnable {
 
             RequestFormatType protocol = negotiateProtocol(inputStream, outputStream);
             RequestHandler handler = handlerFactory.getRequestHandler(protocol);
+            if(frameCompression != null && handler instanceof VoldemortNativeRequestHandler)
+                ((VoldemortNativeRequestHandler) handler).setFrameCompression(frameCompression);
             logger.info("Client " + socket.getRemoteSocketAddress()
                         + " connected successfully with protocol " + protocol.getCode());
 
@@ -125,7 +128,7 @@ public class SocketServerSession implements Runnable {
         }
     }
 
-    private RequestFormatType negotiateProtocol(InputStream input, OutputStream output)
+    private RequestFormatType negotiateProtocol(DataInputStream input, DataOutputStream output)
             throws IOException {
         input.mark(3);
         byte[] protoBytes = new byte[3];
@@ -133,6 +136,15 @@ public class SocketServerSession implements Runnable {
         RequestFormatType requestFormat;
         try {
             String proto = ByteUtils.getString(protoBytes, "UTF-8");
+
+            if(proto.equals(FrameCompression.NEGOTIATION_CODE)) {
+                frameCompression = FrameCompression.readProposal(input);
+                output.write(ByteUtils.getBytes("ok", "UTF-8"));
+                FrameCompression.writeAcceptance(output, frameCompression);
+                output.flush();
+                return RequestFormatType.VOLDEMORT_V4;
+            }
+
             requestFormat = RequestFormatType.fromCode(proto);
             output.write(ByteUtils.getBytes("ok", "UTF-8"));
             output.flush();
@@ -74,6 +74,7 @@ import voldemort.store.configuration.FileBackedCachingStorageConfiguration;
 import voldemort.store.invalidmetadata.InvalidMetadataCheckingStore;
 import voldemort.store.logging.LoggingStore;
 import voldemort.store.memory.InMemoryStorageConfiguration;
+import voldemort.store.memory.RowCachingStorageEngine;
 import voldemort.store.metadata.MetadataStore;
 import voldemort.store.metadata.MetadataStoreListener;
 import voldemort.store.nonblockingstore.NonblockingStore;
@@ -626,8 +627,13 @@ public class StorageService extends AbstractService {
         final RoutingStrategy routingStrategy = new RoutingStrategyFactory().updateRoutingStrategy(storeDef,
                                                                                                    metadata.getCluster());
 
-        final StorageEngine<ByteArray, byte[], byte[]> engine = config.getStore(storeDef,
-                                                                                routingStrategy);
+        StorageEngine<ByteArray, byte[], byte[]> storageEngine = config.getStore(storeDef,
+                                                                                 routingStrategy);
+        boolean isView = storeDef.getType().compareTo(ViewStorageConfiguration.TYPE_NAME) == 0;
+        if(!isReadOnly && !isView
+           && voldemortConfig.getRowCacheStores().contains(storeDef.getName()))
+            storageEngine = createRowCache(storageEngine);
+        final StorageEngine<ByteArray, byte[], byte[]> engine = storageEngine;
         // Update the routing strategy + add listener to metadata
         if(storeDef.getType().compareTo(ReadOnlyStorageConfiguration.TYPE_NAME) == 0) {
             metadata.addMetadataStoreListener(storeDef.getName(), new MetadataStoreListener() {
@@ -657,6 +663,26 @@ public class StorageService extends AbstractService {
         }
     }
 
+    /**
+     * Caches the decoded rows of the engine, which is registered in its place
+     * so every write to the store goes through the cache
+     */
+    private StorageEngine<ByteArray, byte[], byte[]> createRowCache(StorageEngine<ByteArray, byte[], byte[]> engine) {
+        logger.info("Caching the rows of store '" + engine.getName() + "' in up to "
+                    + voldemortConfig.getRowCacheMaxBytes() + " bytes.");
+        RowCachingStorageEngine rowCache = new RowCachingStorageEngine(engine,
+                                                                       voldemortConfig.getRowCacheMaxBytes(),
+                                                                       voldemortConfig.getRowCacheSegments());
+        if(voldemortConfig.isJmxEnabled())
+            JmxUtils.registerMbean(rowCache, getRowCacheObjectName(engine.getName()));
+        return rowCache;
+    }
+
+    private ObjectName getRowCacheObjectName(String storeName) {
+        return JmxUtils.createObjectName(JmxUtils.getPackageName(RowCachingStorageEngine.class),
+                                         storeName + "-row-cache");
+    }
+
     /**
      * Unregister and remove the engine from the storage repository. This is
      * called during deletion of stores and if there are exceptions
@@ -727,6 +753,9 @@ public class StorageService extends AbstractService {
             }
         }
 
+        if(engine instanceof RowCachingStorageEngine && voldemortConfig.isJmxEnabled())
+            JmxUtils.unregisterMbean(getRowCacheObjectName(storeName));
+
         storeRepository.removeStorageEngine(storeName);
         if(truncate)
             engine.truncate();
@@ -71,6 +71,13 @@ public class DelegatingStore<K, V, T> extends AbstractStore<K, V, T> {
         innerStore.put(key, value, transform);
     }
 
+    @Override
+    public Map<K, VoldemortException> putAll(Map<K, Versioned<V>> entries, Map<K, T> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(entries.keySet());
+        return innerStore.putAll(entries, transforms);
+    }
+
     public Store<K, V, T> getInnerStore() {
         return innerStore;
     }
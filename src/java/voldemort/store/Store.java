@@ -67,6 +67,21 @@ public interface Store<K, V, T> {
      */
     public void put(K key, Versioned<V> value, T transforms) throws VoldemortException;
 
+    /**
+     * Associate each value with its key and version in this store. Every entry
+     * is put as if by {@link #put(Object, Versioned, Object)}, so a failure for
+     * one key does not prevent the others from being written.
+     * 
+     * @param entries The keys to use, with the values to store and their
+     *        versions
+     * @param transforms The transforms to apply per key, may be null
+     * @return The keys that could not be written, mapped to the reason. Empty
+     *         if every entry was written.
+     * @throws VoldemortException If the request as a whole failed
+     */
+    public Map<K, VoldemortException> putAll(Map<K, Versioned<V>> entries, Map<K, T> transforms)
+            throws VoldemortException;
+
     /**
      * Delete all entries prior to the given version
      * 
@@ -27,6 +27,7 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import voldemort.VoldemortException;
 import voldemort.cluster.Node;
 import voldemort.routing.RoutingStrategy;
 import voldemort.serialization.Serializer;
@@ -91,6 +92,25 @@ public class StoreUtils {
         return result;
     }
 
+    /**
+     * Implements putAll by delegating to put.
+     */
+    public static <K, V, T> Map<K, VoldemortException> putAll(Store<K, V, T> storageEngine,
+                                                             Map<K, Versioned<V>> entries,
+                                                             Map<K, T> transforms) {
+        Map<K, VoldemortException> failures = Maps.newHashMap();
+        for(Map.Entry<K, Versioned<V>> entry: entries.entrySet()) {
+            try {
+                storageEngine.put(entry.getKey(),
+                                  entry.getValue(),
+                                  transforms != null ? transforms.get(entry.getKey()) : null);
+            } catch(VoldemortException e) {
+                failures.put(entry.getKey(), e);
+            }
+        }
+        return failures;
+    }
+
     /**
      * Returns an empty map with expected size matching the iterable size if
      * it's of type Collection. Otherwise, an empty map with the default size is
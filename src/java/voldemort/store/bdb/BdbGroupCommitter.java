@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.bdb;
+
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.store.PersistenceFailureException;
+import voldemort.utils.Utils;
+
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.Environment;
+
+/**
+ * Makes the commits of concurrent writers durable with shared log flushes.
+ * <p/>
+ * A writer commits its transaction without syncing and then calls
+ * {@link #awaitDurable()}. If no flush is running, the writer becomes the
+ * leader and syncs the log for every transaction committed so far. Otherwise
+ * it waits for the running flush and, unless that flush already covered its
+ * commit, takes part in the next one. Under load one fsync thereby
+ * acknowledges a whole group of writes, while every writer still returns only
+ * once its own commit is on disk.
+ */
+@Threadsafe
+public class BdbGroupCommitter {
+
+    private final Environment environment;
+
+    // commits that asked to be made durable
+    private long numCommits;
+
+    // commits covered by a completed flush
+    private long numDurable;
+
+    private long numFlushes;
+
+    private boolean flushing;
+
+    public BdbGroupCommitter(Environment environment) {
+        this.environment = Utils.notNull(environment);
+    }
+
+    /**
+     * Waits until the log is synced up to a transaction the calling thread
+     * has just committed without sync.
+     *
+     * @throws PersistenceFailureException if the thread is interrupted
+     * @throws DatabaseException if the flush fails
+     */
+    public void awaitDurable() throws DatabaseException {
+        long target;
+        synchronized(this) {
+            long commit = ++numCommits;
+            while(flushing && numDurable < commit) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PersistenceFailureException("Interrupted waiting for the log flush",
+                                                          e);
+                }
+            }
+
+            if(numDurable >= commit)
+                return;
+
+            // Lead a flush covering everything committed up to now
+            flushing = true;
+            target = numCommits;
+        }
+
+        boolean flushed = false;
+        try {
+            environment.flushLog(true);
+            flushed = true;
+        } finally {
+            synchronized(this) {
+                flushing = false;
+                if(flushed) {
+                    numDurable = target;
+                    numFlushes++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of commits made durable so far
+     */
+    public synchronized long getNumCommits() {
+        return numDurable;
+    }
+
+    /**
+     * Returns the number of log flushes done so far
+     */
+    public synchronized long getNumFlushes() {
+        return numFlushes;
+    }
+}
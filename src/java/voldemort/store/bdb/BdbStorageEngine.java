@@ -19,6 +19,8 @@ package voldemort.store.bdb;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +31,7 @@ import org.apache.commons.codec.binary.Hex;
 import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
+import voldemort.annotations.jmx.JmxGetter;
 import voldemort.annotations.jmx.JmxOperation;
 import voldemort.server.protocol.admin.AsyncOperationStatus;
 import voldemort.server.storage.KeyLockHandle;
@@ -56,6 +59,7 @@ import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.DatabaseStats;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.EnvironmentMutableConfig;
@@ -66,6 +70,11 @@ import com.sleepycat.je.Transaction;
 
 /**
  * A store that uses BDB for persistence
+ * <p/>
+ * With group commit enabled, writes commit without syncing and then wait on a
+ * {@link BdbGroupCommitter}, so concurrent writes to the store share log
+ * flushes. Every write still checks the versions of its key in its own
+ * transaction and returns only after its commit is durable.
  * 
  */
 public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], byte[]> implements
@@ -85,6 +94,15 @@ public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], b
     protected final boolean checkpointerOffForBatchWrites;
     private volatile int numOutstandingBatchWriteJobs = 0;
 
+    // the order of the keys in the database, by unsigned bytes
+    private static final Comparator<ByteArray> KEY_COMPARATOR = new Comparator<ByteArray>() {
+
+        public int compare(ByteArray key1, ByteArray key2) {
+            return ByteUtils.compare(key1.get(), key2.get());
+        }
+    };
+    private final BdbGroupCommitter groupCommitter;
+
     public BdbStorageEngine(String name,
                             Environment environment,
                             Database database,
@@ -100,6 +118,7 @@ public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], b
                                                            config.getExposeSpaceUtil());
         this.minimizeScanImpact = config.getMinimizeScanImpact();
         this.checkpointerOffForBatchWrites = config.isCheckpointerOffForBatchWrites();
+        this.groupCommitter = config.isGroupCommit() ? new BdbGroupCommitter(environment) : null;
     }
 
     @Override
@@ -265,21 +284,45 @@ public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], b
         }
     }
 
+    /**
+     * Looks the keys up in sorted order with a single cursor, so keys close
+     * to each other share the descent of the B-tree and the cached bottom
+     * internal nodes, rather than searching the tree from the root for every
+     * key.
+     */
     @Override
     public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys,
                                                           Map<ByteArray, byte[]> transforms)
             throws VoldemortException {
         StoreUtils.assertValidKeys(keys);
-        Map<ByteArray, List<Versioned<byte[]>>> results = null;
+        Map<ByteArray, List<Versioned<byte[]>>> results = StoreUtils.newEmptyHashMap(keys);
         long startTimeNs = -1;
 
         if(logger.isTraceEnabled())
             startTimeNs = System.nanoTime();
+
+        List<ByteArray> sortedKeys = new ArrayList<ByteArray>();
+        for(ByteArray key: keys)
+            sortedKeys.add(key);
+        Collections.sort(sortedKeys, KEY_COMPARATOR);
+
+        Cursor cursor = null;
         try {
-            results = StoreUtils.getAll(this, keys, transforms);
-        } catch(PersistenceFailureException pfe) {
-            throw pfe;
+            cursor = getBdbDatabase().openCursor(null, null);
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            for(ByteArray key: sortedKeys) {
+                keyEntry.setData(key.get());
+                OperationStatus status = cursor.getSearchKey(keyEntry, valueEntry, readLockMode);
+                if(OperationStatus.SUCCESS == status)
+                    results.put(key, StoreBinaryFormat.fromByteArray(valueEntry.getData()));
+            }
+        } catch(DatabaseException e) {
+            this.bdbEnvironmentStats.reportException(e);
+            logger.error(e);
+            throw new PersistenceFailureException(e);
         } finally {
+            attemptClose(cursor);
             if(logger.isTraceEnabled()) {
                 String keyStr = "";
                 for(ByteArray key: keys)
@@ -303,58 +346,70 @@ public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], b
             startTimeNs = System.nanoTime();
 
         StoreUtils.assertValidKey(key);
-        DatabaseEntry keyEntry = new DatabaseEntry(key.get());
-        DatabaseEntry valueEntry = new DatabaseEntry();
 
         boolean succeeded = false;
         Transaction transaction = null;
-        List<Versioned<byte[]>> vals = null;
 
         try {
             transaction = environment.beginTransaction(null, null);
+            putInTransaction(transaction, key, value);
+            succeeded = true;
 
-            // do a get for the existing values
-            OperationStatus status = getBdbDatabase().get(transaction,
-                                                          keyEntry,
-                                                          valueEntry,
-                                                          LockMode.RMW);
-            if(OperationStatus.SUCCESS == status) {
-                // update
-                vals = StoreBinaryFormat.fromByteArray(valueEntry.getData());
-                // compare vector clocks and throw out old ones, for updates
-
-                Iterator<Versioned<byte[]>> iter = vals.iterator();
-                while(iter.hasNext()) {
-                    Versioned<byte[]> curr = iter.next();
-                    Occurred occurred = value.getVersion().compare(curr.getVersion());
-                    if(occurred == Occurred.BEFORE)
-                        throw new ObsoleteVersionException("Key "
-                                                           + new String(hexCodec.encode(key.get()))
-                                                           + " "
-                                                           + value.getVersion().toString()
-                                                           + " is obsolete, it is no greater than the current version of "
-                                                           + curr.getVersion().toString() + ".");
-                    else if(occurred == Occurred.AFTER)
-                        iter.remove();
-                }
-            } else {
-                // insert
-                vals = new ArrayList<Versioned<byte[]>>(1);
+        } catch(DatabaseException e) {
+            this.bdbEnvironmentStats.reportException(e);
+            logger.error("Error in put for store " + this.getName(), e);
+            throw new PersistenceFailureException(e);
+        } finally {
+            if(succeeded)
+                attemptCommit(transaction);
+            else
+                attemptAbort(transaction);
+            if(logger.isTraceEnabled()) {
+                logger.trace("Completed PUT (" + getName() + ") to key " + key + " (keyRef: "
+                             + System.identityHashCode(key) + " value " + value + " in "
+                             + (System.nanoTime() - startTimeNs) + " ns at "
+                             + System.currentTimeMillis());
             }
+        }
+    }
 
-            // update the new value
-            vals.add(value);
+    /**
+     * Writes all the entries in a single transaction, so the batch costs one
+     * commit (and at most one log sync) instead of one per key. Entries with an
+     * obsolete version are skipped and reported, the others are written. Keys
+     * are locked in sorted order so that concurrent batches cannot deadlock.
+     */
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws PersistenceFailureException {
+        long startTimeNs = -1;
 
-            valueEntry.setData(StoreBinaryFormat.toByteArray(vals));
-            status = getBdbDatabase().put(transaction, keyEntry, valueEntry);
+        if(logger.isTraceEnabled())
+            startTimeNs = System.nanoTime();
 
-            if(status != OperationStatus.SUCCESS)
-                throw new PersistenceFailureException("Put operation failed with status: " + status);
+        StoreUtils.assertValidKeys(entries.keySet());
+        List<ByteArray> keys = new ArrayList<ByteArray>(entries.keySet());
+        Collections.sort(keys, KEY_COMPARATOR);
+
+        Map<ByteArray, VoldemortException> failures = new HashMap<ByteArray, VoldemortException>();
+        boolean succeeded = false;
+        Transaction transaction = null;
+
+        try {
+            transaction = environment.beginTransaction(null, null);
+            for(ByteArray key: keys) {
+                try {
+                    putInTransaction(transaction, key, entries.get(key));
+                } catch(ObsoleteVersionException e) {
+                    failures.put(key, e);
+                }
+            }
             succeeded = true;
 
         } catch(DatabaseException e) {
             this.bdbEnvironmentStats.reportException(e);
-            logger.error("Error in put for store " + this.getName(), e);
+            logger.error("Error in putAll for store " + this.getName(), e);
             throw new PersistenceFailureException(e);
         } finally {
             if(succeeded)
@@ -362,12 +417,63 @@ public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], b
             else
                 attemptAbort(transaction);
             if(logger.isTraceEnabled()) {
-                logger.trace("Completed PUT (" + getName() + ") to key " + key + " (keyRef: "
-                             + System.identityHashCode(key) + " value " + value + " in "
+                logger.trace("Completed PUTALL (" + getName() + ") of " + keys.size()
+                             + " keys with " + failures.size() + " obsolete in "
                              + (System.nanoTime() - startTimeNs) + " ns at "
                              + System.currentTimeMillis());
             }
         }
+        return failures;
+    }
+
+    /*
+     * Reads the existing versions of the key under a write lock, drops the
+     * ones the new value supersedes and writes the result back, as part of the
+     * given transaction.
+     */
+    private void putInTransaction(Transaction transaction, ByteArray key, Versioned<byte[]> value)
+            throws DatabaseException {
+        DatabaseEntry keyEntry = new DatabaseEntry(key.get());
+        DatabaseEntry valueEntry = new DatabaseEntry();
+        List<Versioned<byte[]>> vals = null;
+
+        // do a get for the existing values
+        OperationStatus status = getBdbDatabase().get(transaction,
+                                                      keyEntry,
+                                                      valueEntry,
+                                                      LockMode.RMW);
+        if(OperationStatus.SUCCESS == status) {
+            // update
+            vals = StoreBinaryFormat.fromByteArray(valueEntry.getData());
+            // compare vector clocks and throw out old ones, for updates
+
+            Iterator<Versioned<byte[]>> iter = vals.iterator();
+            while(iter.hasNext()) {
+                Versioned<byte[]> curr = iter.next();
+                Occurred occurred = value.getVersion().compare(curr.getVersion());
+                if(occurred == Occurred.BEFORE)
+                    throw new ObsoleteVersionException("Key "
+                                                       + new String(hexCodec.encode(key.get()))
+                                                       + " "
+                                                       + value.getVersion().toString()
+                                                       + " is obsolete, it is no greater than the current version of "
+                                                       + curr.getVersion().toString() + ".");
+                else if(occurred == Occurred.AFTER)
+                    iter.remove();
+            }
+        } else {
+            // insert
+            vals = new ArrayList<Versioned<byte[]>>(1);
+        }
+
+        // update the new value
+        vals.add(value);
+
+        valueEntry.setData(StoreBinaryFormat.toByteArray(vals));
+        status = getBdbDatabase().put(transaction, keyEntry, valueEntry);
+
+        if(status != OperationStatus.SUCCESS)
+            throw new PersistenceFailureException("Put operation failed with status: " + status);
     }
 
     @Override
@@ -473,6 +579,16 @@ public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], b
         }
     }
 
+    private void attemptClose(Cursor cursor) {
+        try {
+            if(cursor != null)
+                cursor.close();
+        } catch(DatabaseException e) {
+            this.bdbEnvironmentStats.reportException(e);
+            logger.error("Cursor close failed!", e);
+        }
+    }
+
     private void attemptAbort(Transaction transaction) {
         try {
             if(transaction != null)
@@ -484,8 +600,13 @@ public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], b
     }
 
     private void attemptCommit(Transaction transaction) {
+        if(transaction == null)
+            return;
+
         try {
-            if(transaction != null)
+            if(groupCommitter != null)
+                transaction.commit(Durability.COMMIT_NO_SYNC);
+            else
                 transaction.commit();
         } catch(DatabaseException e) {
             this.bdbEnvironmentStats.reportException(e);
@@ -493,6 +614,26 @@ public class BdbStorageEngine extends AbstractStorageEngine<ByteArray, byte[], b
             attemptAbort(transaction);
             throw new PersistenceFailureException(e);
         }
+
+        if(groupCommitter != null) {
+            try {
+                groupCommitter.awaitDurable();
+            } catch(DatabaseException e) {
+                this.bdbEnvironmentStats.reportException(e);
+                logger.error("Log flush failed!", e);
+                throw new PersistenceFailureException(e);
+            }
+        }
+    }
+
+    @JmxGetter(name = "groupCommitWrites", description = "Number of writes made durable by group commit.")
+    public long getGroupCommitWrites() {
+        return groupCommitter == null ? 0 : groupCommitter.getNumCommits();
+    }
+
+    @JmxGetter(name = "groupCommitFlushes", description = "Number of log flushes done by group commit.")
+    public long getGroupCommitFlushes() {
+        return groupCommitter == null ? 0 : groupCommitter.getNumFlushes();
     }
 
     public DatabaseStats getStats(boolean setFast) {
@@ -17,11 +17,14 @@
 package voldemort.store.bdb;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import org.apache.log4j.Logger;
 
+import voldemort.VoldemortException;
 import voldemort.routing.RoutingStrategy;
 import voldemort.server.storage.KeyLockHandle;
 import voldemort.store.PersistenceFailureException;
@@ -105,12 +108,50 @@ public class PartitionPrefixedBdbStorageEngine extends BdbStorageEngine {
         return super.get(validateAndConstructKey(key), transforms);
     }
 
+    /**
+     * Prefixed keys sort by partition first, so the cursor walk of the base
+     * getAll visits the keys of one partition together.
+     */
+    @Override
+    public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys,
+                                                          Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(keys);
+        Map<ByteArray, ByteArray> prefixedToKey = new HashMap<ByteArray, ByteArray>();
+        for(ByteArray key: keys)
+            prefixedToKey.put(validateAndConstructKey(key), key);
+        Map<ByteArray, List<Versioned<byte[]>>> results = StoreUtils.newEmptyHashMap(keys);
+        for(Map.Entry<ByteArray, List<Versioned<byte[]>>> result: super.getAll(prefixedToKey.keySet(),
+                                                                                 null)
+                                                                          .entrySet())
+            results.put(prefixedToKey.get(result.getKey()), result.getValue());
+        return results;
+    }
+
     @Override
     public void put(ByteArray key, Versioned<byte[]> value, byte[] transforms)
             throws PersistenceFailureException {
         super.put(validateAndConstructKey(key), value, transforms);
     }
 
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws PersistenceFailureException {
+        Map<ByteArray, ByteArray> prefixedToKey = new HashMap<ByteArray, ByteArray>(entries.size());
+        Map<ByteArray, Versioned<byte[]>> prefixedEntries = new HashMap<ByteArray, Versioned<byte[]>>(entries.size());
+        for(Map.Entry<ByteArray, Versioned<byte[]>> entry: entries.entrySet()) {
+            ByteArray prefixedKey = validateAndConstructKey(entry.getKey());
+            prefixedToKey.put(prefixedKey, entry.getKey());
+            prefixedEntries.put(prefixedKey, entry.getValue());
+        }
+        Map<ByteArray, VoldemortException> failures = new HashMap<ByteArray, VoldemortException>();
+        for(Map.Entry<ByteArray, VoldemortException> failure: super.putAll(prefixedEntries, null)
+                                                                   .entrySet())
+            failures.put(prefixedToKey.get(failure.getKey()), failure.getValue());
+        return failures;
+    }
+
     @Override
     public boolean delete(ByteArray key, Version version) throws PersistenceFailureException {
         return super.delete(validateAndConstructKey(key), version);
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.bitcask;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.routing.RoutingStrategy;
+import voldemort.server.VoldemortConfig;
+import voldemort.store.StorageConfiguration;
+import voldemort.store.StorageEngine;
+import voldemort.store.StoreDefinition;
+import voldemort.utils.ByteArray;
+import voldemort.utils.DaemonThreadFactory;
+
+/**
+ * Creates {@link BitcaskStorageEngine}s, each in its own directory under the
+ * bitcask data directory, and compacts them periodically on a background
+ * thread.
+ * 
+ */
+public class BitcaskStorageConfiguration implements StorageConfiguration {
+
+    public static final String TYPE_NAME = "bitcask";
+
+    private static final Logger logger = Logger.getLogger(BitcaskStorageConfiguration.class);
+
+    private final File dataDirectory;
+    private final long maxSegmentSize;
+    private final boolean fsyncWrites;
+    private final double minGarbageRatio;
+    private final long compactionBytesPerSec;
+    private final long compactionIntervalMs;
+    private final Map<String, BitcaskStorageEngine> stores = new ConcurrentHashMap<String, BitcaskStorageEngine>();
+    private ScheduledExecutorService compactionScheduler = null;
+
+    public BitcaskStorageConfiguration(VoldemortConfig config) {
+        this.dataDirectory = new File(config.getBitcaskDataDirectory());
+        this.maxSegmentSize = config.getBitcaskMaxSegmentSize();
+        this.fsyncWrites = config.isBitcaskFsyncWrites();
+        this.minGarbageRatio = config.getBitcaskCompactionMinGarbageRatio();
+        this.compactionBytesPerSec = config.getBitcaskCompactionBytesPerSec();
+        this.compactionIntervalMs = config.getBitcaskCompactionIntervalMs();
+    }
+
+    public synchronized StorageEngine<ByteArray, byte[], byte[]> getStore(StoreDefinition storeDef,
+                                                                          RoutingStrategy strategy) {
+        BitcaskStorageEngine store = new BitcaskStorageEngine(storeDef.getName(),
+                                                              new File(dataDirectory,
+                                                                       storeDef.getName()),
+                                                              strategy,
+                                                              maxSegmentSize,
+                                                              fsyncWrites,
+                                                              minGarbageRatio,
+                                                              compactionBytesPerSec);
+        stores.put(storeDef.getName(), store);
+        if(compactionScheduler == null && compactionIntervalMs > 0) {
+            compactionScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("voldemort-bitcask-compaction-"));
+            compactionScheduler.scheduleWithFixedDelay(new Runnable() {
+
+                public void run() {
+                    compactStores();
+                }
+            }, compactionIntervalMs, compactionIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        return store;
+    }
+
+    private void compactStores() {
+        for(BitcaskStorageEngine store: stores.values()) {
+            try {
+                store.compact();
+            } catch(Exception e) {
+                logger.error("Compaction of bitcask store " + store.getName() + " failed", e);
+            }
+        }
+    }
+
+    public String getType() {
+        return TYPE_NAME;
+    }
+
+    public synchronized void close() {
+        if(compactionScheduler != null)
+            compactionScheduler.shutdownNow();
+        stores.clear();
+    }
+
+    public void update(StoreDefinition storeDef) {
+        throw new VoldemortException("Storage config updates not permitted for " + this.getType()
+                                     + " storage engine");
+    }
+}
@@ -0,0 +1,1206 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.bitcask;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxOperation;
+import voldemort.routing.RoutingStrategy;
+import voldemort.store.AbstractStorageEngine;
+import voldemort.store.PersistenceFailureException;
+import voldemort.store.StorageInitializationException;
+import voldemort.store.StoreBinaryFormat;
+import voldemort.store.StoreUtils;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.EventThrottler;
+import voldemort.utils.Pair;
+import voldemort.utils.StripedLock;
+import voldemort.utils.Utils;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Occurred;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * A persistent storage engine in the style of Bitcask: a log of append-only
+ * segment files and an in-memory directory of where the current record of
+ * every key is.
+ * <p>
+ * A write appends a record holding the key and the {@link StoreBinaryFormat}
+ * encoding of all its versions to the active segment, and points the key
+ * directory to it. Once the active segment reaches its maximum size it is
+ * closed and never written again. A read is a lookup in the key directory and
+ * a single positioned read. Records carry a sequence number, so the most
+ * recent record of a key wins whichever segment it is in, and a delete of the
+ * last version of a key appends a tombstone.
+ * <p>
+ * The key directory is split by master partition, so a partition can be
+ * scanned without going over the keys of the others.
+ * <p>
+ * The writes of a key are serialized by a lock striped over the keys. A write
+ * appends its record under a lock of its own and syncs it holding no lock at
+ * all, so the store-wide lock is only taken to point the key directory to the
+ * record, and the reads are not held up by the disk.
+ * <p>
+ * {@link #compact()} rewrites the closed segments with too much garbage,
+ * copying their live records to new segments at a throttled rate and deleting
+ * them. It also writes a hint file, the keys and locations of the records of
+ * a segment, next to each closed segment. On startup the key directory is
+ * rebuilt from the hint files, and only the segments without one are scanned.
+ * 
+ */
+public class BitcaskStorageEngine extends AbstractStorageEngine<ByteArray, byte[], byte[]> {
+
+    private static final Logger logger = Logger.getLogger(BitcaskStorageEngine.class);
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String HINT_SUFFIX = ".hint";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // lists the segments a finished compaction replaced
+    private static final String COMPACTED_FILE = "compacted";
+
+    // crc, sequence number, key length and value length (-1 for a tombstone)
+    private static final int RECORD_HEADER_SIZE = 3 * ByteUtils.SIZE_OF_INT
+                                                  + ByteUtils.SIZE_OF_LONG;
+
+    private static final int NUM_LOCK_STRIPES = 256;
+
+    private static final Comparator<Pair<ByteArray, Location>> LOCATION_ORDER = new Comparator<Pair<ByteArray, Location>>() {
+
+        public int compare(Pair<ByteArray, Location> pair1, Pair<ByteArray, Location> pair2) {
+            Location location1 = pair1.getSecond();
+            Location location2 = pair2.getSecond();
+            if(location1.segmentId != location2.segmentId)
+                return location1.segmentId < location2.segmentId ? -1 : 1;
+            if(location1.offset != location2.offset)
+                return location1.offset < location2.offset ? -1 : 1;
+            return 0;
+        }
+    };
+
+    private final File directory;
+    private final RoutingStrategy routingStrategy;
+    private final long maxSegmentSize;
+    private final boolean fsyncWrites;
+    private final double minGarbageRatio;
+    private final EventThrottler compactionThrottler;
+
+    // guards the key directory and the segments, reads share it
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // guards the appends to the active segment, taken before the lock above
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // serializes the read-modify-write of each key
+    private final StripedLock keyLocks = new StripedLock(NUM_LOCK_STRIPES);
+    // only one compaction at a time
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    private final Map<Integer, Map<ByteArray, Location>> keyDir = new HashMap<Integer, Map<ByteArray, Location>>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment activeSegment;
+    private int nextSegmentId = 0;
+    private long nextSequence = 0;
+    private long numCompactions = 0;
+    private long reclaimedBytes = 0;
+    private volatile boolean stopCompaction = false;
+    private boolean isOpen = false;
+
+    /**
+     * @param name The name of the store
+     * @param directory The directory of the segment files of the store
+     * @param routingStrategy The routing strategy of the store, which splits
+     *        the key directory by partition
+     * @param maxSegmentSize The size past which the active segment is closed
+     * @param fsyncWrites Whether every write is synced to disk
+     * @param minGarbageRatio The part of a closed segment which must be
+     *        garbage for compaction to rewrite it
+     * @param compactionBytesPerSec The rate at which compaction reads
+     *        segments, or 0 for no limit
+     */
+    public BitcaskStorageEngine(String name,
+                                File directory,
+                                RoutingStrategy routingStrategy,
+                                long maxSegmentSize,
+                                boolean fsyncWrites,
+                                double minGarbageRatio,
+                                long compactionBytesPerSec) {
+        super(name);
+        if(maxSegmentSize <= 0)
+            throw new IllegalArgumentException("Invalid segment size " + maxSegmentSize);
+        if(minGarbageRatio < 0 || minGarbageRatio > 1)
+            throw new IllegalArgumentException("Invalid garbage ratio " + minGarbageRatio);
+        this.directory = Utils.notNull(directory);
+        this.routingStrategy = Utils.notNull(routingStrategy);
+        this.maxSegmentSize = maxSegmentSize;
+        this.fsyncWrites = fsyncWrites;
+        this.minGarbageRatio = minGarbageRatio;
+        this.compactionThrottler = compactionBytesPerSec > 0 ? new EventThrottler(compactionBytesPerSec)
+                                                            : null;
+        open();
+    }
+
+    private void open() {
+        lock.writeLock().lock();
+        try {
+            Utils.mkdirs(directory);
+            removeCompactedSegments();
+
+            TreeMap<Integer, File> dataFiles = new TreeMap<Integer, File>();
+            for(File file: directory.listFiles()) {
+                String fileName = file.getName();
+                if(fileName.endsWith(TEMP_SUFFIX))
+                    deleteFile(file);
+                else if(fileName.endsWith(DATA_SUFFIX))
+                    dataFiles.put(Integer.parseInt(fileName.substring(0, fileName.length()
+                                                                         - DATA_SUFFIX.length())),
+                                  file);
+            }
+
+            // the latest tombstone of the keys deleted so far
+            Map<ByteArray, Long> deleted = new HashMap<ByteArray, Long>();
+            for(Map.Entry<Integer, File> dataFile: dataFiles.entrySet()) {
+                Segment segment = new Segment(dataFile.getKey(), dataFile.getValue());
+                segments.put(segment.id, segment);
+                nextSegmentId = segment.id + 1;
+                if(segment.getHintFile().exists())
+                    loadHints(segment, deleted);
+                else
+                    loadRecords(segment, deleted);
+            }
+            activeSegment = newSegment();
+            isOpen = true;
+        } catch(IOException e) {
+            throw new StorageInitializationException("Failed to open bitcask store " + getName()
+                                                     + " in " + directory, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Version> getVersions(ByteArray key) {
+        return StoreUtils.getVersions(get(key, null));
+    }
+
+    @Override
+    public List<Versioned<byte[]>> get(ByteArray key, byte[] transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        return readStoredValues(key);
+    }
+
+    /**
+     * Reads the values of the keys in the order of their records on disk
+     */
+    @Override
+    public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys,
+                                                          Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(keys);
+        Map<ByteArray, List<Versioned<byte[]>>> results = StoreUtils.newEmptyHashMap(keys);
+        lock.readLock().lock();
+        try {
+            List<Pair<ByteArray, Location>> locations = new ArrayList<Pair<ByteArray, Location>>();
+            for(ByteArray key: keys) {
+                Location location = locate(key);
+                if(location != null)
+                    locations.add(Pair.create(key, location));
+            }
+            Collections.sort(locations, LOCATION_ORDER);
+            for(Pair<ByteArray, Location> location: locations)
+                results.put(location.getFirst(),
+                            StoreBinaryFormat.fromByteArray(read(location.getSecond())));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    @Override
+    public void put(ByteArray key, Versioned<byte[]> value, byte[] transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        synchronized(keyLocks.lockFor(key.get())) {
+            List<Versioned<byte[]>> items = readStoredValues(key);
+            // Check for existing versions - remember which items to
+            // remove in case of success
+            List<Versioned<byte[]>> itemsToRemove = new ArrayList<Versioned<byte[]>>(items.size());
+            for(Versioned<byte[]> versioned: items) {
+                Occurred occurred = value.getVersion().compare(versioned.getVersion());
+                if(occurred == Occurred.BEFORE) {
+                    throw new ObsoleteVersionException("Obsolete version for key '" + key
+                                                       + "': " + value.getVersion());
+                } else if(occurred == Occurred.AFTER) {
+                    itemsToRemove.add(versioned);
+                }
+            }
+            items.removeAll(itemsToRemove);
+            items.add(value);
+            write(key, StoreBinaryFormat.toByteArray(items));
+        }
+    }
+
+    @Override
+    public List<Versioned<byte[]>> multiVersionPut(ByteArray key,
+                                                   final List<Versioned<byte[]>> values) {
+        StoreUtils.assertValidKey(key);
+        synchronized(keyLocks.lockFor(key.get())) {
+            List<Versioned<byte[]>> valuesInStorage = readStoredValues(key);
+            List<Versioned<byte[]>> obsoleteVals = resolveAndConstructVersionsToPersist(valuesInStorage,
+                                                                                        values);
+            if(valuesInStorage.size() > 0)
+                write(key, StoreBinaryFormat.toByteArray(valuesInStorage));
+            return obsoleteVals;
+        }
+    }
+
+    @Override
+    public boolean delete(ByteArray key, Version version) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        synchronized(keyLocks.lockFor(key.get())) {
+            List<Versioned<byte[]>> values = readStoredValues(key);
+            if(values.isEmpty())
+                return false;
+
+            if(version == null) {
+                write(key, null);
+                return true;
+            }
+
+            boolean deletedSomething = false;
+            Iterator<Versioned<byte[]>> iterator = values.iterator();
+            while(iterator.hasNext()) {
+                Versioned<byte[]> item = iterator.next();
+                if(item.getVersion().compare(version) == Occurred.BEFORE) {
+                    iterator.remove();
+                    deletedSomething = true;
+                }
+            }
+            if(values.size() == 0)
+                write(key, null);
+            else if(deletedSomething)
+                write(key, StoreBinaryFormat.toByteArray(values));
+            return deletedSomething;
+        }
+    }
+
+    @Override
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries() {
+        return new BitcaskEntriesIterator(new BitcaskKeysIterator(getPartitions()));
+    }
+
+    @Override
+    public ClosableIterator<ByteArray> keys() {
+        return new BitcaskKeysIterator(getPartitions());
+    }
+
+    @Override
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries(int partition) {
+        return new BitcaskEntriesIterator(new BitcaskKeysIterator(Collections.singletonList(partition)));
+    }
+
+    @Override
+    public ClosableIterator<ByteArray> keys(int partition) {
+        return new BitcaskKeysIterator(Collections.singletonList(partition));
+    }
+
+    @Override
+    public boolean isPartitionScanSupported() {
+        return true;
+    }
+
+    @Override
+    public void truncate() {
+        stopCompaction = true;
+        compactionLock.lock();
+        appendLock.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                assertOpen();
+                for(Segment segment: segments.values())
+                    segment.delete();
+                segments.clear();
+                keyDir.clear();
+                activeSegment = newSegment();
+            } catch(IOException e) {
+                throw new PersistenceFailureException("Failed to truncate bitcask store "
+                                                      + getName(), e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            appendLock.unlock();
+            stopCompaction = false;
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Stops any compaction, syncs the active segment and writes its hint file
+     */
+    @Override
+    public void close() throws VoldemortException {
+        stopCompaction = true;
+        compactionLock.lock();
+        appendLock.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                if(!isOpen)
+                    return;
+                isOpen = false;
+                try {
+                    activeSegment.channel.force(false);
+                    writeHints(activeSegment);
+                } catch(IOException e) {
+                    logger.error("Failed to write hint file of " + activeSegment.file, e);
+                }
+                for(Segment segment: segments.values()) {
+                    try {
+                        segment.channel.close();
+                    } catch(IOException e) {
+                        logger.warn("Failed to close " + segment.file, e);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            appendLock.unlock();
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the missing hint files of the closed segments, and rewrites the
+     * closed segments whose part of garbage is at least the minimum garbage
+     * ratio. The live records are appended to new segments, at the compaction
+     * rate, and the rewritten segments are then deleted. Tombstones are
+     * dropped unless a segment left alone may hold an older record of their
+     * key.
+     */
+    @JmxOperation(description = "Rewrites the segments with too much garbage.")
+    public void compact() {
+        compactionLock.lock();
+        try {
+            List<Segment> candidates = new ArrayList<Segment>();
+            List<Segment> unhinted = new ArrayList<Segment>();
+            long keptMinSequence = Long.MAX_VALUE;
+            lock.readLock().lock();
+            try {
+                if(!isOpen)
+                    return;
+                for(Segment segment: segments.values()) {
+                    long garbage = segment.size - segment.liveBytes;
+                    // the records of writes in flight are not in the key
+                    // directory yet, so their segment must wait
+                    if(segment != activeSegment && segment.pendingWrites.get() == 0
+                       && (segment.size == 0 || (garbage > 0 && garbage >= minGarbageRatio
+                                                                            * segment.size))) {
+                        candidates.add(segment);
+                    } else {
+                        keptMinSequence = Math.min(keptMinSequence, segment.minSequence);
+                        if(segment != activeSegment && !segment.getHintFile().exists())
+                            unhinted.add(segment);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // closed segments do not change, and only compaction removes them
+            for(Segment segment: unhinted)
+                writeHints(segment);
+            if(candidates.isEmpty())
+                return;
+
+            List<Segment> outputs = new ArrayList<Segment>();
+            for(Segment candidate: candidates) {
+                if(!copyLiveRecords(candidate, keptMinSequence, outputs))
+                    return;
+            }
+
+            for(Segment output: outputs) {
+                output.channel.force(true);
+                writeHints(output);
+            }
+            replaceSegments(candidates);
+        } catch(IOException e) {
+            throw new PersistenceFailureException("Compaction of bitcask store " + getName()
+                                                  + " failed", e);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /*
+     * Appends the live records and needed tombstones of the segment to the
+     * outputs, adding a new output whenever the last one is full
+     */
+    private boolean copyLiveRecords(Segment candidate, long keptMinSequence, List<Segment> outputs)
+            throws IOException {
+        RecordReader reader = new RecordReader(candidate.file, candidate.size, true);
+        try {
+            while(reader.next()) {
+                if(stopCompaction)
+                    return false;
+                if(compactionThrottler != null)
+                    compactionThrottler.maybeThrottle(reader.size);
+
+                lock.writeLock().lock();
+                try {
+                    Location location = locate(reader.key);
+                    boolean keep;
+                    if(reader.value == null)
+                        keep = location == null && keptMinSequence < reader.sequence;
+                    else
+                        keep = location != null && location.segmentId == candidate.id
+                               && location.offset == reader.offset;
+                    if(!keep)
+                        continue;
+
+                    Segment output = outputs.isEmpty() ? null : outputs.get(outputs.size() - 1);
+                    if(output == null || output.size + reader.size > maxSegmentSize) {
+                        output = newSegment();
+                        outputs.add(output);
+                    }
+                    long offset = output.append(ByteBuffer.wrap(reader.record, 0, reader.size),
+                                                reader.sequence);
+                    if(reader.value != null) {
+                        getPartitionKeys(reader.key, true).put(reader.key,
+                                                               new Location(output.id,
+                                                                            offset,
+                                                                            reader.size,
+                                                                            reader.sequence));
+                        output.liveBytes += reader.size;
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Deletes the compacted segments. Their list is persisted first, so that
+     * a crash cannot leave only some of them behind, which could bring back
+     * keys whose tombstones were dropped.
+     */
+    private void replaceSegments(List<Segment> compacted) throws IOException {
+        File tempFile = new File(directory, COMPACTED_FILE + TEMP_SUFFIX);
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream dataOutput = new DataOutputStream(output);
+            for(Segment segment: compacted)
+                dataOutput.writeInt(segment.id);
+            dataOutput.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        renameFile(tempFile, new File(directory, COMPACTED_FILE));
+
+        lock.writeLock().lock();
+        try {
+            for(Segment segment: compacted) {
+                segments.remove(segment.id);
+                reclaimedBytes += segment.size - segment.liveBytes;
+                segment.delete();
+            }
+            numCompactions++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        deleteFile(new File(directory, COMPACTED_FILE));
+    }
+
+    private void removeCompactedSegments() throws IOException {
+        File compactedFile = new File(directory, COMPACTED_FILE);
+        if(!compactedFile.exists())
+            return;
+        DataInputStream input = new DataInputStream(new FileInputStream(compactedFile));
+        try {
+            while(true) {
+                int id;
+                try {
+                    id = input.readInt();
+                } catch(EOFException e) {
+                    break;
+                }
+                deleteFile(getDataFile(id));
+                deleteFile(getHintFile(id));
+            }
+        } finally {
+            input.close();
+        }
+        deleteFile(compactedFile);
+    }
+
+    @JmxGetter(name = "numSegments", description = "The number of segment files of the store.")
+    public int getNumSegments() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "numKeys", description = "The number of keys in the key directory.")
+    public long getNumKeys() {
+        lock.readLock().lock();
+        try {
+            long numKeys = 0;
+            for(Map<ByteArray, Location> partitionKeys: keyDir.values())
+                numKeys += partitionKeys.size();
+            return numKeys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "totalBytes", description = "The size of the segment files.")
+    public long getTotalBytes() {
+        lock.readLock().lock();
+        try {
+            long totalBytes = 0;
+            for(Segment segment: segments.values())
+                totalBytes += segment.size;
+            return totalBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "liveBytes", description = "The size of the current records of the keys.")
+    public long getLiveBytes() {
+        lock.readLock().lock();
+        try {
+            long liveBytes = 0;
+            for(Segment segment: segments.values())
+                liveBytes += segment.liveBytes;
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "numCompactions", description = "The number of compactions which rewrote segments.")
+    public long getNumCompactions() {
+        lock.readLock().lock();
+        try {
+            return numCompactions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "reclaimedBytes", description = "The bytes of garbage removed by compaction.")
+    public long getReclaimedBytes() {
+        lock.readLock().lock();
+        try {
+            return reclaimedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void assertOpen() {
+        if(!isOpen)
+            throw new PersistenceFailureException("Bitcask store " + getName() + " is closed");
+    }
+
+    private List<Integer> getPartitions() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<Integer>(keyDir.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Map<ByteArray, Location> getPartitionKeys(ByteArray key, boolean create) {
+        Integer partition = routingStrategy.getMasterPartition(key.get());
+        Map<ByteArray, Location> partitionKeys = keyDir.get(partition);
+        if(partitionKeys == null && create) {
+            partitionKeys = new HashMap<ByteArray, Location>();
+            keyDir.put(partition, partitionKeys);
+        }
+        return partitionKeys;
+    }
+
+    private Location locate(ByteArray key) {
+        Map<ByteArray, Location> partitionKeys = getPartitionKeys(key, false);
+        return partitionKeys == null ? null : partitionKeys.get(key);
+    }
+
+    private List<Versioned<byte[]>> readStoredValues(ByteArray key) {
+        lock.readLock().lock();
+        try {
+            return getStoredValues(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Called with the lock held
+     */
+    private List<Versioned<byte[]>> getStoredValues(ByteArray key) {
+        assertOpen();
+        Location location = locate(key);
+        if(location == null)
+            return new ArrayList<Versioned<byte[]>>(0);
+        return StoreBinaryFormat.fromByteArray(read(location));
+    }
+
+    /*
+     * Reads the value of a record and checks its crc
+     */
+    private byte[] read(Location location) {
+        Segment segment = segments.get(location.segmentId);
+        ByteBuffer buffer = ByteBuffer.allocate(location.size);
+        try {
+            while(buffer.hasRemaining()) {
+                int read = segment.channel.read(buffer, location.offset + buffer.position());
+                if(read < 0)
+                    throw new EOFException();
+            }
+        } catch(IOException e) {
+            throw new PersistenceFailureException("Failed to read record at " + location.offset
+                                                  + " of " + segment.file, e);
+        }
+        byte[] record = buffer.array();
+        CRC32 crc = new CRC32();
+        crc.update(record, ByteUtils.SIZE_OF_INT, record.length - ByteUtils.SIZE_OF_INT);
+        if((int) crc.getValue() != ByteUtils.readInt(record, 0))
+            throw new PersistenceFailureException("Corrupt record at " + location.offset + " of "
+                                                  + segment.file);
+        int keyLength = ByteUtils.readInt(record, ByteUtils.SIZE_OF_INT + ByteUtils.SIZE_OF_LONG);
+        int valueOffset = RECORD_HEADER_SIZE + keyLength;
+        byte[] value = new byte[record.length - valueOffset];
+        System.arraycopy(record, valueOffset, value, 0, value.length);
+        return value;
+    }
+
+    /*
+     * Appends a record of the key to the active segment, or a tombstone if
+     * the value is null, syncs it if required and points the key directory to
+     * it. Called with the lock of the key held, so the records of a key are
+     * published in order.
+     */
+    private void write(ByteArray key, byte[] value) {
+        Segment segment;
+        long sequence;
+        long offset;
+        int size;
+        appendLock.lock();
+        try {
+            assertOpen();
+            sequence = nextSequence++;
+            ByteBuffer record = encode(sequence, key.get(), value);
+            size = record.remaining();
+            if(activeSegment.size > 0 && activeSegment.size + size > maxSegmentSize)
+                rollActiveSegment();
+            segment = activeSegment;
+            offset = segment.append(record, sequence);
+            segment.pendingWrites.incrementAndGet();
+        } catch(IOException e) {
+            throw new PersistenceFailureException("Failed to write to bitcask store " + getName(),
+                                                  e);
+        } finally {
+            appendLock.unlock();
+        }
+
+        try {
+            if(fsyncWrites)
+                segment.channel.force(false);
+            publish(key, value == null, segment, offset, size, sequence);
+        } catch(IOException e) {
+            throw new PersistenceFailureException("Failed to write to bitcask store " + getName(),
+                                                  e);
+        } finally {
+            segment.pendingWrites.decrementAndGet();
+        }
+    }
+
+    /*
+     * Syncs the active segment, which is never written again, and starts a
+     * new one. Called with the append lock held.
+     */
+    private void rollActiveSegment() throws IOException {
+        activeSegment.channel.force(false);
+        lock.writeLock().lock();
+        try {
+            activeSegment = newSegment();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Points the key directory to a record appended by a write, unless a
+     * truncate dropped its segment in the meantime
+     */
+    private void publish(ByteArray key,
+                         boolean tombstone,
+                         Segment segment,
+                         long offset,
+                         int size,
+                         long sequence) {
+        lock.writeLock().lock();
+        try {
+            if(segments.get(segment.id) != segment)
+                return;
+            Location previous;
+            if(tombstone) {
+                Map<ByteArray, Location> partitionKeys = getPartitionKeys(key, false);
+                previous = partitionKeys == null ? null : partitionKeys.remove(key);
+            } else {
+                previous = getPartitionKeys(key, true).put(key, new Location(segment.id,
+                                                                             offset,
+                                                                             size,
+                                                                             sequence));
+                segment.liveBytes += size;
+            }
+            if(previous != null)
+                segments.get(previous.segmentId).liveBytes -= previous.size;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static ByteBuffer encode(long sequence, byte[] key, byte[] value) {
+        int valueLength = value == null ? 0 : value.length;
+        byte[] record = new byte[RECORD_HEADER_SIZE + key.length + valueLength];
+        ByteUtils.writeLong(record, sequence, ByteUtils.SIZE_OF_INT);
+        ByteUtils.writeInt(record, key.length, ByteUtils.SIZE_OF_INT + ByteUtils.SIZE_OF_LONG);
+        ByteUtils.writeInt(record, value == null ? -1 : value.length, 2 * ByteUtils.SIZE_OF_INT
+                                                                      + ByteUtils.SIZE_OF_LONG);
+        System.arraycopy(key, 0, record, RECORD_HEADER_SIZE, key.length);
+        if(value != null)
+            System.arraycopy(value, 0, record, RECORD_HEADER_SIZE + key.length, valueLength);
+        CRC32 crc = new CRC32();
+        crc.update(record, ByteUtils.SIZE_OF_INT, record.length - ByteUtils.SIZE_OF_INT);
+        ByteUtils.writeInt(record, (int) crc.getValue(), 0);
+        return ByteBuffer.wrap(record);
+    }
+
+    /*
+     * Applies a record found on startup to the key directory, unless a more
+     * recent record of the key was already found
+     */
+    private void recover(Segment segment,
+                         ByteArray key,
+                         long sequence,
+                         long offset,
+                         int size,
+                         boolean tombstone,
+                         Map<ByteArray, Long> deleted) {
+        segment.minSequence = Math.min(segment.minSequence, sequence);
+        nextSequence = Math.max(nextSequence, sequence + 1);
+
+        Location current = locate(key);
+        Long deletedSequence = deleted.get(key);
+        if((current != null && current.sequence >= sequence)
+           || (deletedSequence != null && deletedSequence >= sequence))
+            return;
+
+        if(current != null)
+            segments.get(current.segmentId).liveBytes -= current.size;
+        if(tombstone) {
+            if(current != null)
+                getPartitionKeys(key, false).remove(key);
+            deleted.put(key, sequence);
+        } else {
+            getPartitionKeys(key, true).put(key, new Location(segment.id, offset, size, sequence));
+            segment.liveBytes += size;
+        }
+    }
+
+    private void loadHints(Segment segment, Map<ByteArray, Long> deleted) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.getHintFile()),
+                                                                            64 * 1024));
+        try {
+            while(true) {
+                long sequence;
+                try {
+                    sequence = input.readLong();
+                } catch(EOFException e) {
+                    break;
+                }
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                long offset = input.readLong();
+                byte[] key = new byte[keyLength];
+                input.readFully(key);
+                int size = RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+                recover(segment,
+                        new ByteArray(key),
+                        sequence,
+                        offset,
+                        size,
+                        valueLength < 0,
+                        deleted);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /*
+     * Scans a segment without a hint file, which is cut at its first
+     * incomplete or corrupt record, left behind by a crash
+     */
+    private void loadRecords(Segment segment, Map<ByteArray, Long> deleted) throws IOException {
+        RecordReader reader = new RecordReader(segment.file, segment.size, false);
+        try {
+            while(reader.next())
+                recover(segment,
+                        reader.key,
+                        reader.sequence,
+                        reader.offset,
+                        reader.size,
+                        reader.value == null,
+                        deleted);
+            if(reader.end < segment.size) {
+                logger.warn("Truncating " + segment.file + " of bitcask store " + getName()
+                            + " from " + segment.size + " to " + reader.end
+                            + " bytes after an incomplete or corrupt record");
+                segment.channel.truncate(reader.end);
+                segment.size = reader.end;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Writes the hint file of a segment which no longer changes
+     */
+    private void writeHints(Segment segment) throws IOException {
+        File tempFile = new File(directory, segment.getHintFile().getName() + TEMP_SUFFIX);
+        RecordReader reader = new RecordReader(segment.file, segment.size, false);
+        FileOutputStream fileOutput = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput,
+                                                                                    64 * 1024));
+            while(reader.next()) {
+                output.writeLong(reader.sequence);
+                output.writeInt(reader.key.length());
+                output.writeInt(reader.value == null ? -1 : reader.value.length);
+                output.writeLong(reader.offset);
+                output.write(reader.key.get());
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            fileOutput.close();
+            reader.close();
+        }
+        renameFile(tempFile, segment.getHintFile());
+    }
+
+    private Segment newSegment() throws IOException {
+        Segment segment = new Segment(nextSegmentId++, null);
+        segments.put(segment.id, segment);
+        return segment;
+    }
+
+    private File getDataFile(int id) {
+        return new File(directory, String.format("%010d", id) + DATA_SUFFIX);
+    }
+
+    private File getHintFile(int id) {
+        return new File(directory, String.format("%010d", id) + HINT_SUFFIX);
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if(file.exists() && !file.delete())
+            throw new IOException("Failed to delete " + file);
+    }
+
+    private static void renameFile(File from, File to) throws IOException {
+        if(!from.renameTo(to))
+            throw new IOException("Failed to rename " + from + " to " + to);
+    }
+
+    /**
+     * Where the current record of a key is
+     */
+    private static final class Location {
+
+        final int segmentId;
+        final long offset;
+        final int size;
+        final long sequence;
+
+        Location(int segmentId, long offset, int size, long sequence) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.size = size;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A segment file. Its fields change with the write lock held, except for
+     * those the appends to the active segment change with the append lock
+     * held.
+     */
+    private final class Segment {
+
+        final int id;
+        final File file;
+        final FileChannel channel;
+        volatile long size;
+        long liveBytes = 0;
+        volatile long minSequence = Long.MAX_VALUE;
+        // the writes appended to the segment but not yet published
+        final AtomicInteger pendingWrites = new AtomicInteger(0);
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file == null ? getDataFile(id) : file;
+            this.channel = new RandomAccessFile(this.file, "rw").getChannel();
+            this.size = channel.size();
+        }
+
+        File getHintFile() {
+            return BitcaskStorageEngine.this.getHintFile(id);
+        }
+
+        long append(ByteBuffer record, long sequence) throws IOException {
+            long offset = size;
+            while(record.hasRemaining())
+                size += channel.write(record, size);
+            minSequence = Math.min(minSequence, sequence);
+            return offset;
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            deleteFile(file);
+            deleteFile(getHintFile());
+        }
+    }
+
+    /**
+     * Reads the records of a segment file in order, up to its first
+     * incomplete or corrupt record
+     */
+    @NotThreadsafe
+    private static final class RecordReader {
+
+        private final DataInputStream input;
+        private final long length;
+        private final boolean keepRecord;
+        private final CRC32 crc = new CRC32();
+
+        byte[] record = new byte[1024];
+        long offset = 0;
+        int size = 0;
+        long end = 0;
+        long sequence;
+        ByteArray key;
+        byte[] value;
+
+        /**
+         * @param file The segment file
+         * @param length The length of the segment
+         * @param keepRecord Whether to keep the whole record in
+         *        {@link #record}, or only its value
+         */
+        RecordReader(File file, long length, boolean keepRecord) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                                                                     64 * 1024));
+            this.length = length;
+            this.keepRecord = keepRecord;
+        }
+
+        boolean next() throws IOException {
+            offset = end;
+            if(length - offset < RECORD_HEADER_SIZE)
+                return false;
+            int storedCrc;
+            int keyLength;
+            int valueLength;
+            try {
+                storedCrc = input.readInt();
+                sequence = input.readLong();
+                keyLength = input.readInt();
+                valueLength = input.readInt();
+            } catch(EOFException e) {
+                return false;
+            }
+            long recordSize = (long) RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            if(keyLength < 0 || valueLength < -1 || offset + recordSize > length)
+                return false;
+
+            size = (int) recordSize;
+            if(record.length < size)
+                record = new byte[Math.max(size, 2 * record.length)];
+            ByteUtils.writeInt(record, storedCrc, 0);
+            ByteUtils.writeLong(record, sequence, ByteUtils.SIZE_OF_INT);
+            ByteUtils.writeInt(record, keyLength, ByteUtils.SIZE_OF_INT + ByteUtils.SIZE_OF_LONG);
+            ByteUtils.writeInt(record, valueLength, 2 * ByteUtils.SIZE_OF_INT
+                                                    + ByteUtils.SIZE_OF_LONG);
+            input.readFully(record, RECORD_HEADER_SIZE, size - RECORD_HEADER_SIZE);
+
+            crc.reset();
+            crc.update(record, ByteUtils.SIZE_OF_INT, size - ByteUtils.SIZE_OF_INT);
+            if((int) crc.getValue() != storedCrc)
+                return false;
+
+            byte[] keyBytes = new byte[keyLength];
+            System.arraycopy(record, RECORD_HEADER_SIZE, keyBytes, 0, keyLength);
+            key = new ByteArray(keyBytes);
+            if(valueLength < 0) {
+                value = null;
+            } else {
+                value = new byte[valueLength];
+                System.arraycopy(record, RECORD_HEADER_SIZE + keyLength, value, 0, valueLength);
+            }
+            if(!keepRecord && record.length > 64 * 1024)
+                record = new byte[1024];
+            end = offset + size;
+            return true;
+        }
+
+        void close() {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Goes over the keys of the given partitions, copying the keys of one
+     * partition at a time
+     */
+    @NotThreadsafe
+    private class BitcaskKeysIterator implements ClosableIterator<ByteArray> {
+
+        private final Iterator<Integer> partitions;
+        private Iterator<ByteArray> keys = Collections.<ByteArray> emptyList().iterator();
+
+        BitcaskKeysIterator(List<Integer> partitions) {
+            this.partitions = partitions.iterator();
+        }
+
+        public boolean hasNext() {
+            while(!keys.hasNext()) {
+                if(!partitions.hasNext())
+                    return false;
+                Integer partition = partitions.next();
+                lock.readLock().lock();
+                try {
+                    Map<ByteArray, Location> partitionKeys = keyDir.get(partition);
+                    if(partitionKeys != null)
+                        keys = new ArrayList<ByteArray>(partitionKeys.keySet()).iterator();
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+            return true;
+        }
+
+        public ByteArray next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return keys.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal");
+        }
+
+        public void close() {}
+    }
+
+    /**
+     * Reads the versions of the keys as it goes, skipping the keys deleted in
+     * the meantime
+     */
+    @NotThreadsafe
+    private class BitcaskEntriesIterator implements
+            ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> {
+
+        private final BitcaskKeysIterator keys;
+        private ByteArray currentKey;
+        private Iterator<Versioned<byte[]>> currentValues = null;
+
+        BitcaskEntriesIterator(BitcaskKeysIterator keys) {
+            this.keys = keys;
+        }
+
+        public boolean hasNext() {
+            while(currentValues == null || !currentValues.hasNext()) {
+                if(!keys.hasNext())
+                    return false;
+                currentKey = keys.next();
+                currentValues = get(currentKey, null).iterator();
+            }
+            return true;
+        }
+
+        public Pair<ByteArray, Versioned<byte[]>> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return Pair.create(currentKey, currentValues.next());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal");
+        }
+
+        public void close() {}
+    }
+}
@@ -159,6 +159,32 @@ public class CompressingStore extends AbstractStore<ByteArray, byte[], byte[]> {
         innerStore.put(deflateKey(key), deflateValue(value), transforms);
     }
 
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(entries.keySet());
+        Map<ByteArray, ByteArray> deflatedToKey = Maps.newHashMapWithExpectedSize(entries.size());
+        Map<ByteArray, Versioned<byte[]>> deflatedEntries = Maps.newHashMapWithExpectedSize(entries.size());
+        for(Map.Entry<ByteArray, Versioned<byte[]>> entry: entries.entrySet()) {
+            ByteArray deflatedKey = deflateKey(entry.getKey());
+            deflatedToKey.put(deflatedKey, entry.getKey());
+            deflatedEntries.put(deflatedKey, deflateValue(entry.getValue()));
+        }
+        Map<ByteArray, byte[]> newTransforms = null;
+        if(transforms != null) {
+            newTransforms = Maps.newHashMap();
+            for(Map.Entry<ByteArray, byte[]> transform: transforms.entrySet())
+                newTransforms.put(deflateKey(transform.getKey()), transform.getValue());
+        }
+        Map<ByteArray, VoldemortException> deflatedResult = innerStore.putAll(deflatedEntries,
+                                                                              newTransforms);
+        Map<ByteArray, VoldemortException> result = Maps.newHashMapWithExpectedSize(deflatedResult.size());
+        for(Map.Entry<ByteArray, VoldemortException> mapEntry: deflatedResult.entrySet())
+            result.put(deflatedToKey.get(mapEntry.getKey()), mapEntry.getValue());
+        return result;
+    }
+
     @Override
     public void close() throws VoldemortException {
         innerStore.close();
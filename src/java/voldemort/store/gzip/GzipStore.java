@@ -20,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.IOUtils;
@@ -27,6 +28,7 @@ import org.apache.commons.io.IOUtils;
 import voldemort.VoldemortException;
 import voldemort.store.DelegatingStore;
 import voldemort.store.Store;
+import voldemort.store.StoreUtils;
 import voldemort.versioning.Versioned;
 
 /**
@@ -67,4 +69,10 @@ public class GzipStore<K> extends DelegatingStore<K, byte[], byte[]> {
         }
     }
 
+    @Override
+    public Map<K, VoldemortException> putAll(Map<K, Versioned<byte[]>> entries,
+                                             Map<K, byte[]> transforms) throws VoldemortException {
+        return StoreUtils.putAll(this, entries, transforms);
+    }
+
 }
@@ -95,6 +95,19 @@ public class InvalidMetadataCheckingStore extends DelegatingStore<ByteArray, byt
         getInnerStore().put(key, value, transforms);
     }
 
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(entries.keySet());
+        RoutingStrategy routingStrategy = metadata.getRoutingStrategy(getName());
+        Node node = metadata.getCluster().getNodeById(nodeId);
+        for(ByteArray key: entries.keySet())
+            StoreUtils.assertValidMetadata(key, routingStrategy, node);
+
+        return getInnerStore().putAll(entries, transforms);
+    }
+
     @Override
     public List<Versioned<byte[]>> get(ByteArray key, byte[] transforms) throws VoldemortException {
         StoreUtils.assertValidKey(key);
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import voldemort.server.VoldemortConfig;
+
+/**
+ * Configuration of an {@link LsmStorageEngine}
+ * 
+ */
+public class LsmRuntimeConfig {
+
+    public static final long DEFAULT_MEMTABLE_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_TABLE_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+    public static final String DEFAULT_BLOCK_COMPRESSION = "lzf";
+    public static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    public static final int DEFAULT_LEVEL0_MAX_TABLES = 4;
+    public static final long DEFAULT_LEVEL_BASE_SIZE = 32 * 1024 * 1024;
+    public static final int DEFAULT_LEVEL_SIZE_MULTIPLIER = 10;
+    public static final int DEFAULT_COMPACTION_THREADS = 1;
+    public static final boolean DEFAULT_FSYNC_WRITES = false;
+    public static final int DEFAULT_MAX_OPEN_TABLES = 1000;
+
+    private long memtableSize = DEFAULT_MEMTABLE_SIZE;
+    private long tableSize = DEFAULT_TABLE_SIZE;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private String blockCompression = DEFAULT_BLOCK_COMPRESSION;
+    private int bloomBitsPerKey = DEFAULT_BLOOM_BITS_PER_KEY;
+    private int level0MaxTables = DEFAULT_LEVEL0_MAX_TABLES;
+    private long levelBaseSize = DEFAULT_LEVEL_BASE_SIZE;
+    private int levelSizeMultiplier = DEFAULT_LEVEL_SIZE_MULTIPLIER;
+    private int compactionThreads = DEFAULT_COMPACTION_THREADS;
+    private boolean fsyncWrites = DEFAULT_FSYNC_WRITES;
+    private int maxOpenTables = DEFAULT_MAX_OPEN_TABLES;
+
+    public LsmRuntimeConfig() {
+
+    }
+
+    public LsmRuntimeConfig(VoldemortConfig config) {
+        setMemtableSize(config.getLsmMemtableSize());
+        setTableSize(config.getLsmTableSize());
+        setBlockSize(config.getLsmBlockSize());
+        setBlockCompression(config.getLsmBlockCompression());
+        setBloomBitsPerKey(config.getLsmBloomBitsPerKey());
+        setLevel0MaxTables(config.getLsmLevel0MaxTables());
+        setLevelBaseSize(config.getLsmLevelBaseSize());
+        setLevelSizeMultiplier(config.getLsmLevelSizeMultiplier());
+        setCompactionThreads(config.getLsmCompactionThreads());
+        setFsyncWrites(config.isLsmFsyncWrites());
+        setMaxOpenTables(config.getLsmMaxOpenTables());
+    }
+
+    public long getMemtableSize() {
+        return memtableSize;
+    }
+
+    /**
+     * The size of the writes buffered in memory before they are flushed to
+     * new tables
+     */
+    public LsmRuntimeConfig setMemtableSize(long memtableSize) {
+        this.memtableSize = memtableSize;
+        return this;
+    }
+
+    public long getTableSize() {
+        return tableSize;
+    }
+
+    /**
+     * The size of the tables written by compaction
+     */
+    public LsmRuntimeConfig setTableSize(long tableSize) {
+        this.tableSize = tableSize;
+        return this;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * The uncompressed size of the blocks of a table, the unit of reads
+     */
+    public LsmRuntimeConfig setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public String getBlockCompression() {
+        return blockCompression;
+    }
+
+    /**
+     * The codec compressing the blocks, "none", "gzip", "lzf" or "snappy"
+     */
+    public LsmRuntimeConfig setBlockCompression(String blockCompression) {
+        this.blockCompression = blockCompression;
+        return this;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public LsmRuntimeConfig setBloomBitsPerKey(int bloomBitsPerKey) {
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        return this;
+    }
+
+    public int getLevel0MaxTables() {
+        return level0MaxTables;
+    }
+
+    /**
+     * The number of flushed tables of a partition which triggers their
+     * compaction into level 1
+     */
+    public LsmRuntimeConfig setLevel0MaxTables(int level0MaxTables) {
+        this.level0MaxTables = level0MaxTables;
+        return this;
+    }
+
+    public long getLevelBaseSize() {
+        return levelBaseSize;
+    }
+
+    /**
+     * The size of level 1 of a partition past which it is compacted into
+     * level 2
+     */
+    public LsmRuntimeConfig setLevelBaseSize(long levelBaseSize) {
+        this.levelBaseSize = levelBaseSize;
+        return this;
+    }
+
+    public int getLevelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    /**
+     * How many times larger than the previous level a level may grow
+     */
+    public LsmRuntimeConfig setLevelSizeMultiplier(int levelSizeMultiplier) {
+        this.levelSizeMultiplier = levelSizeMultiplier;
+        return this;
+    }
+
+    public int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    public LsmRuntimeConfig setCompactionThreads(int compactionThreads) {
+        this.compactionThreads = compactionThreads;
+        return this;
+    }
+
+    public boolean isFsyncWrites() {
+        return fsyncWrites;
+    }
+
+    /**
+     * Whether every write is synced to the write ahead log before it returns
+     */
+    public LsmRuntimeConfig setFsyncWrites(boolean fsyncWrites) {
+        this.fsyncWrites = fsyncWrites;
+        return this;
+    }
+
+    public int getMaxOpenTables() {
+        return maxOpenTables;
+    }
+
+    /**
+     * The number of table files of the store kept open, the others are
+     * reopened when read
+     */
+    public LsmRuntimeConfig setMaxOpenTables(int maxOpenTables) {
+        this.maxOpenTables = maxOpenTables;
+        return this;
+    }
+}
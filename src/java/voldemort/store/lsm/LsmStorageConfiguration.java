@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import java.io.File;
+
+import voldemort.VoldemortException;
+import voldemort.routing.RoutingStrategy;
+import voldemort.server.VoldemortConfig;
+import voldemort.store.StorageConfiguration;
+import voldemort.store.StorageEngine;
+import voldemort.store.StoreDefinition;
+import voldemort.utils.ByteArray;
+
+/**
+ * Creates {@link LsmStorageEngine}s, each in its own directory under the lsm
+ * data directory.
+ * 
+ */
+public class LsmStorageConfiguration implements StorageConfiguration {
+
+    public static final String TYPE_NAME = "lsm";
+
+    private final File dataDirectory;
+    private final LsmRuntimeConfig runtimeConfig;
+
+    public LsmStorageConfiguration(VoldemortConfig config) {
+        this.dataDirectory = new File(config.getLsmDataDirectory());
+        this.runtimeConfig = new LsmRuntimeConfig(config);
+    }
+
+    public StorageEngine<ByteArray, byte[], byte[]> getStore(StoreDefinition storeDef,
+                                                             RoutingStrategy strategy) {
+        return new LsmStorageEngine(storeDef.getName(),
+                                    new File(dataDirectory, storeDef.getName()),
+                                    strategy,
+                                    runtimeConfig);
+    }
+
+    public String getType() {
+        return TYPE_NAME;
+    }
+
+    public void close() {}
+
+    public void update(StoreDefinition storeDef) {
+        throw new VoldemortException("Storage config updates not permitted for " + this.getType()
+                                     + " storage engine");
+    }
+}
@@ -0,0 +1,1335 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxOperation;
+import voldemort.routing.RoutingStrategy;
+import voldemort.serialization.Compression;
+import voldemort.store.AbstractStorageEngine;
+import voldemort.store.PersistenceFailureException;
+import voldemort.store.StorageInitializationException;
+import voldemort.store.StoreBinaryFormat;
+import voldemort.store.StoreUtils;
+import voldemort.store.compress.CompressionStrategy;
+import voldemort.store.compress.CompressionStrategyFactory;
+import voldemort.store.compress.NoopCompressionStrategy;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.DaemonThreadFactory;
+import voldemort.utils.Pair;
+import voldemort.utils.StripedLock;
+import voldemort.utils.Utils;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Occurred;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * A persistent storage engine built as a log-structured merge tree per master
+ * partition.
+ * <p>
+ * A write appends the key and the {@link StoreBinaryFormat} encoding of all its
+ * versions, or a tombstone, to a write ahead log and puts them in a sorted
+ * in-memory table, the memtable. Once the memtable reaches its maximum size,
+ * it is frozen, a new log is started and a background thread flushes the
+ * frozen memtable to one immutable {@link SSTable} per partition in level 0,
+ * after which the old log is deleted. Writers wait if the memtable fills up
+ * again before the flush is done.
+ * <p>
+ * The writes of a key are serialized by a striped lock, which is held while
+ * the versions of the key are read and merged. The lock of the engine is only
+ * taken to append to the log and the memtable, and the log is synced once it
+ * is released, so the writes of other keys go on during the reads and syncs.
+ * <p>
+ * The tables of level 0 may overlap, the tables of the deeper levels of a
+ * partition do not, and each deeper level may hold
+ * {@link LsmRuntimeConfig#getLevelSizeMultiplier()} times the bytes of the
+ * previous one. Background compactions merge the tables of level 0 into level
+ * 1 once there are too many of them, and a table of a level which grew too
+ * large into the next level, dropping the shadowed versions and the
+ * tombstones nothing older lies under.
+ * <p>
+ * A read goes from the newest data to the oldest: the memtable, the frozen
+ * memtable, the tables of level 0 from the newest, then at most one table per
+ * deeper level. The Bloom filter of a table spares the read of a block for
+ * most of the tables which do not hold the key, and only the files of the
+ * recently read tables are kept open. Since the trees are split by
+ * partition, a partition is scanned in key order without going over the
+ * others.
+ * <p>
+ * The tables are named after their partition, level and id. A compaction
+ * replaces its input tables by its output tables through a marker file, which
+ * is redone on startup if the process died half way, before the logs left
+ * over are replayed into the memtable.
+ * 
+ */
+public class LsmStorageEngine extends AbstractStorageEngine<ByteArray, byte[], byte[]> {
+
+    private static final Logger logger = Logger.getLogger(LsmStorageEngine.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String OBSOLETE_SUFFIX = ".obsolete";
+    // lists the tables a finished compaction replaced and the tables it wrote
+    private static final String COMPACTION_FILE = "compaction";
+
+    // the memory taken by a memtable entry besides its key and value
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final int NUM_LOCK_STRIPES = 256;
+
+    private static final Comparator<SSTable> FIRST_KEY_ORDER = new Comparator<SSTable>() {
+
+        public int compare(SSTable table1, SSTable table2) {
+            return SSTable.KEY_ORDER.compare(table1.getFirstKey(), table2.getFirstKey());
+        }
+    };
+
+    static final Comparator<SSTable> NEWEST_FIRST = new Comparator<SSTable>() {
+
+        public int compare(SSTable table1, SSTable table2) {
+            return table2.getId() - table1.getId();
+        }
+    };
+
+    private final File directory;
+    private final RoutingStrategy routingStrategy;
+    private final LsmRuntimeConfig config;
+    private final CompressionStrategy compression;
+    private final TableCache tableCache;
+
+    // serializes the read-modify-write of each key
+    private final StripedLock keyLocks = new StripedLock(NUM_LOCK_STRIPES);
+    // guards the memtables, the logs and the levels, reads share it
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // signaled when a flush ends
+    private final Condition flushDone = lock.writeLock().newCondition();
+
+    private final Map<Integer, PartitionTree> trees = new HashMap<Integer, PartitionTree>();
+    private Map<Integer, TreeMap<ByteArray, byte[]>> memtable = new HashMap<Integer, TreeMap<ByteArray, byte[]>>();
+    private Map<Integer, TreeMap<ByteArray, byte[]>> flushing = null;
+    private long memtableBytes = 0;
+    private WriteAheadLog log;
+    // the logs of the frozen memtables not flushed yet
+    private final List<File> closedLogs = new ArrayList<File>();
+    private int nextTableId = 0;
+    private long numFlushes = 0;
+    private long numCompactions = 0;
+    private volatile boolean stopCompaction = false;
+    private boolean isOpen = false;
+
+    private final ExecutorService flushExecutor;
+    private final ExecutorService compactionExecutor;
+
+    /**
+     * @param name The name of the store
+     * @param directory The directory of the tables and logs of the store
+     * @param routingStrategy The routing strategy of the store, which splits
+     *        the trees by partition
+     * @param config The sizes of the memtable, tables and levels
+     */
+    public LsmStorageEngine(String name,
+                            File directory,
+                            RoutingStrategy routingStrategy,
+                            LsmRuntimeConfig config) {
+        super(name);
+        if(config.getMemtableSize() <= 0 || config.getTableSize() <= 0
+           || config.getBlockSize() <= 0 || config.getLevel0MaxTables() <= 0
+           || config.getLevelBaseSize() <= 0 || config.getLevelSizeMultiplier() <= 1
+           || config.getCompactionThreads() <= 0 || config.getMaxOpenTables() <= 0)
+            throw new IllegalArgumentException("Invalid lsm configuration for store " + name);
+        this.directory = Utils.notNull(directory);
+        this.routingStrategy = Utils.notNull(routingStrategy);
+        this.config = config;
+        String codec = config.getBlockCompression();
+        if(codec == null || codec.equals("none"))
+            this.compression = new NoopCompressionStrategy();
+        else
+            this.compression = new CompressionStrategyFactory().get(new Compression(codec, null));
+        this.tableCache = new TableCache(config.getMaxOpenTables());
+        this.flushExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("voldemort-lsm-flush-"
+                                                                                       + name
+                                                                                       + "-"));
+        this.compactionExecutor = Executors.newFixedThreadPool(config.getCompactionThreads(),
+                                                               new DaemonThreadFactory("voldemort-lsm-compaction-"
+                                                                                       + name
+                                                                                       + "-"));
+        open();
+    }
+
+    private void open() {
+        lock.writeLock().lock();
+        try {
+            Utils.mkdirs(directory);
+            redoCompaction();
+
+            TreeMap<Integer, File> logFiles = new TreeMap<Integer, File>();
+            for(File file: directory.listFiles()) {
+                String fileName = file.getName();
+                if(fileName.endsWith(TEMP_SUFFIX) || fileName.endsWith(OBSOLETE_SUFFIX)) {
+                    deleteFile(file);
+                } else if(fileName.endsWith(SSTable.FILE_EXTENSION)) {
+                    String[] parts = fileName.substring(0,
+                                                        fileName.length()
+                                                                - SSTable.FILE_EXTENSION.length())
+                                             .split("-");
+                    SSTable table = new SSTable(file,
+                                                Integer.parseInt(parts[2]),
+                                                Integer.parseInt(parts[0]),
+                                                Integer.parseInt(parts[1]),
+                                                compression,
+                                                tableCache);
+                    getTree(table.getPartition()).getLevel(table.getLevel()).add(table);
+                    nextTableId = Math.max(nextTableId, table.getId() + 1);
+                } else if(fileName.endsWith(WriteAheadLog.FILE_EXTENSION)) {
+                    logFiles.put(Integer.parseInt(fileName.substring(0,
+                                                                     fileName.length()
+                                                                             - WriteAheadLog.FILE_EXTENSION.length())),
+                                 file);
+                }
+            }
+            for(PartitionTree tree: trees.values()) {
+                Collections.sort(tree.getLevel(0), NEWEST_FIRST);
+                for(int level = 1; level < tree.levels.size(); level++)
+                    Collections.sort(tree.getLevel(level), FIRST_KEY_ORDER);
+            }
+
+            for(File logFile: logFiles.values()) {
+                WriteAheadLog.replay(logFile, new WriteAheadLog.Replayer() {
+
+                    public void replay(ByteArray key, byte[] value) {
+                        putInMemtable(key, value);
+                    }
+                });
+                closedLogs.add(logFile);
+            }
+            int logId = logFiles.isEmpty() ? 0 : logFiles.lastKey() + 1;
+            log = new WriteAheadLog(getLogFile(logId), logId);
+            isOpen = true;
+        } catch(IOException e) {
+            throw new StorageInitializationException("Failed to open lsm store " + getName()
+                                                     + " in " + directory, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Version> getVersions(ByteArray key) {
+        return StoreUtils.getVersions(get(key, null));
+    }
+
+    @Override
+    public List<Versioned<byte[]>> get(ByteArray key, byte[] transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        return readStoredValues(key);
+    }
+
+    @Override
+    public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys,
+                                                          Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(keys);
+        Map<ByteArray, List<Versioned<byte[]>>> results = StoreUtils.newEmptyHashMap(keys);
+        lock.readLock().lock();
+        try {
+            for(ByteArray key: keys) {
+                List<Versioned<byte[]>> values = getStoredValues(key);
+                if(!values.isEmpty())
+                    results.put(key, values);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return results;
+    }
+
+    @Override
+    public void put(ByteArray key, Versioned<byte[]> value, byte[] transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        synchronized(keyLocks.lockFor(key.get())) {
+            List<Versioned<byte[]>> items = readStoredValues(key);
+            // Check for existing versions - remember which items to
+            // remove in case of success
+            List<Versioned<byte[]>> itemsToRemove = new ArrayList<Versioned<byte[]>>(items.size());
+            for(Versioned<byte[]> versioned: items) {
+                Occurred occurred = value.getVersion().compare(versioned.getVersion());
+                if(occurred == Occurred.BEFORE) {
+                    throw new ObsoleteVersionException("Obsolete version for key '" + key
+                                                       + "': " + value.getVersion());
+                } else if(occurred == Occurred.AFTER) {
+                    itemsToRemove.add(versioned);
+                }
+            }
+            items.removeAll(itemsToRemove);
+            items.add(value);
+            write(key, StoreBinaryFormat.toByteArray(items));
+        }
+    }
+
+    @Override
+    public List<Versioned<byte[]>> multiVersionPut(ByteArray key,
+                                                   final List<Versioned<byte[]>> values) {
+        StoreUtils.assertValidKey(key);
+        synchronized(keyLocks.lockFor(key.get())) {
+            List<Versioned<byte[]>> valuesInStorage = readStoredValues(key);
+            List<Versioned<byte[]>> obsoleteVals = resolveAndConstructVersionsToPersist(valuesInStorage,
+                                                                                        values);
+            if(valuesInStorage.size() > 0)
+                write(key, StoreBinaryFormat.toByteArray(valuesInStorage));
+            return obsoleteVals;
+        }
+    }
+
+    @Override
+    public boolean delete(ByteArray key, Version version) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        synchronized(keyLocks.lockFor(key.get())) {
+            List<Versioned<byte[]>> values = readStoredValues(key);
+            if(values.isEmpty())
+                return false;
+
+            if(version == null) {
+                write(key, SSTable.TOMBSTONE);
+                return true;
+            }
+
+            boolean deletedSomething = false;
+            Iterator<Versioned<byte[]>> iterator = values.iterator();
+            while(iterator.hasNext()) {
+                Versioned<byte[]> item = iterator.next();
+                if(item.getVersion().compare(version) == Occurred.BEFORE) {
+                    iterator.remove();
+                    deletedSomething = true;
+                }
+            }
+            if(values.size() == 0)
+                write(key, SSTable.TOMBSTONE);
+            else if(deletedSomething)
+                write(key, StoreBinaryFormat.toByteArray(values));
+            return deletedSomething;
+        }
+    }
+
+    @Override
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries() {
+        return new LsmEntriesIterator(new LsmScanIterator(getPartitions()));
+    }
+
+    @Override
+    public ClosableIterator<ByteArray> keys() {
+        return new LsmKeysIterator(new LsmScanIterator(getPartitions()));
+    }
+
+    @Override
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries(int partition) {
+        return new LsmEntriesIterator(new LsmScanIterator(Collections.singletonList(partition)));
+    }
+
+    @Override
+    public ClosableIterator<ByteArray> keys(int partition) {
+        return new LsmKeysIterator(new LsmScanIterator(Collections.singletonList(partition)));
+    }
+
+    @Override
+    public boolean isPartitionScanSupported() {
+        return true;
+    }
+
+    /**
+     * Waits for the flush in progress, then drops the memtable, the logs and
+     * the tables. The compactions in progress find their inputs gone and give
+     * up.
+     */
+    @Override
+    public void truncate() {
+        lock.writeLock().lock();
+        try {
+            assertOpen();
+            while(flushing != null)
+                flushDone.awaitUninterruptibly();
+            memtable.clear();
+            memtableBytes = 0;
+            for(PartitionTree tree: trees.values()) {
+                for(List<SSTable> level: tree.levels) {
+                    for(SSTable table: level)
+                        table.release();
+                    level.clear();
+                }
+            }
+            int logId = log.getId() + 1;
+            log.close();
+            deleteFile(log.getFile());
+            for(File logFile: closedLogs)
+                deleteFile(logFile);
+            closedLogs.clear();
+            log = new WriteAheadLog(getLogFile(logId), logId);
+        } catch(IOException e) {
+            throw new PersistenceFailureException("Failed to truncate lsm store " + getName(), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lets the flush in progress end, stops the compactions and syncs the log.
+     * The memtable is not flushed, it is replayed from the logs on startup.
+     */
+    @Override
+    public void close() throws VoldemortException {
+        lock.writeLock().lock();
+        try {
+            stopCompaction = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        flushExecutor.shutdown();
+        compactionExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            compactionExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            if(!isOpen)
+                return;
+            isOpen = false;
+            try {
+                log.close();
+            } catch(IOException e) {
+                logger.error("Failed to close " + log.getFile(), e);
+            }
+            for(PartitionTree tree: trees.values()) {
+                for(List<SSTable> level: tree.levels) {
+                    for(SSTable table: level)
+                        table.close();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the memtable to level 0 and waits for the flush to end
+     */
+    @JmxOperation(description = "Flushes the memtable of the store to new tables.")
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            assertOpen();
+            while(flushing != null)
+                flushDone.awaitUninterruptibly();
+            if(memtable.isEmpty())
+                return;
+            startFlush();
+            while(flushing != null)
+                flushDone.awaitUninterruptibly();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "numTables", description = "The number of tables of the store.")
+    public int getNumTables() {
+        lock.readLock().lock();
+        try {
+            int numTables = 0;
+            for(PartitionTree tree: trees.values()) {
+                for(List<SSTable> level: tree.levels)
+                    numTables += level.size();
+            }
+            return numTables;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "numLevel0Tables", description = "The number of flushed tables not compacted yet.")
+    public int getNumLevel0Tables() {
+        lock.readLock().lock();
+        try {
+            int numTables = 0;
+            for(PartitionTree tree: trees.values())
+                numTables += tree.getLevel(0).size();
+            return numTables;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "numOpenTables", description = "The number of tables whose file is open.")
+    public int getNumOpenTables() {
+        return tableCache.size();
+    }
+
+    @JmxGetter(name = "tableBytes", description = "The size of the tables of the store.")
+    public long getTableBytes() {
+        lock.readLock().lock();
+        try {
+            long tableBytes = 0;
+            for(PartitionTree tree: trees.values()) {
+                for(List<SSTable> level: tree.levels)
+                    tableBytes += getSize(level);
+            }
+            return tableBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "memtableBytes", description = "The approximate size of the memtable.")
+    public long getMemtableBytes() {
+        lock.readLock().lock();
+        try {
+            return memtableBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "numFlushes", description = "The number of memtables flushed to tables.")
+    public long getNumFlushes() {
+        lock.readLock().lock();
+        try {
+            return numFlushes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "numCompactions", description = "The number of compactions which replaced tables.")
+    public long getNumCompactions() {
+        lock.readLock().lock();
+        try {
+            return numCompactions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of tables of each level of a partition
+     */
+    public List<Integer> getLevelSizes(int partition) {
+        lock.readLock().lock();
+        try {
+            List<Integer> sizes = new ArrayList<Integer>();
+            PartitionTree tree = trees.get(partition);
+            if(tree != null) {
+                for(List<SSTable> level: tree.levels)
+                    sizes.add(level.size());
+            }
+            return sizes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void assertOpen() {
+        if(!isOpen)
+            throw new PersistenceFailureException("Lsm store " + getName() + " is closed");
+    }
+
+    private List<Integer> getPartitions() {
+        lock.readLock().lock();
+        try {
+            List<Integer> partitions = new ArrayList<Integer>(trees.keySet());
+            for(Integer partition: memtable.keySet()) {
+                if(!trees.containsKey(partition))
+                    partitions.add(partition);
+            }
+            if(flushing != null) {
+                for(Integer partition: flushing.keySet()) {
+                    if(!partitions.contains(partition))
+                        partitions.add(partition);
+                }
+            }
+            Collections.sort(partitions);
+            return partitions;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private PartitionTree getTree(int partition) {
+        PartitionTree tree = trees.get(partition);
+        if(tree == null) {
+            tree = new PartitionTree(partition);
+            trees.put(partition, tree);
+        }
+        return tree;
+    }
+
+    private List<Versioned<byte[]>> readStoredValues(ByteArray key) {
+        lock.readLock().lock();
+        try {
+            return getStoredValues(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * Called with the lock held
+     */
+    private List<Versioned<byte[]>> getStoredValues(ByteArray key) {
+        assertOpen();
+        byte[] value = lookup(key);
+        if(value == null || value == SSTable.TOMBSTONE)
+            return new ArrayList<Versioned<byte[]>>(0);
+        return StoreBinaryFormat.fromByteArray(value);
+    }
+
+    /*
+     * Looks a key up from the newest data to the oldest
+     */
+    private byte[] lookup(ByteArray key) {
+        int partition = routingStrategy.getMasterPartition(key.get());
+        byte[] value = lookup(memtable, partition, key);
+        if(value != null)
+            return value;
+        if(flushing != null) {
+            value = lookup(flushing, partition, key);
+            if(value != null)
+                return value;
+        }
+        PartitionTree tree = trees.get(partition);
+        if(tree == null)
+            return null;
+
+        byte[] keyHash = ByteUtils.md5(key.get());
+        for(SSTable table: tree.getLevel(0)) {
+            value = table.get(key, keyHash);
+            if(value != null)
+                return value;
+        }
+        for(int level = 1; level < tree.levels.size(); level++) {
+            SSTable table = findTable(tree.getLevel(level), key);
+            if(table != null) {
+                value = table.get(key, keyHash);
+                if(value != null)
+                    return value;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] lookup(Map<Integer, TreeMap<ByteArray, byte[]>> memtable,
+                                 int partition,
+                                 ByteArray key) {
+        TreeMap<ByteArray, byte[]> partitionEntries = memtable.get(partition);
+        return partitionEntries == null ? null : partitionEntries.get(key);
+    }
+
+    /*
+     * The table of a level of non overlapping tables whose range may hold the
+     * key
+     */
+    private static SSTable findTable(List<SSTable> level, ByteArray key) {
+        int low = 0;
+        int high = level.size() - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            if(SSTable.KEY_ORDER.compare(level.get(middle).getLastKey(), key) < 0)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        if(low == level.size() || SSTable.KEY_ORDER.compare(level.get(low).getFirstKey(), key) > 0)
+            return null;
+        return level.get(low);
+    }
+
+    /*
+     * Appends to the log and the memtable under the write lock, then syncs
+     * the log without it. Called with the lock of the key held.
+     */
+    private void write(ByteArray key, byte[] value) {
+        WriteAheadLog written;
+        lock.writeLock().lock();
+        try {
+            assertOpen();
+            if(memtableBytes >= config.getMemtableSize()) {
+                // wait for the previous memtable to be flushed
+                while(flushing != null)
+                    flushDone.awaitUninterruptibly();
+                assertOpen();
+                if(memtableBytes >= config.getMemtableSize())
+                    startFlush();
+            }
+            written = log;
+            try {
+                written.append(key, value);
+            } catch(IOException e) {
+                throw new PersistenceFailureException("Failed to write to " + written.getFile(),
+                                                      e);
+            }
+            putInMemtable(key, value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if(config.isFsyncWrites()) {
+            try {
+                written.sync();
+            } catch(IOException e) {
+                throw new PersistenceFailureException("Failed to sync " + written.getFile(), e);
+            }
+        }
+    }
+
+    private void putInMemtable(ByteArray key, byte[] value) {
+        Integer partition = routingStrategy.getMasterPartition(key.get());
+        TreeMap<ByteArray, byte[]> partitionEntries = memtable.get(partition);
+        if(partitionEntries == null) {
+            partitionEntries = new TreeMap<ByteArray, byte[]>(SSTable.KEY_ORDER);
+            memtable.put(partition, partitionEntries);
+        }
+        byte[] previous = partitionEntries.put(key, value);
+        if(previous == null)
+            memtableBytes += key.length() + value.length + ENTRY_OVERHEAD;
+        else
+            memtableBytes += value.length - previous.length;
+    }
+
+    /*
+     * Freezes the memtable, starts a new log and hands the frozen memtable to
+     * the flush thread. Called with the write lock held and no flush running.
+     */
+    private void startFlush() {
+        WriteAheadLog newLog;
+        try {
+            newLog = new WriteAheadLog(getLogFile(log.getId() + 1), log.getId() + 1);
+            log.close();
+        } catch(IOException e) {
+            throw new PersistenceFailureException("Failed to start a new log for lsm store "
+                                                  + getName(), e);
+        }
+        closedLogs.add(log.getFile());
+        log = newLog;
+        flushing = memtable;
+        memtable = new HashMap<Integer, TreeMap<ByteArray, byte[]>>();
+        memtableBytes = 0;
+
+        final Map<Integer, TreeMap<ByteArray, byte[]>> toFlush = flushing;
+        final List<File> flushedLogs = new ArrayList<File>(closedLogs);
+        final Map<Integer, Integer> tableIds = new HashMap<Integer, Integer>();
+        for(Integer partition: toFlush.keySet())
+            tableIds.put(partition, nextTableId++);
+        flushExecutor.execute(new Runnable() {
+
+            public void run() {
+                flush(toFlush, tableIds, flushedLogs);
+            }
+        });
+    }
+
+    private void flush(Map<Integer, TreeMap<ByteArray, byte[]>> toFlush,
+                       Map<Integer, Integer> tableIds,
+                       List<File> flushedLogs) {
+        List<SSTable> tables = new ArrayList<SSTable>(toFlush.size());
+        try {
+            for(Map.Entry<Integer, TreeMap<ByteArray, byte[]>> partitionEntries: toFlush.entrySet()) {
+                int partition = partitionEntries.getKey();
+                int id = tableIds.get(partition);
+                File tempFile = new File(directory, getTableFileName(partition, 0, id)
+                                                    + TEMP_SUFFIX);
+                SSTableWriter writer = new SSTableWriter(tempFile,
+                                                         compression,
+                                                         config.getBlockSize(),
+                                                         config.getBloomBitsPerKey());
+                try {
+                    for(Map.Entry<ByteArray, byte[]> entry: partitionEntries.getValue()
+                                                                             .entrySet())
+                        writer.add(entry.getKey(), entry.getValue());
+                    writer.finish();
+                } catch(IOException e) {
+                    writer.abort();
+                    throw e;
+                }
+                SSTable table = new SSTable(tempFile, id, partition, 0, compression, tableCache);
+                tables.add(table);
+                table.renameTo(getTableFile(partition, 0, id));
+            }
+        } catch(Exception e) {
+            logger.error("Failed to flush the memtable of lsm store " + getName(), e);
+            for(SSTable table: tables)
+                table.release();
+            lock.writeLock().lock();
+            try {
+                // the frozen memtable is older than the current one
+                for(Map.Entry<Integer, TreeMap<ByteArray, byte[]>> partitionEntries: toFlush.entrySet()) {
+                    for(Map.Entry<ByteArray, byte[]> entry: partitionEntries.getValue()
+                                                                             .entrySet()) {
+                        if(lookup(memtable, partitionEntries.getKey(), entry.getKey()) == null)
+                            putInMemtable(entry.getKey(), entry.getValue());
+                    }
+                }
+                flushing = null;
+                flushDone.signalAll();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for(SSTable table: tables) {
+                getTree(table.getPartition()).getLevel(0).add(0, table);
+                maybeCompact(table.getPartition());
+            }
+            for(File logFile: flushedLogs)
+                deleteFile(logFile);
+            closedLogs.removeAll(flushedLogs);
+            flushing = null;
+            numFlushes++;
+            flushDone.signalAll();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Starts a compaction of the partition if it needs one and has none
+     * running. Called with the write lock held.
+     */
+    private void maybeCompact(int partition) {
+        final PartitionTree tree = getTree(partition);
+        if(tree.compacting || stopCompaction || !isOpen)
+            return;
+        final int level = tree.getLevelToCompact();
+        if(level < 0)
+            return;
+        tree.compacting = true;
+        compactionExecutor.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    compact(tree, level);
+                } catch(Exception e) {
+                    if(!stopCompaction)
+                        logger.error("Compaction of level " + level + " of partition "
+                                     + tree.partition + " of lsm store " + getName()
+                                     + " failed", e);
+                } finally {
+                    lock.writeLock().lock();
+                    try {
+                        tree.compacting = false;
+                        maybeCompact(tree.partition);
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+     * Merges all the tables of level 0, or one table of a deeper level, with
+     * the tables of the next level it overlaps
+     */
+    private void compact(PartitionTree tree, int level) throws IOException {
+        List<SSTable> inputs;
+        List<SSTable> overlapping = new ArrayList<SSTable>();
+        boolean dropTombstones;
+        lock.writeLock().lock();
+        try {
+            List<SSTable> levelTables = tree.getLevel(level);
+            // truncated in the meantime
+            if(levelTables.isEmpty())
+                return;
+            if(level == 0) {
+                inputs = new ArrayList<SSTable>(levelTables);
+            } else {
+                // go round the key range of the level
+                SSTable picked = levelTables.get(0);
+                if(tree.compactionPointers.get(level) != null) {
+                    for(SSTable table: levelTables) {
+                        if(SSTable.KEY_ORDER.compare(table.getFirstKey(),
+                                                     tree.compactionPointers.get(level)) > 0) {
+                            picked = table;
+                            break;
+                        }
+                    }
+                }
+                inputs = Collections.singletonList(picked);
+                tree.compactionPointers.put(level, picked.getLastKey());
+            }
+            ByteArray firstKey = inputs.get(0).getFirstKey();
+            ByteArray lastKey = inputs.get(0).getLastKey();
+            for(SSTable input: inputs) {
+                if(SSTable.KEY_ORDER.compare(input.getFirstKey(), firstKey) < 0)
+                    firstKey = input.getFirstKey();
+                if(SSTable.KEY_ORDER.compare(input.getLastKey(), lastKey) > 0)
+                    lastKey = input.getLastKey();
+            }
+            for(SSTable table: tree.getLevel(level + 1)) {
+                if(table.overlaps(firstKey, lastKey))
+                    overlapping.add(table);
+            }
+            dropTombstones = true;
+            for(int deeper = level + 2; deeper < tree.levels.size(); deeper++) {
+                if(!tree.getLevel(deeper).isEmpty())
+                    dropTombstones = false;
+            }
+            for(SSTable table: inputs)
+                table.acquire();
+            for(SSTable table: overlapping)
+                table.acquire();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        List<SSTable> outputs = new ArrayList<SSTable>();
+        try {
+            List<Iterator<Pair<ByteArray, byte[]>>> runs = new ArrayList<Iterator<Pair<ByteArray, byte[]>>>();
+            for(SSTable table: inputs)
+                runs.add(table.iterator());
+            for(SSTable table: overlapping)
+                runs.add(table.iterator());
+            MergingIterator merged = new MergingIterator(runs);
+
+            SSTableWriter writer = null;
+            File tempFile = null;
+            int id = 0;
+            try {
+                while(merged.hasNext()) {
+                    if(stopCompaction)
+                        throw new IOException("Compaction stopped");
+                    Pair<ByteArray, byte[]> entry = merged.next();
+                    if(dropTombstones && entry.getSecond() == SSTable.TOMBSTONE)
+                        continue;
+                    if(writer == null) {
+                        id = newTableId();
+                        tempFile = new File(directory, getTableFileName(tree.partition,
+                                                                        level + 1,
+                                                                        id)
+                                                       + TEMP_SUFFIX);
+                        writer = new SSTableWriter(tempFile,
+                                                   compression,
+                                                   config.getBlockSize(),
+                                                   config.getBloomBitsPerKey());
+                    }
+                    writer.add(entry.getFirst(), entry.getSecond());
+                    if(writer.getSize() >= config.getTableSize()) {
+                        writer.finish();
+                        writer = null;
+                        outputs.add(new SSTable(tempFile,
+                                                id,
+                                                tree.partition,
+                                                level + 1,
+                                                compression,
+                                                tableCache));
+                    }
+                }
+                if(writer != null) {
+                    writer.finish();
+                    writer = null;
+                    outputs.add(new SSTable(tempFile,
+                                            id,
+                                            tree.partition,
+                                            level + 1,
+                                            compression,
+                                            tableCache));
+                }
+            } finally {
+                if(writer != null)
+                    writer.abort();
+            }
+
+            if(!replaceTables(tree, level, inputs, overlapping, outputs)) {
+                for(SSTable output: outputs)
+                    output.release();
+            }
+        } catch(IOException e) {
+            for(SSTable output: outputs)
+                output.release();
+            throw e;
+        } catch(RuntimeException e) {
+            for(SSTable output: outputs)
+                output.release();
+            throw e;
+        } finally {
+            for(SSTable table: inputs)
+                table.release();
+            for(SSTable table: overlapping)
+                table.release();
+        }
+    }
+
+    private int newTableId() {
+        lock.writeLock().lock();
+        try {
+            return nextTableId++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Swaps the inputs of a compaction for its outputs, unless the inputs
+     * went away in the meantime. The marker file lists the inputs and the
+     * outputs, so the swap is redone on startup if it is cut short.
+     */
+    private boolean replaceTables(PartitionTree tree,
+                                  int level,
+                                  List<SSTable> inputs,
+                                  List<SSTable> overlapping,
+                                  List<SSTable> outputs) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if(!isOpen || !tree.getLevel(level).containsAll(inputs)
+               || !tree.getLevel(level + 1).containsAll(overlapping))
+                return false;
+
+            List<SSTable> replaced = new ArrayList<SSTable>(inputs);
+            replaced.addAll(overlapping);
+            File tempFile = new File(directory, COMPACTION_FILE + TEMP_SUFFIX);
+            FileOutputStream output = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream dataOutput = new DataOutputStream(output);
+                dataOutput.writeInt(replaced.size());
+                for(SSTable table: replaced)
+                    dataOutput.writeUTF(table.getFile().getName());
+                dataOutput.writeInt(outputs.size());
+                for(SSTable table: outputs)
+                    dataOutput.writeUTF(table.getFile().getName());
+                dataOutput.flush();
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            File compactionFile = new File(directory, COMPACTION_FILE);
+            if(!tempFile.renameTo(compactionFile))
+                throw new IOException("Failed to rename " + tempFile + " to " + compactionFile);
+
+            for(SSTable table: replaced)
+                table.renameTo(new File(directory, table.getFile().getName() + OBSOLETE_SUFFIX));
+            for(SSTable table: outputs)
+                table.renameTo(getTableFile(tree.partition, level + 1, table.getId()));
+            deleteFile(compactionFile);
+
+            tree.getLevel(level).removeAll(inputs);
+            List<SSTable> nextLevel = tree.getLevel(level + 1);
+            nextLevel.removeAll(overlapping);
+            nextLevel.addAll(outputs);
+            Collections.sort(nextLevel, FIRST_KEY_ORDER);
+            for(SSTable table: replaced)
+                table.release();
+            numCompactions++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Finishes a compaction cut short by a crash: the replaced tables are
+     * deleted and the new ones renamed to their final names
+     */
+    private void redoCompaction() throws IOException {
+        File compactionFile = new File(directory, COMPACTION_FILE);
+        if(!compactionFile.exists())
+            return;
+        DataInputStream input = new DataInputStream(new FileInputStream(compactionFile));
+        try {
+            int numReplaced = input.readInt();
+            for(int i = 0; i < numReplaced; i++) {
+                String fileName = input.readUTF();
+                deleteFile(new File(directory, fileName));
+                deleteFile(new File(directory, fileName + OBSOLETE_SUFFIX));
+            }
+            int numOutputs = input.readInt();
+            for(int i = 0; i < numOutputs; i++) {
+                File tempFile = new File(directory, input.readUTF());
+                File file = new File(directory, tempFile.getName().substring(0,
+                                                                             tempFile.getName()
+                                                                                     .length()
+                                                                                     - TEMP_SUFFIX.length()));
+                if(tempFile.exists() && !tempFile.renameTo(file))
+                    throw new IOException("Failed to rename " + tempFile + " to " + file);
+            }
+        } finally {
+            input.close();
+        }
+        deleteFile(compactionFile);
+    }
+
+    private static long getSize(List<SSTable> tables) {
+        long size = 0;
+        for(SSTable table: tables)
+            size += table.getSize();
+        return size;
+    }
+
+    private File getLogFile(int id) {
+        return new File(directory, id + WriteAheadLog.FILE_EXTENSION);
+    }
+
+    private static String getTableFileName(int partition, int level, int id) {
+        return partition + "-" + level + "-" + id + SSTable.FILE_EXTENSION;
+    }
+
+    private File getTableFile(int partition, int level, int id) {
+        return new File(directory, getTableFileName(partition, level, id));
+    }
+
+    private static void deleteFile(File file) {
+        if(file.exists() && !file.delete())
+            logger.warn("Failed to delete " + file);
+    }
+
+    /**
+     * The levels of tables of a master partition. Guarded by the lock of the
+     * engine.
+     */
+    private class PartitionTree {
+
+        private final int partition;
+        // level 0 from the newest table, the other levels by key range
+        private final List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+        // the last key compacted of each level
+        private final Map<Integer, ByteArray> compactionPointers = new HashMap<Integer, ByteArray>();
+        private boolean compacting = false;
+
+        PartitionTree(int partition) {
+            this.partition = partition;
+        }
+
+        List<SSTable> getLevel(int level) {
+            while(levels.size() <= level)
+                levels.add(new ArrayList<SSTable>());
+            return levels.get(level);
+        }
+
+        /*
+         * Level 0 if it holds too many tables, else the first level larger
+         * than it may be, or -1
+         */
+        int getLevelToCompact() {
+            if(getLevel(0).size() >= config.getLevel0MaxTables())
+                return 0;
+            long maxSize = config.getLevelBaseSize();
+            for(int level = 1; level < levels.size(); level++) {
+                if(getSize(levels.get(level)) > maxSize)
+                    return level;
+                maxSize *= config.getLevelSizeMultiplier();
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Goes over the entries of the given partitions in key order, one
+     * partition at a time, skipping the tombstones. The tables of a partition
+     * are held until the scan moves past it or is closed.
+     */
+    @NotThreadsafe
+    private class LsmScanIterator implements ClosableIterator<Pair<ByteArray, byte[]>> {
+
+        private final Iterator<Integer> partitions;
+        private final List<SSTable> acquired = new ArrayList<SSTable>();
+        private Iterator<Pair<ByteArray, byte[]>> entries = Collections.<Pair<ByteArray, byte[]>> emptyList()
+                                                                       .iterator();
+        private Pair<ByteArray, byte[]> next = null;
+
+        LsmScanIterator(List<Integer> partitions) {
+            this.partitions = partitions.iterator();
+        }
+
+        public boolean hasNext() {
+            while(next == null) {
+                if(entries.hasNext()) {
+                    Pair<ByteArray, byte[]> entry = entries.next();
+                    if(entry.getSecond() != SSTable.TOMBSTONE)
+                        next = entry;
+                } else if(partitions.hasNext()) {
+                    releaseTables();
+                    entries = scan(partitions.next());
+                } else {
+                    releaseTables();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Iterator<Pair<ByteArray, byte[]>> scan(int partition) {
+            List<Iterator<Pair<ByteArray, byte[]>>> runs = new ArrayList<Iterator<Pair<ByteArray, byte[]>>>();
+            lock.readLock().lock();
+            try {
+                assertOpen();
+                TreeMap<ByteArray, byte[]> partitionEntries = memtable.get(partition);
+                if(partitionEntries != null)
+                    runs.add(toEntries(new TreeMap<ByteArray, byte[]>(partitionEntries)));
+                if(flushing != null && flushing.get(partition) != null)
+                    runs.add(toEntries(flushing.get(partition)));
+                PartitionTree tree = trees.get(partition);
+                if(tree != null) {
+                    for(List<SSTable> level: tree.levels) {
+                        for(SSTable table: level) {
+                            table.acquire();
+                            acquired.add(table);
+                            runs.add(table.iterator());
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return new MergingIterator(runs);
+        }
+
+        private Iterator<Pair<ByteArray, byte[]>> toEntries(TreeMap<ByteArray, byte[]> partitionEntries) {
+            final Iterator<Map.Entry<ByteArray, byte[]>> iterator = partitionEntries.entrySet()
+                                                                                    .iterator();
+            return new Iterator<Pair<ByteArray, byte[]>>() {
+
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                public Pair<ByteArray, byte[]> next() {
+                    Map.Entry<ByteArray, byte[]> entry = iterator.next();
+                    return Pair.create(entry.getKey(), entry.getValue());
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("No removal");
+                }
+            };
+        }
+
+        private void releaseTables() {
+            for(SSTable table: acquired)
+                table.release();
+            acquired.clear();
+        }
+
+        public Pair<ByteArray, byte[]> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            Pair<ByteArray, byte[]> entry = next;
+            next = null;
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal");
+        }
+
+        public void close() {
+            releaseTables();
+            entries = Collections.<Pair<ByteArray, byte[]>> emptyList().iterator();
+        }
+    }
+
+    @NotThreadsafe
+    private class LsmKeysIterator implements ClosableIterator<ByteArray> {
+
+        private final LsmScanIterator scan;
+
+        LsmKeysIterator(LsmScanIterator scan) {
+            this.scan = scan;
+        }
+
+        public boolean hasNext() {
+            return scan.hasNext();
+        }
+
+        public ByteArray next() {
+            return scan.next().getFirst();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal");
+        }
+
+        public void close() {
+            scan.close();
+        }
+    }
+
+    @NotThreadsafe
+    private class LsmEntriesIterator implements
+            ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> {
+
+        private final LsmScanIterator scan;
+        private ByteArray currentKey;
+        private Iterator<Versioned<byte[]>> currentValues = null;
+
+        LsmEntriesIterator(LsmScanIterator scan) {
+            this.scan = scan;
+        }
+
+        public boolean hasNext() {
+            while(currentValues == null || !currentValues.hasNext()) {
+                if(!scan.hasNext())
+                    return false;
+                Pair<ByteArray, byte[]> entry = scan.next();
+                currentKey = entry.getFirst();
+                currentValues = StoreBinaryFormat.fromByteArray(entry.getSecond()).iterator();
+            }
+            return true;
+        }
+
+        public Pair<ByteArray, Versioned<byte[]>> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return Pair.create(currentKey, currentValues.next());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal");
+        }
+
+        public void close() {
+            scan.close();
+        }
+    }
+}
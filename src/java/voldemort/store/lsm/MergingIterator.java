@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.utils.ByteArray;
+import voldemort.utils.Pair;
+
+/**
+ * Merges sorted runs of entries into one run in key order. When several runs
+ * hold a key, the entry of the run coming first in the list wins, so the runs
+ * are given from the most to the least recent.
+ * 
+ */
+@NotThreadsafe
+class MergingIterator implements Iterator<Pair<ByteArray, byte[]>> {
+
+    private final PriorityQueue<Head> heads;
+
+    MergingIterator(List<Iterator<Pair<ByteArray, byte[]>>> runs) {
+        this.heads = new PriorityQueue<Head>(Math.max(runs.size(), 1));
+        for(int i = 0; i < runs.size(); i++) {
+            Iterator<Pair<ByteArray, byte[]>> run = runs.get(i);
+            if(run.hasNext())
+                heads.add(new Head(i, run.next(), run));
+        }
+    }
+
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    public Pair<ByteArray, byte[]> next() {
+        if(heads.isEmpty())
+            throw new NoSuchElementException();
+        Head head = heads.poll();
+        Pair<ByteArray, byte[]> entry = head.entry;
+        advance(head);
+        // skip the older entries of the key
+        while(!heads.isEmpty() && heads.peek().entry.getFirst().equals(entry.getFirst()))
+            advance(heads.poll());
+        return entry;
+    }
+
+    private void advance(Head head) {
+        if(head.run.hasNext()) {
+            head.entry = head.run.next();
+            heads.add(head);
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("No removal");
+    }
+
+    private static class Head implements Comparable<Head> {
+
+        private final int rank;
+        private final Iterator<Pair<ByteArray, byte[]>> run;
+        private Pair<ByteArray, byte[]> entry;
+
+        Head(int rank, Pair<ByteArray, byte[]> entry, Iterator<Pair<ByteArray, byte[]>> run) {
+            this.rank = rank;
+            this.entry = entry;
+            this.run = run;
+        }
+
+        public int compareTo(Head other) {
+            int comparison = SSTable.KEY_ORDER.compare(entry.getFirst(), other.entry.getFirst());
+            if(comparison != 0)
+                return comparison;
+            return rank - other.rank;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.store.PersistenceFailureException;
+import voldemort.store.compress.CompressionStrategy;
+import voldemort.store.readonly.BloomFilter;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.Pair;
+
+/**
+ * An immutable sorted table of the keys of one partition, as written by
+ * {@link SSTableWriter}.
+ * <p>
+ * The file starts with the data blocks, each holding a run of sorted entries
+ * and compressed on its own. The entries are the key and the
+ * {@link voldemort.store.StoreBinaryFormat} encoding of its versions, or a
+ * tombstone. The index of the blocks follows, the first key, position and
+ * length of each block, then the Bloom filter of the keys and a fixed size
+ * footer locating both. The index and the filter are loaded in memory, so
+ * looking a key up reads at most one block. The file itself is opened through
+ * a {@link TableCache}, which bounds the number of open tables.
+ * <p>
+ * A table is reference counted: the engine holds a reference while the table
+ * is live, and scans take one for as long as they read it. The file is deleted
+ * once the table is obsolete and the last reference is released.
+ * 
+ */
+@Threadsafe
+public class SSTable {
+
+    private static final Logger logger = Logger.getLogger(SSTable.class);
+
+    public static final String FILE_EXTENSION = ".sst";
+
+    /**
+     * The value of a deleted key
+     */
+    public static final byte[] TOMBSTONE = new byte[0];
+
+    /**
+     * The order of the keys, by unsigned bytes
+     */
+    public static final Comparator<ByteArray> KEY_ORDER = new Comparator<ByteArray>() {
+
+        public int compare(ByteArray key1, ByteArray key2) {
+            return ByteUtils.compare(key1.get(), key2.get());
+        }
+    };
+
+    // index position, filter position and magic number
+    static final int FOOTER_SIZE = 2 * ByteUtils.SIZE_OF_LONG + ByteUtils.SIZE_OF_INT;
+    static final int MAGIC = 0x4c534d31;
+
+    private final int id;
+    private final int partition;
+    private final int level;
+    private final CompressionStrategy compression;
+    private final TableCache cache;
+    private final long size;
+    private final ByteArray[] blockKeys;
+    private final long[] blockPositions;
+    private final int[] blockLengths;
+    private final ByteArray lastKey;
+    private final long numEntries;
+    private final BloomFilter filter;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile File file;
+    // set once the file is closed for good, read by the cache
+    private volatile boolean closed = false;
+
+    /**
+     * Opens a table file, loading its index and Bloom filter
+     * 
+     * @param file The table file
+     * @param id The id of the table, higher for more recent tables
+     * @param partition The partition of the keys of the table
+     * @param level The level of the table
+     * @param compression The codec of the blocks
+     * @param cache The cache of the open tables, which keeps the file open
+     */
+    public SSTable(File file,
+                   int id,
+                   int partition,
+                   int level,
+                   CompressionStrategy compression,
+                   TableCache cache) throws IOException {
+        this.file = file;
+        this.id = id;
+        this.partition = partition;
+        this.level = level;
+        this.compression = compression;
+        this.cache = cache;
+        FileChannel channel = openChannel();
+        try {
+            this.size = channel.size();
+            if(size < FOOTER_SIZE)
+                throw new IOException("Table " + file + " is too short");
+            ByteBuffer footer = read(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexPosition = footer.getLong();
+            long filterPosition = footer.getLong();
+            if(footer.getInt() != MAGIC || indexPosition < 0 || indexPosition > filterPosition
+               || filterPosition > size - FOOTER_SIZE)
+                throw new IOException("Table " + file + " has an invalid footer");
+
+            ByteBuffer index = read(channel, indexPosition, (int) (filterPosition - indexPosition));
+            int numBlocks = index.getInt();
+            this.blockKeys = new ByteArray[numBlocks];
+            this.blockPositions = new long[numBlocks];
+            this.blockLengths = new int[numBlocks];
+            for(int i = 0; i < numBlocks; i++) {
+                blockKeys[i] = new ByteArray(readBytes(index));
+                blockPositions[i] = index.getLong();
+                blockLengths[i] = index.getInt();
+            }
+            this.lastKey = new ByteArray(readBytes(index));
+            this.numEntries = index.getLong();
+
+            this.filter = BloomFilter.read(read(channel,
+                                                filterPosition,
+                                                (int) (size - FOOTER_SIZE - filterPosition)));
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        } catch(RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        cache.add(this, channel);
+    }
+
+    /**
+     * Opens the file of the table, under its current name
+     */
+    FileChannel openChannel() throws IOException {
+        while(true) {
+            File current = file;
+            try {
+                return new RandomAccessFile(current, "r").getChannel();
+            } catch(FileNotFoundException e) {
+                // retry if the table was renamed in the meantime
+                if(file == current)
+                    throw e;
+            }
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of table " + file);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Looks a key up
+     * 
+     * @param key The key
+     * @param keyHash The md5 of the key, for the Bloom filter
+     * @return The encoded versions of the key, {@link #TOMBSTONE} if the key
+     *         was deleted, or null if the table does not hold the key
+     */
+    public byte[] get(ByteArray key, byte[] keyHash) {
+        if(blockKeys.length == 0 || !filter.mightContain(keyHash)
+           || KEY_ORDER.compare(key, blockKeys[0]) < 0 || KEY_ORDER.compare(key, lastKey) > 0)
+            return null;
+
+        // the last block whose first key is at most the key
+        int block = Arrays.binarySearch(blockKeys, key, KEY_ORDER);
+        if(block < 0)
+            block = -block - 2;
+        ByteBuffer entries = readBlock(block);
+        byte[] target = key.get();
+        while(entries.hasRemaining()) {
+            int keyLength = entries.getInt();
+            int valueLength = entries.getInt();
+            int comparison = compare(entries, keyLength, target);
+            if(comparison == 0) {
+                entries.position(entries.position() + keyLength);
+                if(valueLength < 0)
+                    return TOMBSTONE;
+                byte[] value = new byte[valueLength];
+                entries.get(value);
+                return value;
+            } else if(comparison > 0) {
+                return null;
+            }
+            entries.position(entries.position() + keyLength + Math.max(valueLength, 0));
+        }
+        return null;
+    }
+
+    /*
+     * Compares the key at the position of the buffer to the target
+     */
+    private static int compare(ByteBuffer buffer, int keyLength, byte[] target) {
+        int position = buffer.position();
+        int length = Math.min(keyLength, target.length);
+        for(int i = 0; i < length; i++) {
+            int a = buffer.get(position + i) & 0xff;
+            int b = target[i] & 0xff;
+            if(a != b)
+                return a - b;
+        }
+        return keyLength - target.length;
+    }
+
+    private ByteBuffer readBlock(int block) {
+        try {
+            byte[] compressed;
+            TableCache.OpenTable openTable = cache.acquire(this);
+            try {
+                compressed = read(openTable.getChannel(),
+                                  blockPositions[block],
+                                  blockLengths[block]).array();
+            } finally {
+                cache.release(openTable);
+            }
+            return ByteBuffer.wrap(compression.inflate(compressed));
+        } catch(IOException e) {
+            throw new PersistenceFailureException("Failed to read block " + block + " of table "
+                                                  + file, e);
+        }
+    }
+
+    /**
+     * Reads the entries of the table in key order, one block at a time. The
+     * caller holds a reference to the table while iterating.
+     * 
+     * @return The keys and encoded versions or tombstones of the table
+     */
+    public Iterator<Pair<ByteArray, byte[]>> iterator() {
+        return new TableIterator();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getPartition() {
+        return partition;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getNumEntries() {
+        return numEntries;
+    }
+
+    public ByteArray getFirstKey() {
+        return blockKeys.length == 0 ? lastKey : blockKeys[0];
+    }
+
+    public ByteArray getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * @return true if the key range of the table intersects the given range
+     */
+    public boolean overlaps(ByteArray firstKey, ByteArray lastKey) {
+        return KEY_ORDER.compare(getFirstKey(), lastKey) <= 0
+               && KEY_ORDER.compare(this.lastKey, firstKey) >= 0;
+    }
+
+    /**
+     * Moves the file of the table. The table stays readable, since an open
+     * file is not affected and a closed one is reopened under the new name.
+     */
+    public void renameTo(File to) throws IOException {
+        if(!file.renameTo(to))
+            throw new IOException("Failed to rename " + file + " to " + to);
+        file = to;
+    }
+
+    public void acquire() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Releases a reference, deleting the file of the table with the last one
+     */
+    public void release() {
+        if(references.decrementAndGet() == 0) {
+            closed = true;
+            cache.remove(this);
+            if(!file.delete())
+                logger.warn("Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Closes the file of the table, leaving it on disk
+     */
+    public void close() {
+        closed = true;
+        cache.remove(this);
+    }
+
+    /**
+     * @return true once the table is closed or deleted
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String toString() {
+        return "SSTable(" + file + ")";
+    }
+
+    @NotThreadsafe
+    private class TableIterator implements Iterator<Pair<ByteArray, byte[]>> {
+
+        private int nextBlock = 0;
+        private ByteBuffer entries = ByteBuffer.allocate(0);
+
+        public boolean hasNext() {
+            while(!entries.hasRemaining()) {
+                if(nextBlock == blockKeys.length)
+                    return false;
+                entries = readBlock(nextBlock++);
+            }
+            return true;
+        }
+
+        public Pair<ByteArray, byte[]> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            byte[] key = new byte[entries.getInt()];
+            int valueLength = entries.getInt();
+            entries.get(key);
+            byte[] value = TOMBSTONE;
+            if(valueLength >= 0) {
+                value = new byte[valueLength];
+                entries.get(value);
+            }
+            return Pair.create(new ByteArray(key), value);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal");
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.store.compress.CompressionStrategy;
+import voldemort.store.readonly.BloomFilter;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+
+/**
+ * Writes an {@link SSTable} from entries given in key order
+ * 
+ */
+@NotThreadsafe
+public class SSTableWriter {
+
+    private final File file;
+    private final CompressionStrategy compression;
+    private final int blockSize;
+    private final int bloomBitsPerKey;
+    private final FileOutputStream fileOutput;
+    private final DataOutputStream output;
+
+    private final ByteArrayOutputStream block;
+    private final DataOutputStream blockOutput;
+    private final List<ByteArray> blockKeys = new ArrayList<ByteArray>();
+    private final List<Long> blockPositions = new ArrayList<Long>();
+    private final List<Integer> blockLengths = new ArrayList<Integer>();
+    private long position = 0;
+    private ByteArray lastKey = null;
+    private long[] keyHashes = new long[1024];
+    private int numEntries = 0;
+
+    /**
+     * @param file The file to write, which is replaced
+     * @param compression The codec of the blocks
+     * @param blockSize The uncompressed size past which a block is ended
+     * @param bloomBitsPerKey The bits per key of the Bloom filter
+     */
+    public SSTableWriter(File file,
+                         CompressionStrategy compression,
+                         int blockSize,
+                         int bloomBitsPerKey) throws IOException {
+        this.file = file;
+        this.compression = compression;
+        this.blockSize = blockSize;
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        this.fileOutput = new FileOutputStream(file);
+        this.output = new DataOutputStream(new BufferedOutputStream(fileOutput, 64 * 1024));
+        this.block = new ByteArrayOutputStream(blockSize + blockSize / 4);
+        this.blockOutput = new DataOutputStream(block);
+    }
+
+    /**
+     * Adds an entry, whose key must come after the key of the previous one
+     * 
+     * @param key The key
+     * @param value The encoded versions of the key, or
+     *        {@link SSTable#TOMBSTONE}
+     */
+    public void add(ByteArray key, byte[] value) throws IOException {
+        if(lastKey != null && SSTable.KEY_ORDER.compare(lastKey, key) >= 0)
+            throw new IllegalArgumentException("Key " + key + " is not after " + lastKey);
+        if(block.size() == 0)
+            blockKeys.add(key);
+        blockOutput.writeInt(key.length());
+        blockOutput.writeInt(value == SSTable.TOMBSTONE ? -1 : value.length);
+        blockOutput.write(key.get());
+        if(value != SSTable.TOMBSTONE)
+            blockOutput.write(value);
+        if(block.size() >= blockSize)
+            finishBlock();
+
+        if(numEntries == keyHashes.length)
+            keyHashes = Arrays.copyOf(keyHashes, 2 * numEntries);
+        keyHashes[numEntries++] = ByteUtils.readLong(ByteUtils.md5(key.get()), 0);
+        lastKey = key;
+    }
+
+    private void finishBlock() throws IOException {
+        byte[] compressed = compression.deflate(block.toByteArray());
+        output.write(compressed);
+        blockPositions.add(position);
+        blockLengths.add(compressed.length);
+        position += compressed.length;
+        block.reset();
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    /**
+     * @return The approximate size of the table so far
+     */
+    public long getSize() {
+        return position + block.size();
+    }
+
+    /**
+     * Writes the index, the Bloom filter and the footer, and syncs the file
+     */
+    public void finish() throws IOException {
+        try {
+            if(block.size() > 0)
+                finishBlock();
+
+            long indexPosition = position;
+            output.writeInt(blockKeys.size());
+            position += ByteUtils.SIZE_OF_INT;
+            for(int i = 0; i < blockKeys.size(); i++) {
+                output.writeInt(blockKeys.get(i).length());
+                output.write(blockKeys.get(i).get());
+                output.writeLong(blockPositions.get(i));
+                output.writeInt(blockLengths.get(i));
+                position += 2 * ByteUtils.SIZE_OF_INT + ByteUtils.SIZE_OF_LONG
+                            + blockKeys.get(i).length();
+            }
+            byte[] last = lastKey == null ? new byte[0] : lastKey.get();
+            output.writeInt(last.length);
+            output.write(last);
+            output.writeLong(numEntries);
+            position += ByteUtils.SIZE_OF_INT + last.length + ByteUtils.SIZE_OF_LONG;
+
+            long filterPosition = position;
+            BloomFilter filter = BloomFilter.create(numEntries, bloomBitsPerKey);
+            byte[] keyHash = new byte[ByteUtils.SIZE_OF_LONG];
+            for(int i = 0; i < numEntries; i++) {
+                ByteUtils.writeLong(keyHash, keyHashes[i], 0);
+                filter.add(keyHash);
+            }
+            filter.writeTo(output, null);
+
+            output.writeLong(indexPosition);
+            output.writeLong(filterPosition);
+            output.writeInt(SSTable.MAGIC);
+            output.flush();
+            fileOutput.getFD().sync();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Closes and deletes a table left unfinished
+     */
+    public void abort() {
+        try {
+            output.close();
+        } catch(IOException e) {
+            // deleted anyway
+        }
+        file.delete();
+    }
+}
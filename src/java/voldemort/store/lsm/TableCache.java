@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.log4j.Logger;
+
+import voldemort.annotations.concurrency.Threadsafe;
+
+/**
+ * Keeps the files of the most recently read {@link SSTable}s open, up to a
+ * maximum number, so a store with many tables does not hold a file per table.
+ * The file of a table is reopened when the table is read again after being
+ * evicted.
+ * <p>
+ * A file is only closed once the reads using it are done, so the number of
+ * open files may go over the maximum while many tables are read at once.
+ * 
+ */
+@Threadsafe
+public class TableCache {
+
+    private static final Logger logger = Logger.getLogger(TableCache.class);
+
+    private final int maxOpenTables;
+    // least recently used first
+    private final LinkedHashMap<SSTable, OpenTable> openTables = new LinkedHashMap<SSTable, OpenTable>(16,
+                                                                                                       0.75f,
+                                                                                                       true);
+
+    /**
+     * @param maxOpenTables The number of table files kept open
+     */
+    public TableCache(int maxOpenTables) {
+        if(maxOpenTables <= 0)
+            throw new IllegalArgumentException("The maximum number of open tables must be positive.");
+        this.maxOpenTables = maxOpenTables;
+    }
+
+    /**
+     * Gets the open file of a table, opening it if needed. The caller hands
+     * it back with {@link #release(OpenTable)} once its read is done.
+     */
+    public OpenTable acquire(SSTable table) throws IOException {
+        synchronized(this) {
+            OpenTable openTable = openTables.get(table);
+            if(openTable != null) {
+                openTable.users++;
+                return openTable;
+            }
+        }
+        // open the file outside the monitor, the other tables stay readable
+        FileChannel channel = table.openChannel();
+        synchronized(this) {
+            OpenTable openTable = openTables.get(table);
+            if(table.isClosed()) {
+                // closed or deleted in the meantime, not cached again
+                openTable = new OpenTable(table, channel);
+                openTable.evicted = true;
+            } else if(openTable == null) {
+                openTable = new OpenTable(table, channel);
+                openTables.put(table, openTable);
+                evict();
+            } else {
+                // opened by another reader in the meantime
+                close(table, channel);
+            }
+            openTable.users++;
+            return openTable;
+        }
+    }
+
+    public synchronized void release(OpenTable openTable) {
+        openTable.users--;
+        if(openTable.evicted && openTable.users == 0)
+            close(openTable.table, openTable.channel);
+    }
+
+    /**
+     * Adds a table whose file was just opened
+     */
+    public synchronized void add(SSTable table, FileChannel channel) {
+        if(openTables.containsKey(table)) {
+            close(table, channel);
+            return;
+        }
+        openTables.put(table, new OpenTable(table, channel));
+        evict();
+    }
+
+    /**
+     * Closes the file of a table which is closed or deleted. The reads in
+     * progress finish first. The table is marked closed beforehand, so a
+     * read opening its file concurrently does not cache it again.
+     */
+    public synchronized void remove(SSTable table) {
+        OpenTable openTable = openTables.remove(table);
+        if(openTable != null)
+            evict(openTable);
+    }
+
+    /**
+     * @return The number of tables whose file is open
+     */
+    public synchronized int size() {
+        return openTables.size();
+    }
+
+    public int getMaxOpenTables() {
+        return maxOpenTables;
+    }
+
+    /*
+     * Called with the monitor held
+     */
+    private void evict() {
+        Iterator<OpenTable> iterator = openTables.values().iterator();
+        while(openTables.size() > maxOpenTables && iterator.hasNext()) {
+            OpenTable openTable = iterator.next();
+            iterator.remove();
+            evict(openTable);
+        }
+    }
+
+    private void evict(OpenTable openTable) {
+        openTable.evicted = true;
+        if(openTable.users == 0)
+            close(openTable.table, openTable.channel);
+    }
+
+    private static void close(SSTable table, FileChannel channel) {
+        try {
+            channel.close();
+        } catch(IOException e) {
+            logger.warn("Failed to close " + table.getFile(), e);
+        }
+    }
+
+    /**
+     * The open file of a table, held by the reads using it. Guarded by the
+     * monitor of the cache.
+     */
+    public static class OpenTable {
+
+        private final SSTable table;
+        private final FileChannel channel;
+        private int users = 0;
+        private boolean evicted = false;
+
+        private OpenTable(SSTable table, FileChannel channel) {
+            this.table = table;
+            this.channel = channel;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+    }
+}
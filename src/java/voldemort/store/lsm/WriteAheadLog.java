@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+
+/**
+ * The log of the writes held in the memtable of an {@link LsmStorageEngine},
+ * replayed on startup. Each record holds a crc, the key and the encoded
+ * versions of the key, or a tombstone. The records are appended and the log is
+ * closed with the write lock of the engine held, while {@link #sync()} is
+ * called without it.
+ * 
+ */
+@NotThreadsafe
+public class WriteAheadLog {
+
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class);
+
+    public static final String FILE_EXTENSION = ".log";
+
+    // crc, key length and value length (-1 for a tombstone)
+    private static final int RECORD_HEADER_SIZE = 3 * ByteUtils.SIZE_OF_INT;
+
+    private final int id;
+    private final File file;
+    private final FileChannel channel;
+
+    /**
+     * Creates a new log file
+     * 
+     * @param file The log file
+     * @param id The id of the log, higher for more recent logs
+     */
+    public WriteAheadLog(File file, int id) throws IOException {
+        this.file = file;
+        this.id = id;
+        this.channel = new FileOutputStream(file, true).getChannel();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param key The key written
+     * @param value The encoded versions of the key, or
+     *        {@link SSTable#TOMBSTONE}
+     */
+    public void append(ByteArray key, byte[] value) throws IOException {
+        boolean tombstone = value == SSTable.TOMBSTONE;
+        byte[] record = new byte[RECORD_HEADER_SIZE + key.length() + value.length];
+        ByteUtils.writeInt(record, key.length(), ByteUtils.SIZE_OF_INT);
+        ByteUtils.writeInt(record, tombstone ? -1 : value.length, 2 * ByteUtils.SIZE_OF_INT);
+        System.arraycopy(key.get(), 0, record, RECORD_HEADER_SIZE, key.length());
+        System.arraycopy(value, 0, record, RECORD_HEADER_SIZE + key.length(), value.length);
+        CRC32 crc = new CRC32();
+        crc.update(record, ByteUtils.SIZE_OF_INT, record.length - ByteUtils.SIZE_OF_INT);
+        ByteUtils.writeInt(record, (int) crc.getValue(), 0);
+
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Syncs the records appended so far to disk. A log closed in the meantime
+     * was synced by {@link #close()}.
+     */
+    public void sync() throws IOException {
+        try {
+            channel.force(false);
+        } catch(ClosedChannelException e) {
+            // closed, and so synced, by a flush or the engine
+        }
+    }
+
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Receives the records of a log being replayed
+     */
+    public interface Replayer {
+
+        public void replay(ByteArray key, byte[] value);
+    }
+
+    /**
+     * Replays a log, up to its first incomplete or corrupt record, which a
+     * crash may have left at its end
+     * 
+     * @param file The log file
+     * @param replayer Receives the records in the order they were written
+     */
+    public static void replay(File file, Replayer replayer) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                                                                            64 * 1024));
+        long length = file.length();
+        long position = 0;
+        try {
+            CRC32 crc = new CRC32();
+            while(length - position >= RECORD_HEADER_SIZE) {
+                int storedCrc = input.readInt();
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                long size = (long) RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+                if(keyLength < 0 || valueLength < -1 || position + size > length)
+                    break;
+                byte[] record = new byte[(int) size];
+                ByteUtils.writeInt(record, keyLength, ByteUtils.SIZE_OF_INT);
+                ByteUtils.writeInt(record, valueLength, 2 * ByteUtils.SIZE_OF_INT);
+                input.readFully(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+                crc.reset();
+                crc.update(record, ByteUtils.SIZE_OF_INT, record.length - ByteUtils.SIZE_OF_INT);
+                if((int) crc.getValue() != storedCrc)
+                    break;
+
+                byte[] key = new byte[keyLength];
+                System.arraycopy(record, RECORD_HEADER_SIZE, key, 0, keyLength);
+                byte[] value = SSTable.TOMBSTONE;
+                if(valueLength >= 0) {
+                    value = new byte[valueLength];
+                    System.arraycopy(record, RECORD_HEADER_SIZE + keyLength, value, 0, valueLength);
+                }
+                replayer.replay(new ByteArray(key), value);
+                position += size;
+            }
+        } catch(EOFException e) {
+            // cut short by a crash
+        } finally {
+            input.close();
+        }
+        if(position < length)
+            logger.warn("Ignoring the last " + (length - position) + " bytes of " + file
+                        + ", an incomplete or corrupt record");
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import voldemort.utils.ByteArray;
+import voldemort.utils.FnvHashFunction;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+
+/**
+ * A map of store entries bounded by their size in bytes, evicting with the
+ * W-TinyLFU policy.
+ * <p>
+ * The map is split into independently locked segments. Each segment admits new
+ * entries in a small LRU window, holding 1% of its bytes. The entries leaving
+ * the window move to the main space, split in a probation and a protected LRU
+ * queue, only if they were looked up more often than the entry they would
+ * evict from it, according to a {@link FrequencySketch}. This keeps one-off
+ * lookups, such as a scan, from flushing out the entries which are popular.
+ * Entries hit while on probation are promoted to the protected queue, which
+ * holds up to 80% of the main space.
+ * <p>
+ * The weight of an entry is the size of its key and values plus a fixed
+ * overhead. The lists of values must not be modified once in the map.
+ * 
+ * 
+ */
+class BoundedCacheMap extends AbstractMap<ByteArray, List<Versioned<byte[]>>> implements
+        ConcurrentMap<ByteArray, List<Versioned<byte[]>>> {
+
+    /**
+     * Approximate heap overhead of an entry, on top of its key and values
+     */
+    static final int ENTRY_OVERHEAD = 128;
+
+    private static final FnvHashFunction hashFunction = new FnvHashFunction();
+
+    /*
+     * Average size of an entry assumed to size the frequency sketches
+     */
+    private static final int ASSUMED_ENTRY_SIZE = 512;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long maxBytes;
+
+    BoundedCacheMap(long maxBytes, int numSegments) {
+        if(maxBytes <= 0)
+            throw new IllegalArgumentException("Invalid maximum size " + maxBytes);
+        if(numSegments <= 0 || numSegments > (1 << 16))
+            throw new IllegalArgumentException("Invalid number of segments " + numSegments);
+        int segmentBits = 32 - Integer.numberOfLeadingZeros(numSegments - 1);
+        this.segments = new Segment[1 << segmentBits];
+        this.segmentShift = 32 - segmentBits;
+        this.maxBytes = maxBytes;
+        long segmentBytes = Math.max(1, maxBytes / segments.length);
+        for(int i = 0; i < segments.length; i++)
+            segments[i] = new Segment(segmentBytes);
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getSizeInBytes() {
+        long bytes = 0;
+        for(Segment segment: segments)
+            bytes += segment.getSizeInBytes();
+        return bytes;
+    }
+
+    long getNumEvictions() {
+        long evictions = 0;
+        for(Segment segment: segments)
+            evictions += segment.getNumEvictions();
+        return evictions;
+    }
+
+    static int weigh(ByteArray key, List<Versioned<byte[]>> values) {
+        int weight = ENTRY_OVERHEAD + key.length();
+        for(Versioned<byte[]> value: values)
+            weight += value.getValue().length
+                      + ((VectorClock) value.getVersion()).sizeInBytes();
+        return weight;
+    }
+
+    private static int hash(ByteArray key) {
+        return hashFunction.spreadHash(key.get());
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    @Override
+    public List<Versioned<byte[]>> get(Object key) {
+        if(!(key instanceof ByteArray))
+            return null;
+        int hash = hash((ByteArray) key);
+        return segmentFor(hash).get((ByteArray) key, hash);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if(!(key instanceof ByteArray))
+            return false;
+        int hash = hash((ByteArray) key);
+        return segmentFor(hash).containsKey((ByteArray) key);
+    }
+
+    @Override
+    public List<Versioned<byte[]>> put(ByteArray key, List<Versioned<byte[]>> value) {
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, false);
+    }
+
+    public List<Versioned<byte[]>> putIfAbsent(ByteArray key, List<Versioned<byte[]>> value) {
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value, true);
+    }
+
+    @Override
+    public List<Versioned<byte[]>> remove(Object key) {
+        if(!(key instanceof ByteArray))
+            return null;
+        int hash = hash((ByteArray) key);
+        return segmentFor(hash).remove((ByteArray) key, null);
+    }
+
+    public boolean remove(Object key, Object value) {
+        if(!(key instanceof ByteArray) || value == null)
+            return false;
+        int hash = hash((ByteArray) key);
+        return segmentFor(hash).remove((ByteArray) key, value) != null;
+    }
+
+    public boolean replace(ByteArray key,
+                           List<Versioned<byte[]>> oldValue,
+                           List<Versioned<byte[]>> newValue) {
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, oldValue, newValue) != null;
+    }
+
+    public List<Versioned<byte[]>> replace(ByteArray key, List<Versioned<byte[]>> value) {
+        int hash = hash(key);
+        return segmentFor(hash).replace(key, hash, null, value);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for(Segment segment: segments)
+            size += segment.size();
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for(Segment segment: segments)
+            segment.clear();
+    }
+
+    /**
+     * A weakly consistent view of the entries, which copies the entries of one
+     * segment at a time. Iterating does not count as a lookup of the keys.
+     */
+    @Override
+    public Set<Map.Entry<ByteArray, List<Versioned<byte[]>>>> entrySet() {
+        return new AbstractSet<Map.Entry<ByteArray, List<Versioned<byte[]>>>>() {
+
+            @Override
+            public Iterator<Map.Entry<ByteArray, List<Versioned<byte[]>>>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return BoundedCacheMap.this.size();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<ByteArray, List<Versioned<byte[]>>>> {
+
+        private int segmentIndex = 0;
+        private Iterator<Map.Entry<ByteArray, List<Versioned<byte[]>>>> current = null;
+
+        public boolean hasNext() {
+            while(current == null || !current.hasNext()) {
+                if(segmentIndex == segments.length)
+                    return false;
+                current = segments[segmentIndex++].snapshot().iterator();
+            }
+            return true;
+        }
+
+        public Map.Entry<ByteArray, List<Versioned<byte[]>>> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal");
+        }
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node {
+
+        final ByteArray key;
+        final int hash;
+        List<Versioned<byte[]>> value;
+        int weight;
+        int queue;
+        Node prev;
+        Node next;
+
+        Node(ByteArray key, int hash, List<Versioned<byte[]>> value, int weight) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A doubly linked list of nodes, least recently used first
+     */
+    private static final class AccessQueue {
+
+        Node head;
+        Node tail;
+        long bytes;
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if(tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            bytes += node.weight;
+        }
+
+        void remove(Node node) {
+            if(node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if(node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            bytes -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if(tail != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            bytes = 0;
+        }
+    }
+
+    private static final class Segment {
+
+        private final HashMap<ByteArray, Node> nodes = new HashMap<ByteArray, Node>();
+        private final AccessQueue[] queues = { new AccessQueue(), new AccessQueue(),
+                new AccessQueue() };
+        private final FrequencySketch sketch;
+        private final long maxBytes;
+        private final long windowMaxBytes;
+        private final long mainMaxBytes;
+        private final long protectedMaxBytes;
+        private long evictions;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.windowMaxBytes = Math.max(1, maxBytes / 100);
+            this.mainMaxBytes = maxBytes - windowMaxBytes;
+            this.protectedMaxBytes = mainMaxBytes / 5 * 4;
+            this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxBytes
+                                                                                / ASSUMED_ENTRY_SIZE));
+        }
+
+        synchronized List<Versioned<byte[]>> get(ByteArray key, int hash) {
+            // misses are counted too, the key may well be put next
+            sketch.increment(hash);
+            Node node = nodes.get(key);
+            if(node == null)
+                return null;
+            onHit(node);
+            return node.value;
+        }
+
+        synchronized boolean containsKey(ByteArray key) {
+            return nodes.containsKey(key);
+        }
+
+        synchronized List<Versioned<byte[]>> put(ByteArray key,
+                                                 int hash,
+                                                 List<Versioned<byte[]>> value,
+                                                 boolean onlyIfAbsent) {
+            Node node = nodes.get(key);
+            if(node != null) {
+                List<Versioned<byte[]>> old = node.value;
+                if(!onlyIfAbsent) {
+                    update(node, value);
+                    evict();
+                }
+                return old;
+            }
+
+            node = new Node(key, hash, value, weigh(key, value));
+            if(node.weight > maxBytes) {
+                // would not fit even alone
+                evictions++;
+                return null;
+            }
+            nodes.put(key, node);
+            node.queue = WINDOW;
+            queues[WINDOW].addLast(node);
+            evict();
+            return null;
+        }
+
+        synchronized List<Versioned<byte[]>> replace(ByteArray key,
+                                                     int hash,
+                                                     Object expected,
+                                                     List<Versioned<byte[]>> value) {
+            Node node = nodes.get(key);
+            if(node == null || (expected != null && !Objects.equal(expected, node.value)))
+                return null;
+            List<Versioned<byte[]>> old = node.value;
+            update(node, value);
+            evict();
+            return old;
+        }
+
+        synchronized List<Versioned<byte[]>> remove(ByteArray key, Object expected) {
+            Node node = nodes.get(key);
+            if(node == null || (expected != null && !Objects.equal(expected, node.value)))
+                return null;
+            nodes.remove(key);
+            queues[node.queue].remove(node);
+            return node.value;
+        }
+
+        synchronized int size() {
+            return nodes.size();
+        }
+
+        synchronized long getSizeInBytes() {
+            return queues[WINDOW].bytes + queues[PROBATION].bytes + queues[PROTECTED].bytes;
+        }
+
+        synchronized long getNumEvictions() {
+            return evictions;
+        }
+
+        synchronized void clear() {
+            nodes.clear();
+            for(AccessQueue queue: queues)
+                queue.clear();
+        }
+
+        synchronized List<Map.Entry<ByteArray, List<Versioned<byte[]>>>> snapshot() {
+            List<Map.Entry<ByteArray, List<Versioned<byte[]>>>> entries = new ArrayList<Map.Entry<ByteArray, List<Versioned<byte[]>>>>(nodes.size());
+            for(Node node: nodes.values())
+                entries.add(Maps.immutableEntry(node.key, node.value));
+            return entries;
+        }
+
+        private void update(Node node, List<Versioned<byte[]>> value) {
+            AccessQueue queue = queues[node.queue];
+            queue.remove(node);
+            node.value = value;
+            node.weight = weigh(node.key, value);
+            queue.addLast(node);
+            onHit(node);
+        }
+
+        private void onHit(Node node) {
+            if(node.queue == PROBATION) {
+                queues[PROBATION].remove(node);
+                node.queue = PROTECTED;
+                queues[PROTECTED].addLast(node);
+                // demote the least recently used protected entries
+                while(queues[PROTECTED].bytes > protectedMaxBytes
+                      && queues[PROTECTED].head != node) {
+                    Node demoted = queues[PROTECTED].head;
+                    queues[PROTECTED].remove(demoted);
+                    demoted.queue = PROBATION;
+                    queues[PROBATION].addLast(demoted);
+                }
+            } else {
+                queues[node.queue].moveToLast(node);
+            }
+        }
+
+        private long mainBytes() {
+            return queues[PROBATION].bytes + queues[PROTECTED].bytes;
+        }
+
+        private Node mainVictim() {
+            return queues[PROBATION].head != null ? queues[PROBATION].head
+                                                  : queues[PROTECTED].head;
+        }
+
+        private void evict() {
+            // entries overflowing the window go through the admission filter
+            while(queues[WINDOW].bytes > windowMaxBytes) {
+                Node candidate = queues[WINDOW].head;
+                queues[WINDOW].remove(candidate);
+                admit(candidate);
+            }
+            // updates may have grown the main space past its share
+            while(mainBytes() > mainMaxBytes)
+                discard(mainVictim());
+        }
+
+        private void admit(Node candidate) {
+            if(candidate.weight > mainMaxBytes) {
+                nodes.remove(candidate.key);
+                evictions++;
+                return;
+            }
+            int candidateFrequency = sketch.frequency(candidate.hash);
+            while(mainBytes() + candidate.weight > mainMaxBytes) {
+                Node victim = mainVictim();
+                if(sketch.frequency(victim.hash) >= candidateFrequency) {
+                    nodes.remove(candidate.key);
+                    evictions++;
+                    return;
+                }
+                discard(victim);
+            }
+            candidate.queue = PROBATION;
+            queues[PROBATION].addLast(candidate);
+        }
+
+        private void discard(Node node) {
+            queues[node.queue].remove(node);
+            nodes.remove(node.key);
+            evictions++;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import voldemort.VoldemortException;
+import voldemort.routing.RoutingStrategy;
+import voldemort.server.VoldemortConfig;
+import voldemort.store.StorageConfiguration;
+import voldemort.store.StorageEngine;
+import voldemort.store.StoreDefinition;
+import voldemort.utils.ByteArray;
+import voldemort.utils.JmxUtils;
+
+/**
+ * Creates {@link BoundedCacheStorageEngine}s, caches bounded by the size of
+ * their entries, and registers them in JMX for their hit, miss and eviction
+ * counters.
+ * 
+ * 
+ */
+public class BoundedCacheStorageConfiguration implements StorageConfiguration {
+
+    public static final String TYPE_NAME = "bounded-cache";
+
+    private final long maxBytes;
+    private final int numSegments;
+    private final int nodeId;
+    private final boolean jmxEnabled;
+    private final Set<ObjectName> registeredBeans;
+
+    public BoundedCacheStorageConfiguration(VoldemortConfig config) {
+        this.maxBytes = config.getBoundedCacheMaxBytes();
+        this.numSegments = config.getBoundedCacheSegments();
+        this.nodeId = config.getNodeId();
+        this.jmxEnabled = config.isJmxEnabled();
+        this.registeredBeans = Collections.synchronizedSet(new HashSet<ObjectName>());
+    }
+
+    public StorageEngine<ByteArray, byte[], byte[]> getStore(StoreDefinition storeDef,
+                                                             RoutingStrategy strategy) {
+        BoundedCacheStorageEngine store = new BoundedCacheStorageEngine(storeDef.getName(),
+                                                                        maxBytes,
+                                                                        numSegments);
+        if(jmxEnabled) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objName = JmxUtils.createObjectName(JmxUtils.getPackageName(store.getClass()),
+                                                           storeDef.getName() + nodeId);
+            synchronized(server) {
+                if(server.isRegistered(objName))
+                    JmxUtils.unregisterMbean(server, objName);
+                JmxUtils.registerMbean(server, JmxUtils.createModelMBean(store), objName);
+            }
+            registeredBeans.add(objName);
+        }
+        return store;
+    }
+
+    public String getType() {
+        return TYPE_NAME;
+    }
+
+    public void close() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name: registeredBeans)
+            JmxUtils.unregisterMbean(server, name);
+        registeredBeans.clear();
+    }
+
+    public void update(StoreDefinition storeDef) {
+        throw new VoldemortException("Storage config updates not permitted for " + this.getType()
+                                     + " storage engine");
+    }
+}
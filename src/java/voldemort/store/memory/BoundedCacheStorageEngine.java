@@ -0,0 +1,110 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxOperation;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.Versioned;
+
+/**
+ * An in-memory store which behaves like a cache bounded by the size of its
+ * entries in bytes, evicting with the scan resistant W-TinyLFU policy of
+ * {@link BoundedCacheMap}. Unlike the soft references of the
+ * {@link CacheStorageConfiguration} stores, the hit ratio and the memory used
+ * do not depend on the garbage collector.
+ * 
+ * 
+ */
+public class BoundedCacheStorageEngine extends InMemoryStorageEngine<ByteArray, byte[], byte[]> {
+
+    private final BoundedCacheMap cache;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param name The name of the store
+     * @param maxBytes The maximum size of the entries of the store
+     * @param numSegments The number of independently locked segments, each
+     *        holding an equal share of the bytes
+     */
+    public BoundedCacheStorageEngine(String name, long maxBytes, int numSegments) {
+        this(name, new BoundedCacheMap(maxBytes, numSegments));
+    }
+
+    private BoundedCacheStorageEngine(String name, BoundedCacheMap cache) {
+        super(name, cache);
+        this.cache = cache;
+    }
+
+    @Override
+    public List<Versioned<byte[]>> get(ByteArray key, byte[] transform) throws VoldemortException {
+        List<Versioned<byte[]>> results = super.get(key, transform);
+        if(results.isEmpty())
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return results;
+    }
+
+    @JmxGetter(name = "numHits", description = "The number of lookups which found the key.")
+    public long getNumHits() {
+        return hits.get();
+    }
+
+    @JmxGetter(name = "numMisses", description = "The number of lookups which did not find the key.")
+    public long getNumMisses() {
+        return misses.get();
+    }
+
+    @JmxGetter(name = "hitRatio", description = "The ratio of lookups which found the key.")
+    public double getHitRatio() {
+        long hits = getNumHits();
+        long lookups = hits + getNumMisses();
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    @JmxGetter(name = "numEvictions", description = "The number of entries evicted or not admitted.")
+    public long getNumEvictions() {
+        return cache.getNumEvictions();
+    }
+
+    @JmxGetter(name = "numEntries", description = "The number of keys in the cache.")
+    public int getNumEntries() {
+        return cache.size();
+    }
+
+    @JmxGetter(name = "sizeInBytes", description = "The approximate size of the entries in the cache.")
+    public long getSizeInBytes() {
+        return cache.getSizeInBytes();
+    }
+
+    @JmxGetter(name = "maxBytes", description = "The maximum size of the entries in the cache.")
+    public long getMaxBytes() {
+        return cache.getMaxBytes();
+    }
+
+    @JmxOperation(description = "Resets the hit and miss counters.")
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+}
@@ -32,6 +32,7 @@ import voldemort.store.AbstractStorageEngine;
 import voldemort.store.StoreUtils;
 import voldemort.utils.ClosableIterator;
 import voldemort.utils.Pair;
+import voldemort.utils.StripedLock;
 import voldemort.utils.Utils;
 import voldemort.versioning.ObsoleteVersionException;
 import voldemort.versioning.Occurred;
@@ -40,14 +41,20 @@ import voldemort.versioning.Versioned;
 
 /**
  * A simple non-persistent, in-memory store. Useful for unit testing.
- * 
- * TODO Rewrite this class using striped locks for more granular locking.
+ * <p>
+ * Updates of a key are serialized by a striped lock on the key, so updates of
+ * different keys proceed in parallel. The lists of versions held by the map are
+ * never modified once stored: updates replace them with new lists, which lets
+ * reads go without locking.
  * 
  */
 public class InMemoryStorageEngine<K, V, T> extends AbstractStorageEngine<K, V, T> {
 
     private static final Logger logger = Logger.getLogger(InMemoryStorageEngine.class);
+    private static final int NUM_LOCK_STRIPES = 256;
+
     protected final ConcurrentMap<K, List<Versioned<V>>> map;
+    private final StripedLock locks = new StripedLock(NUM_LOCK_STRIPES);
 
     public InMemoryStorageEngine(String name) {
         super(name);
@@ -59,44 +66,53 @@ public class InMemoryStorageEngine<K, V, T> extends AbstractStorageEngine<K, V,
         this.map = Utils.notNull(map);
     }
 
-    public synchronized void deleteAll() {
+    public void deleteAll() {
         this.map.clear();
     }
 
+    private Object lockFor(K key) {
+        return locks.lockFor(key.hashCode());
+    }
+
     public boolean delete(K key) {
         return delete(key, null);
     }
 
     @Override
-    public synchronized boolean delete(K key, Version version) {
+    public boolean delete(K key, Version version) {
         StoreUtils.assertValidKey(key);
 
-        List<Versioned<V>> values = map.get(key);
-        if(values == null) {
-            return false;
-        }
+        synchronized(lockFor(key)) {
+            List<Versioned<V>> stored = map.get(key);
+            if(stored == null) {
+                return false;
+            }
 
-        if(version == null) {
-            map.remove(key);
-            return true;
-        }
+            if(version == null) {
+                map.remove(key);
+                return true;
+            }
 
-        boolean deletedSomething = false;
-        Iterator<Versioned<V>> iterator = values.iterator();
-        while(iterator.hasNext()) {
-            Versioned<V> item = iterator.next();
-            if(item.getVersion().compare(version) == Occurred.BEFORE) {
-                iterator.remove();
-                deletedSomething = true;
+            List<Versioned<V>> values = new ArrayList<Versioned<V>>(stored);
+            boolean deletedSomething = false;
+            Iterator<Versioned<V>> iterator = values.iterator();
+            while(iterator.hasNext()) {
+                Versioned<V> item = iterator.next();
+                if(item.getVersion().compare(version) == Occurred.BEFORE) {
+                    iterator.remove();
+                    deletedSomething = true;
+                }
+            }
+            if(values.size() == 0) {
+                // if there are no more versions left, also remove the key from
+                // the map
+                map.remove(key);
+            } else if(deletedSomething) {
+                map.put(key, values);
             }
-        }
-        if(values.size() == 0) {
-            // if there are no more versions left, also remove the key from the
-            // map
-            map.remove(key);
-        }
 
-        return deletedSomething;
+            return deletedSomething;
+        }
     }
 
     @Override
@@ -105,7 +121,7 @@ public class InMemoryStorageEngine<K, V, T> extends AbstractStorageEngine<K, V,
     }
 
     @Override
-    public synchronized List<Versioned<V>> get(K key, T transform) throws VoldemortException {
+    public List<Versioned<V>> get(K key, T transform) throws VoldemortException {
         StoreUtils.assertValidKey(key);
         List<Versioned<V>> results = map.get(key);
         if(results == null) {
@@ -123,49 +139,56 @@ public class InMemoryStorageEngine<K, V, T> extends AbstractStorageEngine<K, V,
     }
 
     @Override
-    public synchronized void put(K key, Versioned<V> value, T transforms) throws VoldemortException {
+    public void put(K key, Versioned<V> value, T transforms) throws VoldemortException {
         StoreUtils.assertValidKey(key);
-        List<Versioned<V>> items = map.get(key);
-        // If we have no value, add the current value
-        if(items == null) {
-            items = new ArrayList<Versioned<V>>();
-        }
-        // Check for existing versions - remember which items to
-        // remove in case of success
-        List<Versioned<V>> itemsToRemove = new ArrayList<Versioned<V>>(items.size());
-        for(Versioned<V> versioned: items) {
-            Occurred occurred = value.getVersion().compare(versioned.getVersion());
-            if(occurred == Occurred.BEFORE) {
-                throw new ObsoleteVersionException("Obsolete version for key '" + key + "': "
-                                                   + value.getVersion());
-            } else if(occurred == Occurred.AFTER) {
-                itemsToRemove.add(versioned);
+        synchronized(lockFor(key)) {
+            List<Versioned<V>> stored = map.get(key);
+            // If we have no value, add the current value
+            List<Versioned<V>> items;
+            if(stored == null) {
+                items = new ArrayList<Versioned<V>>(1);
+            } else {
+                items = new ArrayList<Versioned<V>>(stored.size() + 1);
+                // Check for existing versions - keep the ones which are not
+                // superseded by the new value
+                for(Versioned<V> versioned: stored) {
+                    Occurred occurred = value.getVersion().compare(versioned.getVersion());
+                    if(occurred == Occurred.BEFORE) {
+                        throw new ObsoleteVersionException("Obsolete version for key '" + key
+                                                           + "': " + value.getVersion());
+                    } else if(occurred != Occurred.AFTER) {
+                        items.add(versioned);
+                    }
+                }
             }
+            items.add(value);
+            map.put(key, items);
         }
-        items.removeAll(itemsToRemove);
-        items.add(value);
-        map.put(key, items);
     }
 
     @Override
-    public synchronized List<Versioned<V>> multiVersionPut(K key, final List<Versioned<V>> values) {
+    public List<Versioned<V>> multiVersionPut(K key, final List<Versioned<V>> values) {
         // TODO the day this class implements getAndLock and putAndUnlock, this
         // method can be removed
         StoreUtils.assertValidKey(key);
-        List<Versioned<V>> obsoleteVals = null;
-        List<Versioned<V>> valuesInStorage = null;
-        valuesInStorage = map.get(key);
-        if(valuesInStorage == null) {
-            valuesInStorage = new ArrayList<Versioned<V>>(values.size());
+        synchronized(lockFor(key)) {
+            List<Versioned<V>> stored = map.get(key);
+            List<Versioned<V>> valuesInStorage;
+            if(stored == null) {
+                valuesInStorage = new ArrayList<Versioned<V>>(values.size());
+            } else {
+                valuesInStorage = new ArrayList<Versioned<V>>(stored);
+            }
+            List<Versioned<V>> obsoleteVals = resolveAndConstructVersionsToPersist(valuesInStorage,
+                                                                                   values);
+            map.put(key, valuesInStorage);
+            return obsoleteVals;
         }
-        obsoleteVals = resolveAndConstructVersionsToPersist(valuesInStorage, values);
-        map.put(key, valuesInStorage);
-        return obsoleteVals;
     }
 
     @Override
     public ClosableIterator<Pair<K, Versioned<V>>> entries() {
-        return new InMemoryIterator<K, V, T>(map, this);
+        return new InMemoryIterator<K, V, T>(map);
     }
 
     @Override
@@ -185,7 +208,7 @@ public class InMemoryStorageEngine<K, V, T> extends AbstractStorageEngine<K, V,
     }
 
     @Override
-    public synchronized void truncate() {
+    public void truncate() {
         map.clear();
     }
 
@@ -214,7 +237,8 @@ public class InMemoryStorageEngine<K, V, T> extends AbstractStorageEngine<K, V,
 
     /**
      * This class relies on the concurrent hash map's iterator to return a
-     * weakly consistent view of the data in the map.
+     * weakly consistent view of the data in the map. The lists of versions are
+     * never modified once in the map, so they can be iterated without locking.
      */
     @NotThreadsafe
     private static class InMemoryIterator<K, V, T> implements
@@ -223,12 +247,9 @@ public class InMemoryStorageEngine<K, V, T> extends AbstractStorageEngine<K, V,
         private final Iterator<Entry<K, List<Versioned<V>>>> iterator;
         private K currentKey;
         private Iterator<Versioned<V>> currentValues;
-        private InMemoryStorageEngine<K, V, T> inMemoryStorageEngine;
 
-        public InMemoryIterator(ConcurrentMap<K, List<Versioned<V>>> map,
-                                InMemoryStorageEngine<K, V, T> inMemoryStorageEngine) {
+        public InMemoryIterator(ConcurrentMap<K, List<Versioned<V>>> map) {
             this.iterator = map.entrySet().iterator();
-            this.inMemoryStorageEngine = inMemoryStorageEngine;
         }
 
         @Override
@@ -256,16 +277,11 @@ public class InMemoryStorageEngine<K, V, T> extends AbstractStorageEngine<K, V,
                     Entry<K, List<Versioned<V>>> entry = iterator.next();
 
                     List<Versioned<V>> list = entry.getValue();
-                    synchronized(this.inMemoryStorageEngine) {
-                        // okay we may have gotten an empty list, if so try
-                        // again
-                        if(list.size() == 0)
-                            continue;
-
-                        // grab a snapshot of the list while we have exclusive
-                        // access
-                        currentValues = new ArrayList<Versioned<V>>(list).iterator();
-                    }
+                    // okay we may have gotten an empty list, if so try again
+                    if(list.size() == 0)
+                        continue;
+
+                    currentValues = list.iterator();
                     currentKey = entry.getKey();
                     return nextInCurrentValues();
                 }
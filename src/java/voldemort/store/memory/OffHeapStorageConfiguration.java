@@ -0,0 +1,92 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import voldemort.VoldemortException;
+import voldemort.routing.RoutingStrategy;
+import voldemort.server.VoldemortConfig;
+import voldemort.store.StorageConfiguration;
+import voldemort.store.StorageEngine;
+import voldemort.store.StoreDefinition;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ConfigurationException;
+
+/**
+ * Creates {@link OffHeapStorageEngine}s, which behave like caches bounded by
+ * the amount of memory they are given, without holding their data on the
+ * java heap. The direct memory available to the JVM
+ * (-XX:MaxDirectMemorySize) must cover all the stores of this type.
+ * 
+ * 
+ */
+public class OffHeapStorageConfiguration implements StorageConfiguration {
+
+    public static final String TYPE_NAME = "offheap";
+
+    private final long maxBytes;
+    private final int numSegments;
+    private final int pageSize;
+
+    public OffHeapStorageConfiguration(VoldemortConfig config) {
+        this.maxBytes = config.getOffHeapStoreMaxBytes();
+        this.numSegments = config.getOffHeapStoreSegments();
+        long pageSize = config.getOffHeapStorePageSize();
+        if(pageSize <= OffHeapStorageEngine.getMinPageSize() || pageSize > Integer.MAX_VALUE)
+            throw new ConfigurationException("offheap.page.size must be more than "
+                                             + OffHeapStorageEngine.getMinPageSize()
+                                             + " bytes and less than 2GB, not " + pageSize);
+        this.pageSize = (int) pageSize;
+        if(numSegments <= 0 || numSegments > OffHeapStorageEngine.MAX_SEGMENTS)
+            throw new ConfigurationException("offheap.segments must be between 1 and "
+                                             + OffHeapStorageEngine.MAX_SEGMENTS + ", not "
+                                             + numSegments);
+        // every segment needs its own pages, which must all fit in max bytes
+        long pagesPerSegment = OffHeapStorageEngine.getPagesPerSegment(maxBytes,
+                                                                       numSegments,
+                                                                       this.pageSize);
+        if(pagesPerSegment < OffHeapStorageEngine.MIN_PAGES_PER_SEGMENT)
+            throw new ConfigurationException("offheap.max.bytes of " + maxBytes
+                                             + " does not hold "
+                                             + OffHeapStorageEngine.MIN_PAGES_PER_SEGMENT
+                                             + " pages of offheap.page.size for each of the "
+                                             + numSegments + " offheap.segments");
+        if(pagesPerSegment > Integer.MAX_VALUE)
+            throw new ConfigurationException("offheap.page.size of " + pageSize
+                                             + " is too small for offheap.max.bytes of "
+                                             + maxBytes);
+    }
+
+    public StorageEngine<ByteArray, byte[], byte[]> getStore(StoreDefinition storeDef,
+                                                             RoutingStrategy strategy) {
+        return new OffHeapStorageEngine(storeDef.getName(),
+                                        strategy,
+                                        maxBytes,
+                                        numSegments,
+                                        pageSize);
+    }
+
+    public String getType() {
+        return TYPE_NAME;
+    }
+
+    public void close() {}
+
+    public void update(StoreDefinition storeDef) {
+        throw new VoldemortException("Storage config updates not permitted for " + this.getType()
+                                     + " storage engine");
+    }
+}
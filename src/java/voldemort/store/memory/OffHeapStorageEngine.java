@@ -0,0 +1,687 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.routing.RoutingStrategy;
+import voldemort.store.AbstractStorageEngine;
+import voldemort.store.StoreBinaryFormat;
+import voldemort.store.StoreUtils;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.FnvHashFunction;
+import voldemort.utils.Pair;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Occurred;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * A non-persistent storage engine which keeps its keys and values outside of
+ * the java heap, so that large caching stores do not weigh on the garbage
+ * collector.
+ * <p>
+ * The store is split into segments, each guarded by its own read-write lock.
+ * A segment appends its records (the key and the {@link StoreBinaryFormat}
+ * encoding of its versions) to a ring of fixed size pages allocated as direct
+ * buffers, and finds them through an open addressing hash table, itself held
+ * in a direct buffer. Updates append a new record and leave the old one
+ * behind. Once all the pages of a segment are in use, the oldest page is
+ * reclaimed, evicting the keys whose current record it holds. The capacity of
+ * the store is hence bounded by its page memory, and keys are evicted in the
+ * order they were last written.
+ * <p>
+ * Iteration goes over the pages one at a time and, like the iterators of the
+ * concurrent collections, may or may not reflect the updates made while it is
+ * in progress.
+ * 
+ */
+public class OffHeapStorageEngine extends AbstractStorageEngine<ByteArray, byte[], byte[]> {
+
+    private static final FnvHashFunction hashFunction = new FnvHashFunction();
+
+    static final int MAX_SEGMENTS = 1 << 16;
+    static final int MIN_PAGES_PER_SEGMENT = 2;
+
+    private final RoutingStrategy routingStrategy;
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    /**
+     * @param name The name of the store
+     * @param routingStrategy The routing strategy of the store, used to scan
+     *        single partitions
+     * @param maxBytes The maximum number of bytes used to hold the records
+     * @param numSegments The number of independently locked segments, rounded
+     *        up to a power of two
+     * @param pageSize The size of the pages of the segments, which bounds the
+     *        size of a record
+     */
+    public OffHeapStorageEngine(String name,
+                                RoutingStrategy routingStrategy,
+                                long maxBytes,
+                                int numSegments,
+                                int pageSize) {
+        super(name);
+        if(numSegments <= 0 || numSegments > MAX_SEGMENTS)
+            throw new IllegalArgumentException("Invalid number of segments " + numSegments);
+        if(pageSize <= getMinPageSize())
+            throw new IllegalArgumentException("Invalid page size " + pageSize);
+        this.routingStrategy = routingStrategy;
+
+        int segmentBits = segmentBits(numSegments);
+        this.segments = new Segment[1 << segmentBits];
+        this.segmentShift = 32 - segmentBits;
+        long pagesPerSegment = getPagesPerSegment(maxBytes, numSegments, pageSize);
+        if(pagesPerSegment < MIN_PAGES_PER_SEGMENT)
+            throw new IllegalArgumentException(maxBytes + " bytes do not hold "
+                                               + MIN_PAGES_PER_SEGMENT + " pages of " + pageSize
+                                               + " bytes per segment");
+        if(pagesPerSegment > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Page size " + pageSize + " is too small for "
+                                               + maxBytes + " bytes");
+        for(int i = 0; i < segments.length; i++)
+            segments[i] = new Segment((int) pagesPerSegment, pageSize);
+    }
+
+    private static int segmentBits(int numSegments) {
+        return 32 - Integer.numberOfLeadingZeros(numSegments - 1);
+    }
+
+    /**
+     * @return The size a page must exceed to hold a record header
+     */
+    static int getMinPageSize() {
+        return Segment.RECORD_HEADER_SIZE;
+    }
+
+    /**
+     * @return The number of pages each segment of a store with the given
+     *         settings gets, the segments being rounded up to a power of two
+     */
+    static long getPagesPerSegment(long maxBytes, int numSegments, int pageSize) {
+        return maxBytes / (1 << segmentBits(numSegments)) / pageSize;
+    }
+
+    @Override
+    public boolean delete(ByteArray key, Version version) {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key.get());
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            byte[] stored = segment.get(hash, key.get());
+            if(stored == null)
+                return false;
+
+            if(version == null) {
+                segment.remove(hash, key.get());
+                return true;
+            }
+
+            List<Versioned<byte[]>> values = StoreBinaryFormat.fromByteArray(stored);
+            boolean deletedSomething = false;
+            Iterator<Versioned<byte[]>> iterator = values.iterator();
+            while(iterator.hasNext()) {
+                Versioned<byte[]> item = iterator.next();
+                if(item.getVersion().compare(version) == Occurred.BEFORE) {
+                    iterator.remove();
+                    deletedSomething = true;
+                }
+            }
+            if(values.size() == 0)
+                segment.remove(hash, key.get());
+            else if(deletedSomething)
+                segment.put(hash, key.get(), StoreBinaryFormat.toByteArray(values));
+            return deletedSomething;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Version> getVersions(ByteArray key) {
+        return StoreUtils.getVersions(get(key, null));
+    }
+
+    @Override
+    public List<Versioned<byte[]>> get(ByteArray key, byte[] transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key.get());
+        Segment segment = segmentFor(hash);
+        byte[] stored;
+        segment.lock.readLock().lock();
+        try {
+            stored = segment.get(hash, key.get());
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+        if(stored == null)
+            return new ArrayList<Versioned<byte[]>>(0);
+        return StoreBinaryFormat.fromByteArray(stored);
+    }
+
+    @Override
+    public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys,
+                                                          Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(keys);
+        return StoreUtils.getAll(this, keys, transforms);
+    }
+
+    @Override
+    public void put(ByteArray key, Versioned<byte[]> value, byte[] transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key.get());
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            List<Versioned<byte[]>> items = getStoredValues(segment, hash, key);
+            // Check for existing versions - remember which items to
+            // remove in case of success
+            List<Versioned<byte[]>> itemsToRemove = new ArrayList<Versioned<byte[]>>(items.size());
+            for(Versioned<byte[]> versioned: items) {
+                Occurred occurred = value.getVersion().compare(versioned.getVersion());
+                if(occurred == Occurred.BEFORE) {
+                    throw new ObsoleteVersionException("Obsolete version for key '" + key
+                                                       + "': " + value.getVersion());
+                } else if(occurred == Occurred.AFTER) {
+                    itemsToRemove.add(versioned);
+                }
+            }
+            items.removeAll(itemsToRemove);
+            items.add(value);
+            segment.put(hash, key.get(), StoreBinaryFormat.toByteArray(items));
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Versioned<byte[]>> multiVersionPut(ByteArray key,
+                                                   final List<Versioned<byte[]>> values) {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key.get());
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            List<Versioned<byte[]>> valuesInStorage = getStoredValues(segment, hash, key);
+            List<Versioned<byte[]>> obsoleteVals = resolveAndConstructVersionsToPersist(valuesInStorage,
+                                                                                        values);
+            if(valuesInStorage.size() > 0)
+                segment.put(hash, key.get(), StoreBinaryFormat.toByteArray(valuesInStorage));
+            return obsoleteVals;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    private List<Versioned<byte[]>> getStoredValues(Segment segment, int hash, ByteArray key) {
+        byte[] stored = segment.get(hash, key.get());
+        if(stored == null)
+            return new ArrayList<Versioned<byte[]>>();
+        return StoreBinaryFormat.fromByteArray(stored);
+    }
+
+    @Override
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries() {
+        return new OffHeapIterator(-1);
+    }
+
+    @Override
+    public ClosableIterator<ByteArray> keys() {
+        return StoreUtils.keys(entries());
+    }
+
+    /**
+     * Scans the whole store and filters the entries whose master partition is
+     * the given one, so {@link #isPartitionScanSupported()} stays false
+     */
+    @Override
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries(int partition) {
+        return new OffHeapIterator(partition);
+    }
+
+    @Override
+    public ClosableIterator<ByteArray> keys(int partition) {
+        return StoreUtils.keys(entries(partition));
+    }
+
+    @Override
+    public void truncate() {
+        for(Segment segment: segments) {
+            segment.lock.writeLock().lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Drops the pages of the store, whose memory is given back once they are
+     * collected
+     */
+    @Override
+    public void close() throws VoldemortException {
+        truncate();
+    }
+
+    @JmxGetter(name = "numEntries", description = "The number of keys in the store.")
+    public long getNumEntries() {
+        long numEntries = 0;
+        for(Segment segment: segments) {
+            segment.lock.readLock().lock();
+            try {
+                numEntries += segment.numEntries;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return numEntries;
+    }
+
+    @JmxGetter(name = "numEvictions", description = "The number of keys evicted to make room for new records.")
+    public long getNumEvictions() {
+        long numEvictions = 0;
+        for(Segment segment: segments) {
+            segment.lock.readLock().lock();
+            try {
+                numEvictions += segment.numEvictions;
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return numEvictions;
+    }
+
+    @JmxGetter(name = "allocatedBytes", description = "The number of off-heap bytes allocated for the pages and the hash tables.")
+    public long getAllocatedBytes() {
+        long allocatedBytes = 0;
+        for(Segment segment: segments) {
+            segment.lock.readLock().lock();
+            try {
+                allocatedBytes += segment.getAllocatedBytes();
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return allocatedBytes;
+    }
+
+    private static int hash(byte[] key) {
+        // spread the bits, the top ones pick the segment and the bottom ones
+        // the slot
+        return hashFunction.spreadHash(key);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    /**
+     * A part of the store, holding a ring of pages and the hash table of the
+     * records written to them. The callers hold the lock of the segment.
+     */
+    @NotThreadsafe
+    private static final class Segment {
+
+        // hash, key length and value length
+        static final int RECORD_HEADER_SIZE = 3 * ByteUtils.SIZE_OF_INT;
+        private static final int SLOT_SIZE = ByteUtils.SIZE_OF_LONG;
+        private static final int MIN_SLOTS = 64;
+        private static final int MAX_SLOTS = 1 << 28;
+
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private final int pageSize;
+        private final ByteBuffer[] pages;
+        private final int[] pageEnds;
+        private int headPage;
+
+        // each slot holds the address of a record, (page + 1) << 32 | offset,
+        // or 0 when empty
+        private ByteBuffer table;
+        private int numSlots;
+        private int numEntries;
+        private long numEvictions;
+
+        Segment(int numPages, int pageSize) {
+            this.pageSize = pageSize;
+            this.pages = new ByteBuffer[numPages];
+            this.pageEnds = new int[numPages];
+            clear();
+        }
+
+        void clear() {
+            for(int i = 0; i < pages.length; i++) {
+                pages[i] = null;
+                pageEnds[i] = 0;
+            }
+            headPage = -1;
+            numSlots = MIN_SLOTS;
+            table = ByteBuffer.allocateDirect(numSlots * SLOT_SIZE);
+            numEntries = 0;
+        }
+
+        long getAllocatedBytes() {
+            long allocated = (long) numSlots * SLOT_SIZE;
+            for(ByteBuffer page: pages)
+                if(page != null)
+                    allocated += pageSize;
+            return allocated;
+        }
+
+        /**
+         * @return The encoded versions of the key, or null if it is not in the
+         *         segment
+         */
+        byte[] get(int hash, byte[] key) {
+            int slot = find(hash, key);
+            if(slot < 0)
+                return null;
+            long address = table.getLong(slot * SLOT_SIZE);
+            ByteBuffer page = pages[page(address)];
+            int offset = offset(address);
+            int keyLength = page.getInt(offset + ByteUtils.SIZE_OF_INT);
+            byte[] value = new byte[page.getInt(offset + 2 * ByteUtils.SIZE_OF_INT)];
+            ByteBuffer view = page.duplicate();
+            view.position(offset + RECORD_HEADER_SIZE + keyLength);
+            view.get(value);
+            return value;
+        }
+
+        void put(int hash, byte[] key, byte[] value) {
+            long address = append(hash, key, value);
+            // look the key up after appending, which may have evicted it
+            int slot = find(hash, key);
+            if(slot >= 0) {
+                table.putLong(slot * SLOT_SIZE, address);
+                return;
+            }
+            if(numEntries + 1 > numSlots / 4 * 3)
+                resize();
+            int mask = numSlots - 1;
+            slot = hash & mask;
+            while(table.getLong(slot * SLOT_SIZE) != 0)
+                slot = (slot + 1) & mask;
+            table.putLong(slot * SLOT_SIZE, address);
+            numEntries++;
+        }
+
+        void remove(int hash, byte[] key) {
+            int slot = find(hash, key);
+            if(slot >= 0) {
+                removeSlot(slot);
+                numEntries--;
+            }
+        }
+
+        /**
+         * Copies out the live records of a page
+         * 
+         * @return The keys and encoded versions of the records of the page
+         *         which are still current
+         */
+        List<Pair<byte[], byte[]>> getLiveRecords(int pageIndex) {
+            ByteBuffer page = pages[pageIndex];
+            if(page == null)
+                return new ArrayList<Pair<byte[], byte[]>>(0);
+            List<Pair<byte[], byte[]>> records = new ArrayList<Pair<byte[], byte[]>>();
+            ByteBuffer view = page.duplicate();
+            int offset = 0;
+            while(offset < pageEnds[pageIndex]) {
+                int keyLength = page.getInt(offset + ByteUtils.SIZE_OF_INT);
+                int valueLength = page.getInt(offset + 2 * ByteUtils.SIZE_OF_INT);
+                if(findAddress(address(pageIndex, offset)) >= 0) {
+                    byte[] key = new byte[keyLength];
+                    byte[] value = new byte[valueLength];
+                    view.position(offset + RECORD_HEADER_SIZE);
+                    view.get(key);
+                    view.get(value);
+                    records.add(Pair.create(key, value));
+                }
+                offset += RECORD_HEADER_SIZE + keyLength + valueLength;
+            }
+            return records;
+        }
+
+        int getNumPages() {
+            return pages.length;
+        }
+
+        private long append(int hash, byte[] key, byte[] value) {
+            int size = RECORD_HEADER_SIZE + key.length + value.length;
+            if(size > pageSize || size < 0)
+                throw new VoldemortException("Record of " + size
+                                             + " bytes does not fit in pages of " + pageSize
+                                             + " bytes");
+            if(headPage < 0 || pageEnds[headPage] + size > pageSize)
+                nextPage();
+            ByteBuffer page = pages[headPage];
+            int offset = pageEnds[headPage];
+            page.putInt(offset, hash);
+            page.putInt(offset + ByteUtils.SIZE_OF_INT, key.length);
+            page.putInt(offset + 2 * ByteUtils.SIZE_OF_INT, value.length);
+            ByteBuffer view = page.duplicate();
+            view.position(offset + RECORD_HEADER_SIZE);
+            view.put(key);
+            view.put(value);
+            pageEnds[headPage] += size;
+            return address(headPage, offset);
+        }
+
+        private void nextPage() {
+            int next = (headPage + 1) % pages.length;
+            if(pages[next] == null)
+                pages[next] = ByteBuffer.allocateDirect(pageSize);
+            else
+                evict(next);
+            pageEnds[next] = 0;
+            headPage = next;
+        }
+
+        /*
+         * Drops the keys whose current record is in the given page
+         */
+        private void evict(int pageIndex) {
+            ByteBuffer page = pages[pageIndex];
+            int offset = 0;
+            while(offset < pageEnds[pageIndex]) {
+                int slot = findAddress(address(pageIndex, offset));
+                if(slot >= 0) {
+                    removeSlot(slot);
+                    numEntries--;
+                    numEvictions++;
+                }
+                offset += RECORD_HEADER_SIZE + page.getInt(offset + ByteUtils.SIZE_OF_INT)
+                          + page.getInt(offset + 2 * ByteUtils.SIZE_OF_INT);
+            }
+        }
+
+        private int find(int hash, byte[] key) {
+            int mask = numSlots - 1;
+            for(int slot = hash & mask;; slot = (slot + 1) & mask) {
+                long address = table.getLong(slot * SLOT_SIZE);
+                if(address == 0)
+                    return -1;
+                if(matches(address, hash, key))
+                    return slot;
+            }
+        }
+
+        private int findAddress(long address) {
+            int mask = numSlots - 1;
+            for(int slot = recordHash(address) & mask;; slot = (slot + 1) & mask) {
+                long current = table.getLong(slot * SLOT_SIZE);
+                if(current == 0)
+                    return -1;
+                if(current == address)
+                    return slot;
+            }
+        }
+
+        private boolean matches(long address, int hash, byte[] key) {
+            ByteBuffer page = pages[page(address)];
+            int offset = offset(address);
+            if(page.getInt(offset) != hash
+               || page.getInt(offset + ByteUtils.SIZE_OF_INT) != key.length)
+                return false;
+            offset += RECORD_HEADER_SIZE;
+            for(int i = 0; i < key.length; i++)
+                if(page.get(offset + i) != key[i])
+                    return false;
+            return true;
+        }
+
+        /*
+         * Removes a slot from the linear probing table by shifting back the
+         * following slots of the run, so that no tombstones are needed
+         */
+        private void removeSlot(int slot) {
+            int mask = numSlots - 1;
+            int hole = slot;
+            for(int next = (hole + 1) & mask;; next = (next + 1) & mask) {
+                long address = table.getLong(next * SLOT_SIZE);
+                if(address == 0)
+                    break;
+                int ideal = recordHash(address) & mask;
+                boolean stays = hole <= next ? hole < ideal && ideal <= next : hole < ideal
+                                                                              || ideal <= next;
+                if(!stays) {
+                    table.putLong(hole * SLOT_SIZE, address);
+                    hole = next;
+                }
+            }
+            table.putLong(hole * SLOT_SIZE, 0);
+        }
+
+        private void resize() {
+            if(numSlots >= MAX_SLOTS)
+                throw new VoldemortException("Hash table of off-heap segment is full with "
+                                             + numEntries + " entries");
+            ByteBuffer oldTable = table;
+            int oldSlots = numSlots;
+            numSlots *= 2;
+            table = ByteBuffer.allocateDirect(numSlots * SLOT_SIZE);
+            int mask = numSlots - 1;
+            for(int i = 0; i < oldSlots; i++) {
+                long address = oldTable.getLong(i * SLOT_SIZE);
+                if(address == 0)
+                    continue;
+                int slot = recordHash(address) & mask;
+                while(table.getLong(slot * SLOT_SIZE) != 0)
+                    slot = (slot + 1) & mask;
+                table.putLong(slot * SLOT_SIZE, address);
+            }
+        }
+
+        private int recordHash(long address) {
+            return pages[page(address)].getInt(offset(address));
+        }
+
+        private static long address(int page, int offset) {
+            return ((long) (page + 1) << 32) | (offset & 0xffffffffL);
+        }
+
+        private static int page(long address) {
+            return (int) (address >>> 32) - 1;
+        }
+
+        private static int offset(long address) {
+            return (int) address;
+        }
+    }
+
+    /**
+     * Goes over the pages of the segments, copying the live records of one
+     * page at a time
+     */
+    @NotThreadsafe
+    private class OffHeapIterator implements ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> {
+
+        private final int partition;
+        private int segmentIndex = 0;
+        private int pageIndex = 0;
+        private Iterator<Pair<byte[], byte[]>> records = null;
+        private ByteArray currentKey;
+        private Iterator<Versioned<byte[]>> currentValues = null;
+
+        /**
+         * @param partition The master partition of the entries to return, or
+         *        -1 for all the entries
+         */
+        OffHeapIterator(int partition) {
+            this.partition = partition;
+        }
+
+        public boolean hasNext() {
+            while(currentValues == null || !currentValues.hasNext()) {
+                if(records != null && records.hasNext()) {
+                    Pair<byte[], byte[]> record = records.next();
+                    if(partition >= 0
+                       && routingStrategy.getMasterPartition(record.getFirst()) != partition)
+                        continue;
+                    currentKey = new ByteArray(record.getFirst());
+                    currentValues = StoreBinaryFormat.fromByteArray(record.getSecond())
+                                                     .iterator();
+                } else if(segmentIndex < segments.length) {
+                    Segment segment = segments[segmentIndex];
+                    segment.lock.readLock().lock();
+                    try {
+                        records = segment.getLiveRecords(pageIndex).iterator();
+                    } finally {
+                        segment.lock.readLock().unlock();
+                    }
+                    if(++pageIndex == segment.getNumPages()) {
+                        pageIndex = 0;
+                        segmentIndex++;
+                    }
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Pair<ByteArray, Versioned<byte[]>> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return Pair.create(currentKey, currentValues.next());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal");
+        }
+
+        public void close() {}
+    }
+}
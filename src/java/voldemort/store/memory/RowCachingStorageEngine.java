@@ -0,0 +1,362 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxOperation;
+import voldemort.server.storage.KeyLockHandle;
+import voldemort.store.AbstractStorageEngine;
+import voldemort.store.StorageEngine;
+import voldemort.store.StoreCapabilityType;
+import voldemort.store.StoreUtils;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.FnvHashFunction;
+import voldemort.utils.Pair;
+import voldemort.utils.Utils;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * Keeps the decoded versions of the hot keys of a persistent storage engine in
+ * a {@link BoundedCacheMap}, so repeated lookups of a key skip the engine and
+ * the decoding of its record.
+ * <p>
+ * The cache is filled by the lookups which miss it, and every write through
+ * this engine drops the key from the cache once the inner engine has applied
+ * it, so a reader sees its own writes. A lookup only fills the cache if no
+ * write to a key of the same stripe finished since the lookup started, which
+ * keeps a slow lookup from caching a row overwritten in the meantime. The
+ * writes which bypass this engine would leave stale rows behind, so it is
+ * registered in place of the inner engine and the admin and streaming paths
+ * go through it as well.
+ * <p>
+ * Lookups with transforms are not cached.
+ * 
+ */
+public class RowCachingStorageEngine extends AbstractStorageEngine<ByteArray, byte[], byte[]> {
+
+    private static final int NUM_STRIPES = 1024;
+
+    private static final FnvHashFunction hashFunction = new FnvHashFunction();
+
+    private final StorageEngine<ByteArray, byte[], byte[]> innerEngine;
+    private final BoundedCacheMap cache;
+    private final Object[] locks = new Object[NUM_STRIPES];
+    // the number of writes finished on the keys of each stripe
+    private final AtomicLongArray writes = new AtomicLongArray(NUM_STRIPES);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param innerEngine The engine whose rows are cached
+     * @param maxBytes The maximum size of the cached rows
+     * @param numSegments The number of independently locked segments of the
+     *        cache, each holding an equal share of the bytes
+     */
+    public RowCachingStorageEngine(StorageEngine<ByteArray, byte[], byte[]> innerEngine,
+                                   long maxBytes,
+                                   int numSegments) {
+        super(innerEngine.getName());
+        this.innerEngine = Utils.notNull(innerEngine);
+        this.cache = new BoundedCacheMap(maxBytes, numSegments);
+        for(int i = 0; i < NUM_STRIPES; i++)
+            locks[i] = new Object();
+    }
+
+    public StorageEngine<ByteArray, byte[], byte[]> getInnerEngine() {
+        return innerEngine;
+    }
+
+    private static int stripeFor(ByteArray key) {
+        return (hashFunction.hash(key.get()) & 0x7fffffff) % NUM_STRIPES;
+    }
+
+    /*
+     * Caches the versions read by a lookup, unless a write to the stripe of
+     * the key finished since the lookup started
+     */
+    private void fill(ByteArray key, int stripe, long writesBefore, List<Versioned<byte[]>> values) {
+        synchronized(locks[stripe]) {
+            if(writes.get(stripe) == writesBefore)
+                cache.put(key, new ArrayList<Versioned<byte[]>>(values));
+        }
+    }
+
+    /*
+     * Called once the inner engine applied, or failed to apply, a write
+     */
+    private void invalidate(ByteArray key) {
+        int stripe = stripeFor(key);
+        synchronized(locks[stripe]) {
+            writes.incrementAndGet(stripe);
+            cache.remove(key);
+        }
+    }
+
+    private void invalidateAll() {
+        for(int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+            synchronized(locks[stripe]) {
+                writes.incrementAndGet(stripe);
+            }
+        }
+        cache.clear();
+    }
+
+    @Override
+    public List<Versioned<byte[]>> get(ByteArray key, byte[] transforms) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        if(transforms != null)
+            return innerEngine.get(key, transforms);
+        List<Versioned<byte[]>> cached = cache.get(key);
+        if(cached != null) {
+            hits.incrementAndGet();
+            return new ArrayList<Versioned<byte[]>>(cached);
+        }
+        misses.incrementAndGet();
+        int stripe = stripeFor(key);
+        long writesBefore = writes.get(stripe);
+        List<Versioned<byte[]>> values = innerEngine.get(key, null);
+        fill(key, stripe, writesBefore, values);
+        return values;
+    }
+
+    @Override
+    public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys,
+                                                          Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(keys);
+        if(transforms != null)
+            return innerEngine.getAll(keys, transforms);
+        Map<ByteArray, List<Versioned<byte[]>>> results = StoreUtils.newEmptyHashMap(keys);
+        List<ByteArray> missed = new ArrayList<ByteArray>();
+        for(ByteArray key: keys) {
+            List<Versioned<byte[]>> cached = cache.get(key);
+            if(cached == null) {
+                missed.add(key);
+            } else {
+                hits.incrementAndGet();
+                if(!cached.isEmpty())
+                    results.put(key, new ArrayList<Versioned<byte[]>>(cached));
+            }
+        }
+        if(missed.isEmpty())
+            return results;
+
+        misses.addAndGet(missed.size());
+        long[] writesBefore = new long[missed.size()];
+        for(int i = 0; i < missed.size(); i++)
+            writesBefore[i] = writes.get(stripeFor(missed.get(i)));
+        // one batch, in the key order of the inner engine if it has one
+        Map<ByteArray, List<Versioned<byte[]>>> found = innerEngine.getAll(missed, null);
+        for(int i = 0; i < missed.size(); i++) {
+            ByteArray key = missed.get(i);
+            List<Versioned<byte[]>> values = found.get(key);
+            if(values == null)
+                values = new ArrayList<Versioned<byte[]>>(0);
+            fill(key, stripeFor(key), writesBefore[i], values);
+            if(!values.isEmpty())
+                results.put(key, values);
+        }
+        return results;
+    }
+
+    @Override
+    public List<Version> getVersions(ByteArray key) {
+        return StoreUtils.getVersions(get(key, null));
+    }
+
+    @Override
+    public void put(ByteArray key, Versioned<byte[]> value, byte[] transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        try {
+            innerEngine.put(key, value, transforms);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        try {
+            return innerEngine.putAll(entries, transforms);
+        } finally {
+            for(ByteArray key: entries.keySet())
+                invalidate(key);
+        }
+    }
+
+    @Override
+    public List<Versioned<byte[]>> multiVersionPut(ByteArray key, List<Versioned<byte[]>> values) {
+        StoreUtils.assertValidKey(key);
+        try {
+            return innerEngine.multiVersionPut(key, values);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public boolean delete(ByteArray key, Version version) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        try {
+            return innerEngine.delete(key, version);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public KeyLockHandle<byte[]> getAndLock(ByteArray key) {
+        return innerEngine.getAndLock(key);
+    }
+
+    @Override
+    public void putAndUnlock(ByteArray key, KeyLockHandle<byte[]> handle) {
+        try {
+            innerEngine.putAndUnlock(key, handle);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void releaseLock(KeyLockHandle<byte[]> handle) {
+        innerEngine.releaseLock(handle);
+    }
+
+    @Override
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries() {
+        return innerEngine.entries();
+    }
+
+    @Override
+    public ClosableIterator<ByteArray> keys() {
+        return innerEngine.keys();
+    }
+
+    @Override
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries(int partition) {
+        return innerEngine.entries(partition);
+    }
+
+    @Override
+    public ClosableIterator<ByteArray> keys(int partition) {
+        return innerEngine.keys(partition);
+    }
+
+    @Override
+    public void truncate() {
+        try {
+            innerEngine.truncate();
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public void close() throws VoldemortException {
+        try {
+            innerEngine.close();
+        } finally {
+            cache.clear();
+        }
+    }
+
+    @Override
+    public Object getCapability(StoreCapabilityType capability) {
+        return innerEngine.getCapability(capability);
+    }
+
+    @Override
+    public boolean isPartitionAware() {
+        return innerEngine.isPartitionAware();
+    }
+
+    @Override
+    public boolean isPartitionScanSupported() {
+        return innerEngine.isPartitionScanSupported();
+    }
+
+    @Override
+    public boolean beginBatchModifications() {
+        return innerEngine.beginBatchModifications();
+    }
+
+    @Override
+    public boolean endBatchModifications() {
+        return innerEngine.endBatchModifications();
+    }
+
+    @JmxGetter(name = "numHits", description = "The number of lookups served by the row cache.")
+    public long getNumHits() {
+        return hits.get();
+    }
+
+    @JmxGetter(name = "numMisses", description = "The number of lookups which went to the storage engine.")
+    public long getNumMisses() {
+        return misses.get();
+    }
+
+    @JmxGetter(name = "hitRatio", description = "The ratio of lookups served by the row cache.")
+    public double getHitRatio() {
+        long hits = getNumHits();
+        long lookups = hits + getNumMisses();
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    @JmxGetter(name = "numEvictions", description = "The number of rows evicted or not admitted.")
+    public long getNumEvictions() {
+        return cache.getNumEvictions();
+    }
+
+    @JmxGetter(name = "numEntries", description = "The number of rows in the cache.")
+    public int getNumEntries() {
+        return cache.size();
+    }
+
+    @JmxGetter(name = "sizeInBytes", description = "The approximate size of the rows in the cache.")
+    public long getSizeInBytes() {
+        return cache.getSizeInBytes();
+    }
+
+    @JmxGetter(name = "maxBytes", description = "The maximum size of the rows in the cache.")
+    public long getMaxBytes() {
+        return cache.getMaxBytes();
+    }
+
+    @JmxOperation(description = "Drops the rows in the cache.")
+    public void clearCache() {
+        invalidateAll();
+    }
+
+    @JmxOperation(description = "Resets the hit and miss counters.")
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+}
@@ -83,6 +83,11 @@ public interface NonblockingStore {
                                  NonblockingStoreCallback callback,
                                  long timeoutMs);
 
+    public void submitPutAllRequest(Map<ByteArray, Versioned<byte[]>> entries,
+                                    Map<ByteArray, byte[]> transforms,
+                                    NonblockingStoreCallback callback,
+                                    long timeoutMs);
+
     public void submitDeleteRequest(ByteArray key,
                                     Version version,
                                     NonblockingStoreCallback callback,
@@ -102,6 +102,19 @@ public class ThreadPoolBasedNonblockingStoreImpl implements NonblockingStore {
         }, callback, timeoutMs, "put");
     }
 
+    public void submitPutAllRequest(final Map<ByteArray, Versioned<byte[]>> entries,
+                                    final Map<ByteArray, byte[]> transforms,
+                                    NonblockingStoreCallback callback,
+                                    long timeoutMs) {
+        submit(new StoreRequest<Map<ByteArray, VoldemortException>>() {
+
+            public Map<ByteArray, VoldemortException> request(Store<ByteArray, byte[], byte[]> store) {
+                return innerStore.putAll(entries, transforms);
+            }
+
+        }, callback, timeoutMs, "put all");
+    }
+
     public void submitDeleteRequest(final ByteArray key,
                                     final Version version,
                                     NonblockingStoreCallback callback,
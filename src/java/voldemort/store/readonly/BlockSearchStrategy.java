@@ -0,0 +1,164 @@
+package voldemort.store.readonly;
+
+import java.nio.ByteBuffer;
+
+import voldemort.utils.ByteUtils;
+
+/**
+ * A search strategy for the blocked index of
+ * {@link ReadOnlyStorageFormat#READONLY_V3}. The sorted index entries are
+ * packed into fixed size blocks, followed by the first key of every block (the
+ * fences) and the total number of entries:
+ * 
+ * <pre>
+ * [ block 0 ] ... [ block n-1 ] [ fence 0 ] ... [ fence n-1 ] [ num entries ]
+ * </pre>
+ * 
+ * A lookup first finds the block that may contain the key from the fences and
+ * then binary searches inside that single block, so it touches one page of
+ * the index instead of the log(n) pages hit by a binary search over the whole
+ * file. Readers which keep the fences on the heap (see
+ * {@link #readFences(ByteBuffer, int)}) touch only that page.
+ * 
+ * 
+ */
+public class BlockSearchStrategy implements SearchStrategy {
+
+    public static final int KEY_HASH_SIZE = 2 * ByteUtils.SIZE_OF_INT;
+    public static final int ENTRY_SIZE = KEY_HASH_SIZE + ReadOnlyUtils.POSITION_SIZE;
+    public static final int BLOCK_SIZE = 4096;
+    public static final int ENTRIES_PER_BLOCK = BLOCK_SIZE / ENTRY_SIZE;
+    public static final int FENCE_SIZE = KEY_HASH_SIZE;
+    public static final int TRAILER_SIZE = ByteUtils.SIZE_OF_INT;
+
+    public int indexOf(ByteBuffer index, byte[] key, int indexFileSize) {
+        int numBlocks = getNumBlocks(indexFileSize);
+        if(numBlocks == 0 || key.length != KEY_HASH_SIZE)
+            return -1;
+
+        // Search the fences stored at the tail of the index
+        int fencesStart = numBlocks * BLOCK_SIZE;
+        long target = toFence(ByteUtils.readLong(key, 0));
+        int low = 0;
+        int high = numBlocks - 1;
+        int block = -1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(toFence(index.getLong(fencesStart + mid * FENCE_SIZE)) <= target) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if(block < 0)
+            return -1;
+        return searchBlock(index, block, getNumEntries(index, indexFileSize), key);
+    }
+
+    /**
+     * Search for the key using fences previously read with
+     * {@link #readFences(ByteBuffer, int)}
+     * 
+     * @param index The index buffer
+     * @param fences The fences of the index
+     * @param numEntries The number of entries in the index
+     * @param key The key to search for
+     * @return The position offset if the key is found, else -1
+     */
+    public int indexOf(ByteBuffer index, long[] fences, int numEntries, byte[] key) {
+        if(fences.length == 0 || key.length != KEY_HASH_SIZE)
+            return -1;
+
+        long target = toFence(ByteUtils.readLong(key, 0));
+        int low = 0;
+        int high = fences.length - 1;
+        int block = -1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(fences[mid] <= target) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if(block < 0)
+            return -1;
+        return searchBlock(index, block, numEntries, key);
+    }
+
+    private int searchBlock(ByteBuffer index, int block, int numEntries, byte[] key) {
+        int blockStart = block * BLOCK_SIZE;
+        int low = 0;
+        int high = Math.min(ENTRIES_PER_BLOCK, numEntries - block * ENTRIES_PER_BLOCK) - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = blockStart + mid * ENTRY_SIZE;
+            int cmp = ReadOnlyUtils.compare(index, entry, key);
+            if(cmp == 0)
+                return index.getInt(entry + KEY_HASH_SIZE);
+            else if(cmp > 0)
+                high = mid - 1;
+            else
+                low = mid + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the fences of a blocked index. The fences are returned with their
+     * sign bit flipped, so that comparing them as signed longs gives the same
+     * order as comparing the key hashes as unsigned bytes.
+     * 
+     * @param index The index buffer
+     * @param indexFileSize The size of the index
+     * @return The first key of every block
+     */
+    public static long[] readFences(ByteBuffer index, int indexFileSize) {
+        int numBlocks = getNumBlocks(indexFileSize);
+        int fencesStart = numBlocks * BLOCK_SIZE;
+        long[] fences = new long[numBlocks];
+        for(int block = 0; block < numBlocks; block++)
+            fences[block] = toFence(index.getLong(fencesStart + block * FENCE_SIZE));
+        return fences;
+    }
+
+    /**
+     * @param index The index buffer
+     * @param indexFileSize The size of the index
+     * @return The number of entries stored in a blocked index
+     */
+    public static int getNumEntries(ByteBuffer index, int indexFileSize) {
+        if(indexFileSize < TRAILER_SIZE)
+            return 0;
+        return index.getInt(indexFileSize - TRAILER_SIZE);
+    }
+
+    /**
+     * @param indexFileSize The size of the index
+     * @return The number of blocks in a blocked index of the given size
+     */
+    public static int getNumBlocks(long indexFileSize) {
+        if(indexFileSize < TRAILER_SIZE)
+            return 0;
+        return (int) ((indexFileSize - TRAILER_SIZE) / (BLOCK_SIZE + FENCE_SIZE));
+    }
+
+    /**
+     * Checks whether a blocked index can have the given size. An empty file is
+     * a valid empty index
+     * 
+     * @param indexFileSize The size of the index
+     * @return true if the size is valid
+     */
+    public static boolean isValidSize(long indexFileSize) {
+        return indexFileSize == 0
+               || (indexFileSize >= TRAILER_SIZE && (indexFileSize - TRAILER_SIZE)
+                                                    % (BLOCK_SIZE + FENCE_SIZE) == 0);
+    }
+
+    private static long toFence(long keyHash) {
+        return keyHash ^ Long.MIN_VALUE;
+    }
+}
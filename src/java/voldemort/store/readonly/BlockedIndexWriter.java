@@ -0,0 +1,116 @@
+package voldemort.store.readonly;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import voldemort.VoldemortException;
+import voldemort.store.readonly.checksum.CheckSum;
+
+/**
+ * Writes a blocked index for {@link ReadOnlyStorageFormat#READONLY_V3}, in
+ * the layout described in {@link BlockSearchStrategy}. Entries must be written
+ * in ascending order of their key hash and {@link #finish()} must be called
+ * once all of them have been written.
+ * 
+ * 
+ */
+public class BlockedIndexWriter {
+
+    private static final byte[] PADDING = new byte[BlockSearchStrategy.BLOCK_SIZE];
+
+    private final DataOutputStream out;
+    private final CheckSum checkSum;
+
+    private byte[] fences;
+    private int numEntries;
+    private int entriesInBlock;
+
+    /**
+     * @param out The stream of the index file
+     * @param checkSum If not null, updated with every byte written to the
+     *        index file
+     */
+    public BlockedIndexWriter(DataOutputStream out, CheckSum checkSum) {
+        this.out = out;
+        this.checkSum = checkSum;
+        this.fences = new byte[16 * BlockSearchStrategy.FENCE_SIZE];
+        this.numEntries = 0;
+        this.entriesInBlock = 0;
+    }
+
+    public BlockedIndexWriter(DataOutputStream out) {
+        this(out, null);
+    }
+
+    /**
+     * Writes the next index entry
+     * 
+     * @param keyHash The key hash, of {@link BlockSearchStrategy#KEY_HASH_SIZE}
+     *        bytes
+     * @param position The position of the entry in the data file
+     */
+    public void write(byte[] keyHash, int position) throws IOException {
+        if(keyHash.length != BlockSearchStrategy.KEY_HASH_SIZE)
+            throw new VoldemortException("Invalid key hash size " + keyHash.length
+                                         + " for a blocked index, must be "
+                                         + BlockSearchStrategy.KEY_HASH_SIZE);
+
+        if(entriesInBlock == BlockSearchStrategy.ENTRIES_PER_BLOCK) {
+            pad(BlockSearchStrategy.BLOCK_SIZE - entriesInBlock * BlockSearchStrategy.ENTRY_SIZE);
+            entriesInBlock = 0;
+        }
+
+        if(entriesInBlock == 0)
+            addFence(keyHash);
+
+        out.write(keyHash);
+        out.writeInt(position);
+        if(checkSum != null) {
+            checkSum.update(keyHash);
+            checkSum.update(position);
+        }
+        entriesInBlock++;
+        numEntries++;
+    }
+
+    /**
+     * Pads the last block and writes out the fences and the number of entries.
+     * Does not close the underlying stream.
+     */
+    public void finish() throws IOException {
+        if(entriesInBlock > 0)
+            pad(BlockSearchStrategy.BLOCK_SIZE - entriesInBlock * BlockSearchStrategy.ENTRY_SIZE);
+
+        int numBlocks = (numEntries + BlockSearchStrategy.ENTRIES_PER_BLOCK - 1)
+                        / BlockSearchStrategy.ENTRIES_PER_BLOCK;
+        int fencesSize = numBlocks * BlockSearchStrategy.FENCE_SIZE;
+        out.write(fences, 0, fencesSize);
+        out.writeInt(numEntries);
+        if(checkSum != null) {
+            checkSum.update(fences, 0, fencesSize);
+            checkSum.update(numEntries);
+        }
+        entriesInBlock = 0;
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    private void addFence(byte[] keyHash) {
+        int offset = (numEntries / BlockSearchStrategy.ENTRIES_PER_BLOCK)
+                     * BlockSearchStrategy.FENCE_SIZE;
+        if(offset + BlockSearchStrategy.FENCE_SIZE > fences.length) {
+            byte[] grown = new byte[2 * fences.length];
+            System.arraycopy(fences, 0, grown, 0, fences.length);
+            fences = grown;
+        }
+        System.arraycopy(keyHash, 0, fences, offset, BlockSearchStrategy.FENCE_SIZE);
+    }
+
+    private void pad(int length) throws IOException {
+        out.write(PADDING, 0, length);
+        if(checkSum != null)
+            checkSum.update(PADDING, 0, length);
+    }
+}
@@ -0,0 +1,202 @@
+package voldemort.store.readonly;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import voldemort.VoldemortException;
+import voldemort.store.readonly.checksum.CheckSum;
+import voldemort.utils.ByteUtils;
+
+/**
+ * A Bloom filter over the key hashes stored in the index of a read-only
+ * chunk. Looking a key up in the filter before searching the index lets
+ * lookups of keys which are not in the store skip the index altogether, save
+ * for the occasional false positive.
+ * <p>
+ * The filter is stored next to the index and data files of its chunk, in a
+ * file ending with {@link #FILE_EXTENSION}. It holds the number of bits and of
+ * hash functions, followed by the bits. The bit positions are derived from
+ * the first 8 bytes of the key hash, which are already uniformly distributed
+ * since they come from the md5 of the key.
+ * 
+ * 
+ */
+public class BloomFilter {
+
+    public static final String FILE_EXTENSION = ".bloom";
+    public static final int DEFAULT_BITS_PER_KEY = 10;
+
+    private static final int HEADER_SIZE = 2 * ByteUtils.SIZE_OF_INT;
+    private static final int MAX_HASHES = 30;
+
+    private final ByteBuffer bits;
+    private final int numBits;
+    private final int numHashes;
+
+    private BloomFilter(ByteBuffer bits, int numBits, int numHashes) {
+        this.bits = bits;
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Creates an empty filter sized for the given number of keys
+     * 
+     * @param numKeys The number of keys which will be added
+     * @param bitsPerKey The number of bits to use per key, 10 giving a false
+     *        positive rate of about 1%
+     * @return The empty filter
+     */
+    public static BloomFilter create(int numKeys, int bitsPerKey) {
+        if(bitsPerKey <= 0)
+            throw new IllegalArgumentException("Bits per key must be positive, but is "
+                                               + bitsPerKey);
+        long numBits = Math.max(64L, (long) numKeys * bitsPerKey);
+        numBits = (numBits + 63) / 64 * 64;
+        if(numBits > Integer.MAX_VALUE)
+            throw new VoldemortException("Bloom filter for " + numKeys + " keys at "
+                                         + bitsPerKey + " bits per key is too big");
+        int numHashes = (int) Math.round(bitsPerKey * Math.log(2));
+        numHashes = Math.max(1, Math.min(MAX_HASHES, numHashes));
+        return new BloomFilter(ByteBuffer.allocate((int) (numBits / 8)), (int) numBits, numHashes);
+    }
+
+    /**
+     * Reads a filter previously written with
+     * {@link #writeTo(DataOutputStream, CheckSum)}. The filter is backed by the
+     * given buffer, which may be a mapped file.
+     * 
+     * @param buffer The buffer holding the filter
+     * @return The filter
+     */
+    public static BloomFilter read(ByteBuffer buffer) {
+        if(buffer.limit() < HEADER_SIZE)
+            throw new VoldemortException("Invalid Bloom filter of " + buffer.limit() + " bytes");
+        int numBits = buffer.getInt(0);
+        int numHashes = buffer.getInt(ByteUtils.SIZE_OF_INT);
+        if(numBits <= 0 || numBits % 8 != 0 || numHashes <= 0 || numHashes > MAX_HASHES
+           || buffer.limit() != HEADER_SIZE + numBits / 8)
+            throw new VoldemortException("Invalid Bloom filter with " + numBits + " bits, "
+                                         + numHashes + " hashes and a size of "
+                                         + buffer.limit() + " bytes");
+        ByteBuffer bits = buffer.duplicate();
+        bits.position(HEADER_SIZE);
+        return new BloomFilter(bits.slice(), numBits, numHashes);
+    }
+
+    /**
+     * Builds a filter from an index file, as written by the store builders
+     * 
+     * @param index The stream of the index file
+     * @param numEntries The number of entries in the index
+     * @param keyHashSize The size of the key hashes stored in the index
+     * @param blocked true if the index is a blocked index, see
+     *        {@link BlockSearchStrategy}
+     * @param bitsPerKey The number of bits to use per key
+     * @return The filter holding all the keys of the index
+     */
+    public static BloomFilter fromIndex(DataInputStream index,
+                                        int numEntries,
+                                        int keyHashSize,
+                                        boolean blocked,
+                                        int bitsPerKey) throws IOException {
+        BloomFilter filter = create(numEntries, bitsPerKey);
+        byte[] keyHash = new byte[keyHashSize];
+        int inBlock = 0;
+        for(int entry = 0; entry < numEntries; entry++) {
+            if(blocked && inBlock == BlockSearchStrategy.ENTRIES_PER_BLOCK) {
+                skipFully(index, BlockSearchStrategy.BLOCK_SIZE - inBlock
+                                 * BlockSearchStrategy.ENTRY_SIZE);
+                inBlock = 0;
+            }
+            index.readFully(keyHash);
+            skipFully(index, ReadOnlyUtils.POSITION_SIZE);
+            filter.add(keyHash);
+            inBlock++;
+        }
+        return filter;
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while(length > 0) {
+            int skipped = in.skipBytes(length);
+            if(skipped <= 0) {
+                // skipBytes may give up early, read through instead
+                in.readByte();
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    public void add(byte[] keyHash) {
+        long hash = mix(ByteUtils.readLong(keyHash, 0));
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for(int i = 0; i < numHashes; i++) {
+            int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % numBits;
+            bits.put(bit >>> 3, (byte) (bits.get(bit >>> 3) | (1 << (bit & 7))));
+        }
+    }
+
+    /**
+     * @param keyHash The key hash, as stored in the index
+     * @return false if the key is definitely not in the chunk
+     */
+    public boolean mightContain(byte[] keyHash) {
+        long hash = mix(ByteUtils.readLong(keyHash, 0));
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for(int i = 0; i < numHashes; i++) {
+            int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % numBits;
+            if((bits.get(bit >>> 3) & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes out the filter
+     * 
+     * @param out The stream to write to
+     * @param checkSum If not null, updated with every byte written
+     */
+    public void writeTo(DataOutputStream out, CheckSum checkSum) throws IOException {
+        byte[] contents = new byte[numBits / 8];
+        ByteBuffer source = bits.duplicate();
+        source.position(0);
+        source.get(contents);
+
+        out.writeInt(numBits);
+        out.writeInt(numHashes);
+        out.write(contents);
+        if(checkSum != null) {
+            checkSum.update(numBits);
+            checkSum.update(numHashes);
+            checkSum.update(contents);
+        }
+    }
+
+    public int getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /*
+     * The chunk of a key is picked from the same bytes of its md5, so mix them
+     * to keep the bit positions independent of the chunk
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -23,7 +23,6 @@ public class InterpolationSearchStrategy implements SearchStrategy {
         long lowValue = 0;
         long highValue = 0xFFFFFFFFL;
         long keyInt = ByteUtils.readUnsignedInt(key, 0);
-        byte[] found = new byte[key.length];
         while(true) {
             if(lowIdx > highIdx || keyInt < lowValue || keyInt > highValue)
                 return -1;
@@ -36,16 +35,15 @@ public class InterpolationSearchStrategy implements SearchStrategy {
                 guess = lowIdx + (int) offset;
             }
 
-            index.position(guess * indexSize);
-            index.get(found);
-            int compare = ByteUtils.compare(key, found);
+            // compare in place, the stored key is never copied out
+            int compare = -ReadOnlyUtils.compare(index, guess * indexSize, key);
 
             // did we find it?
             if(compare == 0)
-                return index.getInt();
+                return index.getInt(guess * indexSize + key.length);
 
             // okay we didn't find it this time, update the min and max
-            long foundInt = ByteUtils.readUnsignedInt(found, 0);
+            long foundInt = index.getInt(guess * indexSize) & 0xFFFFFFFFL;
             if(compare == -1) {
                 // key is less than found
                 if(guess == 0)
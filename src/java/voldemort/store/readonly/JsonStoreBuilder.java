@@ -16,12 +16,15 @@
 
 package voldemort.store.readonly;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
@@ -86,6 +89,7 @@ public class JsonStoreBuilder {
     private final int numChunks;
     private final int ioBufferSize;
     private final boolean gzipIntermediate;
+    private int bloomFilterBitsPerKey = BloomFilter.DEFAULT_BITS_PER_KEY;
 
     public JsonStoreBuilder(JsonReader reader,
                             Cluster cluster,
@@ -118,6 +122,17 @@ public class JsonStoreBuilder {
         this.gzipIntermediate = gzipIntermediate;
     }
 
+    /**
+     * Sets the size of the Bloom filter written next to every chunk of the V2
+     * and V3 formats
+     * 
+     * @param bloomFilterBitsPerKey The number of bits per key, 0 to not write
+     *        Bloom filters
+     */
+    public void setBloomFilterBitsPerKey(int bloomFilterBitsPerKey) {
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    }
+
     /**
      * Main method to run on a input text file
      * 
@@ -155,10 +170,16 @@ public class JsonStoreBuilder {
               .withRequiredArg()
               .describedAs("temp dir");
         parser.accepts("gzip", "compress intermediate chunk files");
+        parser.accepts("bloom-bits-per-key",
+                       "bits per key of the Bloom filter of each chunk, 0 for none [default "
+                               + BloomFilter.DEFAULT_BITS_PER_KEY + "]")
+              .withRequiredArg()
+              .ofType(Integer.class);
         parser.accepts("format",
                        "read-only store format [" + ReadOnlyStorageFormat.READONLY_V0.getCode()
                                + "," + ReadOnlyStorageFormat.READONLY_V1.getCode() + ","
-                               + ReadOnlyStorageFormat.READONLY_V2.getCode() + "]")
+                               + ReadOnlyStorageFormat.READONLY_V2.getCode() + ","
+                               + ReadOnlyStorageFormat.READONLY_V3.getCode() + "]")
               .withRequiredArg()
               .ofType(String.class);
         OptionSet options = parser.parse(args);
@@ -194,6 +215,9 @@ public class JsonStoreBuilder {
                                                                                               "format",
                                                                                               ReadOnlyStorageFormat.READONLY_V2.getCode()));
         boolean gzipIntermediate = options.has("gzip");
+        int bloomFilterBitsPerKey = CmdUtils.valueOf(options,
+                                                     "bloom-bits-per-key",
+                                                     BloomFilter.DEFAULT_BITS_PER_KEY);
         File tempDir = new File(CmdUtils.valueOf(options,
                                                  "temp-dir",
                                                  System.getProperty("java.io.tmpdir")));
@@ -218,17 +242,19 @@ public class JsonStoreBuilder {
             RoutingStrategy routingStrategy = new RoutingStrategyFactory().updateRoutingStrategy(storeDef,
                                                                                                  cluster);
 
-            new JsonStoreBuilder(reader,
-                                 cluster,
-                                 storeDef,
-                                 routingStrategy,
-                                 outputDir,
-                                 tempDir,
-                                 sortBufferSize,
-                                 numThreads,
-                                 chunks,
-                                 ioBufferSize,
-                                 gzipIntermediate).build(storageFormat);
+            JsonStoreBuilder builder = new JsonStoreBuilder(reader,
+                                                            cluster,
+                                                            storeDef,
+                                                            routingStrategy,
+                                                            outputDir,
+                                                            tempDir,
+                                                            sortBufferSize,
+                                                            numThreads,
+                                                            chunks,
+                                                            ioBufferSize,
+                                                            gzipIntermediate);
+            builder.setBloomFilterBitsPerKey(bloomFilterBitsPerKey);
+            builder.build(storageFormat);
         } catch(FileNotFoundException e) {
             Utils.croak(e.getMessage());
         }
@@ -248,6 +274,10 @@ public class JsonStoreBuilder {
                 buildVersion2();
                 break;
 
+            case READONLY_V3:
+                buildVersion3();
+                break;
+
             default:
                 throw new VoldemortException("Invalid storage format " + type);
         }
@@ -417,14 +447,28 @@ public class JsonStoreBuilder {
     }
 
     public void buildVersion2() throws IOException {
+        buildReplicaChunks(ReadOnlyStorageFormat.READONLY_V2);
+    }
+
+    /**
+     * Builds the same files as {@link #buildVersion2()}, but with blocked
+     * index files which are searched through {@link BlockSearchStrategy}
+     */
+    public void buildVersion3() throws IOException {
+        buildReplicaChunks(ReadOnlyStorageFormat.READONLY_V3);
+    }
+
+    private void buildReplicaChunks(ReadOnlyStorageFormat format) throws IOException {
         logger.info("Building store " + storeDefinition.getName() + " for "
                     + cluster.getNumberOfPartitions() + " partitions, "
                     + storeDefinition.getReplicationFactor() + " replica types, " + numChunks
-                    + " chunks per partitions per replica type and type "
-                    + ReadOnlyStorageFormat.READONLY_V2);
+                    + " chunks per partitions per replica type and type " + format);
 
         // Initialize files
         DataOutputStream[][] indexes = new DataOutputStream[cluster.getNumberOfPartitions()][];
+        BlockedIndexWriter[][] blockedIndexes = null;
+        if(format == ReadOnlyStorageFormat.READONLY_V3)
+            blockedIndexes = new BlockedIndexWriter[cluster.getNumberOfPartitions()][];
         DataOutputStream[][] datas = new DataOutputStream[cluster.getNumberOfPartitions()][];
         int[][] positions = new int[cluster.getNumberOfPartitions()][];
 
@@ -438,6 +482,9 @@ public class JsonStoreBuilder {
             datas[partitionId] = new DataOutputStream[storeDefinition.getReplicationFactor()
                                                       * numChunks];
             positions[partitionId] = new int[storeDefinition.getReplicationFactor() * numChunks];
+            if(blockedIndexes != null)
+                blockedIndexes[partitionId] = new BlockedIndexWriter[storeDefinition.getReplicationFactor()
+                                                                     * numChunks];
 
             int globalChunkId = 0;
             for(int repType = 0; repType < storeDefinition.getReplicationFactor(); repType++) {
@@ -451,6 +498,8 @@ public class JsonStoreBuilder {
                     positions[partitionId][globalChunkId] = 0;
                     indexes[partitionId][globalChunkId] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile),
                                                                                                         ioBufferSize));
+                    if(blockedIndexes != null)
+                        blockedIndexes[partitionId][globalChunkId] = new BlockedIndexWriter(indexes[partitionId][globalChunkId]);
                     datas[partitionId][globalChunkId] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile),
                                                                                                       ioBufferSize));
                     globalChunkId++;
@@ -522,8 +571,12 @@ public class JsonStoreBuilder {
 
                         // ...else, flush the previous element to disk
 
-                        indexes[masterPartition][globalChunkId].write(previousElement.getFirst());
-                        indexes[masterPartition][globalChunkId].writeInt(positions[masterPartition][globalChunkId]);
+                        writeIndexEntry(indexes,
+                                        blockedIndexes,
+                                        masterPartition,
+                                        globalChunkId,
+                                        previousElement.getFirst(),
+                                        positions[masterPartition][globalChunkId]);
                         datas[masterPartition][globalChunkId].write(previousElement.getSecond());
                         positions[masterPartition][globalChunkId] += previousElement.getSecond().length;
 
@@ -549,11 +602,23 @@ public class JsonStoreBuilder {
             byte[] keyMd5 = entry.getValue().getFirst();
             byte[] value = entry.getValue().getSecond();
 
-            indexes[partitionId][globalChunkId].write(keyMd5);
-            indexes[partitionId][globalChunkId].writeInt(positions[partitionId][globalChunkId]);
+            writeIndexEntry(indexes,
+                            blockedIndexes,
+                            partitionId,
+                            globalChunkId,
+                            keyMd5,
+                            positions[partitionId][globalChunkId]);
             datas[partitionId][globalChunkId].write(value);
         }
 
+        // Blocked indexes end with their fences
+        if(blockedIndexes != null) {
+            for(int partitionId = 0; partitionId < cluster.getNumberOfPartitions(); partitionId++) {
+                for(BlockedIndexWriter blockedIndex: blockedIndexes[partitionId])
+                    blockedIndex.finish();
+            }
+        }
+
         // Create node folders
         File[] nodeDirs = new File[cluster.getNumberOfNodes()];
         for(Node node: cluster.getNodes()) {
@@ -569,8 +634,7 @@ public class JsonStoreBuilder {
             // Create metadata file
             BufferedWriter writer = new BufferedWriter(new FileWriter(new File(nodeDir, ".metadata")));
             ReadOnlyStorageMetadata metadata = new ReadOnlyStorageMetadata();
-            metadata.add(ReadOnlyStorageMetadata.FORMAT,
-                         ReadOnlyStorageFormat.READONLY_V2.getCode());
+            metadata.add(ReadOnlyStorageMetadata.FORMAT, format.getCode());
             writer.write(metadata.toJsonString());
             writer.close();
 
@@ -585,13 +649,41 @@ public class JsonStoreBuilder {
             }
         }
 
+        // Build the Bloom filters from the closed index files
+        if(bloomFilterBitsPerKey > 0) {
+            logger.info("Writing Bloom filters.");
+            for(int partitionId = 0; partitionId < cluster.getNumberOfPartitions(); partitionId++) {
+                int globalChunkId = 0;
+                for(int repType = 0; repType < storeDefinition.getReplicationFactor(); repType++) {
+                    for(int chunk = 0; chunk < numChunks; chunk++) {
+                        String fileName = Integer.toString(partitionId) + "_"
+                                          + Integer.toString(repType) + "_"
+                                          + Integer.toString(chunk);
+                        File indexFile = new File(tempDirectory, fileName + ".index");
+                        int numEntries;
+                        if(blockedIndexes != null)
+                            numEntries = blockedIndexes[partitionId][globalChunkId].getNumEntries();
+                        else
+                            numEntries = (int) (indexFile.length() / (2 * ByteUtils.SIZE_OF_INT
+                                                                      + ReadOnlyUtils.POSITION_SIZE));
+                        writeBloomFilter(indexFile,
+                                         new File(tempDirectory, fileName
+                                                                 + BloomFilter.FILE_EXTENSION),
+                                         numEntries,
+                                         blockedIndexes != null);
+                        globalChunkId++;
+                    }
+                }
+            }
+        }
+
         // Start moving files over to their correct node
         RoutingStrategy strategy = new RoutingStrategyFactory().updateRoutingStrategy(storeDefinition,
                                                                                       cluster);
         Map<Integer, Integer> replicaMapping = cluster.getPartitionIdToNodeIdMap();
         for(File file: tempDirectory.listFiles()) {
             String fileName = file.getName();
-            if(fileName.matches("^[\\d]+_[\\d]+_[\\d]+\\.(data|index)")) {
+            if(fileName.matches("^[\\d]+_[\\d]+_[\\d]+\\.(data|index|bloom)")) {
                 String[] props = fileName.split("_");
                 int partitionId = Integer.parseInt(props[0]);
                 int replicaType = Integer.parseInt(props[1]);
@@ -603,6 +695,44 @@ public class JsonStoreBuilder {
 
     }
 
+    private void writeBloomFilter(File indexFile, File bloomFile, int numEntries, boolean blocked)
+            throws IOException {
+        DataInputStream index = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile),
+                                                                            ioBufferSize));
+        BloomFilter bloomFilter;
+        try {
+            bloomFilter = BloomFilter.fromIndex(index,
+                                                numEntries,
+                                                2 * ByteUtils.SIZE_OF_INT,
+                                                blocked,
+                                                bloomFilterBitsPerKey);
+        } finally {
+            index.close();
+        }
+
+        DataOutputStream bloom = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bloomFile),
+                                                                               ioBufferSize));
+        try {
+            bloomFilter.writeTo(bloom, null);
+        } finally {
+            bloom.close();
+        }
+    }
+
+    private void writeIndexEntry(DataOutputStream[][] indexes,
+                                 BlockedIndexWriter[][] blockedIndexes,
+                                 int partitionId,
+                                 int chunk,
+                                 byte[] keyMd5,
+                                 int position) throws IOException {
+        if(blockedIndexes != null) {
+            blockedIndexes[partitionId][chunk].write(keyMd5, position);
+        } else {
+            indexes[partitionId][chunk].write(keyMd5);
+            indexes[partitionId][chunk].writeInt(position);
+        }
+    }
+
     private byte[] generateFirstElement(KeyValuePair currentPair) throws IOException {
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         DataOutputStream valueStream = new DataOutputStream(stream);
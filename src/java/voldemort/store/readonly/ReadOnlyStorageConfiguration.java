@@ -20,7 +20,10 @@ import java.io.File;
 import java.lang.management.ManagementFactory;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -32,6 +35,7 @@ import voldemort.store.StorageConfiguration;
 import voldemort.store.StorageEngine;
 import voldemort.store.StoreDefinition;
 import voldemort.utils.ByteArray;
+import voldemort.utils.DaemonThreadFactory;
 import voldemort.utils.JmxUtils;
 import voldemort.utils.ReflectUtils;
 
@@ -47,6 +51,9 @@ public class ReadOnlyStorageConfiguration implements StorageConfiguration {
     private RoutingStrategy routingStrategy = null;
     private final int deleteBackupMs;
     private boolean enforceMlock = false;
+    private final List<String> mmapDataStores;
+    private final int getAllIoThreads;
+    private final ExecutorService getAllExecutor;
 
     public ReadOnlyStorageConfiguration(VoldemortConfig config) {
         this.storageDir = new File(config.getReadOnlyDataStorageDirectory());
@@ -57,12 +64,21 @@ public class ReadOnlyStorageConfiguration implements StorageConfiguration {
         this.nodeId = config.getNodeId();
         this.deleteBackupMs = config.getReadOnlyDeleteBackupMs();
         this.enforceMlock = config.isUseMlock();
+        this.mmapDataStores = config.getReadOnlyMmapDataStores();
+        this.getAllIoThreads = config.getReadOnlyGetAllIoThreads();
+        if(getAllIoThreads > 0)
+            this.getAllExecutor = Executors.newFixedThreadPool(getAllIoThreads,
+                                                               new DaemonThreadFactory("voldemort-readonly-getall-"));
+        else
+            this.getAllExecutor = null;
     }
 
     public void close() {
         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
         for(ObjectName name: registeredBeans)
             JmxUtils.unregisterMbean(server, name);
+        if(getAllExecutor != null)
+            getAllExecutor.shutdownNow();
     }
 
     public void setRoutingStrategy(RoutingStrategy routingStrategy) {
@@ -80,7 +96,10 @@ public class ReadOnlyStorageConfiguration implements StorageConfiguration {
                                                                          storeDef.getName()),
                                                                 numBackups,
                                                                 deleteBackupMs,
-                                                                enforceMlock);
+                                                                enforceMlock,
+                                                                mmapDataStores.contains(storeDef.getName()));
+        if(getAllExecutor != null)
+            store.setGetAllExecutor(getAllExecutor, getAllIoThreads);
         ObjectName objName = JmxUtils.createObjectName(JmxUtils.getPackageName(store.getClass()),
                                                        storeDef.getName() + nodeId);
         JmxUtils.registerMbean(ManagementFactory.getPlatformMBeanServer(),
@@ -24,6 +24,10 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -46,6 +50,7 @@ import voldemort.versioning.Version;
 import voldemort.versioning.Versioned;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * A read-only store that fronts a big file
@@ -67,6 +72,15 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
     private int deleteBackupMs = 0;
     private long lastSwapped;
     private boolean enforceMlock = false;
+    private boolean mapDataFiles = false;
+
+    /*
+     * Minimum number of values a getAll read task is given, smaller batches
+     * are not worth a hand-off to the I/O pool
+     */
+    private static final int MIN_VALUES_PER_READ_TASK = 8;
+    private ExecutorService getAllExecutor = null;
+    private int getAllParallelism = 1;
 
     /**
      * Create an instance of the store
@@ -121,9 +135,45 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
                                  int numBackups,
                                  int deleteBackupMs,
                                  boolean enforceMlock) {
+        this(name,
+             searchStrategy,
+             routingStrategy,
+             nodeId,
+             storeDir,
+             numBackups,
+             deleteBackupMs,
+             enforceMlock,
+             false);
+    }
+
+    /**
+     * Create an instance of the store
+     * 
+     * @param name The name of the store
+     * @param searchStrategy The algorithm to use for searching for keys
+     * @param routingStrategy The routing strategy used to route keys
+     * @param nodeId Node id
+     * @param storeDir The directory in which the .data and .index files reside
+     * @param numBackups The number of backups of these files to retain
+     * @param deleteBackupMs The time in ms for which we'll wait before we
+     *        delete a backup
+     * @param enforceMlock If true, mlock the index files
+     * @param mapDataFiles If true, memory map the data files of every version
+     *        this store opens, not just the index files
+     */
+    public ReadOnlyStorageEngine(String name,
+                                 SearchStrategy searchStrategy,
+                                 RoutingStrategy routingStrategy,
+                                 int nodeId,
+                                 File storeDir,
+                                 int numBackups,
+                                 int deleteBackupMs,
+                                 boolean enforceMlock,
+                                 boolean mapDataFiles) {
 
         super(name);
         this.enforceMlock = enforceMlock;
+        this.mapDataFiles = mapDataFiles;
         this.storeDir = storeDir;
         this.numBackups = numBackups;
         this.searchStrategy = searchStrategy;
@@ -132,8 +182,9 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
         this.fileSet = null;
         this.currentVersionId = 0L;
         /*
-         * A lock that blocks reads during swap(), open(), and close()
-         * operations
+         * A lock that serializes swap(), open(), close() and rollback() with
+         * each other and with iterations. Gets do not take it, they pin the
+         * file set they read from instead
          */
         this.fileModificationLock = new ReentrantReadWriteLock();
         this.isOpen = false;
@@ -163,6 +214,29 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
         return builder.toString();
     }
 
+    /**
+     * Tells whether the data files of this store are memory mapped
+     * 
+     * @return true if the data files are memory mapped
+     */
+    @JmxGetter(name = "dataFilesMapped", description = "Whether the data files are memory mapped")
+    public boolean isDataFilesMapped() {
+        return mapDataFiles;
+    }
+
+    @JmxGetter(name = "numBloomFilters", description = "The number of chunks of the current version with a Bloom filter")
+    public int getNumBloomFilters() {
+        // no file set to report on while the store is closed or swapping
+        ChunkedFileSet fileSet = this.fileSet;
+        if(fileSet == null || !fileSet.acquire())
+            return 0;
+        try {
+            return fileSet.getNumBloomFilters();
+        } finally {
+            fileSet.release();
+        }
+    }
+
     /**
      * Open the store with the version directory specified. If null is specified
      * we open the directory with the maximum version
@@ -186,28 +260,69 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
                     versionDir = new File(storeDir, "version-0");
             }
 
-            // Set the max version id
-            long versionId = ReadOnlyUtils.getVersionId(versionDir);
-            if(versionId == -1) {
-                throw new VoldemortException("Unable to parse id from version directory "
-                                             + versionDir.getAbsolutePath());
-            }
-            currentVersionId = versionId;
-            Utils.mkdirs(versionDir);
-
-            // Create symbolic link
-            logger.info("Creating symbolic link for '" + getName() + "' using directory "
-                        + versionDir.getAbsolutePath());
-            Utils.symlink(versionDir.getAbsolutePath(), storeDir.getAbsolutePath() + File.separator
-                                                        + "latest");
-            this.fileSet = new ChunkedFileSet(versionDir, routingStrategy, nodeId, enforceMlock);
-            this.lastSwapped = System.currentTimeMillis();
-            this.isOpen = true;
+            openFileSet(versionDir);
         } finally {
             fileModificationLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Opens the given version directory and hands it over to readers. The file
+     * set it replaces, if any, is closed once the gets in flight on it have
+     * completed, so readers never wait for the swap. Must be called with the
+     * modification lock held.
+     * 
+     * @param versionDir Version directory to open
+     */
+    private void openFileSet(File versionDir) {
+        // Set the max version id
+        long versionId = ReadOnlyUtils.getVersionId(versionDir);
+        if(versionId == -1) {
+            throw new VoldemortException("Unable to parse id from version directory "
+                                         + versionDir.getAbsolutePath());
+        }
+        Utils.mkdirs(versionDir);
+
+        // Create symbolic link
+        logger.info("Creating symbolic link for '" + getName() + "' using directory "
+                    + versionDir.getAbsolutePath());
+        Utils.symlink(versionDir.getAbsolutePath(), storeDir.getAbsolutePath() + File.separator
+                                                    + "latest");
+        ChunkedFileSet newFileSet = new ChunkedFileSet(versionDir,
+                                                       routingStrategy,
+                                                       nodeId,
+                                                       enforceMlock,
+                                                       mapDataFiles);
+        ChunkedFileSet previousFileSet = isOpen ? this.fileSet : null;
+        this.currentVersionId = versionId;
+        this.fileSet = newFileSet;
+        this.lastSwapped = System.currentTimeMillis();
+        this.isOpen = true;
+
+        if(previousFileSet != null)
+            previousFileSet.close();
+    }
+
+    /**
+     * Pins the current file set so that it stays open for the duration of a
+     * read, even if a swap replaces it in the meantime. Must be paired with
+     * {@link ChunkedFileSet#release()}
+     * 
+     * @return The current file set
+     */
+    private ChunkedFileSet acquireFileSet() {
+        while(true) {
+            ChunkedFileSet current = this.fileSet;
+            if(current.acquire())
+                return current;
+
+            // Either a swap has already published a newer file set, or the
+            // store has been closed
+            if(!isOpen)
+                throw new VoldemortException("Read-only store '" + getName() + "' is closed");
+        }
+    }
+
     /**
      * Set the routing strategy required to find which partition the key belongs
      * to
@@ -219,6 +334,21 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
         this.routingStrategy = routingStrategy;
     }
 
+    /**
+     * Lets getAll fan the value reads of large batches out to the given pool.
+     * The sorted reads are split into at most <code>parallelism</code>
+     * contiguous slices, each read by one task.
+     * 
+     * @param getAllExecutor The pool to read values on, or null to read them
+     *        on the request thread
+     * @param parallelism The maximum number of tasks a single getAll is split
+     *        into
+     */
+    public void setGetAllExecutor(ExecutorService getAllExecutor, int parallelism) {
+        this.getAllExecutor = getAllExecutor;
+        this.getAllParallelism = parallelism;
+    }
+
     /**
      * Retrieve the absolute path of the current version
      * 
@@ -332,12 +462,12 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
         fileModificationLock.writeLock().lock();
         boolean success = false;
         try {
-            close();
             logger.info("Opening primary files for store '" + getName() + "' at "
                         + newStoreDirectory);
 
-            // open the latest store
-            open(newVersionDir);
+            // open the latest store, the current files are closed once no
+            // more gets are reading from them
+            openFileSet(newVersionDir);
             success = true;
         } finally {
             try {
@@ -446,11 +576,8 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
             }
             backUpDirs = ReadOnlyUtils.findKthVersionedDir(backUpDirs, 0, backUpDirs.length - 1);
 
-            if(isOpen)
-                close();
-
             // open the rollback directory
-            open(rollbackToDir);
+            openFileSet(rollbackToDir);
 
             // back-up all other directories
             DateFormat df = new SimpleDateFormat("MM-dd-yyyy");
@@ -467,7 +594,7 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
 
     @Override
     public ClosableIterator<ByteArray> keys() {
-        if(!(fileSet.getReadOnlyStorageFormat().compareTo(ReadOnlyStorageFormat.READONLY_V2) == 0))
+        if(!isIterable(fileSet.getReadOnlyStorageFormat()))
             throw new UnsupportedOperationException("Iteration is not supported for "
                                                     + getClass().getName()
                                                     + " with storage format "
@@ -477,7 +604,7 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
 
     @Override
     public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries() {
-        if(!(fileSet.getReadOnlyStorageFormat().compareTo(ReadOnlyStorageFormat.READONLY_V2) == 0))
+        if(!isIterable(fileSet.getReadOnlyStorageFormat()))
             throw new UnsupportedOperationException("Iteration is not supported for "
                                                     + getClass().getName()
                                                     + " with storage format "
@@ -485,6 +612,11 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
         return new ChunkedFileSet.ROEntriesIterator(fileSet, fileModificationLock);
     }
 
+    private boolean isIterable(ReadOnlyStorageFormat format) {
+        return format == ReadOnlyStorageFormat.READONLY_V2
+               || format == ReadOnlyStorageFormat.READONLY_V3;
+    }
+
     @Override
     public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries(int partition) {
         throw new UnsupportedOperationException("Partition based entries scan not supported for this storage type");
@@ -506,16 +638,16 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
     @Override
     public List<Versioned<byte[]>> get(ByteArray key, byte[] transforms) throws VoldemortException {
         StoreUtils.assertValidKey(key);
+        ChunkedFileSet fileSet = acquireFileSet();
         try {
-            fileModificationLock.readLock().lock();
             int chunk = fileSet.getChunkForKey(key.get());
             if(chunk < 0) {
                 logger.warn("Invalid chunk id returned. Either routing strategy is inconsistent or storage format not understood");
                 return Collections.emptyList();
             }
-            int location = searchStrategy.indexOf(fileSet.indexFileFor(chunk),
-                                                  fileSet.keyToStorageFormat(key.get()),
-                                                  fileSet.getIndexFileSize(chunk));
+            int location = fileSet.indexOf(searchStrategy,
+                                           chunk,
+                                           fileSet.keyToStorageFormat(key.get()));
             if(location >= 0) {
                 byte[] value = fileSet.readValue(key.get(), chunk, location);
                 if(value.length == 0) {
@@ -527,7 +659,7 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
                 return Collections.emptyList();
             }
         } finally {
-            fileModificationLock.readLock().unlock();
+            fileSet.release();
         }
     }
 
@@ -537,29 +669,115 @@ public class ReadOnlyStorageEngine extends AbstractStorageEngine<ByteArray, byte
             throws VoldemortException {
         StoreUtils.assertValidKeys(keys);
         Map<ByteArray, List<Versioned<byte[]>>> results = StoreUtils.newEmptyHashMap(keys);
+        ChunkedFileSet fileSet = acquireFileSet();
         try {
-            fileModificationLock.readLock().lock();
             List<KeyValueLocation> keysAndValueLocations = Lists.newArrayList();
             for(ByteArray key: keys) {
                 int chunk = fileSet.getChunkForKey(key.get());
-                int valueLocation = searchStrategy.indexOf(fileSet.indexFileFor(chunk),
-                                                           fileSet.keyToStorageFormat(key.get()),
-                                                           fileSet.getIndexFileSize(chunk));
+                int valueLocation = fileSet.indexOf(searchStrategy,
+                                                    chunk,
+                                                    fileSet.keyToStorageFormat(key.get()));
                 if(valueLocation >= 0)
                     keysAndValueLocations.add(new KeyValueLocation(chunk, key, valueLocation));
             }
+            // Sort by chunk and offset so that reads go through the data
+            // files in order and neighbouring entries are read together
             Collections.sort(keysAndValueLocations);
 
-            for(KeyValueLocation keyVal: keysAndValueLocations) {
-                byte[] value = fileSet.readValue(keyVal.getKey().get(),
-                                                 keyVal.getChunk(),
-                                                 keyVal.getValueLocation());
-                if(value.length > 0)
-                    results.put(keyVal.getKey(), Collections.singletonList(Versioned.value(value)));
-            }
+            int numTasks = Math.min(getAllParallelism, keysAndValueLocations.size()
+                                                       / MIN_VALUES_PER_READ_TASK);
+            if(getAllExecutor == null || numTasks < 2)
+                readValues(fileSet, keysAndValueLocations, results);
+            else
+                readValuesInParallel(fileSet, keysAndValueLocations, numTasks, results);
             return results;
         } finally {
-            fileModificationLock.readLock().unlock();
+            fileSet.release();
+        }
+    }
+
+    /**
+     * Reads the values of the sorted locations, one batch per chunk
+     */
+    private void readValues(ChunkedFileSet fileSet,
+                            List<KeyValueLocation> sortedLocations,
+                            Map<ByteArray, List<Versioned<byte[]>>> results) {
+        int batchStart = 0;
+        while(batchStart < sortedLocations.size()) {
+            int chunk = sortedLocations.get(batchStart).getChunk();
+            int batchEnd = batchStart + 1;
+            while(batchEnd < sortedLocations.size()
+                  && sortedLocations.get(batchEnd).getChunk() == chunk)
+                batchEnd++;
+
+            byte[][] keys = new byte[batchEnd - batchStart][];
+            int[] valueLocations = new int[batchEnd - batchStart];
+            for(int i = batchStart; i < batchEnd; i++) {
+                keys[i - batchStart] = sortedLocations.get(i).getKey().get();
+                valueLocations[i - batchStart] = sortedLocations.get(i).getValueLocation();
+            }
+
+            byte[][] values = fileSet.readValues(chunk, keys, valueLocations);
+            for(int i = batchStart; i < batchEnd; i++) {
+                byte[] value = values[i - batchStart];
+                if(value.length > 0)
+                    results.put(sortedLocations.get(i).getKey(),
+                                Collections.singletonList(Versioned.value(value)));
+            }
+            batchStart = batchEnd;
+        }
+    }
+
+    /**
+     * Splits the sorted locations into contiguous slices and reads each of them
+     * on the getAll pool. Every task pins the file set itself, so a failed
+     * request never leaves a task reading from closed files.
+     */
+    private void readValuesInParallel(final ChunkedFileSet fileSet,
+                                      List<KeyValueLocation> sortedLocations,
+                                      int numTasks,
+                                      Map<ByteArray, List<Versioned<byte[]>>> results) {
+        int sliceSize = (sortedLocations.size() + numTasks - 1) / numTasks;
+        List<Future<Map<ByteArray, List<Versioned<byte[]>>>>> futures = Lists.newArrayList();
+        for(int sliceStart = 0; sliceStart < sortedLocations.size(); sliceStart += sliceSize) {
+            final List<KeyValueLocation> slice = sortedLocations.subList(sliceStart,
+                                                                         Math.min(sliceStart
+                                                                                          + sliceSize,
+                                                                                  sortedLocations.size()));
+            if(!fileSet.acquire())
+                throw new VoldemortException("File set of store '" + getName()
+                                             + "' closed while reading");
+            try {
+                futures.add(getAllExecutor.submit(new Callable<Map<ByteArray, List<Versioned<byte[]>>>>() {
+
+                    public Map<ByteArray, List<Versioned<byte[]>>> call() {
+                        try {
+                            Map<ByteArray, List<Versioned<byte[]>>> sliceResults = Maps.newHashMap();
+                            readValues(fileSet, slice, sliceResults);
+                            return sliceResults;
+                        } finally {
+                            fileSet.release();
+                        }
+                    }
+                }));
+            } catch(RuntimeException e) {
+                fileSet.release();
+                throw e;
+            }
+        }
+
+        for(Future<Map<ByteArray, List<Versioned<byte[]>>>> future: futures) {
+            try {
+                results.putAll(future.get());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new VoldemortException("Interrupted while reading values for store '"
+                                             + getName() + "'", e);
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof VoldemortException)
+                    throw (VoldemortException) e.getCause();
+                throw new VoldemortException(e.getCause());
+            }
         }
     }
 
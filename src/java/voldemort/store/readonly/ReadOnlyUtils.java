@@ -34,6 +34,27 @@ public class ReadOnlyUtils {
         return foundKey;
     }
 
+    /**
+     * Compares the key stored in the buffer at the given offset with the
+     * supplied key, without copying it out of the buffer. Bytes are compared
+     * as unsigned values, the same way as {@link ByteUtils#compare(byte[], byte[])}
+     * 
+     * @param buffer The buffer containing the stored key
+     * @param offset The absolute offset of the stored key in the buffer
+     * @param key The key to compare against
+     * @return -1 if the stored key is smaller, 1 if it is bigger and 0 if they
+     *         are equal
+     */
+    public static int compare(ByteBuffer buffer, int offset, byte[] key) {
+        for(int i = 0; i < key.length; i++) {
+            int a = (buffer.get(offset + i) & 0xff);
+            int b = (key[i] & 0xff);
+            if(a != b)
+                return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+
     /**
      * Given a file name and read-only storage format, tells whether the file
      * name format is correct
@@ -53,6 +74,7 @@ public class ReadOnlyUtils {
                 }
 
             case READONLY_V2:
+            case READONLY_V3:
                 if(fileName.matches("^[\\d]+_[\\d]+_[\\d]+\\.(data|index)")) {
                     return true;
                 } else {
@@ -6,11 +6,12 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -19,9 +20,12 @@ import org.apache.log4j.Logger;
 import voldemort.VoldemortException;
 import voldemort.cluster.Node;
 import voldemort.routing.RoutingStrategy;
+import voldemort.store.readonly.BlockSearchStrategy;
+import voldemort.store.readonly.BloomFilter;
 import voldemort.store.readonly.ReadOnlyStorageFormat;
 import voldemort.store.readonly.ReadOnlyStorageMetadata;
 import voldemort.store.readonly.ReadOnlyUtils;
+import voldemort.store.readonly.SearchStrategy;
 import voldemort.store.readonly.io.MappedFileReader;
 import voldemort.utils.ByteArray;
 import voldemort.utils.ByteUtils;
@@ -46,9 +50,15 @@ public class ChunkedFileSet {
     private final List<Integer> indexFileSizes;
     private final List<Integer> dataFileSizes;
     private final List<MappedByteBuffer> indexFiles;
+    private final List<long[]> indexFences;
+    private final List<Integer> indexNumEntries;
+    private final List<BloomFilter> bloomFilters;
+    private final List<MappedFileReader> bloomFilterReaders;
 
     private List<MappedFileReader> mappedIndexFileReader;
     private final List<FileChannel> dataFiles;
+    private final List<MappedFileReader> mappedDataFileReader;
+    private final List<MappedByteBuffer> mappedDataFiles;
     private final HashMap<Object, Integer> chunkIdToChunkStart;
     private final HashMap<Object, Integer> chunkIdToNumChunks;
     private ArrayList<Integer> nodePartitionIds;
@@ -56,13 +66,65 @@ public class ChunkedFileSet {
     private ReadOnlyStorageFormat storageFormat;
 
     private boolean enforceMlock = false;
+    private boolean mapDataFiles = false;
 
+    /*
+     * Number of references to this file set: one held by the owning store
+     * until it closes the file set plus one per read in flight. The files are
+     * closed when it drops to zero
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Size of the per-thread buffer used to read from the data files. Collided
+     * entries bigger than this are read with a one-off allocation
+     */
+    private static final int READ_WINDOW_SIZE = 8 * 1024;
+
+    /**
+     * Size of the first read of a single lookup, enough for the header, key
+     * and value of a typical entry. The rest of a larger entry is read once
+     * its sizes are known.
+     */
+    private static final int FIRST_READ_SIZE = 512;
+
+    private static final BlockSearchStrategy blockSearchStrategy = new BlockSearchStrategy();
+
+    private static final ThreadLocal<ReadWindow> readWindow = new ThreadLocal<ReadWindow>() {
+
+        @Override
+        protected ReadWindow initialValue() {
+            return new ReadWindow();
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> md5Digest = new ThreadLocal<MessageDigest>() {
+
+        @Override
+        protected MessageDigest initialValue() {
+            return ByteUtils.getDigest("MD5");
+        }
+    };
+
+    /**
+     * Opens the chunked file set in the given version directory
+     * 
+     * @param directory The version directory
+     * @param routingStrategy The routing strategy used to route keys
+     * @param nodeId Node id
+     * @param enforceMlock If true, mlock the index files
+     * @param mapDataFiles If true, memory map the data files as well so that
+     *        value reads do not go through read syscalls
+     */
     public ChunkedFileSet(File directory,
                           RoutingStrategy routingStrategy,
                           int nodeId,
-                          boolean enforceMlock) {
+                          boolean enforceMlock,
+                          boolean mapDataFiles) {
 
         this.enforceMlock = enforceMlock;
+        this.mapDataFiles = mapDataFiles;
         this.baseDir = directory;
         if(!Utils.isReadableDir(directory))
             throw new VoldemortException(directory.getAbsolutePath()
@@ -86,9 +148,15 @@ public class ChunkedFileSet {
         this.indexFileSizes = new ArrayList<Integer>();
         this.dataFileSizes = new ArrayList<Integer>();
         this.indexFiles = new ArrayList<MappedByteBuffer>();
+        this.indexFences = new ArrayList<long[]>();
+        this.indexNumEntries = new ArrayList<Integer>();
+        this.bloomFilters = new ArrayList<BloomFilter>();
+        this.bloomFilterReaders = new ArrayList<MappedFileReader>();
         this.mappedIndexFileReader = new ArrayList<MappedFileReader>();
 
         this.dataFiles = new ArrayList<FileChannel>();
+        this.mappedDataFileReader = new ArrayList<MappedFileReader>();
+        this.mappedDataFiles = new ArrayList<MappedByteBuffer>();
         this.chunkIdToChunkStart = new HashMap<Object, Integer>();
         this.chunkIdToNumChunks = new HashMap<Object, Integer>();
         this.nodeId = nodeId;
@@ -104,6 +172,10 @@ public class ChunkedFileSet {
             case READONLY_V2:
                 initVersion2();
                 break;
+            case READONLY_V3:
+                initVersion2();
+                loadIndexFences();
+                break;
             default:
                 throw new VoldemortException("Invalid chunked storage format type " + storageFormat);
         }
@@ -113,6 +185,13 @@ public class ChunkedFileSet {
                      + " chunks and format  " + storageFormat);
     }
 
+    public ChunkedFileSet(File directory,
+                          RoutingStrategy routingStrategy,
+                          int nodeId,
+                          boolean enforceMlock) {
+        this(directory, routingStrategy, nodeId, enforceMlock, false);
+    }
+
     public ChunkedFileSet(File directory, RoutingStrategy routingStrategy, int nodeId) {
         this(directory, routingStrategy, nodeId, false);
 
@@ -164,7 +243,7 @@ public class ChunkedFileSet {
             dataFileSizes.add((int) dataLength);
 
             /* Add the file channel for data */
-            dataFiles.add(openChannel(data));
+            addDataFile(data);
 
             MappedFileReader idxFileReader = null;
             try {
@@ -177,6 +256,7 @@ public class ChunkedFileSet {
             }
 
             // indexFiles.add(mapFile(index));
+            addBloomFilter(index);
             chunkId++;
         }
         if(chunkId == 0)
@@ -227,7 +307,7 @@ public class ChunkedFileSet {
                     dataFileSizes.add((int) dataLength);
 
                     /* Add the file channel for data */
-                    dataFiles.add(openChannel(data));
+                    addDataFile(data);
 
                     MappedFileReader idxFileReader = null;
                     try {
@@ -239,6 +319,7 @@ public class ChunkedFileSet {
                     }
 
                     // indexFiles.add(mapFile(index));
+                    addBloomFilter(index);
                     chunkId++;
                     globalChunkId++;
                 }
@@ -321,7 +402,7 @@ public class ChunkedFileSet {
                                     dataFileSizes.add((int) dataLength);
 
                                     /* Add the file channel for data */
-                                    dataFiles.add(openChannel(data));
+                                    addDataFile(data);
 
                                     MappedFileReader idxFileReader = null;
                                     try {
@@ -333,6 +414,7 @@ public class ChunkedFileSet {
                                     }
 
                                     // indexFiles.add(mapFile(index));
+                                    addBloomFilter(index);
                                     chunkId++;
                                     globalChunkId++;
                                 }
@@ -352,6 +434,27 @@ public class ChunkedFileSet {
         }
     }
 
+    /**
+     * Reads the fences of every blocked index onto the heap, so that a lookup
+     * only has to touch the single index block that may hold the key
+     */
+    private void loadIndexFences() {
+        for(int chunk = 0; chunk < indexFiles.size(); chunk++) {
+            ByteBuffer index = indexFiles.get(chunk).duplicate();
+            int indexFileSize = indexFileSizes.get(chunk);
+            long[] fences = BlockSearchStrategy.readFences(index, indexFileSize);
+            int numEntries = BlockSearchStrategy.getNumEntries(index, indexFileSize);
+            if(numEntries < 0
+               || numEntries > fences.length * BlockSearchStrategy.ENTRIES_PER_BLOCK
+               || numEntries <= (fences.length - 1) * BlockSearchStrategy.ENTRIES_PER_BLOCK)
+                throw new VoldemortException("Invalid blocked index for chunk " + chunk + " in "
+                                             + baseDir + ", " + fences.length
+                                             + " blocks cannot hold " + numEntries + " entries.");
+            indexFences.add(fences);
+            indexNumEntries.add(numEntries);
+        }
+    }
+
     /**
      * Get the chunk id to num chunks mapping
      * 
@@ -380,6 +483,16 @@ public class ChunkedFileSet {
         if(indexLength > Integer.MAX_VALUE || dataLength > Integer.MAX_VALUE)
             throw new VoldemortException("Index or data file exceeds " + Integer.MAX_VALUE
                                          + " bytes.");
+        if(storageFormat == ReadOnlyStorageFormat.READONLY_V3) {
+            // The number of entries is only known once the index is open
+            if(!BlockSearchStrategy.isValidSize(indexLength))
+                throw new VoldemortException("Invalid blocked index file, file length must be "
+                                             + BlockSearchStrategy.TRAILER_SIZE
+                                             + " bytes more than a multiple of "
+                                             + (BlockSearchStrategy.BLOCK_SIZE + BlockSearchStrategy.FENCE_SIZE)
+                                             + " but is " + indexLength + " bytes.");
+            return;
+        }
         if(indexLength % (getKeyHashSize() + ReadOnlyUtils.POSITION_SIZE) != 0L)
             throw new VoldemortException("Invalid index file, file length must be a multiple of "
                                          + (getKeyHashSize() + ReadOnlyUtils.POSITION_SIZE)
@@ -390,7 +503,43 @@ public class ChunkedFileSet {
                                          + dataLength + " bytes.");
     }
 
+    /**
+     * Acquires a reference on this file set, preventing its files from being
+     * closed until {@link #release()} is called
+     * 
+     * @return false if the file set has already been closed, in which case no
+     *         reference was acquired
+     */
+    public boolean acquire() {
+        while(true) {
+            int current = references.get();
+            if(current <= 0)
+                return false;
+            if(references.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Releases a reference acquired through {@link #acquire()}. The last
+     * release after {@link #close()} closes the files.
+     */
+    public void release() {
+        if(references.decrementAndGet() == 0)
+            closeFiles();
+    }
+
+    /**
+     * Closes this file set. Reads in flight keep their references, so the
+     * files are only closed once the last of them has been released.
+     */
     public void close() {
+        if(closed.compareAndSet(false, true))
+            release();
+    }
+
+    private void closeFiles() {
+        logger.trace("Closing chunked file set for " + baseDir);
         for(int chunk = 0; chunk < this.numChunks; chunk++) {
             FileChannel channel = dataFileFor(chunk);
             try {
@@ -399,6 +548,14 @@ public class ChunkedFileSet {
                 logger.error("Error while closing file.", e);
             }
 
+            if(mapDataFiles) {
+                try {
+                    mappedDataFileReader.get(chunk).close();
+                } catch(IOException e) {
+                    logger.error("Error while closing file.", e);
+                }
+            }
+
             MappedFileReader idxFileReader = mappedIndexFileReader.get(chunk);
             try {
                 idxFileReader.close();
@@ -407,31 +564,91 @@ public class ChunkedFileSet {
                 logger.error("Error while closing file.", e);
             }
         }
+
+        for(MappedFileReader bloomFilterReader: bloomFilterReaders) {
+            try {
+                bloomFilterReader.close();
+            } catch(IOException e) {
+                logger.error("Error while closing file.", e);
+            }
+        }
     }
 
-    private FileChannel openChannel(File file) {
+    /**
+     * Opens the data file of the next chunk, mapping it into memory if the
+     * data files of this file set are mapped
+     * 
+     * @param data The data file
+     */
+    private void addDataFile(File data) {
+        dataFiles.add(openChannel(data));
+        if(mapDataFiles) {
+            try {
+                MappedFileReader dataFileReader = new MappedFileReader(data);
+                mappedDataFileReader.add(dataFileReader);
+                mappedDataFiles.add(dataFileReader.map(false));
+            } catch(IOException e) {
+                throw new VoldemortException("Error while mapping data file " + data, e);
+            }
+        }
+    }
+
+    /**
+     * Maps the Bloom filter of the next chunk, if the store was built with one.
+     * Its mapping is released when the file set is closed
+     * 
+     * @param index The index file of the chunk
+     */
+    private void addBloomFilter(File index) {
+        String indexName = index.getName();
+        File bloom = new File(index.getParentFile(),
+                              indexName.substring(0, indexName.length() - ".index".length())
+                                      + BloomFilter.FILE_EXTENSION);
+        if(!bloom.exists()) {
+            bloomFilters.add(null);
+            return;
+        }
         try {
-            return new FileInputStream(file).getChannel();
+            MappedFileReader bloomFilterReader = new MappedFileReader(bloom);
+            bloomFilterReaders.add(bloomFilterReader);
+            bloomFilters.add(BloomFilter.read(bloomFilterReader.map(false)));
         } catch(IOException e) {
-            throw new VoldemortException(e);
+            throw new VoldemortException("Error while mapping Bloom filter " + bloom, e);
         }
     }
 
-    private MappedByteBuffer mapFile(File file) {
+    private FileChannel openChannel(File file) {
         try {
-            FileChannel channel = new FileInputStream(file).getChannel();
-            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, file.length());
-            channel.close();
-            return buffer;
+            return new FileInputStream(file).getChannel();
         } catch(IOException e) {
             throw new VoldemortException(e);
         }
     }
 
+
     public int getNumChunks() {
         return this.numChunks;
     }
 
+    /**
+     * @return The number of chunks which have a Bloom filter
+     */
+    public int getNumBloomFilters() {
+        int numBloomFilters = 0;
+        for(BloomFilter bloomFilter: bloomFilters) {
+            if(bloomFilter != null)
+                numBloomFilters++;
+        }
+        return numBloomFilters;
+    }
+
+    /**
+     * @return true if the data files are memory mapped
+     */
+    public boolean isDataFilesMapped() {
+        return this.mapDataFiles;
+    }
+
     /**
      * Converts the key to the format in which it is stored for searching
      * 
@@ -443,14 +660,28 @@ public class ChunkedFileSet {
         switch(getReadOnlyStorageFormat()) {
             case READONLY_V0:
             case READONLY_V1:
-                return ByteUtils.md5(key);
+                return md5(key);
             case READONLY_V2:
-                return ByteUtils.copy(ByteUtils.md5(key), 0, 2 * ByteUtils.SIZE_OF_INT);
+            case READONLY_V3:
+                return ByteUtils.copy(md5(key), 0, 2 * ByteUtils.SIZE_OF_INT);
             default:
                 throw new VoldemortException("Unknown read-only storage format");
         }
     }
 
+    /**
+     * Computes the md5 of the key re-using a per-thread digest, instead of
+     * looking up a new one on every request
+     * 
+     * @param key Byte array of the key
+     * @return The md5 hash of the key
+     */
+    private static byte[] md5(byte[] key) {
+        MessageDigest digest = md5Digest.get();
+        digest.reset();
+        return digest.digest(key);
+    }
+
     /**
      * Depending on the storage format gives the size of the key stored in the
      * index file
@@ -463,6 +694,7 @@ public class ChunkedFileSet {
             case READONLY_V1:
                 return 16;
             case READONLY_V2:
+            case READONLY_V3:
                 return 2 * ByteUtils.SIZE_OF_INT;
             default:
                 throw new VoldemortException("Unknown read-only storage format");
@@ -479,7 +711,7 @@ public class ChunkedFileSet {
     public int getChunkForKey(byte[] key) {
         switch(storageFormat) {
             case READONLY_V0: {
-                return ReadOnlyUtils.chunk(ByteUtils.md5(key), numChunks);
+                return ReadOnlyUtils.chunk(md5(key), numChunks);
             }
             case READONLY_V1: {
                 List<Integer> routingPartitionList = routingStrategy.getPartitionList(key);
@@ -490,10 +722,11 @@ public class ChunkedFileSet {
                 }
 
                 return chunkIdToChunkStart.get(routingPartitionList.get(0))
-                       + ReadOnlyUtils.chunk(ByteUtils.md5(key),
+                       + ReadOnlyUtils.chunk(md5(key),
                                              chunkIdToNumChunks.get(routingPartitionList.get(0)));
             }
-            case READONLY_V2: {
+            case READONLY_V2:
+            case READONLY_V3: {
                 List<Integer> routingPartitionList = routingStrategy.getPartitionList(key);
 
                 Pair<Integer, Integer> bucket = null;
@@ -512,7 +745,7 @@ public class ChunkedFileSet {
                     return -1;
 
                 return chunkIdToChunkStart.get(bucket)
-                       + ReadOnlyUtils.chunk(ByteUtils.md5(key), chunkIdToNumChunks.get(bucket));
+                       + ReadOnlyUtils.chunk(md5(key), chunkIdToNumChunks.get(bucket));
             }
             default: {
                 return -1;
@@ -521,80 +754,236 @@ public class ChunkedFileSet {
 
     }
 
+    /**
+     * Searches the index of a chunk for a key. The Bloom filter of the chunk,
+     * if any, is checked first so that most keys not in the chunk never touch
+     * the index. Blocked indexes are always searched through their fences,
+     * whatever the configured strategy.
+     * 
+     * @param searchStrategy The strategy used to search flat indexes
+     * @param chunk The chunk the key belongs to
+     * @param keyHash The key, as returned by {@link #keyToStorageFormat(byte[])}
+     * @return The location of the value in the data file, else -1
+     */
+    public int indexOf(SearchStrategy searchStrategy, int chunk, byte[] keyHash) {
+        BloomFilter bloomFilter = bloomFilters.get(chunk);
+        if(bloomFilter != null && !bloomFilter.mightContain(keyHash))
+            return -1;
+        if(storageFormat == ReadOnlyStorageFormat.READONLY_V3)
+            return blockSearchStrategy.indexOf(indexFileFor(chunk),
+                                               indexFences.get(chunk),
+                                               indexNumEntries.get(chunk),
+                                               keyHash);
+        return searchStrategy.indexOf(indexFileFor(chunk), keyHash, getIndexFileSize(chunk));
+    }
+
     public byte[] readValue(byte[] key, int chunk, int valueLocation) {
-        FileChannel dataFile = dataFileFor(chunk);
+        ReadWindow window = openWindow(chunk, FIRST_READ_SIZE);
         try {
-            switch(storageFormat) {
-                case READONLY_V0:
-                case READONLY_V1: {
-                    // Read value size
-                    ByteBuffer sizeBuffer = ByteBuffer.allocate(ByteUtils.SIZE_OF_INT);
-                    dataFile.read(sizeBuffer, valueLocation);
-                    int valueSize = sizeBuffer.getInt(0);
-
-                    // Read value
-                    ByteBuffer valueBuffer = ByteBuffer.allocate(valueSize);
-                    dataFile.read(valueBuffer, valueLocation + ByteUtils.SIZE_OF_INT);
-                    return valueBuffer.array();
-                }
-                case READONLY_V2: {
-
-                    // Buffer for 'numKeyValues', 'keySize' and 'valueSize'
-                    int headerSize = ByteUtils.SIZE_OF_SHORT + (2 * ByteUtils.SIZE_OF_INT);
-                    ByteBuffer sizeBuffer = ByteBuffer.allocate(headerSize);
-                    dataFile.read(sizeBuffer, valueLocation);
-                    valueLocation += headerSize;
-
-                    // Read the number of key-values
-                    short numKeyValues = sizeBuffer.getShort(0);
-
-                    // Read the key size
-                    int keySize = sizeBuffer.getInt(ByteUtils.SIZE_OF_SHORT);
-
-                    // Read the value size
-                    int valueSize = sizeBuffer.getInt(ByteUtils.SIZE_OF_SHORT
-                                                      + ByteUtils.SIZE_OF_INT);
-
-                    do {
-
-                        if(keySize == -1 && valueSize == -1) {
-                            sizeBuffer.clear();
-                            // Reads an extra short, but that is fine since
-                            // collisions are rare. Also we save the unnecessary
-                            // overhead of allocating a new byte-buffer
-                            dataFile.read(sizeBuffer, valueLocation);
-                            keySize = sizeBuffer.getInt(0);
-                            valueSize = sizeBuffer.getInt(ByteUtils.SIZE_OF_INT);
-                            valueLocation += (2 * ByteUtils.SIZE_OF_INT);
-                        }
+            return readValue(window, key, valueLocation);
+        } catch(IOException e) {
+            throw new VoldemortException(e);
+        } finally {
+            window.release();
+        }
+    }
 
-                        // Read key + value
-                        ByteBuffer buffer = ByteBuffer.allocate(keySize + valueSize);
-                        dataFile.read(buffer, valueLocation);
+    /**
+     * Reads the values of several keys stored in the same chunk. The read
+     * window is kept across keys, so when the value locations are in ascending
+     * order entries lying close to each other in the data file are fetched
+     * with a single read.
+     * 
+     * @param chunk The chunk all keys belong to
+     * @param keys The keys to read
+     * @param valueLocations The value location of each key, as found in the
+     *        index
+     * @return The value of each key, of no size if the key was not found
+     */
+    public byte[][] readValues(int chunk, byte[][] keys, int[] valueLocations) {
+        byte[][] values = new byte[keys.length][];
+        ReadWindow window = openWindow(chunk, READ_WINDOW_SIZE);
+        try {
+            for(int i = 0; i < keys.length; i++)
+                values[i] = readValue(window, keys[i], valueLocations[i]);
+            return values;
+        } catch(IOException e) {
+            throw new VoldemortException(e);
+        } finally {
+            window.release();
+        }
+    }
 
-                        // Compare key
-                        if(ByteUtils.compare(key, buffer.array(), 0, keySize) == 0) {
-                            return ByteUtils.copy(buffer.array(), keySize, keySize + valueSize);
-                        }
-                        valueLocation += (keySize + valueSize);
-                        keySize = valueSize = -1;
+    /*
+     * readAhead is how much to read past the region asked for, up to the
+     * window size: little for a single key, the whole window for a batch of
+     * keys in data file order
+     */
+    private ReadWindow openWindow(int chunk, int readAhead) {
+        ReadWindow window = readWindow.get();
+        if(mapDataFiles)
+            window.reset(mappedDataFiles.get(chunk));
+        else
+            window.reset(dataFileFor(chunk), getDataFileSize(chunk), readAhead);
+        return window;
+    }
+
+    private byte[] readValue(ReadWindow window, byte[] key, int valueLocation) throws IOException {
+        switch(storageFormat) {
+            case READONLY_V0:
+            case READONLY_V1: {
+                // Read value size
+                if(!window.cover(valueLocation, ByteUtils.SIZE_OF_INT))
+                    return new byte[0];
+                int valueSize = window.getInt(valueLocation);
+
+                // Read value
+                return window.read(valueLocation + ByteUtils.SIZE_OF_INT, valueSize);
+            }
+            case READONLY_V2:
+            case READONLY_V3: {
 
-                    } while(--numKeyValues > 0);
-                    // Could not find key, return value of no size
+                // Read the number of key-values
+                if(!window.cover(valueLocation, ByteUtils.SIZE_OF_SHORT))
                     return new byte[0];
-                }
+                short numKeyValues = window.getShort(valueLocation);
+                valueLocation += ByteUtils.SIZE_OF_SHORT;
+
+                do {
+                    // Read the key size and value size
+                    if(!window.cover(valueLocation, 2 * ByteUtils.SIZE_OF_INT))
+                        break;
+                    int keySize = window.getInt(valueLocation);
+                    int valueSize = window.getInt(valueLocation + ByteUtils.SIZE_OF_INT);
+                    valueLocation += (2 * ByteUtils.SIZE_OF_INT);
+
+                    // Compare key in place, only materialize the value
+                    // once we have found it
+                    if(keySize == key.length && window.matches(valueLocation, key)) {
+                        return window.read(valueLocation + keySize, valueSize);
+                    }
+                    valueLocation += (keySize + valueSize);
 
-                default: {
-                    throw new VoldemortException("Storage format not supported ");
-                }
+                } while(--numKeyValues > 0);
+                // Could not find key, return value of no size
+                return new byte[0];
+            }
+
+            default: {
+                throw new VoldemortException("Storage format not supported ");
+            }
+        }
+    }
+
+    /**
+     * A per-thread window over a region of a data file, backed by a reusable
+     * direct buffer. Headers and keys are inspected in place so that a lookup
+     * only allocates the array of the value it returns. When the data file is
+     * memory mapped the window simply spans the whole mapping.
+     */
+    private static final class ReadWindow {
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_WINDOW_SIZE);
+        private ByteBuffer buffer;
+        private boolean mapped;
+        private FileChannel dataFile;
+        private int dataFileSize;
+        private int start;
+        private int readAhead;
+
+        private void reset(FileChannel dataFile, int dataFileSize, int readAhead) {
+            this.dataFile = dataFile;
+            this.dataFileSize = dataFileSize;
+            this.readAhead = readAhead;
+            this.mapped = false;
+            this.start = 0;
+            this.buffer = readBuffer;
+            this.buffer.clear();
+            this.buffer.limit(0);
+        }
+
+        private void reset(MappedByteBuffer mappedDataFile) {
+            this.dataFile = null;
+            this.dataFileSize = mappedDataFile.capacity();
+            this.mapped = true;
+            this.start = 0;
+            this.buffer = mappedDataFile;
+        }
+
+        private void release() {
+            this.dataFile = null;
+            this.buffer = null;
+        }
+
+        /**
+         * Makes sure the given region of the data file is present in the
+         * window, reading it in if required, along with whatever follows it
+         * up to the read ahead size
+         * 
+         * @return false if the region lies beyond the end of the file or is
+         *         bigger than the window
+         */
+        private boolean cover(int offset, int length) throws IOException {
+            if(offset >= start && offset + length <= start + buffer.limit())
+                return true;
+            if(mapped || length > buffer.capacity() || offset + length > dataFileSize)
+                return false;
+
+            buffer.clear();
+            buffer.limit(Math.min(Math.max(length, readAhead), dataFileSize - offset));
+            readFully(buffer, offset);
+            buffer.flip();
+            start = offset;
+            return true;
+        }
+
+        private short getShort(int offset) {
+            return buffer.getShort(offset - start);
+        }
+
+        private int getInt(int offset) {
+            return buffer.getInt(offset - start);
+        }
+
+        private boolean matches(int offset, byte[] key) throws IOException {
+            if(!cover(offset, key.length)) {
+                // Key does not fit in the window, fall back to a copy
+                byte[] found = read(offset, key.length);
+                return found.length == key.length && ByteUtils.compare(key, found) == 0;
+            }
+            return ReadOnlyUtils.compare(buffer, offset - start, key) == 0;
+        }
+
+        private byte[] read(int offset, int length) throws IOException {
+            if(length < 0 || offset + length > dataFileSize)
+                return new byte[0];
+            byte[] value = new byte[length];
+            if(cover(offset, length)) {
+                // The mapping is shared by all readers, so never move its
+                // position
+                ByteBuffer source = mapped ? buffer.duplicate() : buffer;
+                source.position(offset - start);
+                source.get(value);
+            } else {
+                // Too large for the window, read straight into the result
+                readFully(ByteBuffer.wrap(value), offset);
+            }
+            return value;
+        }
+
+        private void readFully(ByteBuffer dest, long offset) throws IOException {
+            while(dest.hasRemaining()) {
+                int read = dataFile.read(dest, offset);
+                if(read < 0)
+                    throw new IOException("Unexpected end of data file at offset " + offset);
+                offset += read;
             }
-        } catch(IOException e) {
-            throw new VoldemortException(e);
         }
     }
 
     /**
      * Iterator for RO keys - Works only for ReadOnlyStorageFormat.READONLY_V2
+     * and READONLY_V3
      */
     public static class ROKeyIterator extends DataFileChunkSetIterator<ByteArray> {
 
@@ -635,7 +1024,7 @@ public class ChunkedFileSet {
 
     /**
      * Iterator for RO entries - Works only for
-     * ReadOnlyStorageFormat.READONLY_V2
+     * ReadOnlyStorageFormat.READONLY_V2 and READONLY_V3
      */
     public static class ROEntriesIterator extends
             DataFileChunkSetIterator<Pair<ByteArray, Versioned<byte[]>>> {
@@ -179,4 +179,18 @@ public class RebootstrappingStore extends DelegatingStore<ByteArray, byte[], byt
         throw new VoldemortException(this.maxMetadataRefreshAttempts
                                      + " metadata refresh attempts failed for server side routing.");
     }
+
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms) {
+        for(int attempts = 0; attempts < this.maxMetadataRefreshAttempts; attempts++) {
+            try {
+                return super.putAll(entries, transforms);
+            } catch(InvalidMetadataException e) {
+                reinit();
+            }
+        }
+        throw new VoldemortException(this.maxMetadataRefreshAttempts
+                                     + " metadata refresh attempts failed for server side routing.");
+    }
 }
@@ -381,6 +381,18 @@ public class RedirectingStore extends DelegatingStore<ByteArray, byte[], byte[]>
         }
     }
 
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        if(isServerRebalancing()) {
+            // each key may need proxying to a different donor
+            return StoreUtils.putAll(this, entries, transforms);
+        } else {
+            return getInnerStore().putAll(entries, transforms);
+        }
+    }
+
     /**
      * TODO : Handle delete correctly.
      * <p>
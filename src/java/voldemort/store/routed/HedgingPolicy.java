@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.routed;
+
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.client.HedgedReads;
+import voldemort.store.stats.Histogram;
+
+/**
+ * The hedging state of a routed store: the recent GET response times the hedge
+ * delay is derived from, and the budget that limits how many GETs are hedged.
+ * <p/>
+ * The budget is a token bucket. Every GET adds the configured share of a
+ * token, every hedge takes a whole one, and at most {@link #MAX_TOKENS} tokens
+ * are saved up, starting from none, so a burst of slow responses cannot turn
+ * into a burst of hedges.
+ * 
+ * @see HedgedReads
+ */
+@Threadsafe
+public class HedgingPolicy {
+
+    public static final double MAX_TOKENS = 10;
+
+    private static final int HISTOGRAM_BUCKETS = 10000;
+
+    private static final long HISTOGRAM_RESET_INTERVAL_MS = 60 * 1000;
+
+    private final HedgedReads config;
+
+    private final Histogram responseTimes;
+
+    private double tokens;
+
+    public HedgingPolicy(HedgedReads config) {
+        this.config = config;
+        this.responseTimes = new Histogram(HISTOGRAM_BUCKETS,
+                                           1,
+                                           HISTOGRAM_RESET_INTERVAL_MS);
+        this.tokens = 0;
+    }
+
+    /**
+     * Records the time a replica took to answer a GET.
+     */
+    public void recordResponseTime(long requestTimeMs) {
+        responseTimes.insert(requestTimeMs);
+    }
+
+    /**
+     * Returns how long a GET waits for its replicas before it is hedged.
+     */
+    public long getDelayMs() {
+        double quantile = config.getDelayPercentile() / 100;
+        return Math.max(config.getMinDelayMs(), responseTimes.getQuantile(quantile));
+    }
+
+    /**
+     * Called once per GET, adds to the hedging budget.
+     */
+    public synchronized void recordRequest() {
+        double share = config.getMaxHedgePercent() / 100.0;
+        tokens = Math.min(MAX_TOKENS, tokens + share);
+    }
+
+    /**
+     * Takes a hedge out of the budget.
+     * 
+     * @return true if the budget allows another hedge
+     */
+    public synchronized boolean tryHedge() {
+        if(tokens < 1)
+            return false;
+
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.routed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortApplicationException;
+import voldemort.VoldemortException;
+import voldemort.cluster.Cluster;
+import voldemort.cluster.Node;
+import voldemort.cluster.failuredetector.FailureDetector;
+import voldemort.routing.RoutingStrategy;
+import voldemort.routing.RoutingStrategyFactory;
+import voldemort.routing.RoutingStrategyType;
+import voldemort.store.InsufficientOperationalNodesException;
+import voldemort.store.StoreDefinition;
+import voldemort.store.StoreTimeoutException;
+import voldemort.store.UnreachableStoreException;
+import voldemort.store.nonblockingstore.NonblockingStore;
+import voldemort.store.nonblockingstore.NonblockingStoreCallback;
+import voldemort.utils.ByteArray;
+import voldemort.utils.Time;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * A {@link NonblockingStore} that routes requests to the
+ * {@link NonblockingStore} of every node, like {@link PipelineRoutedStore} does
+ * for blocking requests, but without a thread waiting for the responses.
+ * <p/>
+ * A request goes to as many available nodes of the preference list as the
+ * store prefers, and a node that fails is replaced by the next one. The
+ * request completes once the preferred number of nodes responded, or once all
+ * requests sent are done with at least the required number of successes. A put
+ * first writes to a master, the first available node, which increments the
+ * clock, and then writes the new version to the other nodes.
+ * <p/>
+ * The callback is invoked on the thread that delivered the last response,
+ * usually a selector thread of the socket pool, so it must not block.
+ * Requests to replacement nodes and to the other nodes of a put are submitted
+ * on the given executor, as they may have to open a connection.
+ * <p/>
+ * Reads are not repaired and writes to unavailable nodes leave no hints; the
+ * blocking {@link PipelineRoutedStore} remains the place for both. Neither
+ * are responses counted per zone, so stores requiring responses from other
+ * zones are refused.
+ */
+public class NonblockingRoutedStore implements NonblockingStore {
+
+    private static final Logger logger = Logger.getLogger(NonblockingRoutedStore.class);
+
+    private final String name;
+
+    private final Map<Integer, NonblockingStore> nonblockingStores;
+
+    private final StoreDefinition storeDef;
+
+    private final FailureDetector failureDetector;
+
+    private final Executor executor;
+
+    private final Time time;
+
+    private volatile RoutingStrategy routingStrategy;
+
+    public NonblockingRoutedStore(String name,
+                                  Map<Integer, NonblockingStore> nonblockingStores,
+                                  Cluster cluster,
+                                  StoreDefinition storeDef,
+                                  FailureDetector failureDetector,
+                                  Executor executor,
+                                  Time time) {
+        if(RoutingStrategyType.ZONE_STRATEGY.equals(storeDef.getRoutingStrategyType())
+           && (isPositive(storeDef.getZoneCountReads()) || isPositive(storeDef.getZoneCountWrites())))
+            throw new VoldemortException("Zone count reads and writes are not supported by the asynchronous client.");
+        this.name = name;
+        this.nonblockingStores = new ConcurrentHashMap<Integer, NonblockingStore>(nonblockingStores);
+        this.storeDef = storeDef;
+        this.failureDetector = failureDetector;
+        this.executor = executor;
+        this.time = time;
+        this.routingStrategy = new RoutingStrategyFactory().updateRoutingStrategy(storeDef, cluster);
+    }
+
+    private static boolean isPositive(Integer zoneCount) {
+        return zoneCount != null && zoneCount > 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void updateRoutingStrategy(RoutingStrategy routingStrategy) {
+        this.routingStrategy = routingStrategy;
+    }
+
+    private List<Node> getNodes(ByteArray key, int required, String operation) {
+        List<Node> nodes = new ArrayList<Node>();
+        for(Node node: routingStrategy.routeRequest(key.get()))
+            if(failureDetector.isAvailable(node))
+                nodes.add(node);
+
+        if(nodes.size() < required)
+            throw new InsufficientOperationalNodesException("Only " + nodes.size()
+                                                            + " nodes in preference list, but "
+                                                            + required + " " + operation
+                                                            + "s required.");
+        return nodes;
+    }
+
+    public void submitGetRequest(final ByteArray key,
+                                 final byte[] transforms,
+                                 final NonblockingStoreCallback callback,
+                                 long timeoutMs) {
+        List<Node> nodes;
+        try {
+            nodes = getNodes(key, storeDef.getRequiredReads(), "read");
+        } catch(VoldemortException e) {
+            callback.requestComplete(e, 0);
+            return;
+        }
+
+        new QuorumRequest(nodes,
+                          storeDef.getRequiredReads(),
+                          storeDef.getPreferredReads(),
+                          timeoutMs,
+                          callback) {
+
+            private final List<Versioned<byte[]>> values = new ArrayList<Versioned<byte[]>>();
+
+            @Override
+            protected void submit(Node node, NonblockingStoreCallback nodeCallback, long timeoutMs) {
+                nonblockingStores.get(node.getId()).submitGetRequest(key,
+                                                                     transforms,
+                                                                     nodeCallback,
+                                                                     timeoutMs);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected void handleSuccess(Node node, Object result) {
+                values.addAll((List<Versioned<byte[]>>) result);
+            }
+
+            @Override
+            protected Object getResult() {
+                return values;
+            }
+        }.start();
+    }
+
+    public void submitGetAllRequest(Iterable<ByteArray> keys,
+                                    final Map<ByteArray, byte[]> transforms,
+                                    final NonblockingStoreCallback callback,
+                                    long timeoutMs) {
+        final Map<ByteArray, List<Node>> preferenceLists = new HashMap<ByteArray, List<Node>>();
+        try {
+            for(ByteArray key: keys)
+                preferenceLists.put(key, getNodes(key, storeDef.getRequiredReads(), "read"));
+        } catch(VoldemortException e) {
+            callback.requestComplete(e, 0);
+            return;
+        }
+
+        if(preferenceLists.isEmpty()) {
+            callback.requestComplete(new HashMap<ByteArray, List<Versioned<byte[]>>>(), 0);
+            return;
+        }
+
+        final GetAllRequest getAll = new GetAllRequest(preferenceLists.size(), callback);
+        final Map<ByteArray, QuorumRequest> keyRequests = new HashMap<ByteArray, QuorumRequest>();
+        Map<Node, List<ByteArray>> batches = new HashMap<Node, List<ByteArray>>();
+
+        for(Map.Entry<ByteArray, List<Node>> entry: preferenceLists.entrySet()) {
+            final ByteArray key = entry.getKey();
+            final byte[] keyTransforms = transforms != null ? transforms.get(key) : null;
+            QuorumRequest keyRequest = new QuorumRequest(entry.getValue(),
+                                                         storeDef.getRequiredReads(),
+                                                         storeDef.getPreferredReads(),
+                                                         timeoutMs,
+                                                         null) {
+
+                private final List<Versioned<byte[]>> values = new ArrayList<Versioned<byte[]>>();
+
+                @Override
+                protected void submit(Node node,
+                                      NonblockingStoreCallback nodeCallback,
+                                      long timeoutMs) {
+                    nonblockingStores.get(node.getId()).submitGetRequest(key,
+                                                                         keyTransforms,
+                                                                         nodeCallback,
+                                                                         timeoutMs);
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                protected void handleSuccess(Node node, Object result) {
+                    values.addAll((List<Versioned<byte[]>>) result);
+                }
+
+                @Override
+                protected Object getResult() {
+                    return values;
+                }
+
+                @Override
+                protected void complete(Object result, long requestTime) {
+                    getAll.keyComplete(key, result, requestTime);
+                }
+            };
+            keyRequests.put(key, keyRequest);
+
+            // The first requests of all keys go out batched by node
+            for(Node node: keyRequest.reserveInitialNodes()) {
+                List<ByteArray> batch = batches.get(node);
+                if(batch == null) {
+                    batch = new ArrayList<ByteArray>();
+                    batches.put(node, batch);
+                }
+                batch.add(key);
+            }
+        }
+
+        for(Map.Entry<Node, List<ByteArray>> batch: batches.entrySet()) {
+            final Node node = batch.getKey();
+            final List<ByteArray> batchKeys = batch.getValue();
+            Map<ByteArray, byte[]> batchTransforms = null;
+            if(transforms != null) {
+                batchTransforms = new HashMap<ByteArray, byte[]>();
+                for(ByteArray key: batchKeys)
+                    if(transforms.containsKey(key))
+                        batchTransforms.put(key, transforms.get(key));
+            }
+
+            nonblockingStores.get(node.getId())
+                             .submitGetAllRequest(batchKeys,
+                                                  batchTransforms,
+                                                  new NonblockingStoreCallback() {
+
+                                                      @SuppressWarnings("unchecked")
+                                                      public void requestComplete(Object result,
+                                                                                  long requestTime) {
+                                                          for(ByteArray key: batchKeys) {
+                                                              Object keyResult = result;
+                                                              if(!(result instanceof Exception)) {
+                                                                  List<Versioned<byte[]>> values = ((Map<ByteArray, List<Versioned<byte[]>>>) result).get(key);
+                                                                  keyResult = values != null ? values
+                                                                                            : Collections.emptyList();
+                                                              }
+                                                              keyRequests.get(key)
+                                                                         .response(node,
+                                                                                   keyResult,
+                                                                                   requestTime);
+                                                          }
+                                                      }
+                                                  },
+                                                  timeoutMs);
+        }
+    }
+
+    public void submitGetVersionsRequest(final ByteArray key,
+                                         NonblockingStoreCallback callback,
+                                         long timeoutMs) {
+        List<Node> nodes;
+        try {
+            nodes = getNodes(key, storeDef.getRequiredReads(), "read");
+        } catch(VoldemortException e) {
+            callback.requestComplete(e, 0);
+            return;
+        }
+
+        new QuorumRequest(nodes,
+                          storeDef.getRequiredReads(),
+                          storeDef.getPreferredReads(),
+                          timeoutMs,
+                          callback) {
+
+            private final List<Version> versions = new ArrayList<Version>();
+
+            @Override
+            protected void submit(Node node, NonblockingStoreCallback nodeCallback, long timeoutMs) {
+                nonblockingStores.get(node.getId()).submitGetVersionsRequest(key,
+                                                                             nodeCallback,
+                                                                             timeoutMs);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected void handleSuccess(Node node, Object result) {
+                versions.addAll((List<Version>) result);
+            }
+
+            @Override
+            protected Object getResult() {
+                return versions;
+            }
+        }.start();
+    }
+
+    /**
+     * Completes with the version written on success.
+     */
+    public void submitPutRequest(final ByteArray key,
+                                 final Versioned<byte[]> value,
+                                 final byte[] transforms,
+                                 NonblockingStoreCallback callback,
+                                 long timeoutMs) {
+        List<Node> nodes;
+        try {
+            nodes = getNodes(key, storeDef.getRequiredWrites(), "write");
+        } catch(VoldemortException e) {
+            callback.requestComplete(e, 0);
+            return;
+        }
+
+        new QuorumRequest(nodes,
+                          storeDef.getRequiredWrites(),
+                          storeDef.getPreferredWrites(),
+                          timeoutMs,
+                          callback) {
+
+            private Versioned<byte[]> written;
+
+            @Override
+            protected int getTarget() {
+                // Nothing goes to the other nodes before the master succeeded
+                return written == null ? 1 : super.getTarget();
+            }
+
+            @Override
+            protected void submit(Node node, NonblockingStoreCallback nodeCallback, long timeoutMs) {
+                Versioned<byte[]> versioned;
+                synchronized(this) {
+                    versioned = written;
+                }
+
+                if(versioned == null) {
+                    // This node is the master
+                    VectorClock clock = (VectorClock) value.getVersion();
+                    versioned = new Versioned<byte[]>(value.getValue(),
+                                                      clock.incremented(node.getId(),
+                                                                        time.getMilliseconds()));
+                    nodeCallback = new MasterCallback(versioned, nodeCallback);
+                }
+
+                nonblockingStores.get(node.getId()).submitPutRequest(key,
+                                                                     versioned,
+                                                                     transforms,
+                                                                     nodeCallback,
+                                                                     timeoutMs);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected void handleSuccess(Node node, Object result) {
+                if(written == null)
+                    written = (Versioned<byte[]>) result;
+            }
+
+            @Override
+            protected Object getResult() {
+                return written.getVersion();
+            }
+        }.start();
+    }
+
+    public void submitPutAllRequest(Map<ByteArray, Versioned<byte[]>> entries,
+                                    Map<ByteArray, byte[]> transforms,
+                                    NonblockingStoreCallback callback,
+                                    long timeoutMs) {
+        throw new UnsupportedOperationException("putAll is not supported by "
+                                                + getClass().getSimpleName());
+    }
+
+    public void submitDeleteRequest(final ByteArray key,
+                                    final Version version,
+                                    NonblockingStoreCallback callback,
+                                    long timeoutMs) {
+        List<Node> nodes;
+        try {
+            nodes = getNodes(key, storeDef.getRequiredWrites(), "write");
+        } catch(VoldemortException e) {
+            callback.requestComplete(e, 0);
+            return;
+        }
+
+        new QuorumRequest(nodes,
+                          storeDef.getRequiredWrites(),
+                          storeDef.getPreferredWrites(),
+                          timeoutMs,
+                          callback) {
+
+            private boolean deleted;
+
+            @Override
+            protected void submit(Node node, NonblockingStoreCallback nodeCallback, long timeoutMs) {
+                nonblockingStores.get(node.getId()).submitDeleteRequest(key,
+                                                                        version,
+                                                                        nodeCallback,
+                                                                        timeoutMs);
+            }
+
+            @Override
+            protected void handleSuccess(Node node, Object result) {
+                deleted |= (Boolean) result;
+            }
+
+            @Override
+            protected Object getResult() {
+                return deleted;
+            }
+        }.start();
+    }
+
+    /**
+     * Closes nothing; the node stores are shared with the blocking routed
+     * store.
+     */
+    public void close() throws VoldemortException {}
+
+    /**
+     * Hands the version a master wrote to the request instead of the empty put
+     * result.
+     */
+    private static class MasterCallback implements NonblockingStoreCallback {
+
+        private final Versioned<byte[]> versioned;
+
+        private final NonblockingStoreCallback callback;
+
+        private MasterCallback(Versioned<byte[]> versioned, NonblockingStoreCallback callback) {
+            this.versioned = versioned;
+            this.callback = callback;
+        }
+
+        public void requestComplete(Object result, long requestTime) {
+            callback.requestComplete(result instanceof Exception ? result : versioned, requestTime);
+        }
+    }
+
+    /**
+     * Collects the results of the keys of a getAll and completes it once every
+     * key is done.
+     */
+    private class GetAllRequest {
+
+        private final Map<ByteArray, List<Versioned<byte[]>>> values = new HashMap<ByteArray, List<Versioned<byte[]>>>();
+
+        private final NonblockingStoreCallback callback;
+
+        private final long startNs = System.nanoTime();
+
+        private int remaining;
+
+        private Exception failure;
+
+        private GetAllRequest(int numKeys, NonblockingStoreCallback callback) {
+            this.remaining = numKeys;
+            this.callback = callback;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void keyComplete(ByteArray key, Object result, long requestTime) {
+            synchronized(this) {
+                if(result instanceof Exception)
+                    failure = (Exception) result;
+                else if(!((List<Versioned<byte[]>>) result).isEmpty())
+                    values.put(key, (List<Versioned<byte[]>>) result);
+
+                if(--remaining > 0)
+                    return;
+            }
+
+            callback.requestComplete(failure != null ? failure : values,
+                                     (System.nanoTime() - startNs) / Time.NS_PER_MS);
+        }
+    }
+
+    /**
+     * A request to the nodes of a preference list that completes once enough
+     * of them responded. Subclasses submit to a node and collect the results.
+     */
+    private abstract class QuorumRequest {
+
+        private final List<Node> nodes;
+
+        private final int required;
+
+        private final int preferred;
+
+        private final long timeoutMs;
+
+        private final long startNs;
+
+        private final NonblockingStoreCallback callback;
+
+        private final List<Exception> failures = new ArrayList<Exception>();
+
+        private int nextNode;
+
+        private int outstanding;
+
+        private int successes;
+
+        private boolean done;
+
+        private QuorumRequest(List<Node> nodes,
+                              int required,
+                              int preferred,
+                              long timeoutMs,
+                              NonblockingStoreCallback callback) {
+            this.nodes = nodes;
+            this.required = required;
+            this.preferred = preferred;
+            this.timeoutMs = timeoutMs;
+            this.startNs = System.nanoTime();
+            this.callback = callback;
+        }
+
+        protected abstract void submit(Node node,
+                                       NonblockingStoreCallback nodeCallback,
+                                       long timeoutMs);
+
+        /**
+         * Collects the result of a successful node, with the request locked
+         */
+        protected abstract void handleSuccess(Node node, Object result);
+
+        protected abstract Object getResult();
+
+        /**
+         * Returns the number of successful responses to wait for
+         */
+        protected int getTarget() {
+            return preferred;
+        }
+
+        protected void complete(Object result, long requestTime) {
+            callback.requestComplete(result, requestTime);
+        }
+
+        /**
+         * Takes the nodes the request goes to first, leaving the submission to
+         * the caller.
+         */
+        synchronized List<Node> reserveInitialNodes() {
+            List<Node> initial = new ArrayList<Node>();
+            while(outstanding < getTarget() && nextNode < nodes.size()) {
+                initial.add(nodes.get(nextNode++));
+                outstanding++;
+            }
+            return initial;
+        }
+
+        void start() {
+            for(Node node: reserveInitialNodes())
+                submitToNode(node);
+        }
+
+        private void submitToNode(final Node node) {
+            long remainingMs = timeoutMs - (System.nanoTime() - startNs) / Time.NS_PER_MS;
+            if(remainingMs <= 0) {
+                response(node, new StoreTimeoutException("No time left to send " + name
+                                                         + " request to node " + node.getId()), 0);
+                return;
+            }
+
+            try {
+                submit(node, new NonblockingStoreCallback() {
+
+                    public void requestComplete(Object result, long requestTime) {
+                        response(node, result, requestTime);
+                    }
+                }, remainingMs);
+            } catch(VoldemortException e) {
+                response(node, e, 0);
+            }
+        }
+
+        void response(Node node, Object result, long requestTime) {
+            List<Node> next = null;
+            Object completion = null;
+
+            synchronized(this) {
+                outstanding--;
+                if(done)
+                    return;
+
+                if(result instanceof Exception) {
+                    Exception e = (Exception) result;
+                    recordFailure(node, requestTime, e);
+                    if(e instanceof VoldemortApplicationException) {
+                        // Another node would not answer differently
+                        done = true;
+                        completion = e;
+                    } else {
+                        failures.add(e);
+                    }
+                } else {
+                    failureDetector.recordSuccess(node, requestTime);
+                    successes++;
+                    handleSuccess(node, result);
+                }
+
+                if(!done) {
+                    if(successes >= getTarget()) {
+                        done = true;
+                    } else {
+                        next = new ArrayList<Node>();
+                        while(successes + outstanding < getTarget() && nextNode < nodes.size()) {
+                            next.add(nodes.get(nextNode++));
+                            outstanding++;
+                        }
+                        if(outstanding == 0)
+                            done = true;
+                    }
+
+                    if(done)
+                        completion = successes >= required ? getResult()
+                                                           : new InsufficientOperationalNodesException(successes
+                                                                                                               + " of "
+                                                                                                               + required
+                                                                                                               + " required requests to "
+                                                                                                               + name
+                                                                                                               + " succeeded.",
+                                                                                                       failures);
+                }
+            }
+
+            if(next != null) {
+                for(final Node node2: next) {
+                    // Keep the thread of the response free of connection
+                    // setup
+                    executor.execute(new Runnable() {
+
+                        public void run() {
+                            submitToNode(node2);
+                        }
+                    });
+                }
+            }
+
+            if(completion != null)
+                complete(completion, (System.nanoTime() - startNs) / Time.NS_PER_MS);
+        }
+
+        private void recordFailure(Node node, long requestTime, Exception e) {
+            if(e instanceof UnreachableStoreException)
+                failureDetector.recordException(node, requestTime, (UnreachableStoreException) e);
+
+            if(e instanceof StoreTimeoutException || e instanceof ObsoleteVersionException
+               || e instanceof UnreachableStoreException) {
+                if(logger.isDebugEnabled())
+                    logger.debug("Error in " + name + " request on node " + node.getId() + " ("
+                                 + node.getHost() + ") : " + e.getMessage());
+            } else if(logger.isEnabledFor(Level.WARN)) {
+                logger.warn("Error in " + name + " request on node " + node.getId() + " ("
+                            + node.getHost() + ")", e);
+            }
+        }
+    }
+}
@@ -75,10 +75,28 @@ public abstract class PipelineData<K, V> {
 
     protected PipelineRoutedStats stats;
 
+    protected ReplicaRanker replicaRanker;
+
     public void setStats(PipelineRoutedStats stats) {
         this.stats = stats;
     }
 
+    public PipelineRoutedStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sets the ranker the preference list is ordered and request times are
+     * reported by, if any.
+     */
+    public void setReplicaRanker(ReplicaRanker replicaRanker) {
+        this.replicaRanker = replicaRanker;
+    }
+
+    public ReplicaRanker getReplicaRanker() {
+        return replicaRanker;
+    }
+
     public List<Node> getReplicationSet() {
         return replicationSet;
     }
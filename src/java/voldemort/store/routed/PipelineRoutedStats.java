@@ -24,6 +24,9 @@ public class PipelineRoutedStats {
     protected ConcurrentHashMap<Class<? extends Exception>, AtomicLong> errCountMap;
     protected AtomicLong severeExceptionCount;
     protected AtomicLong benignExceptionCount;
+    protected AtomicLong hedgedRequestCount;
+    protected AtomicLong hedgeSuccessCount;
+    protected AtomicLong rateLimitedHedgeCount;
 
     protected PipelineRoutedStats() {
         errCountMap = new ConcurrentHashMap<Class<? extends Exception>, AtomicLong>();
@@ -36,6 +39,9 @@ public class PipelineRoutedStats {
 
         severeExceptionCount = new AtomicLong(0);
         benignExceptionCount = new AtomicLong(0);
+        hedgedRequestCount = new AtomicLong(0);
+        hedgeSuccessCount = new AtomicLong(0);
+        rateLimitedHedgeCount = new AtomicLong(0);
     }
 
     @JmxGetter(name = "numSevereExceptions", description = "Number of exceptions considered serious errors")
@@ -78,6 +84,21 @@ public class PipelineRoutedStats {
         return errCountMap.get(ObsoleteVersionException.class).get();
     }
 
+    @JmxGetter(name = "numHedgedRequests", description = "Number of hedge requests sent to an additional replica")
+    public long getNumHedgedRequests() {
+        return hedgedRequestCount.get();
+    }
+
+    @JmxGetter(name = "numHedgeSuccesses", description = "Number of hedge requests whose response was used")
+    public long getNumHedgeSuccesses() {
+        return hedgeSuccessCount.get();
+    }
+
+    @JmxGetter(name = "numRateLimitedHedges", description = "Number of hedge requests not sent because of the hedging rate limit")
+    public long getNumRateLimitedHedges() {
+        return rateLimitedHedgeCount.get();
+    }
+
     @JmxGetter(name = "getExceptionCountsAsString", description = "Returns counts of all the Exceptions seen so far as a string")
     public String getExceptionCountsAsString() {
         StringBuilder result = new StringBuilder();
@@ -99,6 +120,17 @@ public class PipelineRoutedStats {
         errCountMap.get(e.getClass()).incrementAndGet();
     }
 
+    public void reportHedge(boolean rateLimited) {
+        if(rateLimited)
+            rateLimitedHedgeCount.incrementAndGet();
+        else
+            hedgedRequestCount.incrementAndGet();
+    }
+
+    public void reportHedgeSuccess() {
+        hedgeSuccessCount.incrementAndGet();
+    }
+
     public boolean isSevere(Exception ve) {
         if(ve instanceof InsufficientOperationalNodesException
            || ve instanceof InsufficientZoneResponsesException
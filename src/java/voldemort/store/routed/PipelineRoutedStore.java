@@ -17,27 +17,43 @@
 package voldemort.store.routed;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.log4j.Level;
+
+import voldemort.VoldemortApplicationException;
 import voldemort.VoldemortException;
+import voldemort.client.HedgedReads;
 import voldemort.client.TimeoutConfig;
 import voldemort.client.ZoneAffinity;
 import voldemort.cluster.Cluster;
+import voldemort.cluster.Node;
 import voldemort.cluster.Zone;
 import voldemort.cluster.failuredetector.FailureDetector;
 import voldemort.common.VoldemortOpCode;
 import voldemort.routing.RoutingStrategyType;
 import voldemort.store.CompositeVoldemortRequest;
+import voldemort.store.InsufficientOperationalNodesException;
+import voldemort.store.InvalidMetadataException;
 import voldemort.store.PersistenceFailureException;
 import voldemort.store.Store;
 import voldemort.store.StoreDefinition;
 import voldemort.store.StoreRequest;
+import voldemort.store.StoreTimeoutException;
 import voldemort.store.StoreUtils;
 import voldemort.store.UnreachableStoreException;
 import voldemort.store.nonblockingstore.NonblockingStore;
+import voldemort.store.nonblockingstore.NonblockingStoreCallback;
 import voldemort.store.routed.Pipeline.Event;
 import voldemort.store.routed.Pipeline.Operation;
 import voldemort.store.routed.action.AbstractConfigureNodes;
@@ -69,6 +85,8 @@ import voldemort.utils.ByteArray;
 import voldemort.utils.ByteUtils;
 import voldemort.utils.JmxUtils;
 import voldemort.utils.SystemTime;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.VectorClock;
 import voldemort.versioning.Version;
 import voldemort.versioning.Versioned;
 
@@ -89,6 +107,8 @@ public class PipelineRoutedStore extends RoutedStore {
     private boolean jmxEnabled;
     private int jmxId;
     private ZoneAffinity zoneAffinity;
+    private HedgingPolicy hedgingPolicy;
+    private ReplicaRanker replicaRanker;
 
     private enum ConfigureNodesType {
         DEFAULT,
@@ -121,6 +141,52 @@ public class PipelineRoutedStore extends RoutedStore {
                                boolean isJmxEnabled,
                                int jmxId,
                                ZoneAffinity zoneAffinity) {
+        this(innerStores,
+             nonblockingStores,
+             slopStores,
+             nonblockingSlopStores,
+             cluster,
+             storeDef,
+             failureDetector,
+             repairReads,
+             timeoutConfig,
+             clientZoneId,
+             isJmxEnabled,
+             jmxId,
+             zoneAffinity,
+             null,
+             false);
+    }
+
+    /**
+     * Create a PipelineRoutedStore
+     * 
+     * @param innerStores The mapping of node to client
+     * @param nonblockingStores
+     * @param slopStores The stores for hints
+     * @param nonblockingSlopStores
+     * @param cluster Cluster definition
+     * @param storeDef Store definition
+     * @param hedgedReads The hedged read configuration for GET operations, or
+     *        null to not hedge
+     * @param replicaRanking Whether to order the replicas for GET and
+     *        GET_VERSIONS operations by their recent performance
+     */
+    public PipelineRoutedStore(Map<Integer, Store<ByteArray, byte[], byte[]>> innerStores,
+                               Map<Integer, NonblockingStore> nonblockingStores,
+                               Map<Integer, Store<ByteArray, Slop, byte[]>> slopStores,
+                               Map<Integer, NonblockingStore> nonblockingSlopStores,
+                               Cluster cluster,
+                               StoreDefinition storeDef,
+                               FailureDetector failureDetector,
+                               boolean repairReads,
+                               TimeoutConfig timeoutConfig,
+                               int clientZoneId,
+                               boolean isJmxEnabled,
+                               int jmxId,
+                               ZoneAffinity zoneAffinity,
+                               HedgedReads hedgedReads,
+                               boolean replicaRanking) {
         super(storeDef.getName(),
               innerStores,
               cluster,
@@ -170,6 +236,10 @@ public class PipelineRoutedStore extends RoutedStore {
         } else {
             this.zoneAffinity = new ZoneAffinity();
         }
+        if(hedgedReads != null && hedgedReads.isEnabled())
+            this.hedgingPolicy = new HedgingPolicy(hedgedReads);
+        if(replicaRanking)
+            this.replicaRanker = new ReplicaRanker(time);
     }
 
     private ConfigureNodesType obtainNodeConfigurationType(Integer zonesRequired,
@@ -265,6 +335,7 @@ public class PipelineRoutedStore extends RoutedStore {
         else
             pipelineData.setZonesRequired(null);
         pipelineData.setStats(stats);
+        pipelineData.setReplicaRanker(replicaRanker);
 
         final Pipeline pipeline = new Pipeline(Operation.GET, getOpTimeout, TimeUnit.MILLISECONDS);
         boolean allowReadRepair = repairReads && transforms == null;
@@ -297,7 +368,8 @@ public class PipelineRoutedStore extends RoutedStore {
                                                                                                                                  getOpTimeout,
                                                                                                                                  nonblockingStores,
                                                                                                                                  Event.INSUFFICIENT_SUCCESSES,
-                                                                                                                                 Event.INSUFFICIENT_ZONES));
+                                                                                                                                 Event.INSUFFICIENT_ZONES,
+                                                                                                                                 hedgingPolicy));
         pipeline.addEventAction(Event.INSUFFICIENT_SUCCESSES,
                                 new PerformSerialRequests<List<Versioned<byte[]>>, BasicPipelineData<List<Versioned<byte[]>>>>(pipelineData,
                                                                                                                                allowReadRepair ? Event.RESPONSES_RECEIVED
@@ -515,6 +587,7 @@ public class PipelineRoutedStore extends RoutedStore {
         else
             pipelineData.setZonesRequired(null);
         pipelineData.setStats(stats);
+        pipelineData.setReplicaRanker(replicaRanker);
         Pipeline pipeline = new Pipeline(Operation.GET_VERSIONS,
                                          timeoutConfig.getOperationTimeout(VoldemortOpCode.GET_VERSION_OP_CODE),
                                          TimeUnit.MILLISECONDS);
@@ -899,6 +972,311 @@ public class PipelineRoutedStore extends RoutedStore {
             throw pipelineData.getFatalError();
     }
 
+    /**
+     * Writes the entries with one putAll request per node for the masters and
+     * one per node for the replicas, instead of one pipeline per key. As in a
+     * single put, the first available node of a key's preference list is its
+     * master and the version it accepted is what the other replicas get.
+     * Required writes are counted per key, and replicas that are down or fail
+     * get a hint if hinted handoff is enabled.
+     * <p/>
+     * Keys that cannot take this path go through the regular put pipeline:
+     * all keys of stores that route by zone or prefer the local node, keys
+     * with fewer than required-writes nodes available and keys whose master
+     * write failed, so that the pipeline can fail over to another master. A
+     * master write that timed out may still have landed, in which case its
+     * retry is obsolete; the key is then read back and counted as written if
+     * it has the version and value of the batched write.
+     */
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(entries.keySet());
+        Integer zonesRequired = zoneRoutingEnabled ? storeDef.getZoneCountWrites() : null;
+        if(obtainNodeConfigurationType(zonesRequired, Operation.PUT) != ConfigureNodesType.DEFAULT)
+            return StoreUtils.putAll(this, entries, transforms);
+
+        long startTimeNs = System.nanoTime();
+        long timeoutMs = timeoutConfig.getOperationTimeout(VoldemortOpCode.PUT_OP_CODE);
+        int required = storeDef.getRequiredWrites();
+
+        Map<ByteArray, VoldemortException> failures = new HashMap<ByteArray, VoldemortException>();
+        Set<ByteArray> singlePuts = new HashSet<ByteArray>();
+        // keys whose master write failed but may have landed
+        Map<ByteArray, Versioned<byte[]>> unknownWrites = new HashMap<ByteArray, Versioned<byte[]>>();
+        Map<ByteArray, List<Node>> preferenceLists = new HashMap<ByteArray, List<Node>>();
+        Map<ByteArray, List<Node>> hintNodes = new HashMap<ByteArray, List<Node>>();
+        Map<Node, Map<ByteArray, Versioned<byte[]>>> masterBatches = new HashMap<Node, Map<ByteArray, Versioned<byte[]>>>();
+
+        for(Map.Entry<ByteArray, Versioned<byte[]>> entry: entries.entrySet()) {
+            ByteArray key = entry.getKey();
+            List<Node> available = new ArrayList<Node>();
+            List<Node> down = new ArrayList<Node>();
+            for(Node node: routingStrategy.routeRequest(key.get())) {
+                if(failureDetector.isAvailable(node))
+                    available.add(node);
+                else
+                    down.add(node);
+            }
+
+            if(available.isEmpty() || available.size() < required) {
+                singlePuts.add(key);
+                continue;
+            }
+
+            Node master = available.get(0);
+            VectorClock clock = (VectorClock) entry.getValue().getVersion();
+            getBatch(masterBatches, master).put(key,
+                                                new Versioned<byte[]>(entry.getValue().getValue(),
+                                                                      clock.incremented(master.getId(),
+                                                                                        time.getMilliseconds())));
+            preferenceLists.put(key, available);
+            hintNodes.put(key, down);
+        }
+
+        // Master writes
+        Map<ByteArray, Versioned<byte[]>> written = new HashMap<ByteArray, Versioned<byte[]>>();
+        Map<ByteArray, Integer> successes = new HashMap<ByteArray, Integer>();
+        for(Response<Void, Object> response: submitPutAllRequests(masterBatches,
+                                                                  transforms,
+                                                                  timeoutMs)) {
+            Map<ByteArray, Versioned<byte[]>> batch = masterBatches.get(response.getNode());
+            Map<ByteArray, Exception> batchFailures = getPutAllFailures(response, batch.keySet());
+            for(Map.Entry<ByteArray, Versioned<byte[]>> entry: batch.entrySet()) {
+                ByteArray key = entry.getKey();
+                Exception e = batchFailures.get(key);
+                if(e == null) {
+                    written.put(key, entry.getValue());
+                    successes.put(key, 1);
+                } else if(e instanceof VoldemortApplicationException) {
+                    failures.put(key, (VoldemortException) e);
+                } else {
+                    singlePuts.add(key);
+                    unknownWrites.put(key, entry.getValue());
+                }
+            }
+        }
+
+        // Replica writes
+        Map<Node, Map<ByteArray, Versioned<byte[]>>> replicaBatches = new HashMap<Node, Map<ByteArray, Versioned<byte[]>>>();
+        for(Map.Entry<ByteArray, Versioned<byte[]>> entry: written.entrySet()) {
+            List<Node> nodes = preferenceLists.get(entry.getKey());
+            for(Node node: nodes.subList(1, nodes.size()))
+                getBatch(replicaBatches, node).put(entry.getKey(), entry.getValue());
+        }
+
+        for(Response<Void, Object> response: submitPutAllRequests(replicaBatches,
+                                                                  transforms,
+                                                                  timeoutMs)) {
+            Set<ByteArray> keys = replicaBatches.get(response.getNode()).keySet();
+            Map<ByteArray, Exception> batchFailures = getPutAllFailures(response, keys);
+            for(ByteArray key: keys) {
+                Exception e = batchFailures.get(key);
+                if(e == null || e instanceof ObsoleteVersionException) {
+                    successes.put(key, successes.get(key) + 1);
+                } else if(e instanceof VoldemortApplicationException) {
+                    failures.put(key, (VoldemortException) e);
+                } else if(isSlopableFailure(e)) {
+                    hintNodes.get(key).add(response.getNode());
+                }
+            }
+        }
+
+        HintedHandoff hintedHandoff = null;
+        if(isHintedHandoffEnabled()) {
+            List<Node> failedNodes = Collections.synchronizedList(new ArrayList<Node>());
+            for(List<Node> nodes: hintNodes.values())
+                for(Node node: nodes)
+                    if(!failedNodes.contains(node))
+                        failedNodes.add(node);
+            hintedHandoff = new HintedHandoff(failureDetector,
+                                              slopStores,
+                                              nonblockingSlopStores,
+                                              handoffStrategy,
+                                              failedNodes,
+                                              timeoutMs);
+        }
+
+        for(Map.Entry<ByteArray, Versioned<byte[]>> entry: written.entrySet()) {
+            ByteArray key = entry.getKey();
+            Versioned<byte[]> versionedCopy = entry.getValue();
+
+            if(hintedHandoff != null) {
+                for(Node failedNode: hintNodes.get(key)) {
+                    Slop slop = new Slop(getName(),
+                                         Slop.Operation.PUT,
+                                         key,
+                                         versionedCopy.getValue(),
+                                         transforms != null ? transforms.get(key) : null,
+                                         failedNode.getId(),
+                                         new Date());
+                    hintedHandoff.sendHintParallel(failedNode, versionedCopy.getVersion(), slop);
+                }
+            }
+
+            if(failures.containsKey(key))
+                continue;
+
+            int numSuccesses = successes.get(key);
+            if(numSuccesses < required) {
+                failures.put(key, new InsufficientOperationalNodesException(required
+                                                                            + " puts required, but only "
+                                                                            + numSuccesses
+                                                                            + " succeeded"));
+            } else {
+                // increment the version for the caller, as a single put does
+                Node master = preferenceLists.get(key).get(0);
+                ((VectorClock) entries.get(key).getVersion()).incrementVersion(master.getId(),
+                                                                               time.getMilliseconds());
+            }
+        }
+
+        for(ByteArray key: singlePuts) {
+            try {
+                put(key, entries.get(key), transforms != null ? transforms.get(key) : null);
+            } catch(ObsoleteVersionException e) {
+                Versioned<byte[]> batched = unknownWrites.get(key);
+                if(batched != null && isWritten(key, batched)) {
+                    // only the response of the batched master write was lost
+                    Node master = preferenceLists.get(key).get(0);
+                    ((VectorClock) entries.get(key).getVersion()).incrementVersion(master.getId(),
+                                                                                   time.getMilliseconds());
+                } else {
+                    failures.put(key, e);
+                }
+            } catch(VoldemortException e) {
+                failures.put(key, e);
+            }
+        }
+
+        if(logger.isDebugEnabled()) {
+            logger.debug("Finished PUT_ALL of " + entries.size() + " keys, " + singlePuts.size()
+                         + " through single puts, " + failures.size() + " failed, took "
+                         + (System.nanoTime() - startTimeNs) + " ns");
+        }
+
+        return failures;
+    }
+
+    /*
+     * Returns true if the key was read back with the version and value of the
+     * given write
+     */
+    private boolean isWritten(ByteArray key, Versioned<byte[]> versioned) {
+        try {
+            for(Versioned<byte[]> found: get(key, null))
+                if(found.getVersion().equals(versioned.getVersion())
+                   && Arrays.equals(found.getValue(), versioned.getValue()))
+                    return true;
+            return false;
+        } catch(VoldemortException e) {
+            if(logger.isDebugEnabled())
+                logger.debug("Failed to read back the versions of key "
+                             + ByteUtils.toHexString(key.get()), e);
+            return false;
+        }
+    }
+
+    private Map<ByteArray, Versioned<byte[]>> getBatch(Map<Node, Map<ByteArray, Versioned<byte[]>>> batches,
+                                                       Node node) {
+        Map<ByteArray, Versioned<byte[]>> batch = batches.get(node);
+        if(batch == null) {
+            batch = new HashMap<ByteArray, Versioned<byte[]>>();
+            batches.put(node, batch);
+        }
+        return batch;
+    }
+
+    /*
+     * Sends every batch to its node in parallel and waits for the responses,
+     * up to the timeout. Nodes that do not answer in time get a timeout
+     * exception as their response.
+     */
+    private List<Response<Void, Object>> submitPutAllRequests(Map<Node, Map<ByteArray, Versioned<byte[]>>> batches,
+                                                              Map<ByteArray, byte[]> transforms,
+                                                              long timeoutMs) {
+        final Map<Node, Response<Void, Object>> responses = new ConcurrentHashMap<Node, Response<Void, Object>>();
+        final CountDownLatch latch = new CountDownLatch(batches.size());
+
+        for(Map.Entry<Node, Map<ByteArray, Versioned<byte[]>>> batch: batches.entrySet()) {
+            final Node node = batch.getKey();
+            nonblockingStores.get(node.getId())
+                             .submitPutAllRequest(batch.getValue(),
+                                                  transforms,
+                                                  new NonblockingStoreCallback() {
+
+                                                      public void requestComplete(Object result,
+                                                                                  long requestTime) {
+                                                          responses.put(node,
+                                                                        new Response<Void, Object>(node,
+                                                                                                   null,
+                                                                                                   result,
+                                                                                                   requestTime));
+                                                          latch.countDown();
+                                                      }
+                                                  },
+                                                  timeoutMs);
+        }
+
+        try {
+            latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Response<Void, Object>> result = new ArrayList<Response<Void, Object>>(batches.size());
+        for(Node node: batches.keySet()) {
+            Response<Void, Object> response = responses.get(node);
+            if(response == null)
+                response = new Response<Void, Object>(node,
+                                                      null,
+                                                      new StoreTimeoutException("putAll on node "
+                                                                                + node.getId()
+                                                                                + " timed out after "
+                                                                                + timeoutMs
+                                                                                + " ms"),
+                                                      timeoutMs);
+            result.add(response);
+        }
+        return result;
+    }
+
+    /*
+     * Returns the exception for every key of the batch that was not written.
+     * A failure of the request as a whole applies to all of its keys. Also
+     * feeds the failure detector, and throws invalid metadata errors so the
+     * client can rebootstrap.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<ByteArray, Exception> getPutAllFailures(Response<Void, Object> response,
+                                                        Set<ByteArray> keys) {
+        Map<ByteArray, Exception> batchFailures = new HashMap<ByteArray, Exception>();
+        if(response.getValue() instanceof Exception) {
+            Exception e = (Exception) response.getValue();
+            if(e instanceof InvalidMetadataException)
+                throw (InvalidMetadataException) e;
+            if(e instanceof UnreachableStoreException)
+                failureDetector.recordException(response.getNode(),
+                                                response.getRequestTime(),
+                                                (UnreachableStoreException) e);
+            else if(logger.isEnabledFor(Level.WARN))
+                logger.warn("Error in PUT_ALL on node " + response.getNode().getId() + " ("
+                            + response.getNode().getHost() + ")", e);
+
+            for(ByteArray key: keys)
+                batchFailures.put(key, e);
+        } else {
+            failureDetector.recordSuccess(response.getNode(), response.getRequestTime());
+            for(Map.Entry<ByteArray, VoldemortException> failure: ((Map<ByteArray, VoldemortException>) response.getValue()).entrySet()) {
+                if(failure.getValue() instanceof InvalidMetadataException)
+                    throw failure.getValue();
+                batchFailures.put(failure.getKey(), failure.getValue());
+            }
+        }
+        return batchFailures;
+    }
+
     @Override
     public void close() {
         VoldemortException exception = null;
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.routed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.cluster.Node;
+import voldemort.utils.Time;
+
+/**
+ * Ranks replicas for reads by how they have been performing lately.
+ * <p/>
+ * Every node has an exponentially weighted moving average of its response
+ * times and a count of the requests outstanding on it. A node's score is its
+ * average response time plus one millisecond, times one more than its number
+ * of outstanding requests, and lower scores rank first. Nodes that score the
+ * same keep the order they came in, so the routing strategy and zone order
+ * still break ties.
+ * <p/>
+ * A node that ranks last may not be asked for a while and so never get the
+ * chance to show it has recovered. To let it back in, its average halves
+ * every {@link #DEFAULT_HALF_LIFE_MS} ms it goes without a response.
+ */
+@Threadsafe
+public class ReplicaRanker {
+
+    public static final double DEFAULT_ALPHA = 0.25;
+
+    public static final long DEFAULT_HALF_LIFE_MS = 5000;
+
+    private final ConcurrentMap<Integer, NodeLatency> nodeLatencies;
+
+    private final double alpha;
+
+    private final long halfLifeMs;
+
+    private final Time time;
+
+    public ReplicaRanker(Time time) {
+        this(DEFAULT_ALPHA, DEFAULT_HALF_LIFE_MS, time);
+    }
+
+    /**
+     * @param alpha The weight of a new response time in the moving average,
+     *        between 0 and 1
+     * @param halfLifeMs The time without a response in which a node's average
+     *        halves
+     * @param time The time source
+     */
+    public ReplicaRanker(double alpha, long halfLifeMs, Time time) {
+        if(alpha <= 0 || alpha > 1)
+            throw new IllegalArgumentException("alpha must be in (0, 1].");
+        if(halfLifeMs <= 0)
+            throw new IllegalArgumentException("Half life must be positive.");
+
+        this.nodeLatencies = new ConcurrentHashMap<Integer, NodeLatency>();
+        this.alpha = alpha;
+        this.halfLifeMs = halfLifeMs;
+        this.time = time;
+    }
+
+    /**
+     * Notes a request sent to the given node. Every call must be matched by a
+     * call to {@link #requestComplete(Node, long)}.
+     */
+    public void requestStarted(Node node) {
+        getNodeLatency(node).outstanding.incrementAndGet();
+    }
+
+    /**
+     * Notes the response, or failure, of a request to the given node.
+     */
+    public void requestComplete(Node node, long requestTimeMs) {
+        NodeLatency nodeLatency = getNodeLatency(node);
+        nodeLatency.outstanding.decrementAndGet();
+        nodeLatency.update(requestTimeMs);
+    }
+
+    /**
+     * Returns the score of the given node; lower is better.
+     */
+    public double getScore(Node node) {
+        NodeLatency nodeLatency = nodeLatencies.get(node.getId());
+        if(nodeLatency == null)
+            return 1;
+
+        return (nodeLatency.getAverage() + 1) * (Math.max(0, nodeLatency.outstanding.get()) + 1);
+    }
+
+    /**
+     * Returns the given nodes ordered by score, best first.
+     */
+    public List<Node> rank(List<Node> nodes) {
+        // Take the scores once, they keep changing while we sort
+        final Map<Node, Double> scores = new HashMap<Node, Double>();
+        for(Node node: nodes)
+            scores.put(node, getScore(node));
+
+        List<Node> ranked = new ArrayList<Node>(nodes);
+        Collections.sort(ranked, new Comparator<Node>() {
+
+            public int compare(Node n1, Node n2) {
+                return Double.compare(scores.get(n1), scores.get(n2));
+            }
+        });
+        return ranked;
+    }
+
+    private NodeLatency getNodeLatency(Node node) {
+        NodeLatency nodeLatency = nodeLatencies.get(node.getId());
+        if(nodeLatency == null) {
+            nodeLatency = new NodeLatency();
+            NodeLatency existing = nodeLatencies.putIfAbsent(node.getId(), nodeLatency);
+            if(existing != null)
+                nodeLatency = existing;
+        }
+        return nodeLatency;
+    }
+
+    private class NodeLatency {
+
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+
+        private double average;
+
+        private long lastUpdateMs = -1;
+
+        private synchronized void update(long requestTimeMs) {
+            if(lastUpdateMs == -1)
+                average = requestTimeMs;
+            else
+                average = alpha * requestTimeMs + (1 - alpha) * getAverage();
+            lastUpdateMs = time.getMilliseconds();
+        }
+
+        private synchronized double getAverage() {
+            if(lastUpdateMs == -1)
+                return 0;
+
+            long idleMs = time.getMilliseconds() - lastUpdateMs;
+            if(idleMs <= 0)
+                return average;
+
+            return average * Math.pow(0.5, (double) idleMs / halfLifeMs);
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package voldemort.store.routed;
 
 import voldemort.client.ClientConfig;
+import voldemort.client.HedgedReads;
 import voldemort.client.TimeoutConfig;
 import voldemort.client.ZoneAffinity;
 import voldemort.cluster.Zone;
@@ -29,6 +30,8 @@ public class RoutedStoreConfig {
     private int jmxId = 0;
     private int clientZoneId = Zone.DEFAULT_ZONE_ID;
     private ZoneAffinity zoneAffinity = new ZoneAffinity();
+    private HedgedReads hedgedReads = new HedgedReads();
+    private boolean replicaRanking = false;
 
     public RoutedStoreConfig() {}
 
@@ -37,6 +40,8 @@ public class RoutedStoreConfig {
         this.clientZoneId = clientConfig.getClientZoneId();
         this.timeoutConfig = clientConfig.getTimeoutConfig();
         this.zoneAffinity = clientConfig.getZoneAffinity();
+        this.hedgedReads = clientConfig.getHedgedReads();
+        this.replicaRanking = clientConfig.isReplicaRankingEnabled();
     }
 
     public RoutedStoreConfig(VoldemortConfig voldemortConfig) {
@@ -97,4 +102,22 @@ public class RoutedStoreConfig {
         this.zoneAffinity = zoneAffinity;
         return this;
     }
+
+    public HedgedReads getHedgedReads() {
+        return hedgedReads;
+    }
+
+    public RoutedStoreConfig setHedgedReads(HedgedReads hedgedReads) {
+        this.hedgedReads = hedgedReads;
+        return this;
+    }
+
+    public boolean isReplicaRankingEnabled() {
+        return replicaRanking;
+    }
+
+    public RoutedStoreConfig setReplicaRanking(boolean replicaRanking) {
+        this.replicaRanking = replicaRanking;
+        return this;
+    }
 }
@@ -95,6 +95,8 @@ public class RoutedStoreFactory {
                                        routedStoreConfig.getClientZoneId(),
                                        routedStoreConfig.isJmxEnabled(),
                                        routedStoreConfig.getJmxId(),
-                                       routedStoreConfig.getZoneAffinity());
+                                       routedStoreConfig.getZoneAffinity(),
+                                       routedStoreConfig.getHedgedReads(),
+                                       routedStoreConfig.isReplicaRankingEnabled());
     }
 }
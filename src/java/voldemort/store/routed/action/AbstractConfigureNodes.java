@@ -92,4 +92,14 @@ public abstract class AbstractConfigureNodes<K, V, PD extends PipelineData<K, V>
         }
         return nodes;
     }
+
+    /**
+     * Orders the nodes by the replica ranker of the pipeline, if it has one.
+     */
+    protected List<Node> rankNodes(List<Node> nodes) {
+        if(pipelineData.getReplicaRanker() == null)
+            return nodes;
+
+        return pipelineData.getReplicaRanker().rank(nodes);
+    }
 }
@@ -64,6 +64,9 @@ public class ConfigureNodes<V, PD extends BasicPipelineData<V>> extends
             return;
         }
 
+        // The zone grouping below keeps this order within each zone
+        nodes = rankNodes(nodes);
+
         if(logger.isDebugEnabled())
             logger.debug("Adding " + nodes.size() + " node(s) to preference list");
 
@@ -37,7 +37,8 @@ import voldemort.utils.ByteUtils;
 /**
  * Configure the Nodes obtained via the routing strategy based on the zone
  * information. Local zone nodes first, followed by the corresponding nodes from
- * each of the other zones, ordered by proximity.
+ * each of the other zones, ordered by proximity. Within a zone, nodes are
+ * ordered by the replica ranker of the pipeline if it has one.
  */
 public class ConfigureNodesByZone<V, PD extends BasicPipelineData<V>> extends
         AbstractConfigureNodes<ByteArray, V, PD> {
@@ -67,6 +68,9 @@ public class ConfigureNodesByZone<V, PD extends BasicPipelineData<V>> extends
             return null;
         }
 
+        // The zone grouping below keeps this order within each zone
+        nodes = rankNodes(nodes);
+
         if(logger.isDebugEnabled())
             logger.debug("Adding " + nodes.size() + " node(s) to preference list");
 
@@ -30,7 +30,8 @@ import voldemort.utils.ByteUtils;
 
 /**
  * Default Configure Nodes that does not reorder the list of nodes obtained via
- * the routing strategy
+ * the routing strategy, other than by the replica ranker of the pipeline if it
+ * has one
  */
 public class ConfigureNodesDefault<V, PD extends BasicPipelineData<V>> extends
         AbstractConfigureNodes<ByteArray, V, PD> {
@@ -57,7 +58,7 @@ public class ConfigureNodesDefault<V, PD extends BasicPipelineData<V>> extends
             pipelineData.setFatalError(e);
             return null;
         }
-        return nodes;
+        return rankNodes(nodes);
     }
 
     public void execute(Pipeline pipeline) {
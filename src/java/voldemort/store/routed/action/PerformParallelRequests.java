@@ -22,6 +22,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Level;
 
@@ -33,6 +34,7 @@ import voldemort.store.InvalidMetadataException;
 import voldemort.store.nonblockingstore.NonblockingStore;
 import voldemort.store.nonblockingstore.NonblockingStoreCallback;
 import voldemort.store.routed.BasicPipelineData;
+import voldemort.store.routed.HedgingPolicy;
 import voldemort.store.routed.Pipeline;
 import voldemort.store.routed.Pipeline.Event;
 import voldemort.store.routed.Pipeline.Operation;
@@ -41,6 +43,17 @@ import voldemort.utils.ByteArray;
 import voldemort.utils.ByteUtils;
 import voldemort.utils.Utils;
 
+/**
+ * Sends the request to the preferred number of nodes in parallel and waits for
+ * their responses.
+ * <p/>
+ * With a {@link HedgingPolicy}, if the required number of successes is not in
+ * after the hedge delay, the request is also sent to the next node, budget
+ * permitting. The action then waits for every request sent, up to the
+ * timeout, as it does without hedging; the hedge only serves to reach the
+ * required number of successes, so the wait ends once a hedged action has
+ * them.
+ */
 public class PerformParallelRequests<V, PD extends BasicPipelineData<V>> extends
         AbstractKeyBasedAction<ByteArray, V, PD> {
 
@@ -58,6 +71,8 @@ public class PerformParallelRequests<V, PD extends BasicPipelineData<V>> extends
 
     private final Event insufficientZonesEvent;
 
+    private final HedgingPolicy hedgingPolicy;
+
     private byte[] transforms;
 
     public PerformParallelRequests(PD pipelineData,
@@ -71,6 +86,32 @@ public class PerformParallelRequests<V, PD extends BasicPipelineData<V>> extends
                                    Map<Integer, NonblockingStore> nonblockingStores,
                                    Event insufficientSuccessesEvent,
                                    Event insufficientZonesEvent) {
+        this(pipelineData,
+             completeEvent,
+             key,
+             transforms,
+             failureDetector,
+             preferred,
+             required,
+             timeoutMs,
+             nonblockingStores,
+             insufficientSuccessesEvent,
+             insufficientZonesEvent,
+             null);
+    }
+
+    public PerformParallelRequests(PD pipelineData,
+                                   Event completeEvent,
+                                   ByteArray key,
+                                   byte[] transforms,
+                                   FailureDetector failureDetector,
+                                   int preferred,
+                                   int required,
+                                   long timeoutMs,
+                                   Map<Integer, NonblockingStore> nonblockingStores,
+                                   Event insufficientSuccessesEvent,
+                                   Event insufficientZonesEvent,
+                                   HedgingPolicy hedgingPolicy) {
         super(pipelineData, completeEvent, key);
         this.failureDetector = failureDetector;
         this.preferred = preferred;
@@ -80,6 +121,7 @@ public class PerformParallelRequests<V, PD extends BasicPipelineData<V>> extends
         this.nonblockingStores = nonblockingStores;
         this.insufficientSuccessesEvent = insufficientSuccessesEvent;
         this.insufficientZonesEvent = insufficientZonesEvent;
+        this.hedgingPolicy = hedgingPolicy;
     }
 
     public void execute(final Pipeline pipeline) {
@@ -87,81 +129,36 @@ public class PerformParallelRequests<V, PD extends BasicPipelineData<V>> extends
         int attempts = Math.min(preferred, nodes.size());
         final Map<Integer, Response<ByteArray, Object>> responses = new ConcurrentHashMap<Integer, Response<ByteArray, Object>>();
         final CountDownLatch latch = new CountDownLatch(attempts);
+        final AtomicInteger numSuccesses = new AtomicInteger(0);
 
         if(logger.isTraceEnabled())
             logger.trace("Attempting " + attempts + " " + pipeline.getOperation().getSimpleName()
                          + " operations in parallel for key " + key);
 
-        for(int i = 0; i < attempts; i++) {
-            final Node node = nodes.get(i);
-            pipelineData.incrementNodeIndex();
-
-            final long startMs = logger.isDebugEnabled() ? System.currentTimeMillis() : -1;
-
-            NonblockingStoreCallback callback = new NonblockingStoreCallback() {
-
-                public void requestComplete(Object result, long requestTime) {
-                    if(logger.isTraceEnabled())
-                        logger.trace(pipeline.getOperation().getSimpleName()
-                                     + " response received (" + requestTime + " ms.) from node "
-                                     + node.getId() + "for key " + key);
-
-                    Response<ByteArray, Object> response = new Response<ByteArray, Object>(node,
-                                                                                           key,
-                                                                                           result,
-                                                                                           requestTime);
-                    if(logger.isDebugEnabled())
-                        logger.debug("Finished " + pipeline.getOperation().getSimpleName()
-                                     + " for key " + ByteUtils.toHexString(key.get())
-                                     + " (keyRef: " + System.identityHashCode(key)
-                                     + "); started at " + startMs + " took " + requestTime
-                                     + " ms on node " + node.getId() + "(" + node.getHost() + ")");
-
-                    responses.put(node.getId(), response);
-                    latch.countDown();
-
-                    // Note errors that come in after the pipeline has finished.
-                    // These will *not* get a chance to be called in the loop of
-                    // responses below.
-                    if(pipeline.isFinished() && response.getValue() instanceof Exception) {
-                        if(response.getValue() instanceof InvalidMetadataException) {
-                            pipelineData.reportException((InvalidMetadataException) response.getValue());
-                            logger.warn("Received invalid metadata problem after a successful "
-                                        + pipeline.getOperation().getSimpleName()
-                                        + " call on node " + node.getId() + ", store '"
-                                        + pipelineData.getStoreName() + "' for key " + key);
-                        } else {
-                            handleResponseError(response, pipeline, failureDetector);
-                        }
-                    }
-                }
+        for(int i = 0; i < attempts; i++)
+            submitRequest(pipeline, nodes.get(i), responses, latch, numSuccesses);
 
-            };
+        Node hedgeNode = null;
 
-            if(logger.isTraceEnabled())
-                logger.trace("Submitting " + pipeline.getOperation().getSimpleName()
-                             + " request on node " + node.getId() + " for key " + key);
-
-            NonblockingStore store = nonblockingStores.get(node.getId());
-
-            if(pipeline.getOperation() == Operation.GET)
-                store.submitGetRequest(key, transforms, callback, timeoutMs);
-            else if(pipeline.getOperation() == Operation.GET_VERSIONS)
-                store.submitGetVersionsRequest(key, callback, timeoutMs);
-            else
-                throw new IllegalStateException(getClass().getName()
-                                                + " does not support pipeline operation "
-                                                + pipeline.getOperation());
+        if(hedgingPolicy == null) {
+            try {
+                latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch(InterruptedException e) {
+                if(logger.isEnabledFor(Level.WARN))
+                    logger.warn(e, e);
+            }
+        } else {
+            hedgeNode = awaitHedged(pipeline, attempts, responses, latch, numSuccesses);
         }
 
-        try {
-            latch.await(timeoutMs, TimeUnit.MILLISECONDS);
-        } catch(InterruptedException e) {
-            if(logger.isEnabledFor(Level.WARN))
-                logger.warn(e, e);
-        }
+        // Responses may still trickle in, only look at the ones in by now
+        List<Response<ByteArray, Object>> received = new ArrayList<Response<ByteArray, Object>>(responses.values());
+
+        for(Response<ByteArray, Object> response: received) {
+            if(response.getNode() == hedgeNode && !(response.getValue() instanceof Exception)
+               && pipelineData.getStats() != null)
+                pipelineData.getStats().reportHedgeSuccess();
 
-        for(Response<ByteArray, Object> response: responses.values()) {
             if(response.getValue() instanceof Exception) {
                 if(handleResponseError(response, pipeline, failureDetector))
                     return;
@@ -234,4 +231,154 @@ public class PerformParallelRequests<V, PD extends BasicPipelineData<V>> extends
             }
         }
     }
+
+    private void submitRequest(final Pipeline pipeline,
+                               final Node node,
+                               final Map<Integer, Response<ByteArray, Object>> responses,
+                               final CountDownLatch latch,
+                               final AtomicInteger numSuccesses) {
+        pipelineData.incrementNodeIndex();
+
+        final long startMs = logger.isDebugEnabled() ? System.currentTimeMillis() : -1;
+
+        NonblockingStoreCallback callback = new NonblockingStoreCallback() {
+
+            public void requestComplete(Object result, long requestTime) {
+                if(logger.isTraceEnabled())
+                    logger.trace(pipeline.getOperation().getSimpleName() + " response received ("
+                                 + requestTime + " ms.) from node " + node.getId() + "for key "
+                                 + key);
+
+                Response<ByteArray, Object> response = new Response<ByteArray, Object>(node,
+                                                                                       key,
+                                                                                       result,
+                                                                                       requestTime);
+                if(logger.isDebugEnabled())
+                    logger.debug("Finished " + pipeline.getOperation().getSimpleName()
+                                 + " for key " + ByteUtils.toHexString(key.get()) + " (keyRef: "
+                                 + System.identityHashCode(key) + "); started at " + startMs
+                                 + " took " + requestTime + " ms on node " + node.getId() + "("
+                                 + node.getHost() + ")");
+
+                if(hedgingPolicy != null && !(result instanceof Exception))
+                    hedgingPolicy.recordResponseTime(requestTime);
+
+                if(pipelineData.getReplicaRanker() != null)
+                    pipelineData.getReplicaRanker().requestComplete(node, requestTime);
+
+                responses.put(node.getId(), response);
+                if(!(result instanceof Exception))
+                    numSuccesses.incrementAndGet();
+                latch.countDown();
+
+                if(hedgingPolicy != null) {
+                    synchronized(responses) {
+                        responses.notifyAll();
+                    }
+                }
+
+                // Note errors that come in after the pipeline has finished.
+                // These will *not* get a chance to be called in the loop of
+                // responses below.
+                if(pipeline.isFinished() && response.getValue() instanceof Exception) {
+                    if(response.getValue() instanceof InvalidMetadataException) {
+                        pipelineData.reportException((InvalidMetadataException) response.getValue());
+                        logger.warn("Received invalid metadata problem after a successful "
+                                    + pipeline.getOperation().getSimpleName() + " call on node "
+                                    + node.getId() + ", store '" + pipelineData.getStoreName()
+                                    + "' for key " + key);
+                    } else {
+                        handleResponseError(response, pipeline, failureDetector);
+                    }
+                }
+            }
+
+        };
+
+        if(logger.isTraceEnabled())
+            logger.trace("Submitting " + pipeline.getOperation().getSimpleName()
+                         + " request on node " + node.getId() + " for key " + key);
+
+        NonblockingStore store = nonblockingStores.get(node.getId());
+
+        if(pipelineData.getReplicaRanker() != null)
+            pipelineData.getReplicaRanker().requestStarted(node);
+
+        if(pipeline.getOperation() == Operation.GET)
+            store.submitGetRequest(key, transforms, callback, timeoutMs);
+        else if(pipeline.getOperation() == Operation.GET_VERSIONS)
+            store.submitGetVersionsRequest(key, callback, timeoutMs);
+        else
+            throw new IllegalStateException(getClass().getName()
+                                            + " does not support pipeline operation "
+                                            + pipeline.getOperation());
+    }
+
+    /**
+     * Waits for the responses of every request sent, hedging if the required
+     * successes are slow to come in. A hedged wait ends as soon as the
+     * required successes are in.
+     * 
+     * @return The node the hedge request went to, or null if none was sent
+     */
+    private Node awaitHedged(Pipeline pipeline,
+                             int attempts,
+                             Map<Integer, Response<ByteArray, Object>> responses,
+                             CountDownLatch latch,
+                             AtomicInteger numSuccesses) {
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        hedgingPolicy.recordRequest();
+
+        try {
+            if(latch.await(Math.min(hedgingPolicy.getDelayMs(), timeoutMs), TimeUnit.MILLISECONDS))
+                return null;
+        } catch(InterruptedException e) {
+            if(logger.isEnabledFor(Level.WARN))
+                logger.warn(e, e);
+            return null;
+        }
+
+        List<Node> nodes = pipelineData.getNodes();
+        Node hedgeNode = null;
+        int submitted = attempts;
+
+        if(numSuccesses.get() < required && nodes.size() > attempts) {
+            boolean allowed = hedgingPolicy.tryHedge();
+
+            if(pipelineData.getStats() != null)
+                pipelineData.getStats().reportHedge(!allowed);
+
+            if(allowed) {
+                hedgeNode = nodes.get(attempts);
+
+                if(logger.isDebugEnabled())
+                    logger.debug("Hedging " + pipeline.getOperation().getSimpleName()
+                                 + " for key " + ByteUtils.toHexString(key.get())
+                                 + " to node " + hedgeNode.getId());
+
+                submitRequest(pipeline, hedgeNode, responses, latch, numSuccesses);
+                submitted++;
+            }
+        }
+
+        synchronized(responses) {
+            while(responses.size() < submitted
+                  && (hedgeNode == null || numSuccesses.get() < required)) {
+                long remainingNs = deadlineNs - System.nanoTime();
+
+                if(remainingNs <= 0)
+                    break;
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(responses, remainingNs);
+                } catch(InterruptedException e) {
+                    if(logger.isEnabledFor(Level.WARN))
+                        logger.warn(e, e);
+                    break;
+                }
+            }
+        }
+
+        return hedgeNode;
+    }
 }
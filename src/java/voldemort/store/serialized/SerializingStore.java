@@ -142,6 +142,28 @@ public class SerializingStore<K, V, T> extends AbstractStore<K, V, T> {
                   transformToBytes(transforms));
     }
 
+    @Override
+    public Map<K, VoldemortException> putAll(Map<K, Versioned<V>> entries, Map<K, T> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(entries.keySet());
+        Map<ByteArray, K> byteKeyToKey = Maps.newHashMapWithExpectedSize(entries.size());
+        Map<ByteArray, Versioned<byte[]>> byteEntries = Maps.newHashMapWithExpectedSize(entries.size());
+        for(Map.Entry<K, Versioned<V>> entry: entries.entrySet()) {
+            ByteArray key = keyToBytes(entry.getKey());
+            byteKeyToKey.put(key, entry.getKey());
+            byteEntries.put(key,
+                            new Versioned<byte[]>(valueSerializer.toBytes(entry.getValue()
+                                                                               .getValue()),
+                                                  entry.getValue().getVersion()));
+        }
+        Map<ByteArray, VoldemortException> storeResult = store.putAll(byteEntries,
+                                                                      transformsToBytes(transforms));
+        Map<K, VoldemortException> result = Maps.newHashMapWithExpectedSize(storeResult.size());
+        for(Map.Entry<ByteArray, VoldemortException> mapEntry: storeResult.entrySet())
+            result.put(byteKeyToKey.get(mapEntry.getKey()), mapEntry.getValue());
+        return result;
+    }
+
     @Override
     public List<Version> getVersions(K key) {
         return store.getVersions(keyToBytes(key));
@@ -17,8 +17,11 @@
 package voldemort.store.socket;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -41,9 +44,11 @@ import voldemort.store.socket.clientrequest.DeleteClientRequest;
 import voldemort.store.socket.clientrequest.GetAllClientRequest;
 import voldemort.store.socket.clientrequest.GetClientRequest;
 import voldemort.store.socket.clientrequest.GetVersionsClientRequest;
+import voldemort.store.socket.clientrequest.PutAllClientRequest;
 import voldemort.store.socket.clientrequest.PutClientRequest;
 import voldemort.store.stats.ClientSocketStats;
 import voldemort.utils.ByteArray;
+import voldemort.utils.Time;
 import voldemort.utils.Utils;
 import voldemort.versioning.Version;
 import voldemort.versioning.Versioned;
@@ -173,6 +178,69 @@ public class SocketStore extends AbstractStore<ByteArray, byte[], byte[]> implem
         requestAsync(clientRequest, callback, timeoutMs, "put");
     }
 
+    @Override
+    public void submitPutAllRequest(Map<ByteArray, Versioned<byte[]>> entries,
+                                    Map<ByteArray, byte[]> transforms,
+                                    final NonblockingStoreCallback callback,
+                                    long timeoutMs) {
+        StoreUtils.assertValidKeys(entries.keySet());
+        if(!destination.getRequestFormatType().supportsPutAll() || entries.isEmpty()) {
+            submitIndividualPutRequests(entries, transforms, callback, timeoutMs);
+            return;
+        }
+
+        PutAllClientRequest clientRequest = new PutAllClientRequest(getName(),
+                                                                    requestFormat,
+                                                                    requestRoutingType,
+                                                                    entries,
+                                                                    transforms);
+        if(logger.isDebugEnabled())
+            logger.debug("PUTALL keyRef: " + System.identityHashCode(entries) + " requestRef: "
+                         + System.identityHashCode(clientRequest));
+        requestAsync(clientRequest, callback, timeoutMs, "put all");
+    }
+
+    /*
+     * For request formats without a batched put: sends one put per entry and
+     * completes the callback with the failures once all of them are done
+     */
+    private void submitIndividualPutRequests(Map<ByteArray, Versioned<byte[]>> entries,
+                                             Map<ByteArray, byte[]> transforms,
+                                             final NonblockingStoreCallback callback,
+                                             long timeoutMs) {
+        if(entries.isEmpty()) {
+            callback.requestComplete(new HashMap<ByteArray, VoldemortException>(), 0);
+            return;
+        }
+
+        final Map<ByteArray, VoldemortException> failures = new ConcurrentHashMap<ByteArray, VoldemortException>();
+        final AtomicInteger remaining = new AtomicInteger(entries.size());
+        final long startNs = System.nanoTime();
+
+        for(Map.Entry<ByteArray, Versioned<byte[]>> entry: entries.entrySet()) {
+            final ByteArray key = entry.getKey();
+            submitPutRequest(key,
+                             entry.getValue(),
+                             transforms != null ? transforms.get(key) : null,
+                             new NonblockingStoreCallback() {
+
+                                 public void requestComplete(Object result, long requestTime) {
+                                     if(result instanceof VoldemortException)
+                                         failures.put(key, (VoldemortException) result);
+                                     else if(result instanceof Exception)
+                                         failures.put(key,
+                                                      new VoldemortException((Exception) result));
+
+                                     if(remaining.decrementAndGet() == 0)
+                                         callback.requestComplete(new HashMap<ByteArray, VoldemortException>(failures),
+                                                                  (System.nanoTime() - startNs)
+                                                                          / Time.NS_PER_MS);
+                                 }
+                             },
+                             timeoutMs);
+        }
+    }
+
     @Override
     public boolean delete(ByteArray key, Version version) throws VoldemortException {
         StoreUtils.assertValidKey(key);
@@ -246,6 +314,25 @@ public class SocketStore extends AbstractStore<ByteArray, byte[], byte[]> implem
         request(clientRequest, "put");
     }
 
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(entries.keySet());
+        if(!destination.getRequestFormatType().supportsPutAll())
+            return super.putAll(entries, transforms);
+
+        PutAllClientRequest clientRequest = new PutAllClientRequest(getName(),
+                                                                    requestFormat,
+                                                                    requestRoutingType,
+                                                                    entries,
+                                                                    transforms);
+        if(logger.isDebugEnabled())
+            logger.debug("PUTALL keyRef: " + System.identityHashCode(entries) + " requestRef: "
+                         + System.identityHashCode(clientRequest));
+        return request(clientRequest, "putAll");
+    }
+
     @Override
     public Object getCapability(StoreCapabilityType capability) {
         if(StoreCapabilityType.SOCKET_POOL.equals(capability))
@@ -306,7 +393,9 @@ public class SocketStore extends AbstractStore<ByteArray, byte[], byte[]> implem
             throw new UnreachableStoreException("Failure in " + operationName + " on "
                                                 + destination + ": " + e.getMessage(), e);
         } catch(IOException e) {
-            clientRequestExecutor.close();
+            // A shared connection stays up for the other requests in flight
+            if(!clientRequestExecutor.isMultiplexed())
+                clientRequestExecutor.close();
 
             if(logger.isDebugEnabled())
                 debugMsgStr += "failure: " + e.getMessage();
@@ -314,7 +403,8 @@ public class SocketStore extends AbstractStore<ByteArray, byte[], byte[]> implem
             throw new UnreachableStoreException("Failure in " + operationName + " on "
                                                 + destination + ": " + e.getMessage(), e);
         } finally {
-            if(blockingClientRequest != null && !blockingClientRequest.isComplete()) {
+            if(blockingClientRequest != null && !blockingClientRequest.isComplete()
+               && !clientRequestExecutor.isMultiplexed()) {
                 // close the executor if we timed out
                 clientRequestExecutor.close();
             }
@@ -28,6 +28,7 @@ import java.nio.channels.SocketChannel;
 
 import org.apache.log4j.Level;
 
+import voldemort.common.nio.ByteBufferPool;
 import voldemort.common.nio.CommBufferSizeStats;
 import voldemort.common.nio.SelectorManagerWorker;
 import voldemort.utils.Time;
@@ -56,8 +57,15 @@ public class ClientRequestExecutor extends SelectorManagerWorker {
     public ClientRequestExecutor(Selector selector,
                                  SocketChannel socketChannel,
                                  int socketBufferSize) {
+        this(selector, socketChannel, socketBufferSize, null);
+    }
+
+    public ClientRequestExecutor(Selector selector,
+                                 SocketChannel socketChannel,
+                                 int socketBufferSize,
+                                 ByteBufferPool bufferPool) {
         // Not tracking or exposing the comm buffer statistics for now
-        super(selector, socketChannel, socketBufferSize, new CommBufferSizeStats());
+        super(selector, socketChannel, socketBufferSize, new CommBufferSizeStats(), bufferPool);
         isExpired = false;
     }
 
@@ -65,6 +73,14 @@ public class ClientRequestExecutor extends SelectorManagerWorker {
         return socketChannel;
     }
 
+    /**
+     * Returns true if this executor can have several requests in flight, in
+     * which case it is shared rather than checked out exclusively.
+     */
+    public boolean isMultiplexed() {
+        return false;
+    }
+
     public boolean isValid() {
         if(isClosed())
             return false;
@@ -127,7 +143,7 @@ public class ClientRequestExecutor extends SelectorManagerWorker {
             traceInputBufferState("About to clear read buffer");
 
         if(inputStream.getBuffer().capacity() >= resizeThreshold)
-            inputStream.setBuffer(ByteBuffer.allocate(socketBufferSize));
+            inputStream.setBuffer(allocateBuffer(socketBufferSize));
         else
             inputStream.getBuffer().clear();
 
@@ -256,7 +272,7 @@ public class ClientRequestExecutor extends SelectorManagerWorker {
         // If we don't have anything else to write, that means we're done with
         // the request! So clear the buffers (resizing if necessary).
         if(outputStream.getBuffer().capacity() >= resizeThreshold)
-            outputStream.setBuffer(ByteBuffer.allocate(socketBufferSize));
+            outputStream.setBuffer(allocateBuffer(socketBufferSize));
         else
             outputStream.getBuffer().clear();
 
@@ -24,6 +24,7 @@ import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -36,6 +37,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import voldemort.client.protocol.vold.FrameCompression;
+import voldemort.common.nio.ByteBufferPool;
 import voldemort.common.nio.SelectorManager;
 import voldemort.store.socket.SocketDestination;
 import voldemort.store.stats.ClientSocketStats;
@@ -63,6 +66,9 @@ public class ClientRequestExecutorFactory implements
     private final Map<SocketDestination, Long> lastClosedTimestamps;
     private final Logger logger = Logger.getLogger(getClass());
     private final ClientSocketStats stats;
+    private final ByteBufferPool bufferPool;
+    private final List<String> compressionCodecs;
+    private final int compressionThreshold;
 
     public ClientRequestExecutorFactory(int selectors,
                                         int connectTimeoutMs,
@@ -70,6 +76,43 @@ public class ClientRequestExecutorFactory implements
                                         int socketBufferSize,
                                         boolean socketKeepAlive,
                                         ClientSocketStats stats) {
+        this(selectors, connectTimeoutMs, soTimeoutMs, socketBufferSize, socketKeepAlive, stats, null);
+    }
+
+    public ClientRequestExecutorFactory(int selectors,
+                                        int connectTimeoutMs,
+                                        int soTimeoutMs,
+                                        int socketBufferSize,
+                                        boolean socketKeepAlive,
+                                        ClientSocketStats stats,
+                                        ByteBufferPool bufferPool) {
+        this(selectors,
+             connectTimeoutMs,
+             soTimeoutMs,
+             socketBufferSize,
+             socketKeepAlive,
+             stats,
+             bufferPool,
+             null,
+             FrameCompression.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param compressionCodecs The codecs to propose for compressing the
+     *        frames of multiplexed connections in order of preference, or null
+     *        to not compress
+     * @param compressionThreshold The smallest frame payload that is
+     *        compressed
+     */
+    public ClientRequestExecutorFactory(int selectors,
+                                        int connectTimeoutMs,
+                                        int soTimeoutMs,
+                                        int socketBufferSize,
+                                        boolean socketKeepAlive,
+                                        ClientSocketStats stats,
+                                        ByteBufferPool bufferPool,
+                                        List<String> compressionCodecs,
+                                        int compressionThreshold) {
         this.connectTimeoutMs = connectTimeoutMs;
         this.soTimeoutMs = soTimeoutMs;
         this.created = new AtomicInteger(0);
@@ -77,6 +120,9 @@ public class ClientRequestExecutorFactory implements
         this.socketBufferSize = socketBufferSize;
         this.socketKeepAlive = socketKeepAlive;
         this.stats = stats;
+        this.bufferPool = bufferPool;
+        this.compressionCodecs = compressionCodecs;
+        this.compressionThreshold = compressionThreshold;
 
         this.selectorManagers = new ClientRequestSelectorManager[selectors];
         this.selectorManagerThreadPool = Executors.newFixedThreadPool(selectorManagers.length,
@@ -190,10 +236,20 @@ public class ClientRequestExecutorFactory implements
                                                                             % selectorManagers.length];
 
             Selector selector = selectorManager.getSelector();
-            clientRequestExecutor = new ClientRequestExecutor(selector,
-                                                              socketChannel,
-                                                              socketBufferSize);
-            BlockingClientRequest<String> clientRequest = new BlockingClientRequest<String>(new ProtocolNegotiatorClientRequest(dest.getRequestFormatType()),
+            if(dest.getRequestFormatType().isMultiplexed())
+                clientRequestExecutor = new MultiplexedClientRequestExecutor(selector,
+                                                                             socketChannel,
+                                                                             socketBufferSize,
+                                                                             bufferPool);
+            else
+                clientRequestExecutor = new ClientRequestExecutor(selector,
+                                                                  socketChannel,
+                                                                  socketBufferSize,
+                                                                  bufferPool);
+            ProtocolNegotiatorClientRequest negotiatorRequest = new ProtocolNegotiatorClientRequest(dest.getRequestFormatType(),
+                                                                                                    compressionCodecs,
+                                                                                                    compressionThreshold);
+            BlockingClientRequest<String> clientRequest = new BlockingClientRequest<String>(negotiatorRequest,
                                                                                             this.getTimeout());
             clientRequestExecutor.addClientRequest(clientRequest);
 
@@ -207,6 +263,14 @@ public class ClientRequestExecutorFactory implements
             // Either returns uninteresting token, or throws exception if
             // protocol negotiation failed.
             clientRequest.getResult();
+
+            if(negotiatorRequest.getFrameCompression() != null) {
+                ((MultiplexedClientRequestExecutor) clientRequestExecutor).setFrameCompression(negotiatorRequest.getFrameCompression());
+
+                if(logger.isDebugEnabled())
+                    logger.debug("Negotiated " + negotiatorRequest.getFrameCompression()
+                                 + " for " + dest.getHost() + ":" + dest.getPort());
+            }
         } catch(Exception e) {
             // Make sure not to leak socketChannels
             if(socketChannel != null) {
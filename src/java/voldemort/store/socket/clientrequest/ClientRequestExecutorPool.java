@@ -20,6 +20,12 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -28,6 +34,8 @@ import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
 import voldemort.client.protocol.RequestFormatType;
+import voldemort.client.protocol.vold.FrameCompression;
+import voldemort.common.nio.ByteBufferPool;
 import voldemort.server.RequestRoutingType;
 import voldemort.store.StoreTimeoutException;
 import voldemort.store.UnreachableStoreException;
@@ -54,6 +62,18 @@ import voldemort.utils.pool.ResourcePoolConfig;
  * 
  * Upon successful construction of this object, a new Thread is started. It is
  * terminated upon calling {@link #close()}.
+ * 
+ * <p/>
+ * 
+ * Destinations using a multiplexed request format bypass the queued pool: they
+ * get a small fixed number of shared connections, handed out round-robin, and
+ * checking those back in is a no-op.
+ * <p/>
+ * With a positive buffer pool size the connections use direct socket buffers
+ * from a {@link ByteBufferPool} they all share.
+ * <p/>
+ * Multiplexed connections may negotiate {@link FrameCompression} with the
+ * server when given compression codecs.
  */
 public class ClientRequestExecutorPool implements SocketStoreFactory {
 
@@ -62,6 +82,9 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
     private final ClientSocketStats stats;
     private final boolean jmxEnabled;
     private final int jmxId;
+    private final int multiplexedConnectionsPerNode;
+    private final ConcurrentMap<SocketDestination, MultiplexedConnections> multiplexedConnections;
+    private final ByteBufferPool bufferPool;
 
     private final Logger logger = Logger.getLogger(ClientRequestExecutorPool.class);
 
@@ -73,6 +96,74 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
                                      boolean socketKeepAlive,
                                      boolean jmxEnabled,
                                      int jmxId) {
+        this(selectors,
+             maxConnectionsPerNode,
+             connectionTimeoutMs,
+             soTimeoutMs,
+             socketBufferSize,
+             socketKeepAlive,
+             jmxEnabled,
+             jmxId,
+             1);
+    }
+
+    public ClientRequestExecutorPool(int selectors,
+                                     int maxConnectionsPerNode,
+                                     int connectionTimeoutMs,
+                                     int soTimeoutMs,
+                                     int socketBufferSize,
+                                     boolean socketKeepAlive,
+                                     boolean jmxEnabled,
+                                     int jmxId,
+                                     int multiplexedConnectionsPerNode) {
+        this(selectors,
+             maxConnectionsPerNode,
+             connectionTimeoutMs,
+             soTimeoutMs,
+             socketBufferSize,
+             socketKeepAlive,
+             jmxEnabled,
+             jmxId,
+             multiplexedConnectionsPerNode,
+             0);
+    }
+
+    public ClientRequestExecutorPool(int selectors,
+                                     int maxConnectionsPerNode,
+                                     int connectionTimeoutMs,
+                                     int soTimeoutMs,
+                                     int socketBufferSize,
+                                     boolean socketKeepAlive,
+                                     boolean jmxEnabled,
+                                     int jmxId,
+                                     int multiplexedConnectionsPerNode,
+                                     long bufferPoolSize) {
+        this(selectors,
+             maxConnectionsPerNode,
+             connectionTimeoutMs,
+             soTimeoutMs,
+             socketBufferSize,
+             socketKeepAlive,
+             jmxEnabled,
+             jmxId,
+             multiplexedConnectionsPerNode,
+             bufferPoolSize,
+             null,
+             FrameCompression.DEFAULT_THRESHOLD);
+    }
+
+    public ClientRequestExecutorPool(int selectors,
+                                     int maxConnectionsPerNode,
+                                     int connectionTimeoutMs,
+                                     int soTimeoutMs,
+                                     int socketBufferSize,
+                                     boolean socketKeepAlive,
+                                     boolean jmxEnabled,
+                                     int jmxId,
+                                     int multiplexedConnectionsPerNode,
+                                     long bufferPoolSize,
+                                     List<String> compressionCodecs,
+                                     int compressionThreshold) {
         ResourcePoolConfig config = new ResourcePoolConfig().setIsFair(true)
                                                             .setMaxPoolSize(maxConnectionsPerNode)
                                                             .setMaxInvalidAttempts(maxConnectionsPerNode)
@@ -80,6 +171,8 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
                                                                         TimeUnit.MILLISECONDS);
         this.jmxEnabled = jmxEnabled;
         this.jmxId = jmxId;
+        this.multiplexedConnectionsPerNode = Math.max(1, multiplexedConnectionsPerNode);
+        this.multiplexedConnections = new ConcurrentHashMap<SocketDestination, MultiplexedConnections>();
         if(this.jmxEnabled) {
             stats = new ClientSocketStats(jmxId);
             JmxUtils.registerMbean(new ClientSocketStatsJmx(stats),
@@ -89,12 +182,25 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
         } else {
             stats = null;
         }
+        if(bufferPoolSize > 0) {
+            bufferPool = new ByteBufferPool(socketBufferSize, bufferPoolSize);
+            if(this.jmxEnabled)
+                JmxUtils.registerMbean(bufferPool,
+                                       JmxUtils.createObjectName(JmxUtils.getPackageName(this.getClass()),
+                                                                 "bufferpool"
+                                                                         + JmxUtils.getJmxId(this.jmxId)));
+        } else {
+            bufferPool = null;
+        }
         this.factory = new ClientRequestExecutorFactory(selectors,
                                                         connectionTimeoutMs,
                                                         soTimeoutMs,
                                                         socketBufferSize,
                                                         socketKeepAlive,
-                                                        stats);
+                                                        stats,
+                                                        bufferPool,
+                                                        compressionCodecs,
+                                                        compressionThreshold);
         this.queuedPool = new QueuedKeyedResourcePool<SocketDestination, ClientRequestExecutor>(factory,
                                                                                                 config);
         if(stats != null) {
@@ -167,6 +273,9 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
      */
 
     public ClientRequestExecutor checkout(SocketDestination destination) {
+        if(destination.getRequestFormatType().isMultiplexed())
+            return getMultiplexedConnections(destination).next();
+
         // timing instrumentation (stats only)
         long startTimeNs = 0;
         if(stats != null) {
@@ -204,6 +313,10 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
      * @param clientRequestExecutor The request executor wrapper
      */
     public void checkin(SocketDestination destination, ClientRequestExecutor clientRequestExecutor) {
+        // shared connections are never checked out exclusively
+        if(clientRequestExecutor.isMultiplexed())
+            return;
+
         try {
             queuedPool.checkin(destination, clientRequestExecutor);
         } catch(Exception e) {
@@ -222,6 +335,10 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
     public void close(SocketDestination destination) {
         factory.setLastClosedTimestamp(destination);
         queuedPool.reset(destination);
+
+        MultiplexedConnections connections = multiplexedConnections.remove(destination);
+        if(connections != null)
+            connections.close();
     }
 
     /**
@@ -240,6 +357,16 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
             } catch(Exception e) {}
             stats.close();
         }
+        if(bufferPool != null && this.jmxEnabled) {
+            try {
+                JmxUtils.unregisterMbean(JmxUtils.createObjectName(JmxUtils.getPackageName(this.getClass()),
+                                                                   "bufferpool"
+                                                                           + JmxUtils.getJmxId(this.jmxId)));
+            } catch(Exception e) {}
+        }
+        for(MultiplexedConnections connections: multiplexedConnections.values())
+            connections.close();
+        multiplexedConnections.clear();
         factory.close();
         queuedPool.close();
     }
@@ -259,10 +386,150 @@ public class ClientRequestExecutorPool implements SocketStoreFactory {
                                                                                                               callback,
                                                                                                               timeoutMs,
                                                                                                               operationName);
+        if(destination.getRequestFormatType().isMultiplexed()) {
+            ClientRequestExecutor clientRequestExecutor;
+            try {
+                clientRequestExecutor = getMultiplexedConnections(destination).next();
+            } catch(UnreachableStoreException e) {
+                asyncSocketDestinationRequest.handleException(e);
+                return;
+            }
+            asyncSocketDestinationRequest.useResource(clientRequestExecutor);
+            return;
+        }
+
         queuedPool.registerResourceRequest(destination, asyncSocketDestinationRequest);
         return;
     }
 
+    private MultiplexedConnections getMultiplexedConnections(SocketDestination destination) {
+        MultiplexedConnections connections = multiplexedConnections.get(destination);
+        if(connections == null) {
+            connections = new MultiplexedConnections(destination);
+            MultiplexedConnections existing = multiplexedConnections.putIfAbsent(destination,
+                                                                                 connections);
+            if(existing != null)
+                connections = existing;
+        }
+        return connections;
+    }
+
+    /**
+     * The shared connections to one destination for a multiplexed request
+     * format. Connections are created lazily and replaced once they turn
+     * invalid. A connection is created outside of the monitor, so callers
+     * picking the other connections are not held up by a slow connect; those
+     * picking the one being created wait for it.
+     */
+    private class MultiplexedConnections {
+
+        private final SocketDestination destination;
+        private final FutureTask<ClientRequestExecutor>[] executors;
+        private int next;
+        private boolean closed;
+
+        @SuppressWarnings("unchecked")
+        public MultiplexedConnections(SocketDestination destination) {
+            this.destination = destination;
+            this.executors = new FutureTask[multiplexedConnectionsPerNode];
+        }
+
+        public ClientRequestExecutor next() {
+            FutureTask<ClientRequestExecutor> executor;
+            ClientRequestExecutor invalid = null;
+            boolean create = false;
+            synchronized(this) {
+                if(closed)
+                    throw new UnreachableStoreException("Shared sockets for " + destination
+                                                        + " are closed");
+                int index = next;
+                next = (next + 1) % executors.length;
+
+                executor = executors[index];
+                if(executor != null && executor.isDone()) {
+                    ClientRequestExecutor created = getCreated(executor);
+                    if(created != null && factory.validate(destination, created))
+                        return created;
+                    // invalid, or its creation failed
+                    invalid = created;
+                    executor = null;
+                }
+                if(executor == null) {
+                    executor = new FutureTask<ClientRequestExecutor>(new Callable<ClientRequestExecutor>() {
+
+                        public ClientRequestExecutor call() throws Exception {
+                            return factory.create(destination);
+                        }
+                    });
+                    executors[index] = executor;
+                    create = true;
+                }
+            }
+
+            if(invalid != null)
+                destroy(invalid);
+            if(create)
+                executor.run();
+
+            ClientRequestExecutor created;
+            try {
+                created = executor.get();
+            } catch(ExecutionException e) {
+                throw new UnreachableStoreException("Failure while creating shared socket for "
+                                                    + destination + ": ", e.getCause());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UnreachableStoreException("Interrupted while creating shared socket for "
+                                                    + destination, e);
+            }
+
+            if(create) {
+                // close() may have missed a connection still being created
+                synchronized(this) {
+                    if(closed) {
+                        destroy(created);
+                        throw new UnreachableStoreException("Shared sockets for " + destination
+                                                            + " are closed");
+                    }
+                }
+            }
+            return created;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            for(int i = 0; i < executors.length; i++) {
+                if(executors[i] != null) {
+                    ClientRequestExecutor created = executors[i].isDone() ? getCreated(executors[i])
+                                                                         : null;
+                    if(created != null)
+                        destroy(created);
+                    executors[i] = null;
+                }
+            }
+        }
+
+        /*
+         * Returns the connection of a finished creation, or null if it failed
+         */
+        private ClientRequestExecutor getCreated(FutureTask<ClientRequestExecutor> executor) {
+            try {
+                return executor.get();
+            } catch(Exception e) {
+                return null;
+            }
+        }
+
+        private void destroy(ClientRequestExecutor executor) {
+            try {
+                factory.destroy(destination, executor);
+            } catch(Exception e) {
+                if(logger.isEnabledFor(Level.WARN))
+                    logger.warn(e, e);
+            }
+        }
+    }
+
     /**
      * Wrap up an asynchronous request and actually issue it once a
      * SocketDestination is checked out.
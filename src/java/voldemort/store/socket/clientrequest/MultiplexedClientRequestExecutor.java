@@ -0,0 +1,377 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.socket.clientrequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+
+import voldemort.client.protocol.vold.FrameCompression;
+import voldemort.client.protocol.vold.VoldemortNativeClientRequestFormat;
+import voldemort.common.nio.ByteBufferBackedInputStream;
+import voldemort.common.nio.ByteBufferPool;
+import voldemort.utils.Time;
+
+/**
+ * A {@link ClientRequestExecutor} for the multiplexed native protocol, shared
+ * by any number of concurrent requests.
+ * <p/>
+ * Each request gets a connection-local id and is appended to the output buffer
+ * as a frame (see {@link VoldemortNativeClientRequestFormat}); responses are
+ * matched to their request by id, so they may arrive in any order. A request
+ * that times out is completed as timed out on its own and a late response for
+ * it is dropped, without closing the connection for the other requests.
+ * <p/>
+ * The protocol negotiation happens before multiplexing starts and uses the
+ * single request logic of the superclass. If it agreed on
+ * {@link FrameCompression}, large frames are compressed both ways.
+ */
+public class MultiplexedClientRequestExecutor extends ClientRequestExecutor {
+
+    private final Map<Integer, PendingRequest> pendingRequests;
+
+    private int nextRequestId;
+
+    private boolean negotiationStarted;
+
+    private volatile boolean multiplexing;
+
+    private volatile FrameCompression frameCompression;
+
+    public MultiplexedClientRequestExecutor(Selector selector,
+                                            SocketChannel socketChannel,
+                                            int socketBufferSize) {
+        this(selector, socketChannel, socketBufferSize, null);
+    }
+
+    public MultiplexedClientRequestExecutor(Selector selector,
+                                            SocketChannel socketChannel,
+                                            int socketBufferSize,
+                                            ByteBufferPool bufferPool) {
+        super(selector, socketChannel, socketBufferSize, bufferPool);
+        this.pendingRequests = new HashMap<Integer, PendingRequest>();
+    }
+
+    @Override
+    public boolean isMultiplexed() {
+        return true;
+    }
+
+    /**
+     * Sets the frame compression negotiated for this connection. Must be called
+     * before the first multiplexed request.
+     */
+    public void setFrameCompression(FrameCompression frameCompression) {
+        this.frameCompression = frameCompression;
+    }
+
+    public FrameCompression getFrameCompression() {
+        return frameCompression;
+    }
+
+    public synchronized int getNumPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    @Override
+    public void addClientRequest(ClientRequest<?> clientRequest, long timeoutMs, long elapsedNs) {
+        synchronized(this) {
+            if(!negotiationStarted) {
+                negotiationStarted = true;
+                super.addClientRequest(clientRequest, timeoutMs, elapsedNs);
+                return;
+            }
+
+            if(!multiplexing) {
+                // The negotiation response has been read, start with clean
+                // buffers
+                inputStream.getBuffer().clear();
+                outputStream.getBuffer().clear();
+                multiplexing = true;
+            }
+        }
+
+        long expiration = -1;
+        if(timeoutMs != -1) {
+            long nowNs = System.nanoTime();
+            expiration = nowNs + Math.max(0, (Time.NS_PER_MS * timeoutMs) - elapsedNs);
+        }
+
+        boolean wasSuccessful = false;
+
+        synchronized(this) {
+            if(!isClosed()) {
+                int requestId = nextRequestId++;
+                int start = outputStream.getBuffer().position();
+                DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+
+                try {
+                    // placeholder for the frame header
+                    dataOutputStream.writeLong(0);
+                    wasSuccessful = clientRequest.formatRequest(dataOutputStream);
+                } catch(IOException e) {
+                    wasSuccessful = false;
+                }
+
+                ByteBuffer buffer = outputStream.getBuffer();
+
+                if(wasSuccessful) {
+                    VoldemortNativeClientRequestFormat.writeFrameHeader(buffer,
+                                                                        start,
+                                                                        requestId,
+                                                                        compressFrame(buffer,
+                                                                                      start));
+                    pendingRequests.put(requestId, new PendingRequest(clientRequest, expiration));
+
+                    SelectionKey selectionKey = socketChannel.keyFor(selector);
+
+                    if(selectionKey != null && selectionKey.isValid()) {
+                        selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+
+                        // This wakeup is required because it's invoked by the
+                        // calling code in a different thread than the
+                        // SelectorManager.
+                        selector.wakeup();
+                    }
+                } else {
+                    buffer.position(start);
+                }
+            }
+        }
+
+        if(!wasSuccessful) {
+            if(logger.isEnabledFor(Level.WARN))
+                logger.warn("Client associated with " + socketChannel.socket()
+                            + " did not successfully buffer output for request");
+
+            clientRequest.complete();
+        }
+    }
+
+    /**
+     * Compresses the payload of the frame at the given index in place if the
+     * connection compresses frames and it is worth it.
+     * 
+     * @return The length field of the frame
+     */
+    private int compressFrame(ByteBuffer buffer, int start) {
+        int payloadStart = start + VoldemortNativeClientRequestFormat.FRAME_HEADER_SIZE;
+        int length = buffer.position() - payloadStart;
+
+        if(frameCompression == null || !frameCompression.shouldCompress(length))
+            return length;
+
+        byte[] payload = new byte[length];
+        ByteBuffer frame = buffer.duplicate();
+        frame.position(payloadStart);
+        frame.get(payload);
+
+        byte[] compressed = frameCompression.compress(payload);
+        if(compressed == null)
+            return length;
+
+        buffer.position(payloadStart);
+        buffer.put(compressed);
+        return compressed.length | FrameCompression.COMPRESSED_FLAG;
+    }
+
+    @Override
+    public boolean checkTimeout() {
+        if(!multiplexing)
+            return super.checkTimeout();
+
+        List<ClientRequest<?>> expired = null;
+        long nowNs = System.nanoTime();
+
+        synchronized(this) {
+            Iterator<PendingRequest> i = pendingRequests.values().iterator();
+
+            while(i.hasNext()) {
+                PendingRequest pending = i.next();
+
+                if(pending.expiration > 0 && nowNs > pending.expiration) {
+                    i.remove();
+
+                    if(expired == null)
+                        expired = new ArrayList<ClientRequest<?>>();
+                    expired.add(pending.clientRequest);
+                }
+            }
+        }
+
+        if(expired != null) {
+            if(logger.isEnabledFor(Level.WARN))
+                logger.warn(expired.size() + " client request(s) associated with "
+                            + socketChannel.socket() + " timed out");
+
+            for(ClientRequest<?> clientRequest: expired)
+                clientRequest.timeOut();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if(!multiplexing) {
+            super.close();
+            return;
+        }
+
+        if(!isClosed.compareAndSet(false, true))
+            return;
+
+        List<PendingRequest> pending;
+
+        synchronized(this) {
+            pending = new ArrayList<PendingRequest>(pendingRequests.values());
+            pendingRequests.clear();
+        }
+
+        // Completing without a parsed response fails the request
+        for(PendingRequest request: pending)
+            request.clientRequest.complete();
+
+        closeInternal();
+    }
+
+    @Override
+    protected void read(SelectionKey selectionKey) throws IOException {
+        if(!multiplexing) {
+            super.read(selectionKey);
+            return;
+        }
+
+        int count = 0;
+
+        if((count = socketChannel.read(inputStream.getBuffer())) == -1)
+            throw new EOFException("EOF for " + socketChannel.socket());
+
+        if(logger.isTraceEnabled())
+            traceInputBufferState("Read " + count + " bytes");
+
+        if(count == 0)
+            return;
+
+        ByteBuffer buffer = inputStream.getBuffer();
+        buffer.flip();
+
+        List<ClientRequest<?>> completed = new ArrayList<ClientRequest<?>>();
+        int frameSize;
+
+        while((frameSize = VoldemortNativeClientRequestFormat.getCompleteFrameSize(buffer)) != -1) {
+            int requestId = VoldemortNativeClientRequestFormat.getFrameRequestId(buffer);
+            boolean compressed = FrameCompression.isCompressed(VoldemortNativeClientRequestFormat.getFrameLength(buffer));
+            if(compressed && frameCompression == null)
+                throw new IOException("Compressed frame on a connection without compression from "
+                                      + socketChannel.socket());
+
+            PendingRequest pending;
+
+            synchronized(this) {
+                pending = pendingRequests.remove(requestId);
+            }
+
+            if(pending != null) {
+                ByteBuffer frame = buffer.duplicate();
+                frame.position(buffer.position()
+                               + VoldemortNativeClientRequestFormat.FRAME_HEADER_SIZE);
+                frame.limit(buffer.position() + frameSize);
+
+                if(compressed) {
+                    byte[] payload = new byte[frame.remaining()];
+                    frame.get(payload);
+                    pending.clientRequest.parseResponse(new DataInputStream(new ByteArrayInputStream(frameCompression.decompress(payload))));
+                } else {
+                    pending.clientRequest.parseResponse(new DataInputStream(new ByteBufferBackedInputStream(frame.slice())));
+                }
+                completed.add(pending.clientRequest);
+            } else if(logger.isDebugEnabled()) {
+                logger.debug("Dropping response for unknown or timed out request " + requestId
+                             + " from " + socketChannel.socket());
+            }
+
+            buffer.position(buffer.position() + frameSize);
+        }
+
+        // Keep the partial frame, if any, at the start of the buffer
+        buffer.compact();
+
+        if(buffer.position() == 0 && buffer.capacity() >= resizeThreshold)
+            inputStream.setBuffer(allocateBuffer(socketBufferSize));
+        else
+            handleIncompleteRequest(buffer.position());
+
+        for(ClientRequest<?> clientRequest: completed)
+            clientRequest.complete();
+    }
+
+    @Override
+    protected void write(SelectionKey selectionKey) throws IOException {
+        if(!multiplexing) {
+            super.write(selectionKey);
+            return;
+        }
+
+        synchronized(this) {
+            ByteBuffer buffer = outputStream.getBuffer();
+            buffer.flip();
+
+            try {
+                int count = socketChannel.write(buffer);
+
+                if(logger.isTraceEnabled())
+                    logger.trace("Wrote " + count + " bytes, remaining: " + buffer.remaining()
+                                 + " for " + socketChannel.socket());
+            } finally {
+                buffer.compact();
+            }
+
+            if(buffer.position() == 0) {
+                if(buffer.capacity() >= resizeThreshold)
+                    outputStream.setBuffer(allocateBuffer(socketBufferSize));
+
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private static class PendingRequest {
+
+        private final ClientRequest<?> clientRequest;
+
+        private final long expiration;
+
+        private PendingRequest(ClientRequest<?> clientRequest, long expiration) {
+            this.clientRequest = clientRequest;
+            this.expiration = expiration;
+        }
+    }
+}
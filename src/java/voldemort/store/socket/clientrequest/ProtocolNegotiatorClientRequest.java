@@ -20,26 +20,83 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import voldemort.VoldemortException;
 import voldemort.client.protocol.RequestFormatType;
+import voldemort.client.protocol.vold.FrameCompression;
 import voldemort.utils.ByteUtils;
 
 public class ProtocolNegotiatorClientRequest extends AbstractClientRequest<String> {
 
     private final RequestFormatType requestFormatType;
 
+    private final List<String> compressionCodecs;
+
+    private final int compressionThreshold;
+
+    private volatile FrameCompression frameCompression;
+
     public ProtocolNegotiatorClientRequest(RequestFormatType requestFormatType) {
+        this(requestFormatType, null, 0);
+    }
+
+    /**
+     * Negotiates the request format and, for a multiplexed format, frame
+     * compression with one of the given codecs (see {@link FrameCompression}).
+     * 
+     * @param requestFormatType The request format to propose
+     * @param compressionCodecs The codecs to propose in order of preference, or
+     *        null to not propose compression
+     * @param compressionThreshold The smallest frame payload the server should
+     *        compress
+     */
+    public ProtocolNegotiatorClientRequest(RequestFormatType requestFormatType,
+                                           List<String> compressionCodecs,
+                                           int compressionThreshold) {
         this.requestFormatType = requestFormatType;
+        this.compressionCodecs = compressionCodecs;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    private boolean isProposingCompression() {
+        return requestFormatType.isMultiplexed() && compressionCodecs != null
+               && !compressionCodecs.isEmpty();
+    }
+
+    /**
+     * Returns the frame compression the server agreed to, or null if there is
+     * none
+     */
+    public FrameCompression getFrameCompression() {
+        return frameCompression;
     }
 
     public boolean isCompleteResponse(ByteBuffer buffer) {
-        return buffer.remaining() == 2;
+        if(!isProposingCompression())
+            return buffer.remaining() == 2;
+
+        // Anything but "ok" is a two byte refusal, "ok" is followed by the
+        // codec
+        if(buffer.remaining() < 2)
+            return false;
+        if(buffer.get(buffer.position()) != 'o' || buffer.get(buffer.position() + 1) != 'k')
+            return buffer.remaining() == 2;
+        if(buffer.remaining() < 4)
+            return false;
+
+        int codecLength = buffer.getShort(buffer.position() + 2) & 0xffff;
+        return buffer.remaining() == 4 + codecLength;
     }
 
     @Override
     protected void formatRequestInternal(DataOutputStream outputStream) throws IOException {
-        outputStream.write(ByteUtils.getBytes(requestFormatType.getCode(), "UTF-8"));
+        if(isProposingCompression()) {
+            outputStream.write(ByteUtils.getBytes(FrameCompression.NEGOTIATION_CODE, "UTF-8"));
+            FrameCompression.writeProposal(outputStream, compressionCodecs, compressionThreshold);
+        } else {
+            outputStream.write(ByteUtils.getBytes(requestFormatType.getCode(), "UTF-8"));
+        }
     }
 
     @Override
@@ -48,8 +105,14 @@ public class ProtocolNegotiatorClientRequest extends AbstractClientRequest<Strin
         inputStream.readFully(responseBytes);
         String result = ByteUtils.getString(responseBytes, "UTF-8");
 
-        if(result.equals("ok"))
+        if(result.equals("ok")) {
+            if(isProposingCompression()) {
+                String codec = inputStream.readUTF();
+                if(codec.length() > 0)
+                    frameCompression = new FrameCompression(codec, compressionThreshold);
+            }
             return result;
+        }
 
         if(result.equals("no"))
             throw new VoldemortException(requestFormatType.getDisplayName()
@@ -166,6 +166,35 @@ public class StatTrackingStore extends DelegatingStore<ByteArray, byte[], byte[]
         }
     }
 
+    @Override
+    public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                     Map<ByteArray, byte[]> transforms)
+            throws VoldemortException {
+        long start = System.nanoTime();
+        try {
+            Map<ByteArray, VoldemortException> failures = super.putAll(entries, transforms);
+            for(VoldemortException e: failures.values())
+                stats.recordTime(e instanceof ObsoleteVersionException ? Tracked.OBSOLETE
+                                                                      : Tracked.EXCEPTION,
+                                 System.nanoTime() - start);
+            return failures;
+        } catch(VoldemortException e) {
+            stats.recordTime(Tracked.EXCEPTION, System.nanoTime() - start);
+            throw e;
+        } finally {
+            long totalValueBytes = 0;
+            long totalKeyBytes = 0;
+            for(Map.Entry<ByteArray, Versioned<byte[]>> entry: entries.entrySet()) {
+                totalKeyBytes += entry.getKey().length();
+                totalValueBytes += entry.getValue().getValue().length;
+            }
+            stats.recordPutAllTimeAndSize(System.nanoTime() - start,
+                                          entries.size(),
+                                          totalValueBytes,
+                                          totalKeyBytes);
+        }
+    }
+
     @Override
     public Object getCapability(StoreCapabilityType capability) {
         if(StoreCapabilityType.STAT_TRACKER.equals(capability))
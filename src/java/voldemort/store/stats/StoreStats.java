@@ -80,6 +80,17 @@ public class StoreStats {
         recordTime(Tracked.PUT, timeNS, 0, valueSize, keySize, 0);
     }
 
+    /**
+     * Record the duration of a put_all operation, along with how many values
+     * were written and the size of the values and keys.
+     */
+    public void recordPutAllTimeAndSize(long timeNS,
+                                        int numValues,
+                                        long totalValueBytes,
+                                        long totalKeyBytes) {
+        recordTime(Tracked.PUT_ALL, timeNS, 0, totalValueBytes, totalKeyBytes, numValues);
+    }
+
     /**
      * Record the duration of a get operation, along with whether or not an
      * empty response (ie no values matched) and the size of the values
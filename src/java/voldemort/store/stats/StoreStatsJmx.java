@@ -104,6 +104,21 @@ public class StoreStatsJmx {
         return stats.getThroughputInBytes(Tracked.PUT);
     }
 
+    @JmxGetter(name = "numberOfCallsToPutAll", description = "The number of calls to PUT_ALL since the last reset.")
+    public long getNumberOfCallsToPutAll() {
+        return stats.getCount(Tracked.PUT_ALL);
+    }
+
+    @JmxGetter(name = "averagePutAllCompletionTimeInMs", description = "The avg. time in ms for PUT_ALL calls to complete.")
+    public double getAveragePutAllCompletionTimeInMs() {
+        return stats.getAvgTimeInMs(Tracked.PUT_ALL);
+    }
+
+    @JmxGetter(name = "PutAllThroughputInBytes", description = "Throughput of PUT_ALL requests in bytes.")
+    public float getPutAllThroughputInBytes() {
+        return stats.getThroughputInBytes(Tracked.PUT_ALL);
+    }
+
     @JmxGetter(name = "numberOfCallsToDelete", description = "The number of calls to DELETE since the last reset.")
     public long getNumberOfCallsToDelete() {
         return stats.getCount(Tracked.DELETE);
@@ -137,7 +152,8 @@ public class StoreStatsJmx {
                                            Tracked.GET,
                                            Tracked.GET_VERSIONS,
                                            Tracked.GET_ALL,
-                                           Tracked.PUT)) {
+                                           Tracked.PUT,
+                                           Tracked.PUT_ALL)) {
             sum += stats.getCount(stat);
             weightedTime += stats.getCount(stat) * stats.getAvgTimeInMs(stat);
         }
@@ -151,14 +167,15 @@ public class StoreStatsJmx {
     public double getOperationThroughput() {
         return stats.getThroughput(Tracked.DELETE) + stats.getThroughput(Tracked.GET)
                + stats.getThroughput(Tracked.GET_VERSIONS) + stats.getThroughput(Tracked.GET_ALL)
-               + stats.getThroughput(Tracked.PUT);
+               + stats.getThroughput(Tracked.PUT) + stats.getThroughput(Tracked.PUT_ALL);
     }
 
     @JmxGetter(name = "AllOperationThroughputInBytes", description = "Throughput of all operations in bytes.")
     public double getOperationThroghputInBytes() {
         return stats.getThroughputInBytes(Tracked.GET)
                + stats.getThroughputInBytes(Tracked.GET_ALL)
-               + stats.getThroughputInBytes(Tracked.PUT);
+               + stats.getThroughputInBytes(Tracked.PUT)
+               + stats.getThroughputInBytes(Tracked.PUT_ALL);
     }
 
     @JmxGetter(name = "percentGetReturningEmptyResponse", description = "The percentage of calls to GET for which no value was found.")
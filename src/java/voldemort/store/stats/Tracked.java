@@ -5,6 +5,7 @@ public enum Tracked {
     GET_VERSIONS("getVersions"),
     GET_ALL("getAll"),
     PUT("put"),
+    PUT_ALL("putAll"),
     DELETE("delete"),
     EXCEPTION("exception"),
     OBSOLETE("obsolete");
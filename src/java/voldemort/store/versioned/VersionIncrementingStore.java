@@ -16,6 +16,8 @@
 
 package voldemort.store.versioned;
 
+import java.util.Map;
+
 import voldemort.VoldemortException;
 import voldemort.store.DelegatingStore;
 import voldemort.store.Store;
@@ -24,6 +26,8 @@ import voldemort.utils.Time;
 import voldemort.versioning.VectorClock;
 import voldemort.versioning.Versioned;
 
+import com.google.common.collect.Maps;
+
 /**
  * A wrapper that increments the version on the value for puts and delegates all
  * other operations
@@ -52,6 +56,19 @@ public class VersionIncrementingStore<K, V, T> extends DelegatingStore<K, V, T>
         super.put(key, value, transforms);
     }
 
+    @Override
+    public Map<K, VoldemortException> putAll(Map<K, Versioned<V>> entries, Map<K, T> transforms)
+            throws VoldemortException {
+        Map<K, Versioned<V>> incremented = Maps.newHashMapWithExpectedSize(entries.size());
+        long now = time.getMilliseconds();
+        for(Map.Entry<K, Versioned<V>> entry: entries.entrySet()) {
+            Versioned<V> value = entry.getValue().cloneVersioned();
+            ((VectorClock) value.getVersion()).incrementVersion(nodeId, now);
+            incremented.put(entry.getKey(), value);
+        }
+        return super.putAll(incremented, transforms);
+    }
+
     @Override
     public Object getCapability(StoreCapabilityType capability) {
         if(StoreCapabilityType.VERSION_INCREMENTING.equals(capability))
@@ -41,6 +41,22 @@ public class FnvHashFunction implements HashFunction {
         return (int) hash;
     }
 
+    /**
+     * The hash of a key with its bits spread by the murmur3 finalizer, so that
+     * both its top and bottom bits depend on every byte of the key. Tables
+     * which pick a segment with the top bits of a hash and a slot with the
+     * bottom ones use it.
+     */
+    public int spreadHash(byte[] key) {
+        int hash = hash(key);
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
     public long hash64(long val) {
         long hashval = FNV_BASIS_64;
 
@@ -16,25 +16,29 @@
 
 package voldemort.versioning;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
 import java.util.TreeMap;
 
 import voldemort.annotations.concurrency.NotThreadsafe;
 import voldemort.utils.ByteUtils;
-import voldemort.utils.Utils;
-
-import com.google.common.collect.Maps;
 
 /**
  * A vector of the number of writes mastered by each node. The vector is stored
  * sparely, since, in general, writes will be mastered by only one node. This
  * means implicitly all the versions are at zero, but we only actually store
  * those greater than zero.
+ * <p>
+ * The entries are kept in two parallel arrays of primitives sorted by node id,
+ * which avoids boxing and lets comparisons and merges walk both clocks in a
+ * single pass.
  * 
  * 
  */
@@ -45,8 +49,20 @@ public class VectorClock implements Version, Serializable {
 
     private static final int MAX_NUMBER_OF_VERSIONS = Short.MAX_VALUE;
 
-    /* A map of versions keyed by nodeId */
-    private final TreeMap<Short, Long> versionMap;
+    private static final short[] NO_NODE_IDS = new short[0];
+    private static final long[] NO_VERSIONS = new long[0];
+
+    /*
+     * Clocks used to be serialized with a TreeMap of the versions, keep that
+     * form for compatibility
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("versionMap", TreeMap.class),
+            new ObjectStreamField("timestamp", Long.TYPE) };
+
+    /* The node ids, sorted, and their versions */
+    private short[] nodeIds;
+    private long[] versions;
 
     /*
      * The time of the last update on the server on which the update was
@@ -61,12 +77,20 @@ public class VectorClock implements Version, Serializable {
         this(System.currentTimeMillis());
     }
 
+    /**
+     * @return A copy of the versions of the clock, keyed by node id. Changes to
+     *         the map are not reflected in the clock.
+     */
     public TreeMap<Short, Long> getVersionMap() {
+        TreeMap<Short, Long> versionMap = new TreeMap<Short, Long>();
+        for(int i = 0; i < nodeIds.length; i++)
+            versionMap.put(nodeIds[i], versions[i]);
         return versionMap;
     }
 
     public VectorClock(long timestamp) {
-        this.versionMap = new TreeMap<Short, Long>();
+        this.nodeIds = NO_NODE_IDS;
+        this.versions = NO_VERSIONS;
         this.timestamp = timestamp;
     }
 
@@ -77,21 +101,22 @@ public class VectorClock implements Version, Serializable {
      */
     @Deprecated
     public VectorClock(List<ClockEntry> versions, long timestamp) {
-        this.versionMap = new TreeMap<Short, Long>();
-        this.timestamp = timestamp;
+        this(timestamp);
         for(ClockEntry clockEntry: versions) {
-            this.versionMap.put(clockEntry.getNodeId(), clockEntry.getVersion());
+            put(clockEntry.getNodeId(), clockEntry.getVersion());
         }
     }
 
     /**
      * Only used for cloning
      * 
-     * @param versionMap
+     * @param nodeIds
+     * @param versions
      * @param timestamp
      */
-    private VectorClock(TreeMap<Short, Long> versionMap, long timestamp) {
-        this.versionMap = Utils.notNull(versionMap);
+    private VectorClock(short[] nodeIds, long[] versions, long timestamp) {
+        this.nodeIds = nodeIds;
+        this.versions = versions;
         this.timestamp = timestamp;
     }
 
@@ -125,15 +150,28 @@ public class VectorClock implements Version, Serializable {
             throw new IllegalArgumentException("Too few bytes: expected at least " + minimumBytes
                                                + " but found only " + bytes.length + ".");
 
-        this.versionMap = new TreeMap<Short, Long>();
+        this.nodeIds = numEntries > 0 ? new short[numEntries] : NO_NODE_IDS;
+        this.versions = numEntries > 0 ? new long[numEntries] : NO_VERSIONS;
+        boolean sorted = true;
         int index = 3 + offset;
         for(int i = 0; i < numEntries; i++) {
-            short nodeId = ByteUtils.readShort(bytes, index);
-            long version = ByteUtils.readBytes(bytes, index + ByteUtils.SIZE_OF_SHORT, versionSize);
-            this.versionMap.put(nodeId, version);
+            nodeIds[i] = ByteUtils.readShort(bytes, index);
+            versions[i] = ByteUtils.readBytes(bytes, index + ByteUtils.SIZE_OF_SHORT, versionSize);
+            if(i > 0 && nodeIds[i] <= nodeIds[i - 1])
+                sorted = false;
             index += entrySize;
         }
         this.timestamp = ByteUtils.readLong(bytes, index);
+
+        if(!sorted) {
+            // written by a client which did not keep the entries sorted
+            short[] unsortedNodeIds = nodeIds;
+            long[] unsortedVersions = versions;
+            this.nodeIds = NO_NODE_IDS;
+            this.versions = NO_VERSIONS;
+            for(int i = 0; i < unsortedNodeIds.length; i++)
+                put(unsortedNodeIds[i], unsortedVersions[i]);
+        }
     }
 
     public byte[] toBytes() {
@@ -144,7 +182,7 @@ public class VectorClock implements Version, Serializable {
 
     public int toBytes(byte[] buf, int offset) {
         // write the number of versions
-        ByteUtils.writeShort(buf, (short) versionMap.size(), offset);
+        ByteUtils.writeShort(buf, (short) nodeIds.length, offset);
         offset += ByteUtils.SIZE_OF_SHORT;
         // write the size of each version in bytes
         byte versionSize = ByteUtils.numberOfBytesRequired(getMaxVersion());
@@ -152,11 +190,9 @@ public class VectorClock implements Version, Serializable {
         offset++;
 
         int clockEntrySize = ByteUtils.SIZE_OF_SHORT + versionSize;
-        SortedSet<Short> nodeIds = versionMap.navigableKeySet();
-        for(Short nodeId: nodeIds) {
-            Long version = versionMap.get(nodeId);
-            ByteUtils.writeShort(buf, nodeId, offset);
-            ByteUtils.writeBytes(buf, version, offset + ByteUtils.SIZE_OF_SHORT, versionSize);
+        for(int i = 0; i < nodeIds.length; i++) {
+            ByteUtils.writeShort(buf, nodeIds[i], offset);
+            ByteUtils.writeBytes(buf, versions[i], offset + ByteUtils.SIZE_OF_SHORT, versionSize);
             offset += clockEntrySize;
         }
         ByteUtils.writeLong(buf, this.timestamp, offset);
@@ -165,7 +201,7 @@ public class VectorClock implements Version, Serializable {
 
     public int sizeInBytes() {
         byte versionSize = ByteUtils.numberOfBytesRequired(getMaxVersion());
-        return ByteUtils.SIZE_OF_SHORT + 1 + this.versionMap.size()
+        return ByteUtils.SIZE_OF_SHORT + 1 + this.nodeIds.length
                * (ByteUtils.SIZE_OF_SHORT + versionSize) + ByteUtils.SIZE_OF_LONG;
     }
 
@@ -181,15 +217,13 @@ public class VectorClock implements Version, Serializable {
 
         this.timestamp = time;
 
-        Long version = versionMap.get((short) node);
-        if(version == null) {
-            version = 1L;
-        } else {
-            version = version + 1L;
-        }
+        int index = indexOf((short) node);
+        if(index >= 0)
+            versions[index]++;
+        else
+            insert(-(index + 1), (short) node, 1L);
 
-        versionMap.put((short) node, version);
-        if(versionMap.size() >= MAX_NUMBER_OF_VERSIONS) {
+        if(nodeIds.length >= MAX_NUMBER_OF_VERSIONS) {
             throw new IllegalStateException("Vector clock is full!");
         }
 
@@ -210,7 +244,9 @@ public class VectorClock implements Version, Serializable {
 
     @Override
     public VectorClock clone() {
-        return new VectorClock(Maps.newTreeMap(versionMap), this.timestamp);
+        // the arrays are copied on insertion, so only the versions, which are
+        // incremented in place, need copying
+        return new VectorClock(nodeIds, versions.length == 0 ? versions : versions.clone(), timestamp);
     }
 
     @Override
@@ -222,27 +258,32 @@ public class VectorClock implements Version, Serializable {
         if(!object.getClass().equals(VectorClock.class))
             return false;
         VectorClock clock = (VectorClock) object;
-        return versionMap.equals(clock.versionMap);
+        if(nodeIds.length != clock.nodeIds.length)
+            return false;
+        for(int i = 0; i < nodeIds.length; i++)
+            if(nodeIds[i] != clock.nodeIds[i] || versions[i] != clock.versions[i])
+                return false;
+        return true;
     }
 
     @Override
     public int hashCode() {
-        return versionMap.hashCode();
+        // same as the hash code of the map of versions
+        int hashCode = 0;
+        for(int i = 0; i < nodeIds.length; i++)
+            hashCode += nodeIds[i] ^ (int) (versions[i] ^ (versions[i] >>> 32));
+        return hashCode;
     }
 
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
         builder.append("version(");
-        int versionsLeft = versionMap.size();
-        for(Map.Entry<Short, Long> entry: versionMap.entrySet()) {
-            versionsLeft--;
-            Short node = entry.getKey();
-            Long version = entry.getValue();
-            builder.append(node + ":" + version);
-            if(versionsLeft > 0) {
+        for(int i = 0; i < nodeIds.length; i++) {
+            if(i > 0) {
                 builder.append(", ");
             }
+            builder.append(nodeIds[i]).append(':').append(versions[i]);
         }
         builder.append(")");
         builder.append(" ts:" + timestamp);
@@ -251,26 +292,37 @@ public class VectorClock implements Version, Serializable {
 
     public long getMaxVersion() {
         long max = -1;
-        for(Long version: versionMap.values())
-            max = Math.max(version, max);
+        for(int i = 0; i < versions.length; i++)
+            max = Math.max(versions[i], max);
         return max;
     }
 
     public VectorClock merge(VectorClock clock) {
-        VectorClock newClock = new VectorClock();
-        for(Map.Entry<Short, Long> entry: this.versionMap.entrySet()) {
-            newClock.versionMap.put(entry.getKey(), entry.getValue());
-        }
-        for(Map.Entry<Short, Long> entry: clock.versionMap.entrySet()) {
-            Long version = newClock.versionMap.get(entry.getKey());
-            if(version == null) {
-                newClock.versionMap.put(entry.getKey(), entry.getValue());
+        short[] mergedNodeIds = new short[nodeIds.length + clock.nodeIds.length];
+        long[] mergedVersions = new long[mergedNodeIds.length];
+        int i = 0, j = 0, size = 0;
+        while(i < nodeIds.length || j < clock.nodeIds.length) {
+            if(j == clock.nodeIds.length
+               || (i < nodeIds.length && nodeIds[i] < clock.nodeIds[j])) {
+                mergedNodeIds[size] = nodeIds[i];
+                mergedVersions[size++] = versions[i++];
+            } else if(i == nodeIds.length || clock.nodeIds[j] < nodeIds[i]) {
+                mergedNodeIds[size] = clock.nodeIds[j];
+                mergedVersions[size++] = clock.versions[j++];
             } else {
-                newClock.versionMap.put(entry.getKey(), Math.max(version, entry.getValue()));
+                mergedNodeIds[size] = nodeIds[i];
+                mergedVersions[size++] = Math.max(versions[i++], clock.versions[j++]);
             }
         }
-
-        return newClock;
+        if(size < mergedNodeIds.length) {
+            short[] trimmedNodeIds = new short[size];
+            long[] trimmedVersions = new long[size];
+            System.arraycopy(mergedNodeIds, 0, trimmedNodeIds, 0, size);
+            System.arraycopy(mergedVersions, 0, trimmedVersions, 0, size);
+            mergedNodeIds = trimmedNodeIds;
+            mergedVersions = trimmedVersions;
+        }
+        return new VectorClock(mergedNodeIds, mergedVersions, System.currentTimeMillis());
     }
 
     @Override
@@ -287,9 +339,9 @@ public class VectorClock implements Version, Serializable {
 
     @Deprecated
     public List<ClockEntry> getEntries() {
-        List<ClockEntry> clocks = new ArrayList<ClockEntry>(versionMap.size());
-        for(Map.Entry<Short, Long> entry: versionMap.entrySet()) {
-            clocks.add(new ClockEntry(entry.getKey(), entry.getValue()));
+        List<ClockEntry> clocks = new ArrayList<ClockEntry>(nodeIds.length);
+        for(int i = 0; i < nodeIds.length; i++) {
+            clocks.add(new ClockEntry(nodeIds[i], versions[i]));
         }
         return Collections.unmodifiableList(clocks);
     }
@@ -302,10 +354,83 @@ public class VectorClock implements Version, Serializable {
      *        copied.
      */
     public void copyFromVectorClock(VectorClock vc) {
-        this.versionMap.clear();
         this.timestamp = vc.getTimestamp();
-        for(ClockEntry clockEntry: vc.getEntries()) {
-            this.versionMap.put(clockEntry.getNodeId(), clockEntry.getVersion());
+        this.nodeIds = vc.nodeIds;
+        this.versions = vc.versions.length == 0 ? vc.versions : vc.versions.clone();
+    }
+
+    /*
+     * Accessors for VectorClockUtils, which walks the sorted entries of two
+     * clocks
+     */
+    short[] getNodeIds() {
+        return nodeIds;
+    }
+
+    long[] getVersions() {
+        return versions;
+    }
+
+    private int indexOf(short nodeId) {
+        int low = 0, high = nodeIds.length - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            if(nodeIds[middle] < nodeId)
+                low = middle + 1;
+            else if(nodeIds[middle] > nodeId)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -(low + 1);
+    }
+
+    /*
+     * Sets the version of a node, keeping the entries sorted
+     */
+    private void put(short nodeId, long version) {
+        int index = indexOf(nodeId);
+        if(index >= 0) {
+            versions[index] = version;
+        } else {
+            insert(-(index + 1), nodeId, version);
+        }
+    }
+
+    /*
+     * Inserts a new node in copies of the arrays, so that clones may share
+     * the arrays of node ids
+     */
+    private void insert(int index, short nodeId, long version) {
+        short[] newNodeIds = new short[nodeIds.length + 1];
+        long[] newVersions = new long[versions.length + 1];
+        System.arraycopy(nodeIds, 0, newNodeIds, 0, index);
+        System.arraycopy(versions, 0, newVersions, 0, index);
+        newNodeIds[index] = nodeId;
+        newVersions[index] = version;
+        System.arraycopy(nodeIds, index, newNodeIds, index + 1, nodeIds.length - index);
+        System.arraycopy(versions, index, newVersions, index + 1, versions.length - index);
+        nodeIds = newNodeIds;
+        versions = newVersions;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("versionMap", getVersionMap());
+        fields.put("timestamp", timestamp);
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        TreeMap<Short, Long> versionMap = (TreeMap<Short, Long>) fields.get("versionMap", null);
+        this.nodeIds = NO_NODE_IDS;
+        this.versions = NO_VERSIONS;
+        this.timestamp = fields.get("timestamp", 0L);
+        if(versionMap != null) {
+            for(Map.Entry<Short, Long> entry: versionMap.entrySet())
+                put(entry.getKey(), entry.getValue());
         }
     }
 }
@@ -18,9 +18,6 @@ package voldemort.versioning;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.SortedSet;
-
-import com.google.common.collect.Sets;
 
 public class VectorClockUtils {
 
@@ -43,35 +40,39 @@ public class VectorClockUtils {
         boolean v1Bigger = false;
         boolean v2Bigger = false;
 
-        SortedSet<Short> v1Nodes = v1.getVersionMap().navigableKeySet();
-        SortedSet<Short> v2Nodes = v2.getVersionMap().navigableKeySet();
-        // get clocks(nodeIds) that both v1 and v2 has
-        SortedSet<Short> commonNodes = Sets.newTreeSet(v1Nodes);
-        commonNodes.retainAll(v2Nodes);
-        // if v1 has more nodes than common nodes
-        // v1 has clocks that v2 does not
-        if(v1Nodes.size() > commonNodes.size()) {
-            v1Bigger = true;
-        }
-        // if v2 has more nodes than common nodes
-        // v2 has clocks that v1 does not
-        if(v2Nodes.size() > commonNodes.size()) {
-            v2Bigger = true;
-        }
-        // compare the common parts
-        for(Short nodeId: commonNodes) {
+        // walk the entries of both clocks, which are sorted by node id
+        short[] v1Nodes = v1.getNodeIds(), v2Nodes = v2.getNodeIds();
+        long[] v1Versions = v1.getVersions(), v2Versions = v2.getVersions();
+        int i = 0, j = 0;
+        while(i < v1Nodes.length && j < v2Nodes.length) {
             // no need to compare more
             if(v1Bigger && v2Bigger) {
                 break;
             }
-            long v1Version = v1.getVersionMap().get(nodeId);
-            long v2Version = v2.getVersionMap().get(nodeId);
-            if(v1Version > v2Version) {
+            if(v1Nodes[i] == v2Nodes[j]) {
+                if(v1Versions[i] > v2Versions[j]) {
+                    v1Bigger = true;
+                } else if(v1Versions[i] < v2Versions[j]) {
+                    v2Bigger = true;
+                }
+                i++;
+                j++;
+            } else if(v1Nodes[i] < v2Nodes[j]) {
+                // v1 has a clock that v2 does not
                 v1Bigger = true;
-            } else if(v1Version < v2Version) {
+                i++;
+            } else {
+                // v2 has a clock that v1 does not
                 v2Bigger = true;
+                j++;
             }
         }
+        if(i < v1Nodes.length) {
+            v1Bigger = true;
+        }
+        if(j < v2Nodes.length) {
+            v2Bigger = true;
+        }
 
         /*
          * This is the case where they are equal. Consciously return BEFORE, so
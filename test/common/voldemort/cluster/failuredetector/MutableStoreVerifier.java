@@ -107,6 +107,13 @@ public class MutableStoreVerifier extends BasicStoreVerifier<ByteArray, byte[],
             public void put(ByteArray key, Versioned<byte[]> value, byte[] transforms)
                     throws VoldemortException {}
 
+            @Override
+            public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                             Map<ByteArray, byte[]> transforms)
+                    throws VoldemortException {
+                return new HashMap<ByteArray, VoldemortException>();
+            }
+
             @Override
             public List<Versioned<byte[]>> get(CompositeVoldemortRequest<ByteArray, byte[]> request)
                     throws VoldemortException {
@@ -53,6 +53,19 @@ public class ForceFailStore<K, V, T> extends DelegatingStore<K, V, T> {
         getInnerStore().put(key, value, transform);
     }
 
+    @Override
+    public Map<K, VoldemortException> putAll(Map<K, Versioned<V>> entries, Map<K, T> transforms)
+            throws VoldemortException {
+        if(fail) {
+            if(logger.isDebugEnabled()) {
+                logger.debug("PUTALL was forced to fail");
+            }
+            throw e;
+        }
+
+        return getInnerStore().putAll(entries, transforms);
+    }
+
     @Override
     public boolean delete(K key, Version version) throws VoldemortException {
         if(fail) {
@@ -77,4 +77,15 @@ public class SleepyStore<K, V, T> extends DelegatingStore<K, V, T> {
         }
     }
 
+    @Override
+    public Map<K, VoldemortException> putAll(Map<K, Versioned<V>> entries, Map<K, T> transforms)
+            throws VoldemortException {
+        try {
+            Thread.sleep(sleepTimeMs);
+            return getInnerStore().putAll(entries, transforms);
+        } catch(InterruptedException e) {
+            throw new VoldemortException(e);
+        }
+    }
+
 }
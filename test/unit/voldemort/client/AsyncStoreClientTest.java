@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import voldemort.ServerTestUtils;
+import voldemort.cluster.Node;
+import voldemort.serialization.StringSerializer;
+import voldemort.server.VoldemortServer;
+import voldemort.store.FailingStore;
+import voldemort.store.InvalidMetadataException;
+import voldemort.store.compress.NoopCompressionStrategy;
+import voldemort.store.nonblockingstore.NonblockingStore;
+import voldemort.store.nonblockingstore.ThreadPoolBasedNonblockingStoreImpl;
+import voldemort.store.socket.SocketStoreFactory;
+import voldemort.store.socket.clientrequest.ClientRequestExecutorPool;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.VectorClockInconsistencyResolver;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests of the {@link AsyncStoreClient} against a two node cluster
+ *
+ */
+public class AsyncStoreClientTest {
+
+    private static final String STORE_NAME = "test-basic-replication-memory";
+    private static final String STORES_XML = "test/common/voldemort/config/stores.xml";
+
+    private SocketStoreFactory socketStoreFactory = new ClientRequestExecutorPool(2,
+                                                                                  10000,
+                                                                                  100000,
+                                                                                  32 * 1024);
+    private VoldemortServer[] servers;
+    private SocketStoreClientFactory storeClientFactory;
+    private AsyncStoreClient<String, String> client;
+
+    @Before
+    public void setUp() throws Exception {
+        servers = new VoldemortServer[2];
+        int partitionMap[][] = { { 0, 1, 2, 3 }, { 4, 5, 6, 7 } };
+        ServerTestUtils.startVoldemortCluster(2,
+                                              servers,
+                                              partitionMap,
+                                              socketStoreFactory,
+                                              true,
+                                              null,
+                                              STORES_XML,
+                                              new Properties());
+
+        Node node = servers[0].getIdentityNode();
+        storeClientFactory = new SocketStoreClientFactory(new ClientConfig().setBootstrapUrls("tcp://"
+                                                                                              + node.getHost()
+                                                                                              + ":"
+                                                                                              + node.getSocketPort()));
+        client = storeClientFactory.getAsyncStoreClient(STORE_NAME);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeClientFactory.close();
+        for(VoldemortServer server: servers)
+            ServerTestUtils.stopVoldemortServer(server);
+        socketStoreFactory.close();
+    }
+
+    private static <T> T await(ListenableFuture<T> future) throws Exception {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testGetPutDelete() throws Exception {
+        assertNull(await(client.get("missing")));
+
+        Version version = await(client.put("key", "value"));
+        Versioned<String> found = await(client.get("key"));
+        assertEquals("value", found.getValue());
+        assertEquals(version, found.getVersion());
+
+        await(client.put("key", "other"));
+        assertEquals("other", await(client.get("key")).getValue());
+
+        assertTrue(await(client.delete("key")));
+        assertNull(await(client.get("key")));
+        assertFalse(await(client.delete("key")));
+    }
+
+    @Test
+    public void testReplicated() throws Exception {
+        await(client.put("key", "value"));
+
+        // both replicas got the write, read each one through the blocking client
+        StoreClient<String, String> blockingClient = storeClientFactory.getStoreClient(STORE_NAME);
+        assertEquals("value", blockingClient.getValue("key"));
+        ServerTestUtils.stopVoldemortServer(servers[0]);
+        assertEquals("value", await(client.get("key")).getValue());
+    }
+
+    @Test
+    public void testObsoleteVersion() throws Exception {
+        await(client.put("key", "value"));
+        Versioned<String> stale = await(client.get("key"));
+        await(client.put("key", "newer"));
+
+        stale.setObject("stale");
+        try {
+            await(client.put("key", stale));
+            fail("Obsolete put should fail");
+        } catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof ObsoleteVersionException);
+        }
+        assertEquals("newer", await(client.get("key")).getValue());
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        List<String> keys = new ArrayList<String>();
+        List<ListenableFuture<Version>> puts = new ArrayList<ListenableFuture<Version>>();
+        for(int i = 0; i < 200; i++) {
+            keys.add("key" + i);
+            puts.add(client.put("key" + i, "value" + i));
+        }
+        for(ListenableFuture<Version> put: puts)
+            await(put);
+
+        List<ListenableFuture<Versioned<String>>> gets = new ArrayList<ListenableFuture<Versioned<String>>>();
+        for(String key: keys)
+            gets.add(client.get(key));
+        for(int i = 0; i < keys.size(); i++)
+            assertEquals("value" + i, await(gets.get(i)).getValue());
+
+        keys.add("missing");
+        Map<String, Versioned<String>> found = await(client.getAll(keys));
+        assertEquals(200, found.size());
+        for(int i = 0; i < 200; i++)
+            assertEquals("value" + i, found.get("key" + i).getValue());
+    }
+
+    @Test
+    public void testNodeDown() throws Exception {
+        ServerTestUtils.stopVoldemortServer(servers[0]);
+
+        await(client.put("key", "value"));
+        assertEquals("value", await(client.get("key")).getValue());
+        assertEquals(1, await(client.getAll(Arrays.asList("key", "missing"))).size());
+        assertTrue(await(client.delete("key")));
+    }
+
+    @Test
+    public void testRebootstrapOnInvalidMetadata() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // routed by metadata the servers no longer accept
+            NonblockingStore outdated = new ThreadPoolBasedNonblockingStoreImpl(executor,
+                                                                                new FailingStore<ByteArray, byte[], byte[]>(STORE_NAME,
+                                                                                                                            new InvalidMetadataException("Outdated")));
+            AsyncStoreClient<String, String> outdatedClient = new DefaultAsyncStoreClient<String, String>(STORE_NAME,
+                                                                                                          outdated,
+                                                                                                          storeClientFactory,
+                                                                                                          3,
+                                                                                                          new StringSerializer(),
+                                                                                                          new StringSerializer(),
+                                                                                                          new NoopCompressionStrategy(),
+                                                                                                          new NoopCompressionStrategy(),
+                                                                                                          new VectorClockInconsistencyResolver<String>(),
+                                                                                                          new TimeoutConfig(10000),
+                                                                                                          executor);
+            await(outdatedClient.put("key", "value"));
+            assertEquals("value", await(outdatedClient.get("key")).getValue());
+            assertEquals("value", await(client.get("key")).getValue());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
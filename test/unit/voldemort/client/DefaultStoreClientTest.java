@@ -17,6 +17,7 @@
 package voldemort.client;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.junit.Before;
@@ -172,4 +173,19 @@ public class DefaultStoreClientTest {
         assertNotNull(client.get("k").getVersion());
         assertEquals(0, result.size());
     }
+
+    @Test
+    public void testPutAll() {
+        client.put("k", "v");
+
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put("k", "v2");
+        entries.put("l", "m");
+        assertEquals(0, client.putAll(entries).size());
+
+        Map<String, Versioned<String>> result = client.getAll(Arrays.asList("k", "l"));
+        assertEquals(2, result.size());
+        assertEquals("v2", result.get("k").getValue());
+        assertEquals("m", result.get("l").getValue());
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.common.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.commons.lang.mutable.MutableLong;
+import org.junit.Test;
+
+import voldemort.TestUtils;
+
+/**
+ * Tests for the gathering writes of {@link ByteBufferBackedOutputStream}
+ * 
+ */
+public class ByteBufferBackedOutputStreamTest {
+
+    @Test
+    public void testSmallWritesAreCopied() throws Exception {
+        ByteBufferBackedOutputStream outputStream = new ByteBufferBackedOutputStream(ByteBuffer.allocate(16),
+                                                                                     new MutableLong(0));
+        outputStream.setGatherThreshold(8);
+        outputStream.writeShared(new byte[] { 1, 2, 3 }, 0, 3);
+        assertFalse(outputStream.hasReferences());
+        assertEquals(3, outputStream.getBuffer().position());
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        ByteBufferBackedOutputStream outputStream = new ByteBufferBackedOutputStream(ByteBuffer.allocate(16),
+                                                                                     new MutableLong(0));
+        outputStream.writeShared(new byte[100], 0, 100);
+        assertFalse(outputStream.hasReferences());
+        assertTrue(outputStream.wasExpanded());
+    }
+
+    @Test
+    public void testGatheringWrite() throws Exception {
+        ByteBufferBackedOutputStream outputStream = new ByteBufferBackedOutputStream(ByteBuffer.allocate(64),
+                                                                                     new MutableLong(0));
+        outputStream.setGatherThreshold(32);
+        ByteBufferBackedDataOutputStream dataOutputStream = new ByteBufferBackedDataOutputStream(outputStream);
+
+        byte[] first = TestUtils.randomBytes(1000);
+        byte[] second = TestUtils.randomBytes(40);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        dataOutputStream.writeInt(first.length);
+        dataOutputStream.writeShared(first);
+        // two references back to back
+        dataOutputStream.writeShared(second);
+        dataOutputStream.writeShort(7);
+        assertEquals(4 + 1000 + 40 + 2, dataOutputStream.size());
+        assertTrue(outputStream.hasReferences());
+        assertFalse(outputStream.wasExpanded());
+        assertEquals(6, outputStream.getBuffer().position());
+
+        expected.write(new byte[] { 0, 0, 3, (byte) 232 });
+        expected.write(first);
+        expected.write(second);
+        expected.write(new byte[] { 0, 7 });
+
+        outputStream.getBuffer().flip();
+        assertEquals(4, outputStream.getGatheringBuffers().length);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(actual);
+        while(outputStream.hasRemaining()) {
+            for(ByteBuffer buffer: outputStream.getGatheringBuffers()) {
+                if(buffer.hasRemaining()) {
+                    // write a bit at a time to exercise partial writes
+                    ByteBuffer part = buffer.duplicate();
+                    part.limit(Math.min(buffer.limit(), buffer.position() + 100));
+                    buffer.position(buffer.position() + channel.write(part));
+                    break;
+                }
+            }
+        }
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+        outputStream.clearReferences();
+        assertFalse(outputStream.hasReferences());
+        outputStream.getBuffer().clear();
+        assertTrue(outputStream.hasRemaining());
+    }
+}
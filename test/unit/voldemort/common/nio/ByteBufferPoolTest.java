@@ -0,0 +1,219 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.common.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.mutable.MutableLong;
+import org.junit.Test;
+
+import voldemort.ServerTestUtils;
+import voldemort.TestUtils;
+import voldemort.VoldemortTestConstants;
+import voldemort.client.protocol.RequestFormatType;
+import voldemort.server.niosocket.NioSocketService;
+import voldemort.store.Store;
+import voldemort.store.socket.clientrequest.ClientRequestExecutorPool;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.Versioned;
+
+/**
+ * Tests for {@link ByteBufferPool} and the pooled socket buffers
+ * 
+ */
+public class ByteBufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        ByteBufferPool pool = new ByteBufferPool(1000, 8000, 1024 * 1024);
+        assertEquals(1024, pool.getMinBufferSize());
+        assertEquals(8192, pool.getMaxBufferSize());
+
+        ByteBuffer small = pool.acquire(10);
+        assertTrue(small.isDirect());
+        assertEquals(1024, small.capacity());
+        assertEquals(2048, pool.acquire(1025).capacity());
+        assertEquals(8192, pool.acquire(8192).capacity());
+
+        // too large to pool
+        ByteBuffer large = pool.acquire(8193);
+        assertFalse(large.isDirect());
+        assertEquals(8193, large.capacity());
+        assertEquals(1, pool.getNumUnpooled());
+        assertEquals(3, pool.getNumMisses());
+        assertEquals(1024 + 2048 + 8192, pool.getOutstandingBytes());
+    }
+
+    @Test
+    public void testReuse() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 8192, 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(2000);
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        assertEquals(2048, pool.getPooledBytes());
+        assertEquals(0, pool.getOutstandingBytes());
+
+        ByteBuffer reused = pool.acquire(1500);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertEquals(1, pool.getNumHits());
+        assertEquals(0, pool.getPooledBytes());
+
+        // heap buffers are not pooled
+        pool.release(ByteBuffer.allocate(2048));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 8192, 3000);
+        ByteBuffer first = pool.acquire(2048);
+        ByteBuffer second = pool.acquire(2048);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(2048, pool.getPooledBytes());
+        assertEquals(1, pool.getNumDiscarded());
+    }
+
+    @Test
+    public void testExpand() {
+        ByteBufferPool pool = new ByteBufferPool(1024, 8192, 1024 * 1024);
+        ByteBuffer buffer = pool.acquire(1024);
+        buffer.put(new byte[] { 1, 2, 3 });
+        ByteBuffer expanded = pool.expand(buffer, 4096);
+        assertEquals(4096, expanded.capacity());
+        assertEquals(3, expanded.position());
+        expanded.flip();
+        byte[] contents = new byte[3];
+        expanded.get(contents);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, contents);
+    }
+
+    @Test
+    public void testStreamsReturnBuffers() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(1024, 8192, 1024 * 1024);
+        MutableLong sizeTracker = new MutableLong(0);
+        ByteBufferBackedOutputStream outputStream = new ByteBufferBackedOutputStream(pool.acquire(1024),
+                                                                                     sizeTracker,
+                                                                                     pool);
+        outputStream.write(new byte[3000]);
+        assertTrue(outputStream.wasExpanded());
+        assertTrue(outputStream.getBuffer().isDirect());
+        // the original buffer went back to the pool
+        assertEquals(1024, pool.getPooledBytes());
+        assertEquals(outputStream.getBuffer().capacity(), sizeTracker.longValue());
+
+        outputStream.setBuffer(pool.acquire(1024));
+        outputStream.close();
+        assertEquals(0, pool.getOutstandingBytes());
+        assertEquals(0, sizeTracker.longValue());
+        // a late write after close does not touch pooled buffers
+        outputStream.write(1);
+        assertFalse(outputStream.getBuffer().isDirect());
+        assertEquals(0, pool.getOutstandingBytes());
+
+        ByteBufferBackedInputStream inputStream = new ByteBufferBackedInputStream(pool.acquire(1024),
+                                                                                  sizeTracker,
+                                                                                  pool);
+        inputStream.close();
+        assertEquals(0, pool.getOutstandingBytes());
+        assertEquals(0, sizeTracker.longValue());
+    }
+
+    @Test
+    public void testPooledSocketBuffers() throws Exception {
+        int socketBufferSize = 4 * 1024;
+        int port = ServerTestUtils.findFreePort();
+        NioSocketService socketService = new NioSocketService(ServerTestUtils.getSocketRequestHandlerFactory(VoldemortTestConstants.getOneNodeClusterXml(),
+                                                                                                             VoldemortTestConstants.getSimpleStoreDefinitionsXml(),
+                                                                                                             ServerTestUtils.getStores("test",
+                                                                                                                                       VoldemortTestConstants.getOneNodeClusterXml(),
+                                                                                                                                       VoldemortTestConstants.getSimpleStoreDefinitionsXml())),
+                                                              port,
+                                                              socketBufferSize,
+                                                              2,
+                                                              "pooled-socket-service",
+                                                              false,
+                                                              -1,
+                                                              0,
+                                                              0,
+                                                              0,
+                                                              1024 * 1024);
+        socketService.start();
+        final ClientRequestExecutorPool socketStoreFactory = new ClientRequestExecutorPool(2,
+                                                                                           10,
+                                                                                           10000,
+                                                                                           100000,
+                                                                                           socketBufferSize,
+                                                                                           false,
+                                                                                           false,
+                                                                                           0,
+                                                                                           1,
+                                                                                           1024 * 1024);
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        try {
+            final Store<ByteArray, byte[], byte[]> store = ServerTestUtils.getSocketStore(socketStoreFactory,
+                                                                                          "test",
+                                                                                          port,
+                                                                                          RequestFormatType.VOLDEMORT_V3);
+            final AtomicInteger errors = new AtomicInteger(0);
+            Future<?>[] futures = new Future<?>[4];
+            for(int t = 0; t < futures.length; t++) {
+                final int thread = t;
+                futures[t] = clients.submit(new Runnable() {
+
+                    public void run() {
+                        // values from well below the socket buffer size to
+                        // above the largest pooled buffer
+                        int[] sizes = { 10, 3000, 20000, 300000, 2 * 1024 * 1024 };
+                        for(int i = 0; i < 20; i++) {
+                            ByteArray key = new ByteArray(("key-" + thread + "-" + i).getBytes());
+                            byte[] value = TestUtils.randomBytes(sizes[i % sizes.length]);
+                            store.put(key, new Versioned<byte[]>(value), null);
+                            List<Versioned<byte[]>> found = store.get(key, null);
+                            if(found.size() != 1
+                               || !ByteBuffer.wrap(found.get(0).getValue())
+                                             .equals(ByteBuffer.wrap(value)))
+                                errors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            for(Future<?> future: futures)
+                future.get();
+            assertEquals(0, errors.get());
+            assertTrue(socketService.getBufferPoolHits() > 0);
+            assertTrue(socketService.getBufferPoolUnpooled() > 0);
+        } finally {
+            clients.shutdownNow();
+            socketStoreFactory.close();
+            socketService.stop();
+        }
+    }
+}
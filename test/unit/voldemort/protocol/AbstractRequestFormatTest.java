@@ -5,6 +5,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -27,12 +28,14 @@ import voldemort.versioning.Versioned;
 public abstract class AbstractRequestFormatTest extends TestCase {
 
     private final String storeName;
+    private final RequestFormatType type;
     private final RequestFormat clientWireFormat;
     private final RequestHandler serverWireFormat;
     private final InMemoryStorageEngine<ByteArray, byte[], byte[]> store;
 
     public AbstractRequestFormatTest(RequestFormatType type) {
         this.storeName = "test";
+        this.type = type;
         this.store = new InMemoryStorageEngine<ByteArray, byte[], byte[]>(storeName);
         StoreRepository repository = new StoreRepository();
         repository.addLocalStore(store);
@@ -225,6 +228,44 @@ public abstract class AbstractRequestFormatTest extends TestCase {
         }
     }
 
+    public void testPutAllRequests() throws Exception {
+        // Only sent on version 4 connections, but encoded as on version 3,
+        // which does not need the multiplexing frames
+        if(!type.supportsPutAll() && type != RequestFormatType.VOLDEMORT_V3)
+            return;
+
+        ByteArray obsoleteKey = TestUtils.toByteArray("hello");
+        ByteArray newKey = TestUtils.toByteArray("new");
+        try {
+            this.store.put(obsoleteKey,
+                           new Versioned<byte[]>("world".getBytes(), new VectorClock()),
+                           null);
+            Map<ByteArray, Versioned<byte[]>> entries = new HashMap<ByteArray, Versioned<byte[]>>();
+            entries.put(obsoleteKey, new Versioned<byte[]>("other".getBytes(), new VectorClock()));
+            entries.put(newKey, new Versioned<byte[]>("value".getBytes(), new VectorClock()));
+            entries.put(new ByteArray(), new Versioned<byte[]>(new byte[0], new VectorClock()));
+
+            ByteArrayOutputStream putAllRequest = new ByteArrayOutputStream();
+            this.clientWireFormat.writePutAllRequest(new DataOutputStream(putAllRequest),
+                                                     storeName,
+                                                     entries,
+                                                     null,
+                                                     RequestRoutingType.NORMAL);
+            ByteArrayOutputStream putAllResponse = new ByteArrayOutputStream();
+            this.serverWireFormat.handleRequest(inputStream(putAllRequest),
+                                                new DataOutputStream(putAllResponse));
+            Map<ByteArray, VoldemortException> failures = this.clientWireFormat.readPutAllResponse(inputStream(putAllResponse));
+
+            assertEquals(1, failures.size());
+            assertEquals(ObsoleteVersionException.class, failures.get(obsoleteKey).getClass());
+            TestUtils.assertContains(this.store, obsoleteKey, "world".getBytes());
+            TestUtils.assertContains(this.store, newKey, "value".getBytes());
+            TestUtils.assertContains(this.store, new ByteArray(), new byte[0]);
+        } finally {
+            this.store.deleteAll();
+        }
+    }
+
     public void testDeleteRequests() throws Exception {
         // test pre-existing are deleted
         testDeleteRequest(new ByteArray(),
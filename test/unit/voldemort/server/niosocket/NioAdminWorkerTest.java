@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.server.niosocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import voldemort.ServerTestUtils;
+import voldemort.client.ClientConfig;
+import voldemort.client.protocol.admin.AdminClient;
+import voldemort.client.protocol.admin.AdminClientConfig;
+import voldemort.cluster.Cluster;
+import voldemort.common.service.VoldemortService;
+import voldemort.server.VoldemortServer;
+import voldemort.store.socket.SocketStoreFactory;
+import voldemort.store.socket.clientrequest.ClientRequestExecutorPool;
+import voldemort.utils.ByteArray;
+import voldemort.utils.Pair;
+import voldemort.versioning.Versioned;
+
+/**
+ * Tests admin streaming with the admin requests executed on a worker pool
+ * smaller than the number of concurrent streams
+ *
+ */
+public class NioAdminWorkerTest {
+
+    private static final String STORE_NAME = "test-replication-memory";
+    private static final String STORES_XML = "test/common/voldemort/config/stores.xml";
+    private static final int NUM_KEYS = 5000;
+    private static final int NUM_STREAMS = 6;
+
+    private SocketStoreFactory socketStoreFactory = new ClientRequestExecutorPool(2,
+                                                                                  10000,
+                                                                                  100000,
+                                                                                  32 * 1024);
+    private VoldemortServer[] servers;
+    private Cluster cluster;
+    private AdminClient adminClient;
+
+    @Before
+    public void setUp() throws Exception {
+        servers = new VoldemortServer[2];
+        int partitionMap[][] = { { 0, 1, 2, 3 }, { 4, 5, 6, 7 } };
+        Properties properties = new Properties();
+        properties.setProperty("nio.admin.connector.selectors", "1");
+        properties.setProperty("nio.admin.worker.threads", "2");
+        properties.setProperty("nio.worker.threads", "2");
+        cluster = ServerTestUtils.startVoldemortCluster(2,
+                                                        servers,
+                                                        partitionMap,
+                                                        socketStoreFactory,
+                                                        true,
+                                                        null,
+                                                        STORES_XML,
+                                                        properties);
+
+        Properties adminProperties = new Properties();
+        adminProperties.setProperty("max_connections", "20");
+        adminClient = new AdminClient(cluster,
+                                      new AdminClientConfig(adminProperties),
+                                      new ClientConfig());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        adminClient.close();
+        for(VoldemortServer server: servers)
+            ServerTestUtils.stopVoldemortServer(server);
+        socketStoreFactory.close();
+    }
+
+    private NioSocketService getAdminService(VoldemortServer server) {
+        for(VoldemortService service: server.getServices()) {
+            if(service instanceof NioSocketService
+               && ((NioSocketService) service).getPort() == server.getIdentityNode()
+                                                                   .getAdminPort())
+                return (NioSocketService) service;
+        }
+        throw new IllegalStateException("No NIO admin service");
+    }
+
+    @Test
+    public void testConcurrentStreams() throws Exception {
+        final Map<ByteArray, byte[]> entries = ServerTestUtils.createRandomKeyValuePairs(NUM_KEYS);
+        List<Pair<ByteArray, Versioned<byte[]>>> updates = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>();
+        for(Map.Entry<ByteArray, byte[]> entry: entries.entrySet())
+            updates.add(Pair.create(entry.getKey(), new Versioned<byte[]>(entry.getValue())));
+        adminClient.streamingOps.updateEntries(0, STORE_NAME, updates.iterator(), null);
+
+        final List<Integer> partitions = Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7);
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_STREAMS);
+        try {
+            List<Future<Map<ByteArray, byte[]>>> fetches = new ArrayList<Future<Map<ByteArray, byte[]>>>();
+            for(int i = 0; i < NUM_STREAMS; i++) {
+                fetches.add(executor.submit(new Callable<Map<ByteArray, byte[]>>() {
+
+                    public Map<ByteArray, byte[]> call() {
+                        Map<ByteArray, byte[]> fetched = new HashMap<ByteArray, byte[]>();
+                        Iterator<Pair<ByteArray, Versioned<byte[]>>> it = adminClient.bulkFetchOps.fetchEntries(0,
+                                                                                                              STORE_NAME,
+                                                                                                              partitions,
+                                                                                                              null,
+                                                                                                              false);
+                        while(it.hasNext()) {
+                            Pair<ByteArray, Versioned<byte[]>> entry = it.next();
+                            fetched.put(entry.getFirst(), entry.getSecond().getValue());
+                        }
+                        return fetched;
+                    }
+                }));
+            }
+
+            for(Future<Map<ByteArray, byte[]>> fetch: fetches) {
+                Map<ByteArray, byte[]> fetched = fetch.get(60, TimeUnit.SECONDS);
+                assertEquals(entries.size(), fetched.size());
+                for(Map.Entry<ByteArray, byte[]> entry: entries.entrySet())
+                    assertArrayEquals(entry.getValue(), fetched.get(entry.getKey()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        NioSocketService adminService = getAdminService(servers[0]);
+        assertEquals(2, adminService.getWorkerThreads());
+        // every batch of segments of every stream went through the workers
+        assertTrue(adminService.getWorkerCompletedRequests() > NUM_STREAMS + 1);
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2008-2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.server.niosocket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import voldemort.ServerTestUtils;
+import voldemort.VoldemortTestConstants;
+import voldemort.client.ClientConfig;
+import voldemort.client.protocol.RequestFormatType;
+import voldemort.cluster.Cluster;
+import voldemort.cluster.Node;
+import voldemort.server.StoreRepository;
+import voldemort.server.VoldemortServer;
+import voldemort.store.Store;
+import voldemort.store.memory.InMemoryStorageEngine;
+import voldemort.store.socket.SocketStoreFactory;
+import voldemort.store.socket.clientrequest.ClientRequestExecutorPool;
+import voldemort.utils.ByteArray;
+import voldemort.utils.JmxUtils;
+import voldemort.versioning.Versioned;
+
+/**
+ * Tests for {@link StagedRequestExecutor} and the staged mode of
+ * {@link NioSocketService}
+ * 
+ */
+public class StagedRequestExecutorTest {
+
+    @Test
+    public void testSlowStoreDoesNotBlockOthers() throws Exception {
+        StagedRequestExecutor executor = new StagedRequestExecutor(2,
+                                                                   10,
+                                                                   1,
+                                                                   "test-worker",
+                                                                   storeRepository("slow", "fast"));
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            Runnable blocked = new Runnable() {
+
+                public void run() {
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            // the slow store may only occupy one of the two workers
+            assertTrue(executor.submit("slow", blocked));
+            assertTrue(executor.submit("slow", blocked));
+
+            final CountDownLatch done = new CountDownLatch(1);
+            assertTrue(executor.submit("fast", new Runnable() {
+
+                public void run() {
+                    done.countDown();
+                }
+            }));
+            assertTrue("Fast store was held up by the slow one",
+                       done.await(5, TimeUnit.SECONDS));
+            assertEquals(1, executor.getQueueDepth("slow"));
+            assertEquals(0, executor.getQueueDepth("fast"));
+            assertEquals(1, executor.getNumActive());
+
+            release.countDown();
+            waitForCompletion(executor, 3);
+            assertEquals(0, executor.getNumQueued());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testFullQueueRejects() throws Exception {
+        StagedRequestExecutor executor = new StagedRequestExecutor(1,
+                                                                   2,
+                                                                   0,
+                                                                   "test-worker",
+                                                                   storeRepository("a", "b"));
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(1);
+            Runnable blocked = new Runnable() {
+
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            assertTrue(executor.submit("a", blocked));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(executor.submit("a", blocked));
+            assertTrue(executor.submit("a", blocked));
+            assertFalse(executor.submit("a", blocked));
+            // other stores have their own queue
+            assertTrue(executor.submit("b", blocked));
+            assertEquals(1, executor.getNumRejected());
+            assertEquals(2, executor.getMaxQueueDepth());
+            assertEquals("queued=2,active=1,rejected=1", executor.getQueueStats().get("a"));
+
+            release.countDown();
+            waitForCompletion(executor, 4);
+            assertTrue(executor.submit("a", blocked));
+        } finally {
+            executor.close();
+        }
+        assertFalse(executor.submit("a", new Runnable() {
+
+            public void run() {}
+        }));
+    }
+
+    @Test
+    public void testCapacityListenerRunsWhenFullQueueHasRoom() throws Exception {
+        StagedRequestExecutor executor = new StagedRequestExecutor(1,
+                                                                   1,
+                                                                   0,
+                                                                   "test-worker",
+                                                                   storeRepository("a"));
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(1);
+            Runnable blocked = new Runnable() {
+
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            assertTrue(executor.submit("a", blocked));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            final AtomicInteger numWakeups = new AtomicInteger(0);
+            executor.addCapacityListener(new Runnable() {
+
+                public void run() {
+                    numWakeups.incrementAndGet();
+                }
+            });
+            assertTrue(executor.submit("a", blocked));
+            assertFalse(executor.submit("a", blocked));
+            assertEquals(0, numWakeups.get());
+
+            // the worker takes the queued task off the full queue
+            release.countDown();
+            waitForCompletion(executor, 2);
+            assertEquals(1, numWakeups.get());
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testUnknownStoresShareOneQueue() throws Exception {
+        StagedRequestExecutor executor = new StagedRequestExecutor(1,
+                                                                   2,
+                                                                   0,
+                                                                   "test-worker",
+                                                                   storeRepository("a"));
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch started = new CountDownLatch(1);
+            Runnable blocked = new Runnable() {
+
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            assertTrue(executor.submit("a", blocked));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(executor.submit("unknown-1", blocked));
+            assertTrue(executor.submit("unknown-2", blocked));
+            // the unknown names fill the same queue
+            assertFalse(executor.submit("unknown-3", blocked));
+            assertTrue(executor.submit("a", blocked));
+
+            Map<String, String> stats = executor.getQueueStats();
+            assertEquals(2, stats.size());
+            assertEquals("queued=2,active=0,rejected=1",
+                         stats.get(StagedRequestExecutor.SHARED_QUEUE_NAME));
+            assertEquals(0, executor.getQueueDepth("unknown-1"));
+
+            release.countDown();
+            waitForCompletion(executor, 4);
+        } finally {
+            executor.close();
+        }
+    }
+
+    @Test
+    public void testStagedSocketService() throws Exception {
+        ClientConfig clientConfig = new ClientConfig().setMaxConnectionsPerNode(8);
+        SocketStoreFactory socketStoreFactory = new ClientRequestExecutorPool(clientConfig.getSelectors(),
+                                                                              clientConfig.getMaxConnectionsPerNode(),
+                                                                              clientConfig.getConnectionTimeout(TimeUnit.MILLISECONDS),
+                                                                              clientConfig.getSocketTimeout(TimeUnit.MILLISECONDS),
+                                                                              clientConfig.getSocketBufferSize(),
+                                                                              clientConfig.getSocketKeepAlive());
+        Properties props = new Properties();
+        props.put("jmx.enable", "true");
+        props.put("nio.worker.threads", "2");
+        // tiny queues so that requests get deferred
+        props.put("nio.worker.queue.size", "1");
+
+        VoldemortServer[] servers = new VoldemortServer[1];
+        Cluster cluster = ServerTestUtils.startVoldemortCluster(1,
+                                                                servers,
+                                                                null,
+                                                                socketStoreFactory,
+                                                                true,
+                                                                null,
+                                                                "test/common/voldemort/config/single-store.xml",
+                                                                props);
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            Node node = cluster.getNodeById(0);
+            final Store<ByteArray, byte[], byte[]> store = ServerTestUtils.getSocketStore(socketStoreFactory,
+                                                                                          "test",
+                                                                                          node.getSocketPort(),
+                                                                                          clientConfig.getRequestFormatType());
+            final AtomicInteger errors = new AtomicInteger(0);
+            Future<?>[] futures = new Future<?>[8];
+            for(int t = 0; t < futures.length; t++) {
+                final int thread = t;
+                futures[t] = clients.submit(new Runnable() {
+
+                    public void run() {
+                        for(int i = 0; i < 200; i++) {
+                            ByteArray key = new ByteArray(("key-" + thread + "-" + i).getBytes());
+                            byte[] value = ("value-" + i).getBytes();
+                            store.put(key, new Versioned<byte[]>(value), null);
+                            List<Versioned<byte[]>> found = store.get(key, null);
+                            if(found.size() != 1
+                               || !new String(found.get(0).getValue()).equals("value-" + i))
+                                errors.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            for(Future<?> future: futures)
+                future.get();
+            assertEquals(0, errors.get());
+
+            MBeanServer beanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = JmxUtils.createObjectName(JmxUtils.getPackageName(NioSocketService.class),
+                                                        "nio-socket-server");
+            assertEquals(2, beanServer.getAttribute(name, "workerThreads"));
+            long completed = (Long) beanServer.getAttribute(name, "workerCompletedRequests");
+            assertTrue(completed >= 8 * 200 * 2);
+        } finally {
+            clients.shutdownNow();
+            servers[0].stop();
+            socketStoreFactory.close();
+        }
+    }
+
+    @Test
+    public void testStagedCompressedMultiplexedRequests() throws Exception {
+        int port = ServerTestUtils.findFreePort();
+        StoreRepository storeRepository = ServerTestUtils.getStores("test",
+                                                                    VoldemortTestConstants.getOneNodeClusterXml(),
+                                                                    VoldemortTestConstants.getSimpleStoreDefinitionsXml());
+        NioSocketService socketService = new NioSocketService(ServerTestUtils.getSocketRequestHandlerFactory(VoldemortTestConstants.getOneNodeClusterXml(),
+                                                                                                             VoldemortTestConstants.getSimpleStoreDefinitionsXml(),
+                                                                                                             storeRepository),
+                                                              port,
+                                                              32 * 1024,
+                                                              2,
+                                                              "staged-compressed-service",
+                                                              false,
+                                                              -1,
+                                                              2,
+                                                              100,
+                                                              0,
+                                                              0,
+                                                              storeRepository);
+        socketService.start();
+        ClientRequestExecutorPool socketStoreFactory = new ClientRequestExecutorPool(2,
+                                                                                     10000,
+                                                                                     100000,
+                                                                                     100000,
+                                                                                     32 * 1024,
+                                                                                     false,
+                                                                                     false,
+                                                                                     0,
+                                                                                     1,
+                                                                                     0,
+                                                                                     Arrays.asList("snappy"),
+                                                                                     100);
+        try {
+            Store<ByteArray, byte[], byte[]> store = ServerTestUtils.getSocketStore(socketStoreFactory,
+                                                                                    "test",
+                                                                                    port,
+                                                                                    RequestFormatType.VOLDEMORT_V4);
+            StringBuilder text = new StringBuilder();
+            for(int i = 0; i < 2000; i++)
+                text.append("value ").append(i % 100).append(' ');
+            // requests on both sides of the compression threshold
+            for(int i = 0; i < 50; i++) {
+                ByteArray key = new ByteArray(("key-" + i).getBytes());
+                byte[] value = text.substring(0, i % 2 == 0 ? 10 : text.length()).getBytes();
+                store.put(key, new Versioned<byte[]>(value), null);
+                List<Versioned<byte[]>> found = store.get(key, null);
+                assertEquals(1, found.size());
+                assertArrayEquals(value, found.get(0).getValue());
+            }
+
+            // compressed frames go to the shared queue, never to one named
+            // after the bytes of the compressed payload
+            String stats = socketService.getWorkerQueueStats();
+            assertTrue(stats, stats.startsWith("{" + StagedRequestExecutor.SHARED_QUEUE_NAME + "="));
+            assertEquals(stats, 2, stats.split("queued=").length - 1);
+        } finally {
+            socketStoreFactory.close();
+            socketService.stop();
+        }
+    }
+
+    private StoreRepository storeRepository(String... storeNames) {
+        StoreRepository storeRepository = new StoreRepository();
+        for(String storeName: storeNames)
+            storeRepository.addLocalStore(new InMemoryStorageEngine<ByteArray, byte[], byte[]>(storeName));
+        return storeRepository;
+    }
+
+    private void waitForCompletion(StagedRequestExecutor executor, long numTasks)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(executor.getNumCompleted() < numTasks && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(numTasks, executor.getNumCompleted());
+    }
+}
@@ -2,6 +2,7 @@ package voldemort.server.storage;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
@@ -15,6 +16,7 @@ import voldemort.server.StoreRepository;
 import voldemort.server.VoldemortConfig;
 import voldemort.store.Store;
 import voldemort.store.StoreDefinition;
+import voldemort.store.memory.RowCachingStorageEngine;
 import voldemort.store.metadata.MetadataStore;
 import voldemort.store.system.SystemStoreConstants;
 import voldemort.utils.ByteArray;
@@ -42,6 +44,7 @@ public class StorageServiceTest extends TestCase {
         this.scheduler = new SchedulerService(1, new MockTime());
         this.cluster = ServerTestUtils.getLocalCluster(1);
         this.storeDefs = ServerTestUtils.getStoreDefs(2);
+        config.setRowCacheStores(Arrays.asList(storeDefs.get(0).getName()));
         this.storeRepository = new StoreRepository();
         MetadataStore mdStore = ServerTestUtils.createMetadataStore(cluster, storeDefs);
         storage = new StorageService(storeRepository, mdStore, scheduler, config);
@@ -68,6 +71,29 @@ public class StorageServiceTest extends TestCase {
         }
     }
 
+    public void testRowCacheWrapsTheListedStores() {
+        StoreRepository repo = storage.getStoreRepository();
+        String cachedName = storeDefs.get(0).getName();
+        assertTrue(repo.getStorageEngine(cachedName) instanceof RowCachingStorageEngine);
+        assertFalse(repo.getStorageEngine(storeDefs.get(1).getName()) instanceof RowCachingStorageEngine);
+
+        ByteArray key = new ByteArray("key".getBytes());
+        repo.getLocalStore(cachedName).put(key,
+                                           new Versioned<byte[]>("a".getBytes(),
+                                                                 TestUtils.getClock(1)),
+                                           null);
+        assertEquals(1, repo.getStorageEngine(cachedName).get(key, null).size());
+        // a write straight to the engine, as the admin service does
+        repo.getStorageEngine(cachedName).put(key,
+                                              new Versioned<byte[]>("b".getBytes(),
+                                                                    TestUtils.getClock(1, 1)),
+                                              null);
+        assertEquals("b", new String(repo.getLocalStore(cachedName)
+                                         .get(key, null)
+                                         .get(0)
+                                         .getValue()));
+    }
+
     public void testMetadataVersionsInit() {
         Store<ByteArray, byte[], byte[]> versionStore = storeRepository.getLocalStore(SystemStoreConstants.SystemStoreName.voldsys$_metadata_version_persistence.name());
         Properties props = new Properties();
@@ -22,6 +22,7 @@ import static voldemort.TestUtils.randomLetters;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -30,6 +31,7 @@ import junit.framework.TestCase;
 import org.junit.Test;
 
 import voldemort.TestUtils;
+import voldemort.VoldemortException;
 import voldemort.utils.ByteArray;
 import voldemort.versioning.ObsoleteVersionException;
 import voldemort.versioning.VectorClock;
@@ -315,6 +317,38 @@ public abstract class AbstractStoreTest<K, V, T> extends TestCase {
         assertEquals(0, result.size());
     }
 
+    @Test
+    public void testPutAll() throws Exception {
+        Store<K, V, T> store = getStore();
+        int putCount = 10;
+        List<K> keys = getKeys(putCount);
+        List<V> values = getValues(putCount);
+
+        // the first key already has a version, putting it again is obsolete
+        K obsoleteKey = keys.get(0);
+        VectorClock clock = getClock(1, 1);
+        VectorClock clockCopy = clock.clone();
+        Versioned<V> existing = new Versioned<V>(values.get(0), clock);
+        store.put(obsoleteKey, existing, null);
+
+        Map<K, Versioned<V>> entries = new HashMap<K, Versioned<V>>();
+        entries.put(obsoleteKey, new Versioned<V>(values.get(1), clockCopy));
+        for(int i = 1; i < putCount; i++)
+            entries.put(keys.get(i), new Versioned<V>(values.get(i)));
+
+        Map<K, VoldemortException> failures = store.putAll(entries, null);
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(obsoleteKey) instanceof ObsoleteVersionException);
+
+        Map<K, List<Versioned<V>>> result = store.getAll(keys, null);
+        assertEquals(putCount, result.size());
+        assertContains(result.get(obsoleteKey), existing);
+        for(int i = 1; i < putCount; i++)
+            assertGetAllValues(values.get(i), result.get(keys.get(i)));
+
+        assertEquals(0, store.putAll(new HashMap<K, Versioned<V>>(), null).size());
+    }
+
     @Test
     public void testCloseIsIdempotent() throws Exception {
         Store<K, V, T> store = getStore();
@@ -20,7 +20,9 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -77,14 +79,16 @@ public class BdbStorageEngineTest extends AbstractStorageEngineTest {
     private DatabaseConfig databaseConfig;
     private BdbRuntimeConfig runtimeConfig;
     private boolean prefixPartitionId;
+    private boolean groupCommit;
 
-    public BdbStorageEngineTest(boolean prefixPartitionId) {
+    public BdbStorageEngineTest(boolean prefixPartitionId, boolean groupCommit) {
         this.prefixPartitionId = prefixPartitionId;
+        this.groupCommit = groupCommit;
     }
 
     @Parameters
     public static Collection<Object[]> modes() {
-        Object[][] data = new Object[][] { { true }, { false } };
+        Object[][] data = new Object[][] { { true, false }, { false, false }, { false, true } };
         return Arrays.asList(data);
     }
 
@@ -97,7 +101,10 @@ public class BdbStorageEngineTest extends AbstractStorageEngineTest {
         this.envConfig.setAllowCreate(true);
         this.envConfig.setTransactional(true);
         this.tempDir = TestUtils.createTempDir();
-        this.environment = new Environment(this.tempDir, envConfig);
+        if(groupCommit)
+            this.environment = new SlowSyncEnvironment(this.tempDir, envConfig);
+        else
+            this.environment = new Environment(this.tempDir, envConfig);
         this.databaseConfig = new DatabaseConfig();
         databaseConfig.setAllowCreate(true);
         databaseConfig.setTransactional(true);
@@ -105,6 +112,7 @@ public class BdbStorageEngineTest extends AbstractStorageEngineTest {
         this.database = environment.openDatabase(null, "test", databaseConfig);
         this.runtimeConfig = new BdbRuntimeConfig();
         runtimeConfig.setLockMode(LOCK_MODE);
+        runtimeConfig.setGroupCommit(groupCommit);
         this.store = makeBdbStorageEngine("test",
                                           this.environment,
                                           this.database,
@@ -112,6 +120,32 @@ public class BdbStorageEngineTest extends AbstractStorageEngineTest {
                                           this.prefixPartitionId);
     }
 
+    /**
+     * Takes as long to sync its log as a disk would, so that concurrent
+     * writers pile up behind a flush even when the temporary directory is in
+     * memory
+     */
+    private static class SlowSyncEnvironment extends Environment {
+
+        private static final long SYNC_MS = 2;
+
+        SlowSyncEnvironment(File home, EnvironmentConfig config) {
+            super(home, config);
+        }
+
+        @Override
+        public void flushLog(boolean fsync) {
+            super.flushLog(fsync);
+            if(fsync) {
+                try {
+                    Thread.sleep(SYNC_MS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
     protected static BdbStorageEngine makeBdbStorageEngine(String name,
                                                            Environment environment,
                                                            Database database,
@@ -241,6 +275,86 @@ public class BdbStorageEngineTest extends AbstractStorageEngineTest {
         assertFalse("Should not have seen any empty results", returnedEmpty.get());
     }
 
+    @Test
+    public void testConcurrentPutsToDistinctKeys() throws Exception {
+        final int numThreads = 10;
+        final int numPuts = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        final CountDownLatch latch = new CountDownLatch(numThreads);
+        final AtomicInteger obsolete = new AtomicInteger(0);
+
+        for(int i = 0; i < numThreads; i++) {
+            final int thread = i;
+            executor.submit(new Runnable() {
+
+                public void run() {
+                    try {
+                        for(int j = 0; j < numPuts; j++) {
+                            ByteArray key = new ByteArray(("key" + thread + "-" + j).getBytes());
+                            store.put(key, new Versioned<byte[]>(key.get()), null);
+                            try {
+                                // the same version again is obsolete
+                                store.put(key, new Versioned<byte[]>(key.get()), null);
+                            } catch(ObsoleteVersionException e) {
+                                obsolete.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+
+        assertEquals(numThreads * numPuts, obsolete.get());
+        for(int i = 0; i < numThreads; i++) {
+            for(int j = 0; j < numPuts; j++) {
+                ByteArray key = new ByteArray(("key" + i + "-" + j).getBytes());
+                List<Versioned<byte[]>> vals = store.get(key, null);
+                assertEquals(1, vals.size());
+                assertTrue(Arrays.equals(key.get(), vals.get(0).getValue()));
+            }
+        }
+
+        if(groupCommit) {
+            assertEquals(numThreads * numPuts, store.getGroupCommitWrites());
+            assertTrue(store.getGroupCommitFlushes() > 0);
+            // the writers arriving during a flush share the next one
+            assertTrue("Concurrent writers should share log flushes, " + numThreads * numPuts
+                       + " writes took " + store.getGroupCommitFlushes() + " flushes",
+                       store.getGroupCommitFlushes() < numThreads * numPuts / 2);
+        } else {
+            assertEquals(0, store.getGroupCommitFlushes());
+        }
+    }
+
+    @Test
+    public void testGetAllInKeyOrder() throws Exception {
+        List<ByteArray> keys = Lists.newArrayList();
+        for(int i = 0; i < 500; i++) {
+            ByteArray key = new ByteArray(("key" + i).getBytes());
+            keys.add(key);
+            store.put(key, new Versioned<byte[]>(key.get()), null);
+        }
+        List<ByteArray> absent = Lists.newArrayList();
+        for(int i = 0; i < 100; i++)
+            absent.add(new ByteArray(("absent" + i).getBytes()));
+
+        // request the keys shuffled, mixed with absent ones and a duplicate
+        List<ByteArray> requested = Lists.newArrayList(keys);
+        requested.addAll(absent);
+        requested.add(keys.get(0));
+        Collections.shuffle(requested);
+
+        Map<ByteArray, List<Versioned<byte[]>>> results = store.getAll(requested, null);
+        for(ByteArray key: keys)
+            assertEquals(store.get(key, null), results.get(key));
+        for(ByteArray key: absent)
+            assertFalse(results.containsKey(key));
+    }
+
     @Test(timeout = 30000)
     public void testGetAndLock() throws Exception {
         final ByteArray key = new ByteArray("getAndLock".getBytes());
@@ -322,7 +436,7 @@ public class BdbStorageEngineTest extends AbstractStorageEngineTest {
 
             public void run() {
                 while(keepRunning.get()) {
-                    byte[] bytes = Integer.toString(rand.nextInt(count.get())).getBytes();
+                    byte[] bytes = Integer.toString(rand.nextInt(count.get() + 1)).getBytes();
                     store.delete(new ByteArray(bytes), new VectorClock());
                     count.incrementAndGet();
                 }
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.bitcask;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+
+import voldemort.TestUtils;
+import voldemort.cluster.Node;
+import voldemort.routing.RoutingStrategy;
+import voldemort.store.AbstractStorageEngineTest;
+import voldemort.store.StorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal tests, plus recovery, compaction and partition scans,
+ * against a {@link BitcaskStorageEngine}
+ * 
+ */
+public class BitcaskStorageEngineTest extends AbstractStorageEngineTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private RoutingStrategy routingStrategy = TestUtils.makeSingleNodeRoutingStrategy();
+    private File directory;
+    private BitcaskStorageEngine store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.directory = TestUtils.createTempDir();
+        this.store = open();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        store.close();
+        FileUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    @Override
+    public StorageEngine<ByteArray, byte[], byte[]> getStorageEngine() {
+        return store;
+    }
+
+    private BitcaskStorageEngine open() {
+        return new BitcaskStorageEngine("test",
+                                        directory,
+                                        routingStrategy,
+                                        SEGMENT_SIZE,
+                                        false,
+                                        0.5,
+                                        0);
+    }
+
+    private void reopen() {
+        store.close();
+        store = open();
+    }
+
+    public void testReopenFromHints() {
+        writeRounds(3, 200);
+        store.delete(key(0), null);
+        reopen();
+        assertWritten(3, 1, 200);
+    }
+
+    public void testReopenByScanningSegments() {
+        writeRounds(3, 200);
+        store.delete(key(0), null);
+        store.close();
+        for(File file: directory.listFiles())
+            if(file.getName().endsWith(".hint"))
+                assertTrue(file.delete());
+        store = open();
+        assertWritten(3, 1, 200);
+    }
+
+    public void testIncompleteRecordIsCutOff() throws Exception {
+        writeRounds(1, 50);
+        store.close();
+        File lastSegment = null;
+        for(File file: directory.listFiles()) {
+            if(file.getName().endsWith(".hint"))
+                assertTrue(file.delete());
+            else if(file.getName().endsWith(".data")
+                    && (lastSegment == null || file.getName()
+                                                   .compareTo(lastSegment.getName()) > 0))
+                lastSegment = file;
+        }
+        long length = lastSegment.length();
+        // a record header cut short by a crash
+        FileOutputStream output = new FileOutputStream(lastSegment, true);
+        output.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 });
+        output.close();
+
+        store = open();
+        assertEquals(length, lastSegment.length());
+        assertWritten(1, 0, 50);
+        store.put(key(0), new Versioned<byte[]>("after".getBytes(), clock(2)), null);
+        reopen();
+        assertEquals("after", new String(store.get(key(0), null).get(0).getValue()));
+    }
+
+    public void testCompaction() {
+        writeRounds(5, 200);
+        for(int i = 0; i < 50; i++)
+            store.delete(key(i), null);
+        long totalBytes = store.getTotalBytes();
+        int numSegments = store.getNumSegments();
+
+        store.compact();
+        assertEquals(1, store.getNumCompactions());
+        assertTrue(store.getReclaimedBytes() > 0);
+        assertTrue(store.getTotalBytes() < totalBytes);
+        assertTrue(store.getNumSegments() < numSegments);
+        assertEquals(150, store.getNumKeys());
+        assertWritten(5, 50, 200);
+
+        // the rewritten segments have no garbage left to reclaim
+        store.compact();
+        assertEquals(1, store.getNumCompactions());
+
+        // the dropped tombstones do not bring deleted keys back
+        reopen();
+        assertEquals(150, store.getNumKeys());
+        assertWritten(5, 50, 200);
+    }
+
+    public void testConcurrentSyncedWritesAndCompaction() throws Exception {
+        store.close();
+        store = new BitcaskStorageEngine("test",
+                                         directory,
+                                         routingStrategy,
+                                         SEGMENT_SIZE,
+                                         true,
+                                         0.5,
+                                         0);
+        final int numThreads = 4;
+        final int numKeys = 100;
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final AtomicInteger errors = new AtomicInteger(0);
+        for(int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        // each thread overwrites its own keys
+                        for(int round = 0; round < 3; round++)
+                            for(int i = thread; i < numKeys; i += numThreads)
+                                store.put(key(i),
+                                          new Versioned<byte[]>(("value-" + round + "-" + i).getBytes(),
+                                                                clock(round + 1)),
+                                          null);
+                    } catch(Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        while(!done.await(1, TimeUnit.MILLISECONDS))
+            store.compact();
+        assertEquals(0, errors.get());
+        assertEquals(numKeys, store.getNumKeys());
+        assertWritten(3, 0, numKeys);
+        reopen();
+        assertWritten(3, 0, numKeys);
+    }
+
+    public void testEntriesByPartition() {
+        int numKeys = 300;
+        for(int i = 0; i < numKeys; i++)
+            store.put(key(i), new Versioned<byte[]>(new byte[10]), null);
+        store.delete(key(0), null);
+
+        Set<ByteArray> seen = new HashSet<ByteArray>();
+        for(Node node: routingStrategy.getNodes()) {
+            for(int partition: node.getPartitionIds()) {
+                ClosableIterator<ByteArray> keys = store.keys(partition);
+                while(keys.hasNext()) {
+                    ByteArray key = keys.next();
+                    assertEquals(partition, routingStrategy.getMasterPartition(key.get())
+                                                           .intValue());
+                    assertTrue(seen.add(key));
+                }
+                keys.close();
+            }
+        }
+        assertEquals(numKeys - 1, seen.size());
+        assertFalse(seen.contains(key(0)));
+    }
+
+    /*
+     * Overwrites the keys in every round, with a newer clock each time
+     */
+    private void writeRounds(int numRounds, int numKeys) {
+        for(int round = 0; round < numRounds; round++)
+            for(int i = 0; i < numKeys; i++)
+                store.put(key(i), new Versioned<byte[]>(("value-" + round + "-" + i).getBytes(),
+                                                        clock(round + 1)), null);
+    }
+
+    /*
+     * Checks the keys below the first live key are deleted, and that the
+     * others hold the value of the last round
+     */
+    private void assertWritten(int numRounds, int firstLiveKey, int numKeys) {
+        for(int i = 0; i < numKeys; i++) {
+            List<Versioned<byte[]>> found = store.get(key(i), null);
+            if(i < firstLiveKey) {
+                assertEquals("Deleted key " + i + " is back", 0, found.size());
+                continue;
+            }
+            assertEquals("Key " + i + " is missing", 1, found.size());
+            assertEquals("value-" + (numRounds - 1) + "-" + i, new String(found.get(0).getValue()));
+        }
+    }
+
+    private VectorClock clock(int numVersions) {
+        VectorClock clock = TestUtils.getClock(1);
+        for(int i = 1; i < numVersions; i++)
+            clock.incrementVersion(1, System.currentTimeMillis());
+        return clock;
+    }
+
+    private ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+}
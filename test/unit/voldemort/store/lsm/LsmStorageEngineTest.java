@@ -0,0 +1,451 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.lsm;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+
+import voldemort.TestUtils;
+import voldemort.cluster.Node;
+import voldemort.routing.RoutingStrategy;
+import voldemort.serialization.Compression;
+import voldemort.store.AbstractStorageEngineTest;
+import voldemort.store.StorageEngine;
+import voldemort.store.compress.CompressionStrategy;
+import voldemort.store.compress.CompressionStrategyFactory;
+import voldemort.store.compress.NoopCompressionStrategy;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.Pair;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal tests, plus flushes, compactions, recovery from the logs
+ * and from an interrupted compaction, and partition scans, against an
+ * {@link LsmStorageEngine} with tiny memtables and tables. The tests keep the
+ * last value written to each key, or null once it is deleted, and check the
+ * store against them.
+ * 
+ */
+public class LsmStorageEngineTest extends AbstractStorageEngineTest {
+
+    private RoutingStrategy routingStrategy = TestUtils.makeSingleNodeRoutingStrategy();
+    private File directory;
+    private LsmStorageEngine store;
+    // the last value written to each key, null once deleted
+    private Map<Integer, String> expected;
+    // the last version written to each key
+    private Map<Integer, Integer> versions;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.directory = TestUtils.createTempDir();
+        this.store = open(config());
+        this.expected = new TreeMap<Integer, String>();
+        this.versions = new HashMap<Integer, Integer>();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        store.close();
+        FileUtils.deleteDirectory(directory);
+        super.tearDown();
+    }
+
+    @Override
+    public StorageEngine<ByteArray, byte[], byte[]> getStorageEngine() {
+        return store;
+    }
+
+    private LsmRuntimeConfig config() {
+        return new LsmRuntimeConfig().setMemtableSize(16 * 1024)
+                                     .setTableSize(2048)
+                                     .setBlockSize(512)
+                                     .setLevel0MaxTables(2)
+                                     .setLevelBaseSize(8 * 1024)
+                                     .setLevelSizeMultiplier(2);
+    }
+
+    private LsmStorageEngine open(LsmRuntimeConfig config) {
+        return new LsmStorageEngine("test", directory, routingStrategy, config);
+    }
+
+    private void reopen(LsmRuntimeConfig config) {
+        store.close();
+        store = open(config);
+    }
+
+    public void testFlushAndReopen() {
+        putAll(0, 200, 3);
+        delete(0);
+        store.flush();
+        assertTrue(store.getNumFlushes() > 0);
+        assertEquals(0, store.getMemtableBytes());
+        assertStoreMatches();
+
+        reopen(config());
+        assertStoreMatches();
+    }
+
+    public void testReplayLogs() throws Exception {
+        putAll(0, 50, 1);
+        delete(0);
+        store.close();
+        File lastLog = null;
+        for(File file: directory.listFiles()) {
+            if(file.getName().endsWith(WriteAheadLog.FILE_EXTENSION)
+               && (lastLog == null || file.getName().compareTo(lastLog.getName()) > 0))
+                lastLog = file;
+        }
+        // a record cut short by a crash
+        FileOutputStream output = new FileOutputStream(lastLog, true);
+        output.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13 });
+        output.close();
+
+        store = open(config());
+        assertEquals(0, store.getNumTables());
+        assertStoreMatches();
+    }
+
+    public void testNewerWritesShadowFlushedTables() {
+        reopen(config().setLevel0MaxTables(100));
+        putAll(0, 100, 1);
+        store.flush();
+        // overwritten in the memtable, then deleted in a newer table
+        put(10);
+        delete(20);
+        assertStoreMatches();
+        store.flush();
+        put(30);
+        assertStoreMatches();
+        assertEquals(0, store.getNumCompactions());
+        assertTrue(store.getNumLevel0Tables() >= 2);
+    }
+
+    public void testCompactionDropsTombstones() throws Exception {
+        putAll(0, 300, 5);
+        for(int i = 0; i < 100; i++)
+            delete(i);
+        store.flush();
+        for(int i = 0; i < 100 && store.getNumCompactions() == 0; i++)
+            Thread.sleep(100);
+        assertTrue(store.getNumCompactions() > 0);
+        assertStoreMatches();
+
+        // the dropped tombstones do not bring deleted keys back
+        reopen(config());
+        assertStoreMatches();
+    }
+
+    /*
+     * Leaves the files of a compaction which died after renaming its marker
+     * and part of its inputs, as replaceTables would have
+     */
+    public void testRedoCompactionAfterCrash() throws Exception {
+        LsmRuntimeConfig config = config().setLevel0MaxTables(100);
+        reopen(config);
+        putAll(0, 100, 2);
+        store.flush();
+        putAll(50, 150, 1);
+        delete(60);
+        store.flush();
+        // only in the log
+        put(70);
+        store.close();
+
+        CompressionStrategy compression = new CompressionStrategyFactory().get(new Compression(LsmRuntimeConfig.DEFAULT_BLOCK_COMPRESSION,
+                                                                                               null));
+        TableCache cache = new TableCache(10);
+        Map<Integer, List<SSTable>> tablesByPartition = new TreeMap<Integer, List<SSTable>>();
+        int nextId = 0;
+        for(File file: directory.listFiles()) {
+            String fileName = file.getName();
+            if(!fileName.endsWith(SSTable.FILE_EXTENSION))
+                continue;
+            String[] parts = fileName.substring(0, fileName.indexOf('.')).split("-");
+            SSTable table = new SSTable(file,
+                                        Integer.parseInt(parts[2]),
+                                        Integer.parseInt(parts[0]),
+                                        Integer.parseInt(parts[1]),
+                                        compression,
+                                        cache);
+            if(!tablesByPartition.containsKey(table.getPartition()))
+                tablesByPartition.put(table.getPartition(), new ArrayList<SSTable>());
+            tablesByPartition.get(table.getPartition()).add(table);
+            nextId = Math.max(nextId, table.getId() + 1);
+        }
+        assertFalse(tablesByPartition.isEmpty());
+
+        List<String> replaced = new ArrayList<String>();
+        List<String> outputs = new ArrayList<String>();
+        for(Map.Entry<Integer, List<SSTable>> partitionTables: tablesByPartition.entrySet()) {
+            List<SSTable> tables = partitionTables.getValue();
+            Collections.sort(tables, LsmStorageEngine.NEWEST_FIRST);
+            List<Iterator<Pair<ByteArray, byte[]>>> runs = new ArrayList<Iterator<Pair<ByteArray, byte[]>>>();
+            for(SSTable table: tables)
+                runs.add(table.iterator());
+            String output = partitionTables.getKey() + "-1-" + nextId++ + SSTable.FILE_EXTENSION
+                            + ".tmp";
+            SSTableWriter writer = new SSTableWriter(new File(directory, output),
+                                                     compression,
+                                                     512,
+                                                     LsmRuntimeConfig.DEFAULT_BLOOM_BITS_PER_KEY);
+            MergingIterator merged = new MergingIterator(runs);
+            while(merged.hasNext()) {
+                Pair<ByteArray, byte[]> entry = merged.next();
+                writer.add(entry.getFirst(), entry.getSecond());
+            }
+            writer.finish();
+            outputs.add(output);
+            for(SSTable table: tables) {
+                replaced.add(table.getFile().getName());
+                table.close();
+            }
+        }
+
+        DataOutputStream marker = new DataOutputStream(new FileOutputStream(new File(directory,
+                                                                                     "compaction")));
+        marker.writeInt(replaced.size());
+        for(String fileName: replaced)
+            marker.writeUTF(fileName);
+        marker.writeInt(outputs.size());
+        for(String fileName: outputs)
+            marker.writeUTF(fileName);
+        marker.close();
+        // the first input was renamed before the crash, the others were not
+        File obsolete = new File(directory, replaced.get(0) + ".obsolete");
+        assertTrue(new File(directory, replaced.get(0)).renameTo(obsolete));
+        // a flush cut short, not part of the compaction
+        File abortedFlush = new File(directory, "0-0-" + nextId + SSTable.FILE_EXTENSION + ".tmp");
+        assertTrue(abortedFlush.createNewFile());
+
+        store = open(config);
+        Set<String> fileNames = new HashSet<String>(Arrays.asList(directory.list()));
+        assertFalse(fileNames.contains("compaction"));
+        assertFalse(fileNames.contains(obsolete.getName()));
+        assertFalse(fileNames.contains(abortedFlush.getName()));
+        for(String fileName: replaced)
+            assertFalse(fileName, fileNames.contains(fileName));
+        for(String fileName: outputs)
+            assertTrue(fileName, fileNames.contains(fileName.substring(0, fileName.length()
+                                                                              - ".tmp".length())));
+        assertEquals(0, store.getNumLevel0Tables());
+        assertEquals(outputs.size(), store.getNumTables());
+        for(int partition: tablesByPartition.keySet())
+            assertEquals(Arrays.asList(0, 1), store.getLevelSizes(partition));
+        assertStoreMatches();
+    }
+
+    public void testEntriesByPartitionInKeyOrder() {
+        putAll(0, 300, 1);
+        delete(0);
+        store.flush();
+        putAll(100, 200, 1);
+
+        Set<ByteArray> seen = new HashSet<ByteArray>();
+        for(Node node: routingStrategy.getNodes()) {
+            for(int partition: node.getPartitionIds()) {
+                ClosableIterator<ByteArray> keys = store.keys(partition);
+                ByteArray previous = null;
+                while(keys.hasNext()) {
+                    ByteArray key = keys.next();
+                    assertEquals(partition, routingStrategy.getMasterPartition(key.get())
+                                                           .intValue());
+                    if(previous != null)
+                        assertTrue(ByteUtils.compare(previous.get(), key.get()) < 0);
+                    assertTrue(seen.add(key));
+                    previous = key;
+                }
+                keys.close();
+            }
+        }
+        Set<ByteArray> live = new HashSet<ByteArray>();
+        for(Map.Entry<Integer, String> entry: expected.entrySet()) {
+            if(entry.getValue() != null)
+                live.add(key(entry.getKey()));
+        }
+        assertEquals(live, seen);
+    }
+
+    public void testTruncateDropsTables() {
+        putAll(0, 200, 2);
+        store.flush();
+        assertTrue(store.getNumTables() > 0);
+        store.truncate();
+        assertEquals(0, store.getNumTables());
+        assertEquals(0, store.get(key(1), null).size());
+        reopen(config());
+        assertEquals(0, store.get(key(1), null).size());
+    }
+
+    public void testConcurrentSyncedWrites() throws Exception {
+        reopen(config().setFsyncWrites(true));
+        final int numThreads = 4;
+        final int keysPerThread = 100;
+        final int numVersions = 3;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[numThreads];
+        for(int t = 0; t < numThreads; t++) {
+            final int firstKey = t * keysPerThread;
+            writers[t] = new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        for(int version = 1; version <= numVersions; version++) {
+                            for(int i = firstKey; i < firstKey + keysPerThread; i++)
+                                store.put(key(i), versioned(i, version), null);
+                        }
+                    } catch(Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for(Thread writer: writers)
+            writer.join();
+        if(failure.get() != null)
+            throw new AssertionError(failure.get());
+        for(int i = 0; i < numThreads * keysPerThread; i++)
+            expected.put(i, value(i, numVersions));
+
+        assertTrue(store.getNumFlushes() > 0);
+        assertStoreMatches();
+        reopen(config());
+        assertStoreMatches();
+    }
+
+    public void testOpenTablesBounded() throws Exception {
+        reopen(config().setMaxOpenTables(2));
+        putAll(0, 300, 3);
+        store.flush();
+        assertTrue(store.getNumTables() > 2);
+        assertStoreMatches();
+        assertTrue(store.getNumOpenTables() <= 2);
+
+        // the evicted tables are reopened after compactions renamed them
+        for(int i = 0; i < 100 && store.getNumCompactions() == 0; i++)
+            Thread.sleep(100);
+        assertTrue(store.getNumCompactions() > 0);
+        assertStoreMatches();
+        assertTrue(store.getNumOpenTables() <= 2);
+    }
+
+    public void testClosedTableIsNotCachedAgain() throws Exception {
+        File file = new File(directory, "table" + SSTable.FILE_EXTENSION);
+        SSTableWriter writer = new SSTableWriter(file,
+                                                 new NoopCompressionStrategy(),
+                                                 512,
+                                                 LsmRuntimeConfig.DEFAULT_BLOOM_BITS_PER_KEY);
+        // keys of the same length, in key order
+        for(int i = 100; i < 200; i++)
+            writer.add(key(i), value(i, 1).getBytes());
+        writer.finish();
+        TableCache cache = new TableCache(1);
+        SSTable table = new SSTable(file, 0, 0, 0, new NoopCompressionStrategy(), cache);
+        assertEquals(1, cache.size());
+
+        // a scan still reading the table after it was closed reopens its file
+        Iterator<Pair<ByteArray, byte[]>> entries = table.iterator();
+        table.close();
+        assertEquals(0, cache.size());
+        int numEntries = 0;
+        while(entries.hasNext()) {
+            entries.next();
+            numEntries++;
+        }
+        assertEquals(100, numEntries);
+        assertEquals(0, cache.size());
+    }
+
+    /*
+     * Writes numVersions new versions of the keys from first to last,
+     * exclusive, one version of every key at a time
+     */
+    private void putAll(int first, int last, int numVersions) {
+        for(int round = 0; round < numVersions; round++) {
+            for(int i = first; i < last; i++)
+                put(i);
+        }
+    }
+
+    /*
+     * Writes a version of a key newer than the ones written so far
+     */
+    private void put(int i) {
+        Integer previous = versions.get(i);
+        int version = previous == null ? 1 : previous + 1;
+        store.put(key(i), versioned(i, version), null);
+        versions.put(i, version);
+        expected.put(i, value(i, version));
+    }
+
+    private void delete(int i) {
+        store.delete(key(i), null);
+        expected.put(i, null);
+    }
+
+    /*
+     * Every key written holds its last value, and every deleted key is gone
+     */
+    private void assertStoreMatches() {
+        for(Map.Entry<Integer, String> entry: expected.entrySet()) {
+            List<Versioned<byte[]>> found = store.get(key(entry.getKey()), null);
+            if(entry.getValue() == null) {
+                assertEquals("key " + entry.getKey() + " was deleted", 0, found.size());
+            } else {
+                assertEquals("versions of key " + entry.getKey(), 1, found.size());
+                assertEquals(entry.getValue(), new String(found.get(0).getValue()));
+            }
+        }
+    }
+
+    private static String value(int i, int version) {
+        return "value-" + i + "-" + version;
+    }
+
+    /*
+     * Each version of a key descends from the previous one
+     */
+    private static Versioned<byte[]> versioned(int i, int version) {
+        VectorClock clock = TestUtils.getClock(1);
+        for(int v = 1; v < version; v++)
+            clock.incrementVersion(1, System.currentTimeMillis());
+        return new Versioned<byte[]>(value(i, version).getBytes(), clock);
+    }
+
+    private static ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+}
@@ -0,0 +1,84 @@
+package voldemort.store.memory;
+
+import voldemort.store.StorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal tests, plus the size bound, the admission policy and the
+ * counters of a {@link BoundedCacheStorageEngine}
+ * 
+ * 
+ */
+public class BoundedCacheStorageEngineTest extends InMemoryStorageEngineTest {
+
+    private static final int VALUE_SIZE = 100;
+
+    private BoundedCacheStorageEngine store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.store = new BoundedCacheStorageEngine("test", 16 * 1024 * 1024, 4);
+    }
+
+    @Override
+    public StorageEngine<ByteArray, byte[], byte[]> getStorageEngine() {
+        return store;
+    }
+
+    public void testSizeIsBounded() {
+        long maxBytes = 64 * 1024;
+        BoundedCacheStorageEngine small = new BoundedCacheStorageEngine("small", maxBytes, 2);
+        int numKeys = 10000;
+        for(int i = 0; i < numKeys; i++)
+            small.put(key(i), new Versioned<byte[]>(new byte[VALUE_SIZE]), null);
+
+        assertTrue(small.getSizeInBytes() <= maxBytes);
+        assertTrue(small.getNumEvictions() > 0);
+        assertEquals(numKeys, small.getNumEntries() + small.getNumEvictions());
+        // the most recent key is still in the window
+        assertEquals(1, small.get(key(numKeys - 1), null).size());
+    }
+
+    public void testScanDoesNotFlushPopularKeys() {
+        long maxBytes = 64 * 1024;
+        BoundedCacheStorageEngine small = new BoundedCacheStorageEngine("small", maxBytes, 1);
+        // a working set taking about half of the cache, looked up repeatedly
+        int numPopular = 150;
+        for(int i = 0; i < numPopular; i++)
+            small.put(key(i), new Versioned<byte[]>(new byte[VALUE_SIZE]), null);
+        for(int round = 0; round < 5; round++)
+            for(int i = 0; i < numPopular; i++)
+                assertEquals(1, small.get(key(i), null).size());
+
+        // a scan over many more keys than fit, each seen once
+        for(int i = numPopular; i < 20 * numPopular; i++) {
+            small.get(key(i), null);
+            small.put(key(i), new Versioned<byte[]>(new byte[VALUE_SIZE]), null);
+        }
+
+        small.resetStats();
+        for(int i = 0; i < numPopular; i++)
+            small.get(key(i), null);
+        assertTrue("Hit ratio after scan " + small.getHitRatio(), small.getHitRatio() > 0.9);
+    }
+
+    public void testCounters() {
+        store.put(key(1), new Versioned<byte[]>(new byte[VALUE_SIZE]), null);
+        store.resetStats();
+        store.get(key(1), null);
+        store.get(key(1), null);
+        store.get(key(2), null);
+        assertEquals(2, store.getNumHits());
+        assertEquals(1, store.getNumMisses());
+        assertEquals(2.0 / 3, store.getHitRatio(), 0.0001);
+        assertEquals(1, store.getNumEntries());
+        assertEquals(BoundedCacheMap.weigh(key(1), store.get(key(1), null)),
+                     store.getSizeInBytes());
+    }
+
+    private ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+}
@@ -18,11 +18,17 @@ package voldemort.store.memory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import voldemort.TestUtils;
 import voldemort.store.AbstractStorageEngineTest;
 import voldemort.store.StorageEngine;
 import voldemort.utils.ByteArray;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
 
 public class InMemoryStorageEngineTest extends AbstractStorageEngineTest {
 
@@ -47,4 +53,46 @@ public class InMemoryStorageEngineTest extends AbstractStorageEngineTest {
         return keys;
     }
 
+    public void testConcurrentIncrements() throws Exception {
+        final StorageEngine<ByteArray, byte[], byte[]> engine = getStorageEngine();
+        final int numThreads = 8, numIncrements = 200;
+        final ByteArray[] keys = new ByteArray[] { new ByteArray("a".getBytes()),
+                new ByteArray("b".getBytes()) };
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        for(int t = 0; t < numThreads; t++) {
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    for(int i = 0; i < numIncrements; i++) {
+                        ByteArray key = keys[i % keys.length];
+                        while(true) {
+                            List<Versioned<byte[]>> found = engine.get(key, null);
+                            VectorClock clock = found.isEmpty() ? new VectorClock()
+                                                               : ((VectorClock) found.get(0)
+                                                                                     .getVersion()).clone();
+                            clock.incrementVersion(1, System.currentTimeMillis());
+                            try {
+                                engine.put(key, new Versioned<byte[]>(new byte[1], clock), null);
+                                break;
+                            } catch(ObsoleteVersionException e) {
+                                // lost the race, read again
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+
+        // every increment went through exactly once
+        long total = 0;
+        for(ByteArray key: keys) {
+            List<Versioned<byte[]>> found = engine.get(key, null);
+            assertEquals(1, found.size());
+            total += ((VectorClock) found.get(0).getVersion()).getMaxVersion();
+        }
+        assertEquals(numThreads * numIncrements, total);
+    }
+
 }
@@ -0,0 +1,157 @@
+package voldemort.store.memory;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import voldemort.TestUtils;
+import voldemort.VoldemortException;
+import voldemort.cluster.Node;
+import voldemort.routing.RoutingStrategy;
+import voldemort.server.VoldemortConfig;
+import voldemort.store.StorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.ConfigurationException;
+import voldemort.utils.Pair;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal tests, plus eviction and partition scans, against an
+ * {@link OffHeapStorageEngine}
+ * 
+ * 
+ */
+public class OffHeapStorageEngineTest extends InMemoryStorageEngineTest {
+
+    private static final int PAGE_SIZE = 4096;
+
+    private RoutingStrategy routingStrategy = TestUtils.makeSingleNodeRoutingStrategy();
+    private OffHeapStorageEngine store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.store = new OffHeapStorageEngine("test", routingStrategy, 1024 * 1024, 4, PAGE_SIZE);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        store.close();
+        super.tearDown();
+    }
+
+    @Override
+    public StorageEngine<ByteArray, byte[], byte[]> getStorageEngine() {
+        return store;
+    }
+
+    public void testOverwriteAndReadBack() {
+        for(int round = 0; round < 5; round++) {
+            VectorClock clock = TestUtils.getClock(1);
+            for(int i = 0; i < round; i++)
+                clock.incrementVersion(1, System.currentTimeMillis());
+            for(int i = 0; i < 500; i++)
+                store.put(key(i), new Versioned<byte[]>(("value-" + round + "-" + i).getBytes(),
+                                                        clock.clone()), null);
+        }
+        assertEquals(500, store.getNumEntries());
+        for(int i = 0; i < 500; i++) {
+            List<Versioned<byte[]>> found = store.get(key(i), null);
+            assertEquals(1, found.size());
+            assertEquals("value-4-" + i, new String(found.get(0).getValue()));
+        }
+    }
+
+    public void testEvictionBoundsMemory() {
+        OffHeapStorageEngine small = new OffHeapStorageEngine("small",
+                                                              routingStrategy,
+                                                              8 * PAGE_SIZE,
+                                                              2,
+                                                              PAGE_SIZE);
+        int numKeys = 2000;
+        for(int i = 0; i < numKeys; i++)
+            small.put(key(i), new Versioned<byte[]>(new byte[100]), null);
+
+        assertTrue(small.getNumEvictions() > 0);
+        assertEquals(numKeys, small.getNumEntries() + small.getNumEvictions());
+        // 2 segments of 4 pages, plus their hash tables
+        assertTrue(small.getAllocatedBytes() < 16 * PAGE_SIZE);
+        // the last keys written are still there, the first ones are gone
+        assertEquals(1, small.get(key(numKeys - 1), null).size());
+        assertEquals(0, small.get(key(0), null).size());
+
+        int numIterated = 0;
+        ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries = small.entries();
+        while(entries.hasNext()) {
+            Pair<ByteArray, Versioned<byte[]>> entry = entries.next();
+            assertEquals(1, small.get(entry.getFirst(), null).size());
+            numIterated++;
+        }
+        entries.close();
+        assertEquals(small.getNumEntries(), numIterated);
+        small.close();
+    }
+
+    public void testOutOfRangeSettingsRejected() {
+        VoldemortConfig config = new VoldemortConfig(0, TestUtils.createTempDir().getAbsolutePath());
+        config.setOffHeapStorePageSize(4L * 1024 * 1024 * 1024);
+        assertInvalid(config);
+
+        config.setOffHeapStorePageSize(1024 * 1024);
+        config.setOffHeapStoreSegments(16);
+        // 16 segments of 2 pages need 32MB
+        config.setOffHeapStoreMaxBytes(16 * 1024 * 1024);
+        assertInvalid(config);
+
+        config.setOffHeapStoreMaxBytes(32 * 1024 * 1024);
+        new OffHeapStorageConfiguration(config);
+    }
+
+    private void assertInvalid(VoldemortConfig config) {
+        try {
+            new OffHeapStorageConfiguration(config);
+            fail("The settings should have been rejected");
+        } catch(ConfigurationException e) {
+            // expected
+        }
+    }
+
+    public void testRecordTooLarge() {
+        try {
+            store.put(key(0), new Versioned<byte[]>(new byte[PAGE_SIZE]), null);
+            fail("A value larger than a page should not be accepted");
+        } catch(VoldemortException e) {
+            // expected
+        }
+        assertEquals(0, store.get(key(0), null).size());
+    }
+
+    public void testEntriesByPartition() {
+        int numKeys = 300;
+        for(int i = 0; i < numKeys; i++)
+            store.put(key(i), new Versioned<byte[]>(new byte[10]), null);
+        store.delete(key(0), null);
+
+        Set<ByteArray> seen = new HashSet<ByteArray>();
+        for(Node node: routingStrategy.getNodes()) {
+            for(int partition: node.getPartitionIds()) {
+                ClosableIterator<ByteArray> keys = store.keys(partition);
+                while(keys.hasNext()) {
+                    ByteArray key = keys.next();
+                    assertEquals(partition, routingStrategy.getMasterPartition(key.get())
+                                                           .intValue());
+                    assertTrue(seen.add(key));
+                }
+                keys.close();
+            }
+        }
+        assertEquals(numKeys - 1, seen.size());
+        assertFalse(seen.contains(key(0)));
+    }
+
+    private ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+}
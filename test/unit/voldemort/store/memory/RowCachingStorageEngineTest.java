@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import voldemort.TestUtils;
+import voldemort.store.AbstractStorageEngineTest;
+import voldemort.store.StorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal tests, plus the counters, the invalidation and the size
+ * bound of a {@link RowCachingStorageEngine} over an in-memory engine
+ * 
+ */
+public class RowCachingStorageEngineTest extends AbstractStorageEngineTest {
+
+    private InMemoryStorageEngine<ByteArray, byte[], byte[]> inner;
+    private RowCachingStorageEngine store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.inner = new InMemoryStorageEngine<ByteArray, byte[], byte[]>("test");
+        this.store = new RowCachingStorageEngine(inner, 16 * 1024 * 1024, 4);
+    }
+
+    @Override
+    public StorageEngine<ByteArray, byte[], byte[]> getStorageEngine() {
+        return store;
+    }
+
+    public void testRepeatedLookupsHitTheCache() {
+        store.put(key(1), new Versioned<byte[]>("a".getBytes()), null);
+        store.resetStats();
+        store.get(key(1), null);
+        store.get(key(1), null);
+        store.get(key(2), null);
+        store.get(key(2), null);
+        assertEquals(2, store.getNumHits());
+        assertEquals(2, store.getNumMisses());
+        assertEquals(0.5, store.getHitRatio(), 0.0001);
+        assertEquals(2, store.getNumEntries());
+    }
+
+    public void testWritesInvalidateTheRow() {
+        store.put(key(1), new Versioned<byte[]>("a".getBytes(), TestUtils.getClock(1)), null);
+        assertEquals("a", new String(store.get(key(1), null).get(0).getValue()));
+
+        store.put(key(1), new Versioned<byte[]>("b".getBytes(), TestUtils.getClock(1, 1)), null);
+        assertEquals("b", new String(store.get(key(1), null).get(0).getValue()));
+
+        store.delete(key(1), null);
+        assertEquals(0, store.get(key(1), null).size());
+
+        // a cached miss is dropped by a write too
+        store.multiVersionPut(key(1),
+                              Arrays.asList(new Versioned<byte[]>("c".getBytes(),
+                                                                  TestUtils.getClock(1, 1, 1))));
+        assertEquals("c", new String(store.get(key(1), null).get(0).getValue()));
+
+        store.truncate();
+        assertEquals(0, store.get(key(1), null).size());
+        assertEquals(1, store.getNumEntries());
+    }
+
+    public void testGetAllFillsTheCache() {
+        for(int i = 0; i < 10; i++)
+            store.put(key(i), new Versioned<byte[]>(("v" + i).getBytes()), null);
+        store.get(key(0), null);
+        store.resetStats();
+        Map<ByteArray, List<Versioned<byte[]>>> found = store.getAll(Arrays.asList(key(0),
+                                                                                   key(1),
+                                                                                   key(20)),
+                                                                     null);
+        assertEquals(2, found.size());
+        assertEquals("v1", new String(found.get(key(1)).get(0).getValue()));
+        assertEquals(1, store.getNumHits());
+        assertEquals(2, store.getNumMisses());
+
+        store.getAll(Arrays.asList(key(0), key(1), key(20)), null);
+        assertEquals(4, store.getNumHits());
+    }
+
+    public void testSizeIsBounded() {
+        long maxBytes = 64 * 1024;
+        RowCachingStorageEngine small = new RowCachingStorageEngine(inner, maxBytes, 2);
+        for(int i = 0; i < 5000; i++) {
+            small.put(key(i), new Versioned<byte[]>(new byte[100]), null);
+            small.get(key(i), null);
+        }
+        assertTrue(small.getSizeInBytes() <= maxBytes);
+        assertTrue(small.getNumEvictions() > 0);
+    }
+
+    /*
+     * A lookup which read the row before a write must not cache it after the
+     * write dropped the key
+     */
+    public void testLookupRacingAWriteDoesNotCacheIt() throws Exception {
+        final CountDownLatch readDone = new CountDownLatch(1);
+        final CountDownLatch writeDone = new CountDownLatch(1);
+        final InMemoryStorageEngine<ByteArray, byte[], byte[]> slow = new InMemoryStorageEngine<ByteArray, byte[], byte[]>("slow") {
+
+            @Override
+            public List<Versioned<byte[]>> get(ByteArray key, byte[] transform) {
+                List<Versioned<byte[]>> values = super.get(key, transform);
+                if(readDone.getCount() > 0) {
+                    readDone.countDown();
+                    try {
+                        writeDone.await(10, TimeUnit.SECONDS);
+                    } catch(InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return values;
+            }
+        };
+        final RowCachingStorageEngine cached = new RowCachingStorageEngine(slow, 1024 * 1024, 1);
+        cached.put(key(1), new Versioned<byte[]>("old".getBytes(), TestUtils.getClock(1)), null);
+
+        Thread reader = new Thread() {
+
+            @Override
+            public void run() {
+                cached.get(key(1), null);
+            }
+        };
+        reader.start();
+        assertTrue(readDone.await(10, TimeUnit.SECONDS));
+        cached.put(key(1), new Versioned<byte[]>("new".getBytes(), TestUtils.getClock(1, 1)), null);
+        writeDone.countDown();
+        reader.join();
+
+        assertEquals(0, cached.getNumEntries());
+        assertEquals("new", new String(cached.get(key(1), null).get(0).getValue()));
+    }
+
+    private ByteArray key(int i) {
+        return new ByteArray(("key" + i).getBytes());
+    }
+}
@@ -0,0 +1,146 @@
+package voldemort.store.readonly;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import voldemort.store.readonly.checksum.CheckSum;
+import voldemort.store.readonly.checksum.CheckSum.CheckSumType;
+import voldemort.utils.ByteUtils;
+
+/**
+ * Tests for the blocked index written by {@link BlockedIndexWriter} and
+ * searched by {@link BlockSearchStrategy}
+ * 
+ * 
+ */
+public class BlockSearchStrategyTest {
+
+    private BlockSearchStrategy strategy = new BlockSearchStrategy();
+
+    @Test
+    public void findNothingInEmptyIndex() throws IOException {
+        ByteBuffer index = makeIndex(new byte[][] {});
+        assertEquals(BlockSearchStrategy.TRAILER_SIZE, index.limit());
+        assertKeyNotFound(index, key(0));
+        assertKeyNotFound(ByteBuffer.allocate(0), key(0));
+    }
+
+    @Test
+    public void testSingleton() throws IOException {
+        ByteBuffer index = makeIndex(new byte[][] { key(42) });
+        assertEquals(BlockSearchStrategy.BLOCK_SIZE + BlockSearchStrategy.FENCE_SIZE
+                     + BlockSearchStrategy.TRAILER_SIZE, index.limit());
+        assertKeyFound(index, key(42), 0);
+        assertKeyNotFound(index, key(41));
+        assertKeyNotFound(index, key(43));
+        assertKeyNotFound(index, key(-1));
+    }
+
+    @Test
+    public void testBlockBoundaries() throws IOException {
+        int size = 3 * BlockSearchStrategy.ENTRIES_PER_BLOCK;
+        byte[][] keys = new byte[size][];
+        for(int i = 0; i < size; i++)
+            keys[i] = key(2 * i + 1);
+        ByteBuffer index = makeIndex(keys);
+        assertTrue(BlockSearchStrategy.isValidSize(index.limit()));
+        assertEquals(3, BlockSearchStrategy.getNumBlocks(index.limit()));
+        for(int i = 0; i < size; i++) {
+            assertKeyFound(index, keys[i], i);
+            assertKeyNotFound(index, key(2 * i));
+        }
+        assertKeyNotFound(index, key(2 * size + 1));
+    }
+
+    @Test
+    public void testRandomValues() throws IOException {
+        Random rand = new Random(48534543);
+        for(int size: new int[] { 100, 1000, 5000 }) {
+            byte[][] keys = new byte[size][];
+            for(int i = 0; i < size; i++) {
+                keys[i] = new byte[BlockSearchStrategy.KEY_HASH_SIZE];
+                rand.nextBytes(keys[i]);
+            }
+            Arrays.sort(keys, new Comparator<byte[]>() {
+
+                public int compare(byte[] b1, byte[] b2) {
+                    return ByteUtils.compare(b1, b2);
+                }
+            });
+            ByteBuffer index = makeIndex(keys);
+            for(int i = 0; i < size; i++)
+                assertKeyFound(index, keys[i], i);
+            for(int i = 0; i < 10; i++) {
+                byte[] key = new byte[BlockSearchStrategy.KEY_HASH_SIZE];
+                rand.nextBytes(key);
+                if(Arrays.binarySearch(keys, key, new Comparator<byte[]>() {
+
+                    public int compare(byte[] b1, byte[] b2) {
+                        return ByteUtils.compare(b1, b2);
+                    }
+                }) < 0)
+                    assertKeyNotFound(index, key);
+            }
+        }
+    }
+
+    @Test
+    public void testCheckSumCoversWholeIndex() throws IOException {
+        byte[][] keys = new byte[BlockSearchStrategy.ENTRIES_PER_BLOCK + 1][];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = key(i);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CheckSum checkSum = CheckSum.getInstance(CheckSumType.MD5);
+        BlockedIndexWriter writer = new BlockedIndexWriter(new DataOutputStream(stream), checkSum);
+        for(int i = 0; i < keys.length; i++)
+            writer.write(keys[i], i);
+        writer.finish();
+
+        CheckSum expected = CheckSum.getInstance(CheckSumType.MD5);
+        expected.update(stream.toByteArray());
+        assertTrue(Arrays.equals(expected.getCheckSum(), checkSum.getCheckSum()));
+    }
+
+    private ByteBuffer makeIndex(byte[][] sortedKeys) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        BlockedIndexWriter writer = new BlockedIndexWriter(new DataOutputStream(stream));
+        for(int i = 0; i < sortedKeys.length; i++)
+            writer.write(sortedKeys[i], i);
+        writer.finish();
+        return ByteBuffer.wrap(stream.toByteArray());
+    }
+
+    private byte[] key(long value) {
+        byte[] bytes = new byte[BlockSearchStrategy.KEY_HASH_SIZE];
+        ByteUtils.writeLong(bytes, value, 0);
+        return bytes;
+    }
+
+    private void assertKeyFound(ByteBuffer index, byte[] key, int expected) {
+        int size = index.limit();
+        assertEquals(expected, strategy.indexOf(index, key, size));
+        assertEquals(expected, strategy.indexOf(index,
+                                                BlockSearchStrategy.readFences(index, size),
+                                                BlockSearchStrategy.getNumEntries(index, size),
+                                                key));
+    }
+
+    private void assertKeyNotFound(ByteBuffer index, byte[] key) {
+        int size = index.limit();
+        assertEquals(-1, strategy.indexOf(index, key, size));
+        assertEquals(-1, strategy.indexOf(index,
+                                          BlockSearchStrategy.readFences(index, size),
+                                          BlockSearchStrategy.getNumEntries(index, size),
+                                          key));
+    }
+}
@@ -0,0 +1,165 @@
+package voldemort.store.readonly;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import voldemort.VoldemortException;
+import voldemort.store.readonly.checksum.CheckSum;
+import voldemort.store.readonly.checksum.CheckSum.CheckSumType;
+import voldemort.utils.ByteUtils;
+
+/**
+ * Tests for {@link BloomFilter}
+ * 
+ * 
+ */
+public class BloomFilterTest {
+
+    private static final int NUM_KEYS = 10000;
+
+    private Random random = new Random(5437823);
+
+    @Test
+    public void testNoFalseNegatives() {
+        byte[][] keys = randomKeys(NUM_KEYS, 8);
+        BloomFilter filter = BloomFilter.create(NUM_KEYS, BloomFilter.DEFAULT_BITS_PER_KEY);
+        for(byte[] key: keys)
+            filter.add(key);
+        for(byte[] key: keys)
+            assertTrue(filter.mightContain(key));
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        BloomFilter filter = BloomFilter.create(NUM_KEYS, BloomFilter.DEFAULT_BITS_PER_KEY);
+        Set<Long> added = new HashSet<Long>();
+        for(byte[] key: randomKeys(NUM_KEYS, 8)) {
+            filter.add(key);
+            added.add(ByteUtils.readLong(key, 0));
+        }
+        int falsePositives = 0, misses = 0;
+        for(byte[] key: randomKeys(NUM_KEYS, 8)) {
+            if(added.contains(ByteUtils.readLong(key, 0)))
+                continue;
+            misses++;
+            if(filter.mightContain(key))
+                falsePositives++;
+        }
+        // about 1% is expected at 10 bits per key
+        assertTrue("False positive rate too high: " + falsePositives + " of " + misses,
+                   falsePositives < misses * 0.03);
+    }
+
+    @Test
+    public void testEmptyFilter() {
+        BloomFilter filter = BloomFilter.create(0, BloomFilter.DEFAULT_BITS_PER_KEY);
+        assertEquals(64, filter.getNumBits());
+        for(byte[] key: randomKeys(100, 16))
+            assertFalse(filter.mightContain(key));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        byte[][] keys = randomKeys(1000, 16);
+        BloomFilter filter = BloomFilter.create(keys.length, 8);
+        for(byte[] key: keys)
+            filter.add(key);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CheckSum checkSum = CheckSum.getInstance(CheckSumType.MD5);
+        filter.writeTo(new DataOutputStream(stream), checkSum);
+        byte[] bytes = stream.toByteArray();
+
+        CheckSum expected = CheckSum.getInstance(CheckSumType.MD5);
+        expected.update(bytes);
+        assertTrue(Arrays.equals(expected.getCheckSum(), checkSum.getCheckSum()));
+
+        BloomFilter read = BloomFilter.read(ByteBuffer.wrap(bytes));
+        assertEquals(filter.getNumBits(), read.getNumBits());
+        assertEquals(filter.getNumHashes(), read.getNumHashes());
+        for(byte[] key: keys)
+            assertTrue(read.mightContain(key));
+        for(byte[] key: randomKeys(1000, 16))
+            assertEquals(filter.mightContain(key), read.mightContain(key));
+
+        try {
+            BloomFilter.read(ByteBuffer.wrap(bytes, 0, bytes.length - 1).slice());
+            fail("Truncated filter should not be readable");
+        } catch(VoldemortException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFromFlatIndex() throws IOException {
+        byte[][] keys = sortedKeys(1000);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(stream);
+        for(int i = 0; i < keys.length; i++) {
+            out.write(keys[i]);
+            out.writeInt(i);
+        }
+        assertFromIndex(keys, stream.toByteArray(), false);
+    }
+
+    @Test
+    public void testFromBlockedIndex() throws IOException {
+        byte[][] keys = sortedKeys(3 * BlockSearchStrategy.ENTRIES_PER_BLOCK + 10);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        BlockedIndexWriter writer = new BlockedIndexWriter(new DataOutputStream(stream));
+        for(int i = 0; i < keys.length; i++)
+            writer.write(keys[i], i);
+        writer.finish();
+        assertFromIndex(keys, stream.toByteArray(), true);
+    }
+
+    private void assertFromIndex(byte[][] keys, byte[] index, boolean blocked)
+            throws IOException {
+        BloomFilter filter = BloomFilter.fromIndex(new DataInputStream(new ByteArrayInputStream(index)),
+                                                   keys.length,
+                                                   8,
+                                                   blocked,
+                                                   BloomFilter.DEFAULT_BITS_PER_KEY);
+        for(byte[] key: keys)
+            assertTrue(filter.mightContain(key));
+        int falsePositives = 0;
+        for(byte[] key: randomKeys(1000, 8))
+            if(filter.mightContain(key))
+                falsePositives++;
+        assertTrue(falsePositives < 50);
+    }
+
+    private byte[][] sortedKeys(int numKeys) {
+        byte[][] keys = randomKeys(numKeys, 8);
+        Arrays.sort(keys, new Comparator<byte[]>() {
+
+            public int compare(byte[] b1, byte[] b2) {
+                return ByteUtils.compare(b1, b2);
+            }
+        });
+        return keys;
+    }
+
+    private byte[][] randomKeys(int numKeys, int size) {
+        byte[][] keys = new byte[numKeys][size];
+        for(int i = 0; i < numKeys; i++)
+            random.nextBytes(keys[i]);
+        return keys;
+    }
+}
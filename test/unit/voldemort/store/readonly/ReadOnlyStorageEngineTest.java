@@ -18,6 +18,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -42,6 +44,7 @@ import voldemort.serialization.SerializerDefinition;
 import voldemort.serialization.SerializerFactory;
 import voldemort.store.Store;
 import voldemort.store.StoreDefinition;
+import voldemort.store.readonly.chunk.ChunkedFileSet;
 import voldemort.utils.ByteArray;
 import voldemort.utils.ClosableIterator;
 import voldemort.utils.Pair;
@@ -154,6 +157,142 @@ public class ReadOnlyStorageEngineTest {
         testData.delete();
     }
 
+    /**
+     * Values bigger than the read buffer of the chunked file set should be
+     * read in one piece
+     */
+    @Test
+    public void canGetLargeValues() throws Exception {
+        ReadOnlyStorageEngineTestInstance testData = ReadOnlyStorageEngineTestInstance.create(strategy,
+                                                                                              dir,
+                                                                                              TEST_SIZE / 10,
+                                                                                              2,
+                                                                                              2,
+                                                                                              serDef,
+                                                                                              serDef,
+                                                                                              storageType,
+                                                                                              20 * 1024);
+        for(Map.Entry<String, String> entry: testData.getData().entrySet()) {
+            for(Node node: testData.routeRequest(entry.getKey())) {
+                Store<String, String, String> store = testData.getNodeStores().get(node.getId());
+                List<Versioned<String>> found = store.get(entry.getKey(), null);
+                assertEquals("Lookup failure for '" + entry.getKey() + "' for node "
+                             + node.getId() + ".", 1, found.size());
+                assertEquals(entry.getValue(), found.get(0).getValue());
+            }
+        }
+
+        testData.delete();
+    }
+
+    /**
+     * A store built with a blocked index should return the same values as a
+     * V2 store, whatever the configured search strategy
+     */
+    @Test
+    public void canGetGoodValuesFromBlockedIndex() throws Exception {
+        // The blocked index only exists for the replica chunk layout
+        if(storageType != ReadOnlyStorageFormat.READONLY_V2)
+            return;
+
+        ReadOnlyStorageEngineTestInstance testData = ReadOnlyStorageEngineTestInstance.create(strategy,
+                                                                                              dir,
+                                                                                              TEST_SIZE * 20,
+                                                                                              2,
+                                                                                              2,
+                                                                                              serDef,
+                                                                                              serDef,
+                                                                                              ReadOnlyStorageFormat.READONLY_V3);
+        for(Map.Entry<String, String> entry: testData.getData().entrySet()) {
+            for(Node node: testData.routeRequest(entry.getKey())) {
+                Store<String, String, String> store = testData.getNodeStores().get(node.getId());
+                List<Versioned<String>> found = store.get(entry.getKey(), null);
+                assertEquals("Lookup failure for '" + entry.getKey() + "' for node "
+                             + node.getId() + ".", 1, found.size());
+                assertEquals(entry.getValue(), found.get(0).getValue());
+            }
+        }
+        for(ReadOnlyStorageEngine engine: testData.getReadOnlyStores().values()) {
+            assertTrue(engine.getNumBloomFilters() > 0);
+            assertEquals(0, engine.get(new ByteArray("not-a-key".getBytes()), null).size());
+            engine.close();
+            assertEquals(0, engine.getNumBloomFilters());
+        }
+
+        testData.delete();
+    }
+
+    /**
+     * A store with memory mapped data files should return the same values as
+     * one reading through the file channels
+     */
+    @Test
+    public void canGetGoodValuesFromMappedDataFiles() throws Exception {
+        ReadOnlyStorageEngineTestInstance testData = ReadOnlyStorageEngineTestInstance.create(strategy,
+                                                                                              dir,
+                                                                                              TEST_SIZE,
+                                                                                              2,
+                                                                                              2,
+                                                                                              serDef,
+                                                                                              serDef,
+                                                                                              storageType);
+        @SuppressWarnings("unchecked")
+        Serializer<String> keySerializer = (Serializer<String>) new DefaultSerializerFactory().getSerializer(serDef);
+        for(Map.Entry<Integer, ReadOnlyStorageEngine> storeEntry: testData.getReadOnlyStores()
+                                                                          .entrySet()) {
+            ReadOnlyStorageEngine engine = storeEntry.getValue();
+            ReadOnlyStorageEngine mappedEngine = new ReadOnlyStorageEngine("test",
+                                                                           strategy,
+                                                                           testData.getRoutingStrategy(),
+                                                                           storeEntry.getKey(),
+                                                                           new File(engine.getStoreDirPath()),
+                                                                           1,
+                                                                           0,
+                                                                           false,
+                                                                           true);
+            assertTrue(mappedEngine.isDataFilesMapped());
+            for(String key: testData.getData().keySet()) {
+                ByteArray keyBytes = new ByteArray(keySerializer.toBytes(key));
+                List<Versioned<byte[]>> expected = engine.get(keyBytes, null);
+                List<Versioned<byte[]>> found = mappedEngine.get(keyBytes, null);
+                assertEquals(expected.size(), found.size());
+                if(expected.size() > 0)
+                    assertTrue(Arrays.equals(expected.get(0).getValue(), found.get(0).getValue()));
+            }
+            mappedEngine.close();
+        }
+
+        testData.delete();
+    }
+
+    /**
+     * Values bigger than the first read of a lookup, but within the read
+     * buffer, should be completed with a second read
+     */
+    @Test
+    public void canGetValuesLargerThanFirstRead() throws Exception {
+        ReadOnlyStorageEngineTestInstance testData = ReadOnlyStorageEngineTestInstance.create(strategy,
+                                                                                              dir,
+                                                                                              TEST_SIZE / 10,
+                                                                                              2,
+                                                                                              2,
+                                                                                              serDef,
+                                                                                              serDef,
+                                                                                              storageType,
+                                                                                              2 * 1024);
+        for(Map.Entry<String, String> entry: testData.getData().entrySet()) {
+            for(Node node: testData.routeRequest(entry.getKey())) {
+                Store<String, String, String> store = testData.getNodeStores().get(node.getId());
+                List<Versioned<String>> found = store.get(entry.getKey(), null);
+                assertEquals("Lookup failure for '" + entry.getKey() + "' for node "
+                             + node.getId() + ".", 1, found.size());
+                assertEquals(entry.getValue(), found.get(0).getValue());
+            }
+        }
+
+        testData.delete();
+    }
+
     @Test
     public void canGetGoodCompressedValues() throws Exception {
         ReadOnlyStorageEngineTestInstance testData = ReadOnlyStorageEngineTestInstance.create(strategy,
@@ -248,6 +387,32 @@ public class ReadOnlyStorageEngineTest {
                                                                                               serDef,
                                                                                               serDef,
                                                                                               storageType);
+        assertMultigetGoodValues(testData);
+        testData.delete();
+    }
+
+    @Test
+    public void canMultigetGoodValuesInParallel() throws Exception {
+        ReadOnlyStorageEngineTestInstance testData = ReadOnlyStorageEngineTestInstance.create(strategy,
+                                                                                              dir,
+                                                                                              TEST_SIZE,
+                                                                                              2,
+                                                                                              2,
+                                                                                              serDef,
+                                                                                              serDef,
+                                                                                              storageType);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for(ReadOnlyStorageEngine engine: testData.getReadOnlyStores().values())
+                engine.setGetAllExecutor(executor, 4);
+            assertMultigetGoodValues(testData);
+        } finally {
+            executor.shutdown();
+        }
+        testData.delete();
+    }
+
+    private void assertMultigetGoodValues(ReadOnlyStorageEngineTestInstance testData) {
         Set<String> keys = testData.getData().keySet();
         Set<String> gotten = new HashSet<String>();
         for(Map.Entry<Integer, Store<String, String, String>> entry: testData.getNodeStores()
@@ -268,7 +433,6 @@ public class ReadOnlyStorageEngineTest {
             }
         }
         assertEquals(keys, gotten);
-        testData.delete();
     }
 
     @Test
@@ -356,6 +520,38 @@ public class ReadOnlyStorageEngineTest {
 
     }
 
+    @Test
+    public void testSwapKeepsFileSetOpenForReaders() throws Exception {
+        File versionDir = new File(dir, "version-0");
+        createStoreFiles(versionDir, this.indexEntrySize * 5, 4 * 5 * 10, this.node, 2);
+
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test",
+                                                                 strategy,
+                                                                 routingStrategy,
+                                                                 0,
+                                                                 dir,
+                                                                 2);
+        ChunkedFileSet fileSet = engine.getChunkedFileSet();
+
+        // pin the file set as a get in flight would
+        assertTrue(fileSet.acquire());
+
+        File newDirv1 = new File(dir, "version-1");
+        createStoreFiles(newDirv1, 0, 0, this.node, 2);
+        engine.swapFiles(newDirv1.getAbsolutePath());
+        assertTrue(engine.getChunkedFileSet() != fileSet);
+
+        // the replaced file set stays open until the reader is done
+        assertTrue(fileSet.dataFileFor(0).isOpen());
+        fileSet.release();
+        assertFalse(fileSet.dataFileFor(0).isOpen());
+        assertFalse(fileSet.acquire());
+
+        // the new file set keeps serving gets
+        assertEquals(0, engine.get(new ByteArray("abc".getBytes()), null).size());
+        engine.close();
+    }
+
     @Test
     public void testSwapRollbackFail() throws IOException {
         ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test",
@@ -62,11 +62,11 @@ public class ReadOnlyStorageEngineTestInstance {
         Utils.rm(this.baseDir);
     }
 
-    private static Map<String, String> createTestData(int testSize) {
+    private static Map<String, String> createTestData(int testSize, int valueSize) {
         Map<String, String> data = new HashMap<String, String>(testSize);
         for(int i = 0; i < testSize; i++) {
             String letters = TestUtils.randomLetters(10);
-            data.put(letters, letters);
+            data.put(letters, letters + TestUtils.randomLetters(valueSize - letters.length()));
         }
         return data;
     }
@@ -92,8 +92,28 @@ public class ReadOnlyStorageEngineTestInstance {
                                                            SerializerDefinition valueSerDef,
                                                            ReadOnlyStorageFormat type)
             throws Exception {
+        return create(strategy,
+                      baseDir,
+                      testSize,
+                      numNodes,
+                      repFactor,
+                      keySerDef,
+                      valueSerDef,
+                      type,
+                      10);
+    }
+
+    public static ReadOnlyStorageEngineTestInstance create(SearchStrategy strategy,
+                                                           File baseDir,
+                                                           int testSize,
+                                                           int numNodes,
+                                                           int repFactor,
+                                                           SerializerDefinition keySerDef,
+                                                           SerializerDefinition valueSerDef,
+                                                           ReadOnlyStorageFormat type,
+                                                           int valueSize) throws Exception {
         // create some test data
-        Map<String, String> data = createTestData(testSize);
+        Map<String, String> data = createTestData(testSize, valueSize);
         JsonReader reader = makeTestDataReader(data, baseDir);
 
         // set up definitions for cluster and store
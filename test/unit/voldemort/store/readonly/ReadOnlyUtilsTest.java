@@ -18,6 +18,7 @@ package voldemort.store.readonly;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import junit.framework.TestCase;
 
@@ -49,6 +50,20 @@ public class ReadOnlyUtilsTest extends TestCase {
         assertEquals(ReadOnlyUtils.getPartitionReplicaTuple("5_310_10.data"), Pair.create(5, 310));
     }
 
+    @Test
+    public void testCompareInBuffer() {
+        byte[] stored = new byte[] { 1, 2, (byte) 0xff, 4 };
+        ByteBuffer buffer = ByteBuffer.allocate(stored.length + 2);
+        buffer.position(2);
+        buffer.put(stored);
+
+        assertEquals(0, ReadOnlyUtils.compare(buffer, 2, stored));
+        assertEquals(1, ReadOnlyUtils.compare(buffer, 2, new byte[] { 1, 2, 3, 4 }));
+        assertEquals(-1, ReadOnlyUtils.compare(buffer, 2, new byte[] { 1, 3, 0, 0 }));
+        assertEquals(ByteUtils.compare(stored, new byte[] { 1, 2, 0x7f, 4 }),
+                     ReadOnlyUtils.compare(buffer, 2, new byte[] { 1, 2, 0x7f, 4 }));
+    }
+
     @Test
     public void testIsFormatCorrect() {
         Logger.getRootLogger().removeAllAppenders();
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.routed;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import voldemort.MockTime;
+import voldemort.cluster.Node;
+
+/**
+ * Tests for {@link ReplicaRanker}
+ * 
+ */
+public class ReplicaRankerTest {
+
+    private MockTime time;
+    private ReplicaRanker ranker;
+    private Node node0;
+    private Node node1;
+    private Node node2;
+
+    @Before
+    public void setUp() {
+        time = new MockTime(1000);
+        ranker = new ReplicaRanker(0.5, 1000, time);
+        node0 = new Node(0, "localhost", 6666, 6667, 6668, asList(0));
+        node1 = new Node(1, "localhost", 7666, 7667, 7668, asList(1));
+        node2 = new Node(2, "localhost", 8666, 8667, 8668, asList(2));
+    }
+
+    private void recordRequest(Node node, long requestTimeMs) {
+        ranker.requestStarted(node);
+        ranker.requestComplete(node, requestTimeMs);
+    }
+
+    @Test
+    public void testUnknownNodesKeepOrder() {
+        List<Node> nodes = asList(node0, node1, node2);
+        assertEquals(nodes, ranker.rank(nodes));
+    }
+
+    @Test
+    public void testFasterNodesFirst() {
+        recordRequest(node0, 50);
+        recordRequest(node1, 10);
+        recordRequest(node2, 20);
+        assertEquals(asList(node1, node2, node0), ranker.rank(asList(node0, node1, node2)));
+    }
+
+    @Test
+    public void testMovingAverage() {
+        recordRequest(node0, 100);
+        recordRequest(node1, 40);
+        assertEquals(node1, ranker.rank(asList(node0, node1)).get(0));
+
+        // with alpha 0.5 the average of node 0 drops to 50, then 25
+        recordRequest(node0, 0);
+        recordRequest(node0, 0);
+        assertEquals(node0, ranker.rank(asList(node0, node1)).get(0));
+        assertEquals(26, ranker.getScore(node0), 0.001);
+    }
+
+    @Test
+    public void testOutstandingRequests() {
+        recordRequest(node0, 10);
+        recordRequest(node1, 10);
+
+        // three requests still waiting on node 0
+        ranker.requestStarted(node0);
+        ranker.requestStarted(node0);
+        ranker.requestStarted(node0);
+        assertEquals(asList(node1, node0), ranker.rank(asList(node0, node1)));
+        assertEquals(44, ranker.getScore(node0), 0.001);
+
+        ranker.requestComplete(node0, 10);
+        ranker.requestComplete(node0, 10);
+        ranker.requestComplete(node0, 10);
+        assertEquals(asList(node0, node1), ranker.rank(asList(node0, node1)));
+    }
+
+    @Test
+    public void testIdleNodesDecay() {
+        recordRequest(node0, 1000);
+        recordRequest(node1, 100);
+        assertEquals(asList(node1, node0), ranker.rank(asList(node0, node1)));
+
+        // node 1 keeps getting requests, node 0 halves every second
+        for(int i = 0; i < 5; i++) {
+            time.addMilliseconds(1000);
+            recordRequest(node1, 100);
+        }
+        assertTrue(ranker.getScore(node0) < ranker.getScore(node1));
+        assertEquals(asList(node0, node1), ranker.rank(asList(node0, node1)));
+    }
+}
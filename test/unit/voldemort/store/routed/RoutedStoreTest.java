@@ -42,6 +42,7 @@ import voldemort.ServerTestUtils;
 import voldemort.TestUtils;
 import voldemort.VoldemortException;
 import voldemort.VoldemortTestConstants;
+import voldemort.client.HedgedReads;
 import voldemort.client.RoutingTier;
 import voldemort.client.TimeoutConfig;
 import voldemort.cluster.Cluster;
@@ -57,6 +58,7 @@ import voldemort.routing.RoutingStrategyFactory;
 import voldemort.routing.RoutingStrategyType;
 import voldemort.serialization.SerializerDefinition;
 import voldemort.store.AbstractByteArrayStoreTest;
+import voldemort.store.DelegatingStore;
 import voldemort.store.FailingReadsStore;
 import voldemort.store.FailingStore;
 import voldemort.store.InsufficientOperationalNodesException;
@@ -65,6 +67,7 @@ import voldemort.store.SleepyStore;
 import voldemort.store.Store;
 import voldemort.store.StoreDefinition;
 import voldemort.store.StoreDefinitionBuilder;
+import voldemort.store.StoreOperationFailureException;
 import voldemort.store.UnreachableStoreException;
 import voldemort.store.memory.InMemoryStorageEngine;
 import voldemort.store.slop.strategy.HintedHandoffStrategyType;
@@ -75,6 +78,7 @@ import voldemort.utils.ByteArray;
 import voldemort.utils.ByteUtils;
 import voldemort.utils.Time;
 import voldemort.utils.Utils;
+import voldemort.versioning.ObsoleteVersionException;
 import voldemort.versioning.Occurred;
 import voldemort.versioning.VectorClock;
 import voldemort.versioning.VectorClockInconsistencyResolver;
@@ -735,6 +739,94 @@ public class RoutedStoreTest extends AbstractByteArrayStoreTest {
                      copy.compare(found.get(0).getVersion()));
     }
 
+    @Test
+    public void testPutAllWithFailingNode() throws Exception {
+        cluster = getNineNodeCluster();
+        Map<ByteArray, Versioned<byte[]>> entries = Maps.newHashMap();
+        for(int i = 0; i < 50; i++)
+            entries.put(TestUtils.toByteArray("key" + i), new Versioned<byte[]>(getValue()));
+
+        // three replicas, two required writes: one failing node is tolerated,
+        // also when it is the master
+        RoutedStore routedStore = getStore(cluster, 1, 2, 4, 1);
+        assertEquals(0, routedStore.putAll(entries, null).size());
+        for(ByteArray key: entries.keySet()) {
+            assertEquals(1, routedStore.get(key, null).size());
+            assertEquals("Version not incremented properly",
+                         Occurred.BEFORE,
+                         new VectorClock().compare(entries.get(key).getVersion()));
+        }
+
+        // with a second failing node, keys on both failing nodes fail
+        routedStore = getStore(cluster, 1, 2, 4, 2);
+        List<Node> failingNodes = Lists.newArrayList(Iterables.limit(cluster.getNodes(), 2));
+        RoutingStrategy routingStrategy = new RoutingStrategyFactory().updateRoutingStrategy(storeDef,
+                                                                                              cluster);
+        Map<ByteArray, VoldemortException> failures = routedStore.putAll(entries, null);
+        assertTrue(failures.size() > 0);
+        for(ByteArray key: entries.keySet()) {
+            boolean onFailingNodes = routingStrategy.routeRequest(key.get())
+                                                    .containsAll(failingNodes);
+            assertEquals(onFailingNodes, failures.containsKey(key));
+            if(onFailingNodes)
+                assertTrue(failures.get(key) instanceof InsufficientOperationalNodesException);
+        }
+    }
+
+    @Test
+    public void testPutAllWithLostResponses() throws Exception {
+        cluster = getNineNodeCluster();
+        Map<Integer, Store<ByteArray, byte[], byte[]>> subStores = Maps.newHashMap();
+        for(Node node: cluster.getNodes()) {
+            // the batch is written, but the response never arrives
+            subStores.put(node.getId(),
+                          new DelegatingStore<ByteArray, byte[], byte[]>(new InMemoryStorageEngine<ByteArray, byte[], byte[]>("test")) {
+
+                              @Override
+                              public Map<ByteArray, VoldemortException> putAll(Map<ByteArray, Versioned<byte[]>> entries,
+                                                                               Map<ByteArray, byte[]> transforms) {
+                                  super.putAll(entries, transforms);
+                                  throw new StoreOperationFailureException("Response lost");
+                              }
+                          });
+        }
+        setFailureDetector(subStores);
+        storeDef = ServerTestUtils.getStoreDef("test",
+                                               3,
+                                               1,
+                                               1,
+                                               2,
+                                               2,
+                                               RoutingStrategyType.CONSISTENT_STRATEGY);
+        routedStoreThreadPool = Executors.newFixedThreadPool(4);
+        RoutedStore routedStore = createFactory().create(cluster,
+                                                         storeDef,
+                                                         subStores,
+                                                         failureDetector,
+                                                         createConfig(BANNAGE_PERIOD));
+
+        Map<ByteArray, Versioned<byte[]>> entries = Maps.newHashMap();
+        for(int i = 0; i < 20; i++)
+            entries.put(TestUtils.toByteArray("key" + i), new Versioned<byte[]>(getValue()));
+
+        // the retried puts are obsolete, but the keys were written
+        assertEquals(0, routedStore.putAll(entries, null).size());
+        for(ByteArray key: entries.keySet()) {
+            List<Versioned<byte[]>> found = routedStore.get(key, null);
+            assertEquals(1, found.size());
+            assertEquals(Occurred.BEFORE, new VectorClock().compare(entries.get(key).getVersion()));
+        }
+
+        // a retry that is obsolete because of another write still fails
+        Map<ByteArray, Versioned<byte[]>> stale = Maps.newHashMap();
+        for(ByteArray key: entries.keySet())
+            stale.put(key, new Versioned<byte[]>("stale".getBytes()));
+        Map<ByteArray, VoldemortException> failures = routedStore.putAll(stale, null);
+        assertEquals(stale.keySet(), failures.keySet());
+        for(VoldemortException e: failures.values())
+            assertTrue(e instanceof ObsoleteVersionException);
+    }
+
     @Test
     public void testObsoleteMasterFails() {
         // write me
@@ -1870,6 +1962,182 @@ public class RoutedStoreTest extends AbstractByteArrayStoreTest {
         }
     }
 
+    @Test
+    public void testHedgedGet() throws Exception {
+        int timeout = 2000;
+        int slowDelay = 1000;
+        StoreDefinition definition = new StoreDefinitionBuilder().setName("test")
+                                                                 .setType("foo")
+                                                                 .setKeySerializer(new SerializerDefinition("test"))
+                                                                 .setValueSerializer(new SerializerDefinition("test"))
+                                                                 .setRoutingPolicy(RoutingTier.CLIENT)
+                                                                 .setRoutingStrategyType(RoutingStrategyType.CONSISTENT_STRATEGY)
+                                                                 .setReplicationFactor(3)
+                                                                 .setPreferredReads(1)
+                                                                 .setRequiredReads(1)
+                                                                 .setPreferredWrites(3)
+                                                                 .setRequiredWrites(3)
+                                                                 .build();
+        List<Node> nodes = new ArrayList<Node>();
+        for(int i = 0; i < 3; i++)
+            nodes.add(new Node(i, "none", 0, 0, 0, Arrays.asList(i)));
+        Cluster cluster = new Cluster("test", nodes);
+
+        // the first node in the preference list is slow
+        ByteArray key = new ByteArray("test".getBytes());
+        int slowNode = new RoutingStrategyFactory().updateRoutingStrategy(definition, cluster)
+                                                   .routeRequest(key.get())
+                                                   .get(0)
+                                                   .getId();
+
+        Map<Integer, Store<ByteArray, byte[], byte[]>> stores = new HashMap<Integer, Store<ByteArray, byte[], byte[]>>();
+        Versioned<byte[]> value = new Versioned<byte[]>(aValue);
+        for(int i = 0; i < 3; i++) {
+            Store<ByteArray, byte[], byte[]> store = new InMemoryStorageEngine<ByteArray, byte[], byte[]>("test");
+            store.put(key, value, null);
+            if(i == slowNode)
+                store = new SleepyStore<ByteArray, byte[], byte[]>(slowDelay, store);
+            stores.put(i, store);
+        }
+
+        setFailureDetector(stores);
+
+        routedStoreThreadPool = Executors.newFixedThreadPool(3);
+        RoutedStoreFactory routedStoreFactory = createFactory();
+
+        // without hedging the get waits for the slow node
+        RoutedStore routedStore = routedStoreFactory.create(cluster,
+                                                            definition,
+                                                            stores,
+                                                            failureDetector,
+                                                            createConfig(timeout));
+        long start = System.nanoTime();
+        assertEquals(1, routedStore.get(key, null).size());
+        long elapsed = (System.nanoTime() - start) / Time.NS_PER_MS;
+        assertTrue(elapsed + " >= " + slowDelay, elapsed >= slowDelay);
+
+        // a hedge request to the next node answers long before it
+        routedStore = routedStoreFactory.create(cluster,
+                                                definition,
+                                                stores,
+                                                failureDetector,
+                                                createConfig(timeout).setHedgedReads(new HedgedReads(true,
+                                                                                                     95,
+                                                                                                     20,
+                                                                                                     100)));
+        start = System.nanoTime();
+        List<Versioned<byte[]>> found = routedStore.get(key, null);
+        elapsed = (System.nanoTime() - start) / Time.NS_PER_MS;
+        assertEquals(1, found.size());
+        assertTrue(Arrays.equals(aValue, found.get(0).getValue()));
+        assertTrue(elapsed + " < " + slowDelay, elapsed < slowDelay);
+
+        // with no hedging budget the get waits again
+        routedStore = routedStoreFactory.create(cluster,
+                                                definition,
+                                                stores,
+                                                failureDetector,
+                                                createConfig(timeout).setHedgedReads(new HedgedReads(true,
+                                                                                                     95,
+                                                                                                     20,
+                                                                                                     0)));
+        start = System.nanoTime();
+        assertEquals(1, routedStore.get(key, null).size());
+        elapsed = (System.nanoTime() - start) / Time.NS_PER_MS;
+        assertTrue(elapsed + " >= " + slowDelay, elapsed >= slowDelay);
+
+        // when the required reads are in by the hedge delay no hedge is sent,
+        // and the get still waits for every preferred node
+        definition = new StoreDefinitionBuilder().setName("test")
+                                                 .setType("foo")
+                                                 .setKeySerializer(new SerializerDefinition("test"))
+                                                 .setValueSerializer(new SerializerDefinition("test"))
+                                                 .setRoutingPolicy(RoutingTier.CLIENT)
+                                                 .setRoutingStrategyType(RoutingStrategyType.CONSISTENT_STRATEGY)
+                                                 .setReplicationFactor(3)
+                                                 .setPreferredReads(2)
+                                                 .setRequiredReads(1)
+                                                 .setPreferredWrites(3)
+                                                 .setRequiredWrites(3)
+                                                 .build();
+        routedStore = routedStoreFactory.create(cluster,
+                                                definition,
+                                                stores,
+                                                failureDetector,
+                                                createConfig(timeout).setHedgedReads(new HedgedReads(true,
+                                                                                                     95,
+                                                                                                     20,
+                                                                                                     100)));
+        start = System.nanoTime();
+        // the value of each of the two preferred nodes
+        assertEquals(2, routedStore.get(key, null).size());
+        elapsed = (System.nanoTime() - start) / Time.NS_PER_MS;
+        assertTrue(elapsed + " >= " + slowDelay, elapsed >= slowDelay);
+    }
+
+    @Test
+    public void testReplicaRanking() throws Exception {
+        int slowDelay = 500;
+        StoreDefinition definition = new StoreDefinitionBuilder().setName("test")
+                                                                 .setType("foo")
+                                                                 .setKeySerializer(new SerializerDefinition("test"))
+                                                                 .setValueSerializer(new SerializerDefinition("test"))
+                                                                 .setRoutingPolicy(RoutingTier.CLIENT)
+                                                                 .setRoutingStrategyType(RoutingStrategyType.CONSISTENT_STRATEGY)
+                                                                 .setReplicationFactor(3)
+                                                                 .setPreferredReads(1)
+                                                                 .setRequiredReads(1)
+                                                                 .setPreferredWrites(3)
+                                                                 .setRequiredWrites(3)
+                                                                 .build();
+        List<Node> nodes = new ArrayList<Node>();
+        for(int i = 0; i < 3; i++)
+            nodes.add(new Node(i, "none", 0, 0, 0, Arrays.asList(i)));
+        Cluster cluster = new Cluster("test", nodes);
+
+        // the first node in the preference list is slow
+        ByteArray key = new ByteArray("test".getBytes());
+        int slowNode = new RoutingStrategyFactory().updateRoutingStrategy(definition, cluster)
+                                                   .routeRequest(key.get())
+                                                   .get(0)
+                                                   .getId();
+
+        Map<Integer, Store<ByteArray, byte[], byte[]>> stores = new HashMap<Integer, Store<ByteArray, byte[], byte[]>>();
+        for(int i = 0; i < 3; i++) {
+            Store<ByteArray, byte[], byte[]> store = new InMemoryStorageEngine<ByteArray, byte[], byte[]>("test");
+            store.put(key, new Versioned<byte[]>(aValue), null);
+            if(i == slowNode)
+                store = new SleepyStore<ByteArray, byte[], byte[]>(slowDelay, store);
+            stores.put(i, store);
+        }
+
+        setFailureDetector(stores);
+
+        routedStoreThreadPool = Executors.newFixedThreadPool(3);
+        RoutedStoreFactory routedStoreFactory = createFactory();
+        RoutedStore routedStore = routedStoreFactory.create(cluster,
+                                                            definition,
+                                                            stores,
+                                                            failureDetector,
+                                                            createConfig(2000).setReplicaRanking(true));
+
+        // nothing is known about the nodes yet, so the first get goes to the
+        // slow node...
+        long start = System.nanoTime();
+        assertEquals(1, routedStore.get(key, null).size());
+        long elapsed = (System.nanoTime() - start) / Time.NS_PER_MS;
+        assertTrue(elapsed + " >= " + slowDelay, elapsed >= slowDelay);
+
+        // ...and the next ones avoid it
+        for(int i = 0; i < 5; i++) {
+            start = System.nanoTime();
+            assertEquals(1, routedStore.get(key, null).size());
+            assertEquals(1, routedStore.getVersions(key).size());
+            elapsed = (System.nanoTime() - start) / Time.NS_PER_MS;
+            assertTrue(elapsed + " < " + slowDelay, elapsed < slowDelay);
+        }
+    }
+
     @Test
     public void testGetAndPutTimeoutZZZ() throws Exception {
         int timeout = 50;
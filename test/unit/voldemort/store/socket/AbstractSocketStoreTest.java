@@ -18,8 +18,11 @@ package voldemort.store.socket;
 
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
@@ -73,7 +76,7 @@ public abstract class AbstractSocketStoreTest extends AbstractByteArrayStoreTest
     public void setUp() throws Exception {
         super.setUp();
         this.socketPort = ServerTestUtils.findFreePort();
-        socketStoreFactory = new ClientRequestExecutorPool(2, 10000, 100000, 32 * 1024);
+        socketStoreFactory = createSocketStoreFactory();
         socketService = ServerTestUtils.getSocketService(useNio,
                                                          VoldemortTestConstants.getOneNodeClusterXml(),
                                                          VoldemortTestConstants.getSimpleStoreDefinitionsXml(),
@@ -100,6 +103,18 @@ public abstract class AbstractSocketStoreTest extends AbstractByteArrayStoreTest
         return socketStore;
     }
 
+    protected SocketStoreFactory getSocketStoreFactory() {
+        return socketStoreFactory;
+    }
+
+    protected SocketStoreFactory createSocketStoreFactory() {
+        return new ClientRequestExecutorPool(2, 10000, 100000, 32 * 1024);
+    }
+
+    protected int getSocketPort() {
+        return socketPort;
+    }
+
     @Test
     public void testVeryLargeValues() throws Exception {
         final Store<ByteArray, byte[], byte[]> store = getStore();
@@ -115,6 +130,34 @@ public abstract class AbstractSocketStoreTest extends AbstractByteArrayStoreTest
         }
     }
 
+    @Test
+    public void testLargeValueContents() throws Exception {
+        // values around and well above the server socket buffer size, which
+        // the nio server sends without copying them into its output buffer
+        final Store<ByteArray, byte[], byte[]> store = getStore();
+        int[] sizes = { 9999, 10000, 10001, 100 * 1024 };
+        List<ByteArray> keys = new ArrayList<ByteArray>();
+        List<byte[]> values = new ArrayList<byte[]>();
+        for(int i = 0; i < sizes.length; i++) {
+            ByteArray key = new ByteArray(("large-" + i).getBytes());
+            byte[] value = TestUtils.randomBytes(sizes[i]);
+            store.put(key, new Versioned<byte[]>(value), null);
+            keys.add(key);
+            values.add(value);
+        }
+
+        for(int i = 0; i < keys.size(); i++) {
+            List<Versioned<byte[]>> found = store.get(keys.get(i), null);
+            assertEquals(1, found.size());
+            assertTrue(Arrays.equals(values.get(i), found.get(0).getValue()));
+        }
+
+        Map<ByteArray, List<Versioned<byte[]>>> all = store.getAll(keys, null);
+        assertEquals(keys.size(), all.size());
+        for(int i = 0; i < keys.size(); i++)
+            assertTrue(Arrays.equals(values.get(i), all.get(keys.get(i)).get(0).getValue()));
+    }
+
     @Test
     public void testThreadOverload() throws Exception {
         final Store<ByteArray, byte[], byte[]> store = getStore();
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.socket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import voldemort.client.protocol.RequestFormatType;
+import voldemort.client.protocol.vold.FrameCompression;
+import voldemort.server.RequestRoutingType;
+import voldemort.store.Store;
+import voldemort.store.socket.clientrequest.ClientRequestExecutor;
+import voldemort.store.socket.clientrequest.ClientRequestExecutorPool;
+import voldemort.store.socket.clientrequest.MultiplexedClientRequestExecutor;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.Versioned;
+
+/**
+ * Voldemort native socket store tests over the multiplexed protocol with
+ * compressed frames
+ * 
+ */
+@RunWith(Parameterized.class)
+public class CompressedSocketStoreTest extends AbstractSocketStoreTest {
+
+    private final String codec;
+
+    public CompressedSocketStoreTest(boolean useNio, String codec) {
+        super(RequestFormatType.VOLDEMORT_V4, useNio);
+        this.codec = codec;
+    }
+
+    @Parameters
+    public static Collection<Object[]> configs() {
+        return Arrays.asList(new Object[][] { { true, "snappy" }, { true, "lzf" },
+                { false, "snappy" } });
+    }
+
+    @Override
+    protected SocketStoreFactory createSocketStoreFactory() {
+        return createSocketStoreFactory(Arrays.asList("gzip", codec));
+    }
+
+    private ClientRequestExecutorPool createSocketStoreFactory(List<String> codecs) {
+        return new ClientRequestExecutorPool(2,
+                                             10000,
+                                             100000,
+                                             100000,
+                                             32 * 1024,
+                                             false,
+                                             false,
+                                             0,
+                                             1,
+                                             0,
+                                             codecs,
+                                             100);
+    }
+
+    private FrameCompression getFrameCompression(ClientRequestExecutorPool factory) {
+        SocketDestination destination = new SocketDestination("localhost",
+                                                              getSocketPort(),
+                                                              RequestFormatType.VOLDEMORT_V4);
+        ClientRequestExecutor executor = factory.checkout(destination);
+        factory.checkin(destination, executor);
+        return ((MultiplexedClientRequestExecutor) executor).getFrameCompression();
+    }
+
+    @Test
+    public void testCompressionNegotiated() {
+        FrameCompression frameCompression = getFrameCompression((ClientRequestExecutorPool) getSocketStoreFactory());
+        assertNotNull(frameCompression);
+        assertEquals(codec, frameCompression.getCodec());
+        assertEquals(100, frameCompression.getThreshold());
+    }
+
+    @Test
+    public void testUnsupportedCodecsFallBack() {
+        ClientRequestExecutorPool factory = createSocketStoreFactory(Arrays.asList("gzip"));
+        try {
+            assertNull(getFrameCompression(factory));
+            Store<ByteArray, byte[], byte[]> store = factory.create("test",
+                                                                    "localhost",
+                                                                    getSocketPort(),
+                                                                    RequestFormatType.VOLDEMORT_V4,
+                                                                    RequestRoutingType.NORMAL);
+            ByteArray key = new ByteArray("key".getBytes());
+            byte[] value = new byte[5000];
+            store.put(key, new Versioned<byte[]>(value), null);
+            assertArrayEquals(value, store.get(key, null).get(0).getValue());
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testCompressibleValues() {
+        Store<ByteArray, byte[], byte[]> store = getStore();
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 20000; i++)
+            text.append("value ").append(i % 100).append(' ');
+        byte[] value = text.toString().getBytes();
+
+        ByteArray[] keys = new ByteArray[5];
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = new ByteArray(("key" + i).getBytes());
+            // values on both sides of the threshold
+            byte[] bytes = Arrays.copyOf(value, i == 0 ? 10 : value.length / i);
+            store.put(keys[i], new Versioned<byte[]>(bytes), null);
+            assertArrayEquals(bytes, store.get(keys[i], null).get(0).getValue());
+        }
+
+        Map<ByteArray, List<Versioned<byte[]>>> found = store.getAll(Arrays.asList(keys), null);
+        assertEquals(keys.length, found.size());
+        assertEquals(value.length, found.get(keys[1]).get(0).getValue().length);
+    }
+}
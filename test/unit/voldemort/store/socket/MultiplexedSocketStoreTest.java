@@ -0,0 +1,185 @@
+package voldemort.store.socket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import voldemort.ServerTestUtils;
+import voldemort.TestUtils;
+import voldemort.client.protocol.RequestFormatType;
+import voldemort.server.protocol.vold.VoldemortNativeRequestHandler;
+import voldemort.store.UnreachableStoreException;
+import voldemort.store.nonblockingstore.NonblockingStoreCallback;
+import voldemort.store.socket.clientrequest.ClientRequestExecutorPool;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.versioning.Versioned;
+
+/**
+ * Voldemort native socket store tests over the multiplexed protocol
+ * 
+ * 
+ */
+@RunWith(Parameterized.class)
+public class MultiplexedSocketStoreTest extends AbstractSocketStoreTest {
+
+    public MultiplexedSocketStoreTest(boolean useNio) {
+        super(RequestFormatType.VOLDEMORT_V4, useNio);
+    }
+
+    @Parameters
+    public static Collection<Object[]> configs() {
+        return Arrays.asList(new Object[][] { { true }, { false } });
+    }
+
+    @Test
+    public void testConcurrentRequestsShareConnection() throws Exception {
+        final SocketStore store = (SocketStore) getStore();
+        final AtomicInteger errors = new AtomicInteger(0);
+        int numThreads = 20;
+        final CountDownLatch latch = new CountDownLatch(numThreads);
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            for(int t = 0; t < numThreads; t++) {
+                final int thread = t;
+                exec.execute(new Runnable() {
+
+                    public void run() {
+                        try {
+                            for(int i = 0; i < 50; i++) {
+                                ByteArray key = new ByteArray(("key-" + thread + "-" + i).getBytes());
+                                byte[] value = ("value-" + thread + "-" + i).getBytes();
+                                store.put(key, new Versioned<byte[]>(value), null);
+                                List<Versioned<byte[]>> found = store.get(key, null);
+                                if(found.size() != 1
+                                   || !Arrays.equals(value, found.get(0).getValue()))
+                                    errors.incrementAndGet();
+                            }
+                        } catch(Exception e) {
+                            errors.incrementAndGet();
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+            assertTrue(latch.await(60, TimeUnit.SECONDS));
+        } finally {
+            exec.shutdownNow();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(1, ((ClientRequestExecutorPool) getSocketStoreFactory()).getFactory()
+                                                                             .getNumberCreated());
+    }
+
+    @Test
+    public void testFailedConnectionIsRetried() throws Exception {
+        ClientRequestExecutorPool factory = (ClientRequestExecutorPool) getSocketStoreFactory();
+        SocketDestination destination = new SocketDestination("localhost",
+                                                              ServerTestUtils.findFreePort(),
+                                                              RequestFormatType.VOLDEMORT_V4);
+        // a failed connect is not kept around, every checkout tries again
+        for(int i = 0; i < 2; i++) {
+            try {
+                factory.checkout(destination);
+                fail("Nothing listens on the port");
+            } catch(UnreachableStoreException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedAsyncRequests() throws Exception {
+        SocketStore store = (SocketStore) getStore();
+        int numRequests = 500;
+        for(int i = 0; i < numRequests; i++)
+            store.put(new ByteArray(("key-" + i).getBytes()),
+                      new Versioned<byte[]>(("value-" + i).getBytes()),
+                      null);
+
+        final CountDownLatch latch = new CountDownLatch(numRequests);
+        final AtomicInteger errors = new AtomicInteger(0);
+        for(int i = 0; i < numRequests; i++) {
+            final byte[] expected = ("value-" + i).getBytes();
+            store.submitGetRequest(new ByteArray(("key-" + i).getBytes()),
+                                   null,
+                                   new NonblockingStoreCallback() {
+
+                                       @SuppressWarnings("unchecked")
+                                       public void requestComplete(Object result,
+                                                                   long requestTime) {
+                                           if(!(result instanceof List)
+                                              || ((List<Versioned<byte[]>>) result).size() != 1
+                                              || !Arrays.equals(expected,
+                                                                ((List<Versioned<byte[]>>) result).get(0)
+                                                                                                  .getValue()))
+                                               errors.incrementAndGet();
+                                           latch.countDown();
+                                       }
+                                   },
+                                   10000);
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void testLargeValues() throws Exception {
+        SocketStore store = (SocketStore) getStore();
+        // larger than the socket buffers, so the responses are gathered
+        for(int i = 0; i < 5; i++) {
+            ByteArray key = new ByteArray(("key-" + i).getBytes());
+            byte[] value = TestUtils.randomBytes(256 * 1024 * (i + 1));
+            store.put(key, new Versioned<byte[]>(value), null);
+            List<Versioned<byte[]>> found = store.get(key, null);
+            assertEquals(1, found.size());
+            assertArrayEquals(value, found.get(0).getValue());
+        }
+    }
+
+    @Test
+    public void testOversizedFrameClosesConnection() throws Exception {
+        Socket socket = new Socket("localhost", getSocketPort());
+        try {
+            socket.setSoTimeout(10000);
+            DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            output.write(ByteUtils.getBytes(RequestFormatType.VOLDEMORT_V4.getCode(), "UTF-8"));
+            output.flush();
+            byte[] response = new byte[2];
+            input.readFully(response);
+            assertEquals("ok", ByteUtils.getString(response, "UTF-8"));
+
+            output.writeInt(1);
+            output.writeInt(VoldemortNativeRequestHandler.MAX_FRAME_SIZE + 1);
+            output.flush();
+            try {
+                assertEquals(-1, input.read());
+            } catch(IOException e) {
+                // reset by the server, also fine
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -17,10 +17,16 @@
 package voldemort.versioning;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static voldemort.TestUtils.getClock;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 import org.junit.Test;
 
 import voldemort.TestUtils;
@@ -216,4 +222,53 @@ public class VectorClockTest {
             fail("Did not throw IllegalArgumentException");
         } catch(IllegalArgumentException e) {}
     }
+
+    @Test
+    public void testUnsortedEntriesAreSorted() {
+        // node 3 then node 1, as a client not keeping them sorted would write
+        byte[] unsorted = { 0, 2, 1, 0, 3, 2, 0, 1, 1, 0, 0, 0, 0, 0, 0, 0, 7 };
+        VectorClock clock = new VectorClock(unsorted);
+        assertEquals(getClock(1, 3, 3), clock);
+        assertEquals("version(1:1, 3:2) ts:7", clock.toString());
+        assertEquals(Occurred.AFTER, clock.compare(getClock(1, 3)));
+    }
+
+    @Test
+    public void testCloneIsIndependent() {
+        VectorClock clock = getClock(1, 2);
+        VectorClock clone = clock.clone();
+        clone.incrementVersion(1, System.currentTimeMillis());
+        clone.incrementVersion(5, System.currentTimeMillis());
+        assertEquals(getClock(1, 2), clock);
+        assertEquals(getClock(1, 1, 2, 5), clone);
+
+        VectorClock copy = new VectorClock();
+        copy.copyFromVectorClock(clock);
+        copy.incrementVersion(2, System.currentTimeMillis());
+        assertEquals(getClock(1, 2), clock);
+        assertEquals(getClock(1, 2, 2), copy);
+    }
+
+    @Test
+    public void testMergeSortedEntries() {
+        assertEquals(getClock(1, 1, 2, 3, 4),
+                     getClock(1, 1, 2, 4).merge(getClock(1, 2, 3)));
+        assertEquals(getClock(1, 2), getClock().merge(getClock(1, 2)));
+        assertEquals(getClock(1, 2), getClock(1, 2).merge(getClock()));
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        VectorClock clock = getClock(1, 1, 2, 3, 3, 3);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(clock);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        VectorClock read = (VectorClock) in.readObject();
+        assertEquals(clock, read);
+        assertEquals(clock.getTimestamp(), read.getTimestamp());
+        assertEquals(clock.getVersionMap(), read.getVersionMap());
+        assertFalse(read.getVersionMap().isEmpty());
+    }
 }